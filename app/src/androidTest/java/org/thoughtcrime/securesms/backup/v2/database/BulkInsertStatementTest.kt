@@ -0,0 +1,112 @@
+/*
+ * Copyright 2024 Signal Messenger, LLC
+ * SPDX-License-Identifier: AGPL-3.0-only
+ */
+
+package org.thoughtcrime.securesms.backup.v2.database
+
+import android.content.ContentValues
+import androidx.core.content.contentValuesOf
+import androidx.test.ext.junit.runners.AndroidJUnit4
+import org.junit.After
+import org.junit.Assert.assertEquals
+import org.junit.Before
+import org.junit.Test
+import org.junit.runner.RunWith
+import org.signal.core.util.SqlUtil
+import org.signal.core.util.readToList
+import org.thoughtcrime.securesms.database.SQLiteDatabase
+import org.thoughtcrime.securesms.database.SignalDatabase
+
+/**
+ * Makes sure that [BulkInsertStatement], which is what [ChatItemImportInserter] uses to insert rows, writes exactly the same rows as the
+ * [SqlUtil.buildBulkInsert] queries it replaced.
+ */
+@RunWith(AndroidJUnit4::class)
+class BulkInsertStatementTest {
+
+  companion object {
+    private const val EXPECTED = "bulk_insert_expected"
+    private const val ACTUAL = "bulk_insert_actual"
+
+    private val COLUMNS = arrayOf("_id", "int_value", "text_value", "blob_value", "untyped_value")
+  }
+
+  private lateinit var db: SQLiteDatabase
+
+  @Before
+  fun setUp() {
+    db = SignalDatabase.instance!!.signalWritableDatabase
+
+    for (table in arrayOf(EXPECTED, ACTUAL)) {
+      db.execSQL("DROP TABLE IF EXISTS $table")
+      db.execSQL("CREATE TABLE $table (_id INTEGER PRIMARY KEY AUTOINCREMENT, int_value INTEGER DEFAULT 0, text_value TEXT, blob_value BLOB, untyped_value)")
+    }
+  }
+
+  @After
+  fun tearDown() {
+    db.execSQL("DROP TABLE IF EXISTS $EXPECTED")
+    db.execSQL("DROP TABLE IF EXISTS $ACTUAL")
+  }
+
+  @Test
+  fun singlePartialBatch() {
+    assertEquivalent(rows(count = 3), maxQueryArgs = 999)
+  }
+
+  @Test
+  fun severalFullBatchesAndARemainder() {
+    assertEquivalent(rows(count = 23), maxQueryArgs = 5 * COLUMNS.size)
+  }
+
+  @Test
+  fun reusedAcrossCalls() {
+    val rows = rows(count = 12)
+
+    BulkInsertStatement(db, ACTUAL, COLUMNS, maxQueryArgs = 4 * COLUMNS.size).use { statement ->
+      statement.insert(rows.subList(0, 8))
+      statement.insert(rows.subList(8, 12))
+    }
+    insertExpected(rows, maxQueryArgs = 4 * COLUMNS.size)
+
+    assertEquals(readAll(EXPECTED), readAll(ACTUAL))
+  }
+
+  private fun assertEquivalent(rows: List<ContentValues>, maxQueryArgs: Int) {
+    insertExpected(rows, maxQueryArgs)
+    BulkInsertStatement(db, ACTUAL, COLUMNS, maxQueryArgs).use { it.insert(rows) }
+
+    assertEquals(rows.size, readAll(ACTUAL).size)
+    assertEquals(readAll(EXPECTED), readAll(ACTUAL))
+  }
+
+  private fun insertExpected(rows: List<ContentValues>, maxQueryArgs: Int) {
+    SqlUtil.buildBulkInsert(EXPECTED, COLUMNS, rows, maxQueryArgs).forEach { db.execSQL(it.where, it.whereArgs) }
+  }
+
+  private fun rows(count: Int): List<ContentValues> {
+    return (1..count).map { i ->
+      contentValuesOf(
+        "_id" to i * 2L,
+        "int_value" to if (i % 4 == 0) null else i * 1000L,
+        "text_value" to if (i % 3 == 0) null else "text $i",
+        "blob_value" to if (i % 2 == 0) null else byteArrayOf(i.toByte(), 0, -1),
+        "untyped_value" to when (i % 3) {
+          0 -> i
+          1 -> "untyped $i"
+          else -> 1.5 * i
+        }
+      )
+    }
+  }
+
+  /** Reads every column along with its storage class, so that e.g. a number stored as text doesn't pass as equal. */
+  private fun readAll(table: String): List<List<String?>> {
+    val projection = COLUMNS.joinToString(", ") { "typeof($it), CASE WHEN typeof($it) = 'blob' THEN hex($it) ELSE $it END" }
+
+    return db.query("SELECT $projection FROM $table ORDER BY _id").readToList { cursor ->
+      (0 until cursor.columnCount).map { cursor.getString(it) }
+    }
+  }
+}
@@ -1,5 +1,6 @@
 package org.thoughtcrime.securesms.database
 
+import android.content.Context
 import androidx.test.ext.junit.runners.AndroidJUnit4
 import org.junit.Assert.assertArrayEquals
 import org.junit.Assert.assertEquals
@@ -18,9 +19,11 @@ import org.thoughtcrime.securesms.attachments.Cdn
 import org.thoughtcrime.securesms.attachments.PointerAttachment
 import org.thoughtcrime.securesms.backup.v2.BackupRepository.getMediaName
 import org.thoughtcrime.securesms.database.AttachmentTable.TransformProperties
+import org.thoughtcrime.securesms.dependencies.AppDependencies
 import org.thoughtcrime.securesms.keyvalue.SignalStore
 import org.thoughtcrime.securesms.mms.MediaStream
 import org.thoughtcrime.securesms.mms.OutgoingMessage
+import org.thoughtcrime.securesms.mms.PartAuthority
 import org.thoughtcrime.securesms.mms.QuoteModel
 import org.thoughtcrime.securesms.mms.SentMediaQuality
 import org.thoughtcrime.securesms.providers.BlobProvider
@@ -448,6 +451,40 @@ class AttachmentTableTest_deduping {
     }
   }
 
+  /**
+   * Forwards of attachments whose hash we already know should be deduped without the data ever being copied to a new file.
+   */
+  @Test
+  fun forwardsSkipCopy() {
+    test {
+      val id1 = insertWithData(DATA_A)
+      compress(id1, DATA_A_COMPRESSED)
+      upload(id1)
+
+      val filesBefore = dataFileCount()
+      val id2 = forward(id1)
+
+      assertEquals(filesBefore, dataFileCount())
+      assertDataFilesAreTheSame(id1, id2)
+      assertDataHashEndMatches(id1, id2)
+      assertSkipTransform(id2, true)
+      assertRemoteFieldsMatch(id1, id2)
+    }
+
+    // If the source hasn't been hashed yet, we have to copy the data to find out what it is.
+    test {
+      val id1 = insertWithData(DATA_A)
+      compress(id1, DATA_A_COMPRESSED)
+      clearHashes(id1)
+
+      val filesBefore = dataFileCount()
+      val id2 = forward(id1)
+
+      assertEquals(filesBefore + 1, dataFileCount())
+      assertDataFilesAreDifferent(id1, id2)
+    }
+  }
+
   @Test
   fun quotes() {
     // Basic quote deduping
@@ -626,6 +663,20 @@ class AttachmentTableTest_deduping {
       return SignalDatabase.attachments.insertAttachmentForPreUpload(attachment).attachmentId
     }
 
+    fun forward(attachmentId: AttachmentId): AttachmentId {
+      val attachment = UriAttachmentBuilder.build(
+        id = Random.nextLong(),
+        uri = PartAuthority.getAttachmentDataUri(attachmentId),
+        contentType = MediaUtil.IMAGE_JPEG
+      )
+
+      return SignalDatabase.attachments.insertAttachmentForPreUpload(attachment).attachmentId
+    }
+
+    fun dataFileCount(): Int {
+      return AppDependencies.application.getDir("parts", Context.MODE_PRIVATE).listFiles()?.size ?: 0
+    }
+
     fun insertQuote(attachmentId: AttachmentId): AttachmentId {
       val originalAttachment = SignalDatabase.attachments.getAttachment(attachmentId)!!
       val threadId = SignalDatabase.threads.getOrCreateThreadIdFor(Recipient.self())
@@ -0,0 +1,104 @@
+/*
+ * Copyright 2024 Signal Messenger, LLC
+ * SPDX-License-Identifier: AGPL-3.0-only
+ */
+
+package org.thoughtcrime.securesms.database
+
+import org.junit.Assert.assertEquals
+import org.junit.Before
+import org.junit.Rule
+import org.junit.Test
+import org.thoughtcrime.securesms.mms.IncomingMessage
+import org.thoughtcrime.securesms.recipients.Recipient
+import org.thoughtcrime.securesms.recipients.RecipientId
+import org.thoughtcrime.securesms.testing.SignalDatabaseRule
+import org.whispersystems.signalservice.api.push.ServiceId.ACI
+import java.util.UUID
+
+class UnreadCountTableTest {
+
+  @Rule
+  @JvmField
+  val databaseRule = SignalDatabaseRule()
+
+  private lateinit var sender: RecipientId
+  private var threadId: Long = 0
+
+  @Before
+  fun setUp() {
+    sender = SignalDatabase.recipients.getOrInsertFromServiceId(ACI.from(UUID.randomUUID()))
+    threadId = SignalDatabase.threads.getOrCreateThreadIdFor(Recipient.resolved(sender))
+  }
+
+  @Test
+  fun givenIncomingMessages_whenIGetUnreadCount_thenIExpectEachMessageCounted() {
+    insertIncoming(1)
+    insertIncoming(2)
+    insertIncoming(3)
+
+    assertEquals(3, SignalDatabase.unreadCounts.getUnreadCount(threadId))
+    assertEquals(SignalDatabase.unreadCounts.getUnreadCount(threadId), countUnreadMessages())
+  }
+
+  @Test
+  fun givenUnreadMessages_whenIMarkThemRead_thenIExpectZero() {
+    insertIncoming(1)
+    insertIncoming(2)
+
+    SignalDatabase.messages.setMessagesReadSince(threadId, -1)
+
+    assertEquals(0, SignalDatabase.unreadCounts.getUnreadCount(threadId))
+  }
+
+  @Test
+  fun givenUnreadMessages_whenIMarkSomeRead_thenIExpectRemainingCount() {
+    insertIncoming(1)
+    insertIncoming(2)
+    insertIncoming(3)
+
+    SignalDatabase.messages.setMessagesReadSince(threadId, 2)
+
+    assertEquals(1, SignalDatabase.unreadCounts.getUnreadCount(threadId))
+    assertEquals(SignalDatabase.unreadCounts.getUnreadCount(threadId), countUnreadMessages())
+  }
+
+  @Test
+  fun givenUnreadMessage_whenIDeleteIt_thenIExpectDecrement() {
+    val messageId = insertIncoming(1)
+    insertIncoming(2)
+
+    SignalDatabase.messages.deleteMessage(messageId)
+
+    assertEquals(1, SignalDatabase.unreadCounts.getUnreadCount(threadId))
+  }
+
+  @Test
+  fun givenNoMessages_whenIGetCounts_thenIExpectEmpty() {
+    assertEquals(UnreadCountTable.UnreadCounts.EMPTY, SignalDatabase.unreadCounts.getCounts(threadId))
+  }
+
+  private fun insertIncoming(timestamp: Long): Long {
+    return MmsHelper.insert(
+      IncomingMessage(
+        type = MessageType.NORMAL,
+        from = sender,
+        sentTimeMillis = timestamp,
+        serverTimeMillis = timestamp,
+        receivedTimeMillis = timestamp,
+        body = "body"
+      ),
+      threadId
+    ).get().messageId
+  }
+
+  private fun countUnreadMessages(): Int {
+    return SignalDatabase.rawDatabase.rawQuery(
+      "SELECT COUNT(*) FROM ${MessageTable.TABLE_NAME} WHERE ${MessageTable.THREAD_ID} = ? AND ${MessageTable.READ} = 0",
+      arrayOf(threadId.toString())
+    ).use { cursor ->
+      cursor.moveToFirst()
+      cursor.getInt(0)
+    }
+  }
+}
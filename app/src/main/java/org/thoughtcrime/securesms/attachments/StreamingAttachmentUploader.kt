@@ -0,0 +1,362 @@
+/*
+ * Copyright 2024 Signal Messenger, LLC
+ * SPDX-License-Identifier: AGPL-3.0-only
+ */
+
+package org.thoughtcrime.securesms.attachments
+
+import android.content.Context
+import androidx.annotation.WorkerThread
+import org.signal.core.util.concurrent.SignalExecutors
+import org.signal.core.util.logging.Log
+import org.thoughtcrime.securesms.crypto.AttachmentSecret
+import org.thoughtcrime.securesms.crypto.AttachmentSecretProvider
+import org.thoughtcrime.securesms.crypto.ModernDecryptingPartInputStream
+import org.thoughtcrime.securesms.crypto.ModernEncryptingPartOutputStream
+import org.thoughtcrime.securesms.database.AttachmentTable
+import org.thoughtcrime.securesms.database.SignalDatabase
+import org.thoughtcrime.securesms.dependencies.AppDependencies
+import org.thoughtcrime.securesms.jobmanager.impl.NetworkConstraint
+import org.thoughtcrime.securesms.jobs.AttachmentUploadJob
+import org.thoughtcrime.securesms.recipients.Recipient
+import org.thoughtcrime.securesms.video.interfaces.TranscoderCancelationSignal
+import org.whispersystems.signalservice.api.messages.SignalServiceAttachment
+import org.whispersystems.signalservice.api.messages.SignalServiceAttachmentPointer
+import org.whispersystems.signalservice.internal.push.http.ResumableUploadSpec
+import java.io.File
+import java.io.FileInputStream
+import java.io.FilterInputStream
+import java.io.IOException
+import java.io.InputStream
+import java.io.OutputStream
+import java.util.Optional
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.ExecutionException
+import java.util.concurrent.FutureTask
+import java.util.concurrent.TimeUnit
+
+/**
+ * Uploads an attachment while its final bytes are being written locally, rather than waiting for the write to finish and then
+ * reading the result back from disk. The stream being persisted is wrapped with [tee], and everything read from it is also appended
+ * to an encrypted spill file that the regular encrypting upload follows behind, computing the digest and incremental MAC as it goes.
+ * The local write never waits on the network: if the upload falls behind, the spill file just grows until it catches up.
+ *
+ * The upload protocol needs the final length up front, so this can only be used once that length is known (e.g. when writing the
+ * faststart output of a transcode, whose length is known once its metadata has been sanitized).
+ *
+ * A streamed upload never affects the local write. [finish] returns right away and the upload records itself once it's done. The
+ * [AttachmentUploadJob] that follows waits for it with [awaitInFlight], and uploads the persisted file as usual if it failed.
+ */
+class StreamingAttachmentUploader private constructor(
+  private val attachment: DatabaseAttachment,
+  private val spill: SpillFile
+) {
+
+  companion object {
+    private val TAG = Log.tag(StreamingAttachmentUploader::class.java)
+
+    /** How long a finished upload waits for [finish] before giving up on recording itself. */
+    private val LOCAL_WRITE_TIMEOUT_MS = TimeUnit.SECONDS.toMillis(30)
+
+    private val inFlight: MutableMap<AttachmentId, StreamingAttachmentUploader> = ConcurrentHashMap()
+
+    /**
+     * Starts a streamed upload of [length] bytes for the attachment, or returns null if one isn't possible right now.
+     */
+    @JvmStatic
+    @WorkerThread
+    fun startIfPossible(context: Context, attachment: DatabaseAttachment, contentType: String, length: Long, cancelationSignal: TranscoderCancelationSignal): StreamingAttachmentUploader? {
+      if (!Recipient.self().isRegistered || !NetworkConstraint.isMet(context)) {
+        return null
+      }
+
+      val uploadSpec: ResumableUploadSpec = try {
+        AppDependencies.signalServiceMessageSender.getResumableUploadSpec()
+      } catch (e: IOException) {
+        Log.w(TAG, "Unable to get an upload spec, skipping streamed upload.", e)
+        return null
+      }
+
+      val spill: SpillFile = try {
+        SpillFile(AttachmentTable.newDataFile(context), AttachmentSecretProvider.getInstance(context).getOrCreateAttachmentSecret())
+      } catch (e: IOException) {
+        Log.w(TAG, "Unable to create a spill file, skipping streamed upload.", e)
+        return null
+      }
+
+      val uploader = StreamingAttachmentUploader(attachment, spill)
+
+      val stream = SignalServiceAttachment.newStreamBuilder()
+        .withStream(spill.openReader())
+        .withContentType(contentType)
+        .withLength(length)
+        .withFileName(attachment.fileName)
+        .withVoiceNote(attachment.voiceNote)
+        .withBorderless(attachment.borderless)
+        .withGif(attachment.videoGif)
+        .withFaststart(true)
+        .withWidth(attachment.width)
+        .withHeight(attachment.height)
+        .withUploadTimestamp(System.currentTimeMillis())
+        .withCaption(attachment.caption)
+        .withBlurHash(attachment.blurHash?.hash)
+        .withResumableUploadSpec(uploadSpec)
+        .withCancelationSignal { uploader.canceled || cancelationSignal.isCanceled() }
+        .withUuid(attachment.uuid)
+        .build()
+
+      uploader.upload = FutureTask<Boolean> {
+        try {
+          uploader.uploadAndRecord(AppDependencies.signalServiceMessageSender.uploadAttachment(stream))
+        } catch (e: IOException) {
+          Log.w(TAG, "Streamed upload failed for ${attachment.attachmentId}. Falling back to a regular upload.", e)
+          false
+        } finally {
+          spill.delete()
+          inFlight.remove(attachment.attachmentId, uploader)
+        }
+      }
+
+      inFlight[attachment.attachmentId] = uploader
+      SignalExecutors.UNBOUNDED.execute(uploader.upload)
+
+      Log.i(TAG, "Started streamed upload for ${attachment.attachmentId}, length: $length")
+      return uploader
+    }
+
+    /**
+     * Waits for a streamed upload of the attachment that's still in progress, if there is one, so it isn't uploaded twice.
+     *
+     * @return True if the streamed upload succeeded and was recorded.
+     */
+    @JvmStatic
+    @WorkerThread
+    fun awaitInFlight(attachmentId: AttachmentId): Boolean {
+      val uploader = inFlight[attachmentId] ?: return false
+
+      Log.i(TAG, "Waiting for the streamed upload of $attachmentId to finish.")
+      return try {
+        uploader.upload.get()
+      } catch (e: ExecutionException) {
+        Log.w(TAG, "Streamed upload failed for $attachmentId.", e.cause)
+        false
+      } catch (e: InterruptedException) {
+        Log.w(TAG, "Interrupted while waiting for streamed upload.", e)
+        false
+      }
+    }
+  }
+
+  private lateinit var upload: FutureTask<Boolean>
+
+  private val localWriteFinished = CountDownLatch(1)
+
+  @Volatile
+  private var canceled = false
+
+  /**
+   * Wraps the stream that is being persisted, copying everything read from it into the upload.
+   */
+  fun tee(inputStream: InputStream): InputStream {
+    return object : FilterInputStream(inputStream) {
+      override fun read(): Int {
+        val value = super.read()
+        if (value == -1) {
+          spill.close()
+        } else {
+          spill.write(byteArrayOf(value.toByte()), 0, 1)
+        }
+        return value
+      }
+
+      override fun read(b: ByteArray, off: Int, len: Int): Int {
+        val read = super.read(b, off, len)
+        if (read == -1) {
+          spill.close()
+        } else if (read > 0) {
+          spill.write(b, off, read)
+        }
+        return read
+      }
+    }
+  }
+
+  /**
+   * Abandons the streamed upload, e.g. because the local write failed and will be retried a different way.
+   */
+  fun cancel() {
+    canceled = true
+    spill.abort()
+    localWriteFinished.countDown()
+  }
+
+  /**
+   * Tells the upload that the attachment has been persisted. This doesn't wait for the upload, which records itself when it
+   * completes so the subsequent [AttachmentUploadJob] can reuse it.
+   */
+  fun finish() {
+    spill.close()
+    localWriteFinished.countDown()
+  }
+
+  private fun uploadAndRecord(pointer: SignalServiceAttachmentPointer): Boolean {
+    // The upload can only complete once the whole stream has been read, but the attachment may not be saved yet
+    val persisted = try {
+      localWriteFinished.await(LOCAL_WRITE_TIMEOUT_MS, TimeUnit.MILLISECONDS)
+    } catch (e: InterruptedException) {
+      false
+    }
+
+    if (!persisted || canceled || spill.failed) {
+      Log.w(TAG, "Streamed upload for ${attachment.attachmentId} finished, but the local write didn't. Falling back to a regular upload.")
+      return false
+    }
+
+    val uploaded = PointerAttachment.forPointer(Optional.of(pointer), null, attachment.fastPreflightId).get()
+    SignalDatabase.attachments.finalizeAttachmentAfterUpload(attachment.attachmentId, uploaded, pointer.uploadTimestamp)
+
+    Log.i(TAG, "Streamed upload complete for ${attachment.attachmentId}")
+    return true
+  }
+
+  /**
+   * Everything fed to the upload, encrypted on disk. The local write appends to it without ever waiting, and the upload reads it
+   * through [openReader], which only blocks when it has caught up with the writer.
+   */
+  private class SpillFile(private val file: File, private val attachmentSecret: AttachmentSecret) {
+
+    private val lock = Object()
+    private val random: ByteArray
+    private val output: OutputStream
+
+    /** Incremented on every write, so a reader that found nothing new can tell whether it missed one. */
+    private var writes = 0L
+    private var closed = false
+    private var aborted = false
+
+    @Volatile
+    var failed = false
+      private set
+
+    init {
+      file.deleteOnExit()
+
+      val encrypted = ModernEncryptingPartOutputStream.createFor(attachmentSecret, file, false)
+      random = encrypted.first
+      output = encrypted.second
+    }
+
+    fun write(buffer: ByteArray, offset: Int, length: Int) {
+      if (failed || isFinished()) {
+        return
+      }
+
+      try {
+        output.write(buffer, offset, length)
+        output.flush()
+      } catch (e: IOException) {
+        Log.w(TAG, "Unable to write to the spill file. Continuing without the streamed upload.", e)
+        failed = true
+        abort()
+        return
+      }
+
+      synchronized(lock) {
+        writes++
+        lock.notifyAll()
+      }
+    }
+
+    fun close() {
+      if (isFinished()) {
+        return
+      }
+
+      try {
+        output.close()
+      } catch (e: IOException) {
+        failed = true
+      }
+
+      // Only marked closed once everything has reached the file, so a reader that sees it can trust the end of the file
+      synchronized(lock) {
+        closed = true
+        writes++
+        lock.notifyAll()
+      }
+    }
+
+    fun abort() {
+      synchronized(lock) {
+        aborted = true
+        lock.notifyAll()
+      }
+
+      try {
+        output.close()
+      } catch (e: IOException) {
+        Log.w(TAG, "Failed to close the spill file.", e)
+      }
+    }
+
+    fun delete() {
+      if (!file.delete()) {
+        Log.w(TAG, "Failed to delete the spill file.")
+      }
+    }
+
+    fun openReader(): InputStream {
+      return ModernDecryptingPartInputStream.createFor(attachmentSecret, random, FollowingInputStream(FileInputStream(file)), 0)
+    }
+
+    private fun isFinished(): Boolean {
+      return synchronized(lock) { closed || aborted }
+    }
+
+    /**
+     * Reads the spill file as it's written, waiting for more data until the writer closes it.
+     */
+    private inner class FollowingInputStream(private val input: FileInputStream) : InputStream() {
+
+      override fun read(): Int {
+        val buffer = ByteArray(1)
+        return if (read(buffer, 0, 1) == -1) -1 else buffer[0].toInt() and 0xFF
+      }
+
+      override fun read(b: ByteArray, off: Int, len: Int): Int {
+        while (true) {
+          val seenWrites: Long
+          val writerClosed: Boolean
+
+          synchronized(lock) {
+            if (aborted) {
+              throw IOException("Streamed upload was abandoned.")
+            }
+            seenWrites = writes
+            writerClosed = closed
+          }
+
+          val read = input.read(b, off, len)
+          if (read != -1) {
+            return read
+          }
+
+          if (writerClosed) {
+            return -1
+          }
+
+          synchronized(lock) {
+            while (writes == seenWrites && !aborted) {
+              lock.wait()
+            }
+          }
+        }
+      }
+
+      override fun close() {
+        input.close()
+      }
+    }
+  }
+}
@@ -0,0 +1,176 @@
+/*
+ * Copyright 2024 Signal Messenger, LLC
+ * SPDX-License-Identifier: AGPL-3.0-only
+ */
+
+package org.thoughtcrime.securesms.attachments
+
+import android.content.Context
+import android.graphics.Bitmap
+import androidx.annotation.WorkerThread
+import com.bumptech.glide.Glide
+import com.bumptech.glide.load.Option
+import com.bumptech.glide.load.engine.DiskCacheStrategy
+import com.bumptech.glide.load.resource.bitmap.DownsampleStrategy
+import com.bumptech.glide.request.FutureTarget
+import org.signal.core.util.logging.Log
+import org.thoughtcrime.securesms.crypto.AttachmentSecretProvider
+import org.thoughtcrime.securesms.crypto.ModernEncryptingPartOutputStream
+import org.thoughtcrime.securesms.mms.DecryptableStreamUriLoader.DecryptableUri
+import org.thoughtcrime.securesms.mms.PartAuthority
+import org.thoughtcrime.securesms.util.MediaUtil
+import java.io.File
+import java.io.IOException
+import java.util.concurrent.ExecutionException
+import kotlin.math.min
+import kotlin.math.roundToInt
+
+/**
+ * A small set of pre-scaled thumbnails for an image or video attachment, stored encrypted next to its data file.
+ *
+ * Media grids and bubbles typically request tiles that are a tiny fraction of the size of the original, so serving them from
+ * one of these levels saves decoding (and for videos, extracting a frame from) the full attachment every time. Each level is
+ * sized by its shortest edge, so it has enough pixels for both center-crop and fit-center requests up to that size.
+ */
+object ThumbnailPyramid {
+
+  private val TAG = Log.tag(ThumbnailPyramid::class.java)
+
+  /** The shortest edge of each level, in pixels, smallest first. */
+  @JvmField
+  val LEVELS = intArrayOf(128, 256, 512)
+
+  private const val FILE_SUFFIX = ".thumb"
+  private const val JPEG_QUALITY = 85
+
+  private val THUMBNAIL_FILE_REGEX = Regex("^(.+)\\.thumb\\d+$")
+
+  /**
+   * Set on Glide requests that must decode the original attachment rather than a thumbnail, such as the ones that generate the pyramid.
+   */
+  @JvmField
+  val SKIP: Option<Boolean> = Option.memory("org.thoughtcrime.securesms.attachments.ThumbnailPyramid.SKIP", false)
+
+  @JvmStatic
+  fun isSupported(contentType: String?): Boolean {
+    return (MediaUtil.isImageType(contentType) && !MediaUtil.isGif(contentType)) || MediaUtil.isVideoType(contentType)
+  }
+
+  /**
+   * @return The smallest level that can satisfy a request of the given size, or null if the request is larger than every level.
+   */
+  @JvmStatic
+  fun levelFor(width: Int, height: Int): Int? {
+    if (width <= 0 || height <= 0) {
+      return null
+    }
+
+    val size = maxOf(width, height)
+    return LEVELS.firstOrNull { it >= size }
+  }
+
+  @JvmStatic
+  fun fileFor(dataFile: File, level: Int): File {
+    return File(dataFile.parentFile, "${dataFile.name}$FILE_SUFFIX$level")
+  }
+
+  /**
+   * @return The path of the data file that the thumbnail at [path] belongs to, or null if [path] is not a thumbnail.
+   */
+  @JvmStatic
+  fun dataFilePathFor(path: String): String? {
+    return THUMBNAIL_FILE_REGEX.matchEntire(path)?.groupValues?.get(1)
+  }
+
+  /**
+   * Deletes every level for the given data file. Must be called whenever the data file is deleted or rewritten.
+   */
+  @JvmStatic
+  fun deleteFor(dataFile: File) {
+    for (level in LEVELS) {
+      val file = fileFor(dataFile, level)
+      if (file.exists() && !file.delete()) {
+        Log.w(TAG, "Failed to delete thumbnail: $file")
+      }
+    }
+  }
+
+  /**
+   * Decodes the attachment once at (at least) the largest level, and scales that down to write every level that is smaller than the
+   * attachment itself. The smallest level is always written, even if the attachment is smaller, since it's still cheaper to serve.
+   *
+   * @return The number of levels written.
+   */
+  @WorkerThread
+  @Throws(IOException::class)
+  fun generate(context: Context, attachmentId: AttachmentId, dataFile: File, contentType: String?): Int {
+    val largest = LEVELS.last()
+
+    val target: FutureTarget<Bitmap> = Glide.with(context.applicationContext)
+      .asBitmap()
+      .load(DecryptableUri(PartAuthority.getAttachmentDataUri(attachmentId)))
+      .set(SKIP, true)
+      .skipMemoryCache(true)
+      .diskCacheStrategy(DiskCacheStrategy.NONE)
+      .downsample(DownsampleStrategy.AT_LEAST)
+      .dontTransform()
+      .submit(largest, largest)
+
+    try {
+      val bitmap: Bitmap = try {
+        target.get()
+      } catch (e: ExecutionException) {
+        throw IOException("Failed to decode $attachmentId", e)
+      } catch (e: InterruptedException) {
+        throw IOException("Interrupted while decoding $attachmentId", e)
+      }
+
+      return writeLevels(context, bitmap, dataFile, contentType)
+    } finally {
+      // Hands the decoded bitmap back to Glide's pool
+      Glide.with(context.applicationContext).clear(target)
+    }
+  }
+
+  private fun writeLevels(context: Context, bitmap: Bitmap, dataFile: File, contentType: String?): Int {
+    val attachmentSecret = AttachmentSecretProvider.getInstance(context).getOrCreateAttachmentSecret()
+    val format = if (bitmap.hasAlpha() && !MediaUtil.isVideoType(contentType)) Bitmap.CompressFormat.PNG else Bitmap.CompressFormat.JPEG
+    val shortestEdge = min(bitmap.width, bitmap.height)
+
+    var written = 0
+    for (level in LEVELS) {
+      if (level >= shortestEdge && level != LEVELS.first()) {
+        break
+      }
+
+      val scale = min(1f, level / shortestEdge.toFloat())
+      val scaled = if (scale < 1f) {
+        Bitmap.createScaledBitmap(bitmap, (bitmap.width * scale).roundToInt().coerceAtLeast(1), (bitmap.height * scale).roundToInt().coerceAtLeast(1), true)
+      } else {
+        bitmap
+      }
+
+      val destination = fileFor(dataFile, level)
+      val tempFile = File(destination.parentFile, destination.name + ".tmp")
+
+      try {
+        ModernEncryptingPartOutputStream.createFor(attachmentSecret, tempFile, true).second.use { outputStream ->
+          scaled.compress(format, JPEG_QUALITY, outputStream)
+        }
+      } finally {
+        if (scaled !== bitmap) {
+          scaled.recycle()
+        }
+      }
+
+      if (!tempFile.renameTo(destination)) {
+        tempFile.delete()
+        throw IOException("Failed to rename thumbnail to $destination")
+      }
+
+      written++
+    }
+
+    return written
+  }
+}
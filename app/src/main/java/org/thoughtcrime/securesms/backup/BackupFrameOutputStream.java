@@ -6,9 +6,13 @@
 package org.thoughtcrime.securesms.backup;
 
 import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
 
 import org.signal.core.util.Conversions;
+import org.signal.core.util.ThreadUtil;
+import org.signal.core.util.concurrent.SignalExecutors;
 import org.signal.core.util.logging.Log;
+import org.signal.devicetransfer.MultiplexedOutput;
 import org.signal.libsignal.protocol.kdf.HKDF;
 import org.signal.libsignal.protocol.util.ByteUtil;
 import org.thoughtcrime.securesms.attachments.AttachmentId;
@@ -21,14 +25,22 @@ import org.thoughtcrime.securesms.backup.proto.KeyValue;
 import org.thoughtcrime.securesms.backup.proto.SharedPreference;
 import org.thoughtcrime.securesms.backup.proto.SqlStatement;
 import org.thoughtcrime.securesms.backup.proto.Sticker;
+import org.thoughtcrime.securesms.backup.proto.TrustedIntroductions;
 import org.thoughtcrime.securesms.util.Util;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InterruptedIOException;
 import java.io.OutputStream;
 import java.security.InvalidAlgorithmParameterException;
 import java.security.InvalidKeyException;
 import java.security.NoSuchAlgorithmException;
+import java.util.ArrayDeque;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
 
 import javax.crypto.BadPaddingException;
 import javax.crypto.Cipher;
@@ -47,11 +59,14 @@ class BackupFrameOutputStream extends FullBackupBase.BackupStream {
   private final Mac          mac;
 
   private final byte[] cipherKey;
+  private final byte[] macKey;
   private final byte[] iv;
   private       int    counter;
 
   private int frames;
 
+  private @Nullable ParallelStreams parallelStreams;
+
   BackupFrameOutputStream(@NonNull OutputStream output, @NonNull String passphrase) throws IOException {
     try {
       byte[]   salt    = Util.getSecretBytes(32);
@@ -60,7 +75,7 @@ class BackupFrameOutputStream extends FullBackupBase.BackupStream {
       byte[][] split   = ByteUtil.split(derived, 32, 32);
 
       this.cipherKey = split[0];
-      byte[] macKey = split[1];
+      this.macKey    = split[1];
 
       this.cipher       = Cipher.getInstance("AES/CTR/NoPadding");
       this.mac          = Mac.getInstance("HmacSHA256");
@@ -97,6 +112,10 @@ class BackupFrameOutputStream extends FullBackupBase.BackupStream {
     write(outputStream, new BackupFrame.Builder().statement(statement).build());
   }
 
+  public void write(TrustedIntroductions trustedIntroductions) throws IOException {
+    write(outputStream, new BackupFrame.Builder().trustedIntroductions(trustedIntroductions).build());
+  }
+
   public void write(@NonNull String avatarName, @NonNull InputStream in, long size) throws IOException {
     try {
       write(outputStream, new BackupFrame.Builder()
@@ -115,39 +134,70 @@ class BackupFrameOutputStream extends FullBackupBase.BackupStream {
     }
   }
 
-  public void write(@NonNull AttachmentId attachmentId, @NonNull InputStream in, long size) throws IOException {
+  /**
+   * From now on, send attachment and sticker data over channels of its own rather than in line with the
+   * rest of the frames, see {@link ParallelStreams}. Only for transfers to a receiver that knows to look
+   * for it there.
+   */
+  void sendStreamsOver(@NonNull MultiplexedOutput channels) {
+    parallelStreams = new ParallelStreams(channels);
+  }
+
+  public void write(@NonNull AttachmentId attachmentId, @Nullable String identity, @NonNull StreamOpener opener, long size) throws IOException {
+    InputStream in         = opener.open();
+    boolean     handedOver = false;
+
     try {
-      write(outputStream, new BackupFrame.Builder()
-          .attachment(new Attachment.Builder()
-                          .rowId(attachmentId.id)
-                          .length(Util.toIntExact(size))
-                          .build())
-          .build());
-    } catch (ArithmeticException e) {
-      Log.w(TAG, "Unable to write " + attachmentId + " to backup", e);
-      throw new FullBackupExporter.InvalidBackupStreamException();
-    }
+      Integer channel = parallelStreams != null ? parallelStreams.nextChannel() : null;
+
+      try {
+        write(outputStream, new BackupFrame.Builder()
+            .attachment(new Attachment.Builder()
+                            .rowId(attachmentId.id)
+                            .length(Util.toIntExact(size))
+                            .identity(identity)
+                            .channel(channel)
+                            .build())
+            .build());
+      } catch (ArithmeticException e) {
+        Log.w(TAG, "Unable to write " + attachmentId + " to backup", e);
+        throw new FullBackupExporter.InvalidBackupStreamException();
+      }
 
-    if (writeStream(in) != size) {
-      throw new IOException("Size mismatch!");
+      handedOver = writeStream(in, size, channel);
+    } finally {
+      if (!handedOver) {
+        in.close();
+      }
     }
   }
 
-  public void writeSticker(long rowId, @NonNull InputStream in, long size) throws IOException {
+  public void writeSticker(long rowId, @Nullable String identity, @NonNull StreamOpener opener, long size) throws IOException {
+    InputStream in         = opener.open();
+    boolean     handedOver = false;
+
     try {
-      write(outputStream, new BackupFrame.Builder()
-          .sticker(new Sticker.Builder()
-                       .rowId(rowId)
-                       .length(Util.toIntExact(size))
-                       .build())
-          .build());
-    } catch (ArithmeticException e) {
-      Log.w(TAG, "Unable to write sticker to backup", e);
-      throw new FullBackupExporter.InvalidBackupStreamException();
-    }
+      Integer channel = parallelStreams != null ? parallelStreams.nextChannel() : null;
+
+      try {
+        write(outputStream, new BackupFrame.Builder()
+            .sticker(new Sticker.Builder()
+                         .rowId(rowId)
+                         .length(Util.toIntExact(size))
+                         .identity(identity)
+                         .channel(channel)
+                         .build())
+            .build());
+      } catch (ArithmeticException e) {
+        Log.w(TAG, "Unable to write sticker to backup", e);
+        throw new FullBackupExporter.InvalidBackupStreamException();
+      }
 
-    if (writeStream(in) != size) {
-      throw new IOException("Size mismatch!");
+      handedOver = writeStream(in, size, channel);
+    } finally {
+      if (!handedOver) {
+        in.close();
+      }
     }
   }
 
@@ -161,12 +211,36 @@ class BackupFrameOutputStream extends FullBackupBase.BackupStream {
     write(outputStream, new BackupFrame.Builder().end(true).build());
   }
 
+  /**
+   * Writes the data of an attachment or sticker, either in line, or over {@code channel} once one of the
+   * {@link ParallelStreams} threads gets to it.
+   *
+   * @return true if {@code in} was handed over to be sent later, in which case it's closed once it has been.
+   */
+  private boolean writeStream(@NonNull InputStream in, long size, @Nullable Integer channel) throws IOException {
+    if (channel != null && parallelStreams != null) {
+      parallelStreams.send(channel, counter++, in, size);
+      return true;
+    } else if (writeStream(in) != size) {
+      throw new IOException("Size mismatch!");
+    }
+    return false;
+  }
+
   /**
    * @return The amount of data written from the provided InputStream.
    */
   private long writeStream(@NonNull InputStream inputStream) throws IOException {
+    return writeStream(inputStream, outputStream, counter++, iv, cipher, mac);
+  }
+
+  /**
+   * Encrypts a stream with the IV for {@code streamCounter}, which has to be the value the counter had when
+   * the stream would have been written in line, since that's what the reader expects.
+   */
+  private long writeStream(@NonNull InputStream inputStream, @NonNull OutputStream out, int streamCounter, @NonNull byte[] iv, @NonNull Cipher cipher, @NonNull Mac mac) throws IOException {
     try {
-      Conversions.intToByteArray(iv, 0, counter++);
+      Conversions.intToByteArray(iv, 0, streamCounter);
       cipher.init(Cipher.ENCRYPT_MODE, new SecretKeySpec(cipherKey, "AES"), new IvParameterSpec(iv));
       mac.update(iv);
 
@@ -179,7 +253,7 @@ class BackupFrameOutputStream extends FullBackupBase.BackupStream {
         byte[] ciphertext = cipher.update(buffer, 0, read);
 
         if (ciphertext != null) {
-          outputStream.write(ciphertext);
+          out.write(ciphertext);
           mac.update(ciphertext);
         }
 
@@ -187,11 +261,11 @@ class BackupFrameOutputStream extends FullBackupBase.BackupStream {
       }
 
       byte[] remainder = cipher.doFinal();
-      outputStream.write(remainder);
+      out.write(remainder);
       mac.update(remainder);
 
       byte[] attachmentDigest = mac.doFinal();
-      outputStream.write(attachmentDigest, 0, 10);
+      out.write(attachmentDigest, 0, 10);
 
       return total;
     } catch (InvalidKeyException | InvalidAlgorithmParameterException | IllegalBlockSizeException | BadPaddingException e) {
@@ -233,7 +307,27 @@ class BackupFrameOutputStream extends FullBackupBase.BackupStream {
     }
   }
 
+  /**
+   * Wait for any attachment and sticker data that's still being sent over its own channel. The frames written so far are flushed
+   * first, since the receiver can't get to the last streams without them.
+   */
+  void flushStreams() throws IOException {
+    if (parallelStreams != null) {
+      parallelStreams.finish();
+    }
+  }
+
+  /**
+   * Stop sending any attachment and sticker data that's still in flight, e.g. because the export failed.
+   */
+  void cancelStreams() {
+    if (parallelStreams != null) {
+      parallelStreams.cancel();
+    }
+  }
+
   public void close() throws IOException {
+    flushStreams();
     outputStream.flush();
     outputStream.close();
   }
@@ -241,4 +335,113 @@ class BackupFrameOutputStream extends FullBackupBase.BackupStream {
   public int getFrames() {
     return frames;
   }
+
+  interface StreamOpener {
+    @NonNull InputStream open() throws IOException;
+  }
+
+  /**
+   * Sends attachment and sticker data over channels of their own, with the encryption done on several threads, so that large
+   * files don't hold up the rest of the backup, and a single core doesn't limit how fast they can be sent. Each stream gets the
+   * next channel number, which is recorded in its frame so the reader knows where to find it. The data is encrypted exactly as
+   * it would have been in line.
+   * <p>
+   * Streams are sent in the order they were written. Each channel only holds so much data the receiver hasn't read yet, and the
+   * receiver reads them in order, so only a few are sent at once, and the frames that came before them are flushed before
+   * waiting for one to finish, since the receiver can't get to the stream without them.
+   */
+  private final class ParallelStreams {
+
+    private static final int FIRST_CHANNEL = 1;
+    private static final int THREADS       = 4;
+    private static final int MAX_IN_FLIGHT = THREADS * 2;
+
+    private final MultiplexedOutput        channels;
+    private final ExecutorService          executor;
+    private final Semaphore                inFlight = new Semaphore(MAX_IN_FLIGHT);
+    private final ArrayDeque<Future<Void>> pending  = new ArrayDeque<>();
+
+    private int nextChannel = FIRST_CHANNEL;
+
+    ParallelStreams(@NonNull MultiplexedOutput channels) {
+      this.channels = channels;
+      this.executor = Executors.newFixedThreadPool(THREADS, new SignalExecutors.NumberedThreadFactory("backup-streams", ThreadUtil.PRIORITY_BACKGROUND_THREAD));
+    }
+
+    int nextChannel() {
+      return nextChannel++;
+    }
+
+    void send(int channel, int streamCounter, @NonNull InputStream in, long size) throws IOException {
+      if (!inFlight.tryAcquire()) {
+        outputStream.flush();
+
+        try {
+          inFlight.acquire();
+        } catch (InterruptedException e) {
+          throw new InterruptedIOException();
+        }
+      }
+
+      byte[] streamIv = iv.clone();
+
+      try {
+        throwIfFailed();
+
+        pending.add(executor.submit(() -> {
+          try (InputStream input = in; OutputStream out = channels.openChannel(channel)) {
+            Cipher cipher = Cipher.getInstance("AES/CTR/NoPadding");
+            Mac    mac    = Mac.getInstance("HmacSHA256");
+            mac.init(new SecretKeySpec(macKey, "HmacSHA256"));
+
+            if (writeStream(input, out, streamCounter, streamIv, cipher, mac) != size) {
+              throw new IOException("Size mismatch!");
+            }
+          } finally {
+            inFlight.release();
+          }
+          return null;
+        }));
+      } catch (IOException | RuntimeException e) {
+        inFlight.release();
+        throw e;
+      }
+    }
+
+    void finish() throws IOException {
+      outputStream.flush();
+
+      try {
+        while (!pending.isEmpty()) {
+          awaitFirst();
+        }
+      } finally {
+        executor.shutdownNow();
+      }
+    }
+
+    void cancel() {
+      executor.shutdownNow();
+      pending.clear();
+    }
+
+    private void throwIfFailed() throws IOException {
+      while (!pending.isEmpty() && pending.peekFirst().isDone()) {
+        awaitFirst();
+      }
+    }
+
+    private void awaitFirst() throws IOException {
+      try {
+        pending.removeFirst().get();
+      } catch (InterruptedException e) {
+        throw new InterruptedIOException();
+      } catch (ExecutionException e) {
+        if (e.getCause() instanceof IOException) {
+          throw (IOException) e.getCause();
+        }
+        throw new IOException(e.getCause());
+      }
+    }
+  }
 }
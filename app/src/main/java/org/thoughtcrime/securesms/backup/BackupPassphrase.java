@@ -40,6 +40,8 @@ public final class BackupPassphrase {
   }
 
   public static void set(@NonNull Context context, @Nullable String passphrase) {
+    IncrementalBackupChain.reset(context);
+
     if (passphrase == null || Build.VERSION.SDK_INT < 23) {
       TextSecurePreferences.setBackupPassphrase(context, passphrase);
       TextSecurePreferences.setEncryptedBackupPassphrase(context, null);
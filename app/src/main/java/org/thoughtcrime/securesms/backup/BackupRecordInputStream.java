@@ -1,10 +1,12 @@
 package org.thoughtcrime.securesms.backup;
 
 import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
 
 import org.signal.core.util.Conversions;
 import org.signal.core.util.StreamUtil;
 import org.signal.core.util.logging.Log;
+import org.signal.devicetransfer.MultiplexedInput;
 import org.signal.libsignal.protocol.kdf.HKDF;
 import org.signal.libsignal.protocol.util.ByteUtil;
 import org.thoughtcrime.securesms.backup.proto.BackupFrame;
@@ -41,6 +43,8 @@ class BackupRecordInputStream extends FullBackupBase.BackupStream {
   private final byte[] iv;
   private       int    counter;
 
+  private @Nullable MultiplexedInput streamChannels;
+
   BackupRecordInputStream(@NonNull InputStream in, @NonNull String passphrase) throws IOException {
     try {
       this.in = in;
@@ -92,6 +96,14 @@ class BackupRecordInputStream extends FullBackupBase.BackupStream {
     }
   }
 
+  /**
+   * Read attachment and sticker data that was sent over channels of its own from {@code channels}, see
+   * {@link BackupFrameOutputStream#sendStreamsOver}.
+   */
+  void readStreamsFrom(@NonNull MultiplexedInput channels) {
+    this.streamChannels = channels;
+  }
+
   BackupFrame readFrame() throws IOException {
     return readFrame(in);
   }
@@ -126,6 +138,32 @@ class BackupRecordInputStream extends FullBackupBase.BackupStream {
   }
 
   void readAttachmentTo(OutputStream out, int length) throws IOException {
+    readAttachmentTo(in, out, length);
+  }
+
+  /**
+   * @param channel The channel the data was sent over, if it wasn't sent in line with the frames.
+   */
+  void readAttachmentTo(OutputStream out, int length, @Nullable Integer channel) throws IOException {
+    if (channel == null) {
+      readAttachmentTo(in, out, length);
+      return;
+    }
+
+    if (streamChannels == null) {
+      throw new IOException("Data was sent over channel " + channel + ", but there are no channels to read it from");
+    }
+
+    try (InputStream channelInput = streamChannels.openChannel(channel)) {
+      readAttachmentTo(channelInput, out, length);
+
+      if (channelInput.read() != -1) {
+        throw new IOException("Channel " + channel + " has more data than expected");
+      }
+    }
+  }
+
+  private void readAttachmentTo(InputStream in, OutputStream out, int length) throws IOException {
     try {
       Conversions.intToByteArray(iv, 0, counter++);
       cipher.init(Cipher.DECRYPT_MODE, new SecretKeySpec(cipherKey, "AES"), new IvParameterSpec(iv));
@@ -1,52 +1,84 @@
 package org.thoughtcrime.securesms.backup
 
+import com.google.common.io.CountingInputStream
 import org.greenrobot.eventbus.EventBus
 import org.signal.core.util.logging.Log
 import org.thoughtcrime.securesms.backup.proto.Attachment
 import org.thoughtcrime.securesms.backup.proto.Avatar
 import org.thoughtcrime.securesms.backup.proto.BackupFrame
+import org.thoughtcrime.securesms.backup.proto.SqlStatement
 import org.thoughtcrime.securesms.backup.proto.Sticker
+import org.thoughtcrime.securesms.database.AttachmentTable
+import org.thoughtcrime.securesms.database.StickerTable
+import org.thoughtcrime.securesms.dependencies.AppDependencies
+import java.io.File
 import java.io.IOException
 import java.io.InputStream
 import java.io.OutputStream
 
 /**
  * Given a backup file, run over it and verify it will decrypt properly when attempting to import it.
+ *
+ * The file is streamed through once. Besides the MACs of every frame and attachment, it checks that each attachment and sticker frame
+ * belongs to a row that was inserted earlier in the file. The row IDs that are seen are kept in [SpillingLongSet]s, so memory use doesn't grow
+ * with the size of the backup.
  */
 object BackupVerifier {
 
   private val TAG = Log.tag(BackupVerifier::class.java)
 
+  private const val ATTACHMENT_INSERT = "INSERT INTO ${AttachmentTable.TABLE_NAME} VALUES "
+  private const val STICKER_INSERT = "INSERT INTO ${StickerTable.TABLE_NAME} VALUES "
+
   @JvmStatic
+  @JvmOverloads
   @Throws(IOException::class, FullBackupExporter.BackupCanceledException::class)
-  fun verifyFile(cipherStream: InputStream, passphrase: String, expectedCount: Long, cancellationSignal: FullBackupExporter.BackupCancellationSignal): Boolean {
-    val inputStream = BackupRecordInputStream(cipherStream, passphrase)
+  fun verifyFile(
+    cipherStream: InputStream,
+    passphrase: String,
+    expectedCount: Long,
+    cancellationSignal: FullBackupExporter.BackupCancellationSignal,
+    spillDirectory: File = AppDependencies.application.cacheDir,
+    statsListener: ((VerificationStats) -> Unit)? = null
+  ): Boolean {
+    val startTime = System.currentTimeMillis()
+    val countingStream = CountingInputStream(cipherStream)
+    val inputStream = BackupRecordInputStream(countingStream, passphrase)
 
     var count = 0L
     var frame: BackupFrame = inputStream.readFrame()
 
+    val references = RowReferences(spillDirectory)
+
     cipherStream.use {
-      while (frame.end != true && !cancellationSignal.isCanceled) {
-        val verified = when {
-          frame.attachment != null -> verifyAttachment(frame.attachment!!, inputStream)
-          frame.sticker != null -> verifySticker(frame.sticker!!, inputStream)
-          frame.avatar != null -> verifyAvatar(frame.avatar!!, inputStream)
-          else -> true
-        }
+      references.use {
+        while (frame.end != true && !cancellationSignal.isCanceled) {
+          val verified = when {
+            frame.statement != null -> references.record(frame.statement!!)
+            frame.attachment != null -> verifyAttachment(frame.attachment!!, inputStream, references)
+            frame.sticker != null -> verifySticker(frame.sticker!!, inputStream, references)
+            frame.avatar != null -> verifyAvatar(frame.avatar!!, inputStream)
+            else -> true
+          }
 
-        if (!verified) {
-          return false
+          if (!verified) {
+            return false
+          }
+          // TI_GLUE: eNT9XAHgq0lZdbQs2nfH start
+          EventBus.getDefault().post(BackupEvent(BackupEvent.Type.PROGRESS_VERIFYING, ++count, 0, expectedCount, 0))
+          // TI_GLUE: eNT9XAHgq0lZdbQs2nfH end
+          frame = inputStream.readFrame()
+        }
+        if (frame.end == true) {
+          count++
         }
-        // TI_GLUE: eNT9XAHgq0lZdbQs2nfH start
-        EventBus.getDefault().post(BackupEvent(BackupEvent.Type.PROGRESS_VERIFYING, ++count, 0, expectedCount, 0))
-        // TI_GLUE: eNT9XAHgq0lZdbQs2nfH end
-        frame = inputStream.readFrame()
-      }
-      if (frame.end == true) {
-        count++
       }
     }
 
+    val stats = VerificationStats(count, countingStream.count, System.currentTimeMillis() - startTime)
+    Log.i(TAG, "Verified $stats")
+    statsListener?.invoke(stats)
+
     if (cancellationSignal.isCanceled) {
       throw FullBackupExporter.BackupCanceledException()
     }
@@ -59,7 +91,12 @@ object BackupVerifier {
     return true
   }
 
-  private fun verifyAttachment(attachment: Attachment, inputStream: BackupRecordInputStream): Boolean {
+  private fun verifyAttachment(attachment: Attachment, inputStream: BackupRecordInputStream, references: RowReferences): Boolean {
+    if (attachment.rowId == null || attachment.rowId !in references.attachmentRows) {
+      Log.w(TAG, "Attachment id: ${attachment.attachmentId} does not belong to an attachment row")
+      return false
+    }
+
     try {
       inputStream.readAttachmentTo(NullOutputStream, attachment.length ?: 0)
     } catch (e: IOException) {
@@ -70,7 +107,12 @@ object BackupVerifier {
     return true
   }
 
-  private fun verifySticker(sticker: Sticker, inputStream: BackupRecordInputStream): Boolean {
+  private fun verifySticker(sticker: Sticker, inputStream: BackupRecordInputStream, references: RowReferences): Boolean {
+    if (sticker.rowId == null || sticker.rowId !in references.stickerRows) {
+      Log.w(TAG, "Sticker id: ${sticker.rowId} does not belong to a sticker row")
+      return false
+    }
+
     try {
       inputStream.readAttachmentTo(NullOutputStream, sticker.length ?: 0)
     } catch (e: IOException) {
@@ -90,6 +132,39 @@ object BackupVerifier {
     return true
   }
 
+  /**
+   * The IDs of the attachment and sticker rows inserted so far. Rows are exported with their ID as the first column, and each row comes
+   * before the frame with its data.
+   */
+  private class RowReferences(spillDirectory: File) : AutoCloseable {
+    val attachmentRows = SpillingLongSet(spillDirectory)
+    val stickerRows = SpillingLongSet(spillDirectory)
+
+    fun record(statement: SqlStatement): Boolean {
+      val text = statement.statement ?: return true
+
+      val rows = when {
+        text.startsWith(ATTACHMENT_INSERT) -> attachmentRows
+        text.startsWith(STICKER_INSERT) -> stickerRows
+        else -> return true
+      }
+
+      val id = statement.parameters.firstOrNull()?.integerParameter
+      if (id == null) {
+        Log.w(TAG, "Row without an id: $text")
+        return false
+      }
+
+      rows.add(id)
+      return true
+    }
+
+    override fun close() {
+      attachmentRows.close()
+      stickerRows.close()
+    }
+  }
+
   private object NullOutputStream : OutputStream() {
     override fun write(b: Int) = Unit
     override fun write(b: ByteArray?) = Unit
@@ -21,6 +21,7 @@ import org.signal.core.util.SetUtil;
 import org.signal.core.util.SqlUtil;
 import org.signal.core.util.Stopwatch;
 import org.signal.core.util.logging.Log;
+import org.signal.devicetransfer.MultiplexedOutput;
 import org.thoughtcrime.securesms.attachments.AttachmentId;
 import org.thoughtcrime.securesms.backup.proto.KeyValue;
 import org.thoughtcrime.securesms.backup.proto.SharedPreference;
@@ -44,11 +45,13 @@ import org.thoughtcrime.securesms.database.SenderKeySharedTable;
 import org.thoughtcrime.securesms.database.SessionTable;
 import org.thoughtcrime.securesms.database.SignedPreKeyTable;
 import org.thoughtcrime.securesms.database.StickerTable;
+import org.thoughtcrime.securesms.database.UnreadCountTable;
 import org.thoughtcrime.securesms.database.model.AvatarPickerDatabase;
 import org.thoughtcrime.securesms.dependencies.AppDependencies;
 import org.thoughtcrime.securesms.keyvalue.KeyValueDataSet;
 import org.thoughtcrime.securesms.keyvalue.SignalStore;
 import org.thoughtcrime.securesms.profiles.AvatarHelper;
+import org.thoughtcrime.securesms.trustedIntroductions.backup.TrustedIntroductionsBackup;
 import org.thoughtcrime.securesms.util.TextSecurePreferences;
 
 import java.io.File;
@@ -97,7 +100,8 @@ public class FullBackupExporter extends FullBackupBase {
       PendingRetryReceiptTable.TABLE_NAME,
       AvatarPickerDatabase.TABLE_NAME,
       RemappedRecordTables.Recipients.TABLE_NAME,
-      RemappedRecordTables.Threads.TABLE_NAME
+      RemappedRecordTables.Threads.TABLE_NAME,
+      UnreadCountTable.TABLE_NAME
   );
 
   public static BackupEvent export(@NonNull Context context,
@@ -110,11 +114,30 @@ public class FullBackupExporter extends FullBackupBase {
                             @NonNull String passphrase,
                             @NonNull BackupCancellationSignal cancellationSignal)
       throws IOException
+  {
+    return export(context, attachmentSecret, input, output, tiOutput, passphrase, null, cancellationSignal);
+  }
+
+  /**
+   * @param chainContents If present, decides which attachment and sticker data is written, so that the backup can be part of an
+   *                      {@link IncrementalBackupChain}.
+   */
+  public static BackupEvent export(@NonNull Context context,
+                            @NonNull AttachmentSecret attachmentSecret,
+                            @NonNull SQLiteDatabase input,
+                            @NonNull File output,
+                            // TI_GLUE: eNT9XAHgq0lZdbQs2nfH start
+                            @NonNull File tiOutput,
+                             // TI_GLUE: eNT9XAHgq0lZdbQs2nfH end
+                            @NonNull String passphrase,
+                            @Nullable IncrementalBackupChain.Contents chainContents,
+                            @NonNull BackupCancellationSignal cancellationSignal)
+      throws IOException
   {
     try (OutputStream outputStream = new FileOutputStream(output)) {
       // TI_GLUE: eNT9XAHgq0lZdbQs2nfH start
       try(OutputStream tiOutputStream = new FileOutputStream(tiOutput)) {
-        return internalExport(context, attachmentSecret, input, outputStream, tiOutputStream, passphrase, true, cancellationSignal);
+        return internalExport(context, attachmentSecret, input, outputStream, tiOutputStream, passphrase, true, chainContents, null, cancellationSignal);
       }
       // TI_GLUE: eNT9XAHgq0lZdbQs2nfH end
     }
@@ -135,7 +158,7 @@ public class FullBackupExporter extends FullBackupBase {
     try (OutputStream outputStream = Objects.requireNonNull(context.getContentResolver().openOutputStream(output.getUri()))) {
       // TI_GLUE: eNT9XAHgq0lZdbQs2nfH start
       try(OutputStream tiOutputStream = Objects.requireNonNull(context.getContentResolver().openOutputStream(tiOutput.getUri()))) {
-        return internalExport(context, attachmentSecret, input, outputStream, tiOutputStream, passphrase, true, cancellationSignal);
+        return internalExport(context, attachmentSecret, input, outputStream, tiOutputStream, passphrase, true, null, null, cancellationSignal);
       }
       // TI_GLUE: eNT9XAHgq0lZdbQs2nfH end
     }
@@ -150,9 +173,28 @@ public class FullBackupExporter extends FullBackupBase {
                               // TI_GLUE: eNT9XAHgq0lZdbQs2nfH end
                               @NonNull String passphrase)
       throws IOException
+  {
+    transfer(context, attachmentSecret, input, outputStream, tiOutputStream, passphrase, null);
+  }
+
+  /**
+   * @param streamChannels If set, attachment and sticker data is sent over channels of its own, in parallel with the rest of the
+   *                       backup, rather than in line with it. The receiver has to read it with {@link FullBackupImporter} given
+   *                       the matching input channels.
+   */
+  public static void transfer(@NonNull Context context,
+                              @NonNull AttachmentSecret attachmentSecret,
+                              @NonNull SQLiteDatabase input,
+                              @NonNull OutputStream outputStream,
+                              // TI_GLUE: eNT9XAHgq0lZdbQs2nfH start
+                              @NonNull OutputStream tiOutputStream,
+                              // TI_GLUE: eNT9XAHgq0lZdbQs2nfH end
+                              @NonNull String passphrase,
+                              @Nullable MultiplexedOutput streamChannels)
+      throws IOException
   {
     // TI_GLUE: eNT9XAHgq0lZdbQs2nfH start
-    EventBus.getDefault().post(internalExport(context, attachmentSecret, input, outputStream, tiOutputStream, passphrase, false, () -> false));
+    EventBus.getDefault().post(internalExport(context, attachmentSecret, input, outputStream, tiOutputStream, passphrase, false, null, streamChannels, () -> false));
     // TI_GLUE: eNT9XAHgq0lZdbQs2nfH end
   }
 
@@ -165,6 +207,8 @@ public class FullBackupExporter extends FullBackupBase {
                                             // TI_GLUE: eNT9XAHgq0lZdbQs2nfH end
                                             @NonNull String passphrase,
                                             boolean closeOutputStream,
+                                            @Nullable IncrementalBackupChain.Contents chainContents,
+                                            @Nullable MultiplexedOutput streamChannels,
                                             @NonNull BackupCancellationSignal cancellationSignal)
       throws IOException
   {
@@ -177,6 +221,10 @@ public class FullBackupExporter extends FullBackupBase {
     int                     count                 = 0;
     long                    estimatedCountOutside;
 
+    if (streamChannels != null) {
+      outputStream.sendStreamsOver(streamChannels);
+    }
+
     try {
       outputStream.writeDatabaseVersion(input.getVersion());
       count++;
@@ -196,20 +244,23 @@ public class FullBackupExporter extends FullBackupBase {
 
       Stopwatch stopwatch = new Stopwatch("Backup");
 
+      NonExpiringMessages nonExpiringMessages = NonExpiringMessages.read(input, EXPIRATION_BACKUP_THRESHOLD);
+      stopwatch.split("non-expiring");
+
       for (String table : tables) {
         throwIfCanceled(cancellationSignal);
         if (table.equals(MessageTable.TABLE_NAME)) {
-          count = exportTable(table, input, outputStream, cursor -> isNonExpiringMessage(input, cursor), null, count, estimatedCount, cancellationSignal);
+          count = exportTable(table, input, outputStream, cursor -> nonExpiringMessages.contains(CursorUtil.requireLong(cursor, MessageTable.ID)), null, count, estimatedCount, cancellationSignal);
         } else if (table.equals(ReactionTable.TABLE_NAME)) {
-          count = exportTable(table, input, outputStream, cursor -> isForNonExpiringMessage(input, CursorUtil.requireLong(cursor, ReactionTable.MESSAGE_ID)), null, count, estimatedCount, cancellationSignal);
+          count = exportTable(table, input, outputStream, cursor -> nonExpiringMessages.contains(CursorUtil.requireLong(cursor, ReactionTable.MESSAGE_ID)), null, count, estimatedCount, cancellationSignal);
         } else if (table.equals(MentionTable.TABLE_NAME)) {
-          count = exportTable(table, input, outputStream, cursor -> isForNonExpiringMessage(input, CursorUtil.requireLong(cursor, MentionTable.MESSAGE_ID)), null, count, estimatedCount, cancellationSignal);
+          count = exportTable(table, input, outputStream, cursor -> nonExpiringMessages.contains(CursorUtil.requireLong(cursor, MentionTable.MESSAGE_ID)), null, count, estimatedCount, cancellationSignal);
         } else if (table.equals(GroupReceiptTable.TABLE_NAME)) {
-          count = exportTable(table, input, outputStream, cursor -> isForNonExpiringMessage(input, cursor.getLong(cursor.getColumnIndexOrThrow(GroupReceiptTable.MMS_ID))), null, count, estimatedCount, cancellationSignal);
+          count = exportTable(table, input, outputStream, cursor -> nonExpiringMessages.contains(cursor.getLong(cursor.getColumnIndexOrThrow(GroupReceiptTable.MMS_ID))), null, count, estimatedCount, cancellationSignal);
         } else if (table.equals(AttachmentTable.TABLE_NAME)) {
-          count = exportTable(table, input, outputStream, cursor -> isForNonExpiringMessage(input, cursor.getLong(cursor.getColumnIndexOrThrow(AttachmentTable.MESSAGE_ID))), (cursor, innerCount) -> exportAttachment(attachmentSecret, cursor, outputStream, innerCount, estimatedCount), count, estimatedCount, cancellationSignal);
+          count = exportTable(table, input, outputStream, cursor -> nonExpiringMessages.contains(cursor.getLong(cursor.getColumnIndexOrThrow(AttachmentTable.MESSAGE_ID))), (cursor, innerCount) -> exportAttachment(attachmentSecret, cursor, outputStream, chainContents, innerCount, estimatedCount), count, estimatedCount, cancellationSignal);
         } else if (table.equals(StickerTable.TABLE_NAME)) {
-          count = exportTable(table, input, outputStream, cursor -> true, (cursor, innerCount) -> exportSticker(attachmentSecret, cursor, outputStream, innerCount, estimatedCount), count, estimatedCount, cancellationSignal);
+          count = exportTable(table, input, outputStream, cursor -> true, (cursor, innerCount) -> exportSticker(attachmentSecret, cursor, outputStream, chainContents, innerCount, estimatedCount), count, estimatedCount, cancellationSignal);
         } else if (!TABLE_CONTENT_BLOCKLIST.contains(table)) {
           count = exportTable(table, input, outputStream, null, null, count, estimatedCount, cancellationSignal);
         }
@@ -221,8 +272,16 @@ public class FullBackupExporter extends FullBackupBase {
       estimatedTICountOutside = estimatedTICount;
       for (String table: ti_tables){
         throwIfCanceled(cancellationSignal);
+        if (!TrustedIntroductionsBackup.isExportedAsRecords(table)) {
           tiCount = exportTable(table, input, outputStreamTI, null, null, tiCount, estimatedTICount, cancellationSignal);
+        }
       }
+      final int exportedCount = count;
+      final int tiCountBefore = tiCount;
+      tiCount += TrustedIntroductionsBackup.export(input, (frame, rowsWritten) -> {
+        outputStreamTI.write(frame);
+        EventBus.getDefault().post(new BackupEvent(BackupEvent.Type.PROGRESS, exportedCount, tiCountBefore + rowsWritten, estimatedCount, estimatedTICount));
+      }, cancellationSignal);
       // TI_GLUE: eNT9XAHgq0lZdbQs2nfH end
 
       for (SharedPreference preference : TextSecurePreferences.getPreferencesToSaveToBackup(context)) {
@@ -254,10 +313,12 @@ public class FullBackupExporter extends FullBackupBase {
       stopwatch.stop(TAG);
 
       outputStream.writeEnd();
+      outputStream.flushStreams();
       // TI_GLUE: eNT9XAHgq0lZdbQs2nfH start
       outputStreamTI.writeEnd();
       // TI_GLUE: eNT9XAHgq0lZdbQs2nfH end
     } finally {
+      outputStream.cancelStreams();
       if (closeOutputStream) {
         outputStream.close();
         // TI_GLUE: eNT9XAHgq0lZdbQs2nfH start
@@ -527,6 +588,7 @@ public class FullBackupExporter extends FullBackupBase {
   private static int exportAttachment(@NonNull AttachmentSecret attachmentSecret,
                                       @NonNull Cursor cursor,
                                       @NonNull BackupFrameOutputStream outputStream,
+                                      @Nullable IncrementalBackupChain.Contents chainContents,
                                       int count,
                                       long estimatedCount)
       throws IOException
@@ -551,8 +613,14 @@ public class FullBackupExporter extends FullBackupBase {
     EventBus.getDefault().post(new BackupEvent(BackupEvent.Type.PROGRESS, ++count, 0, estimatedCount, 0));
     // TI_GLUE: eNT9XAHgq0lZdbQs2nfH end
     if (!TextUtils.isEmpty(data) && size > 0) {
-      try (InputStream inputStream = openAttachmentStream(attachmentSecret, random, data)) {
-        outputStream.write(new AttachmentId(rowId), inputStream, size);
+      String identity = IncrementalBackupChain.getIdentity(random, data);
+
+      if (chainContents != null && !chainContents.shouldWrite(identity)) {
+        return count;
+      }
+
+      try {
+        outputStream.write(new AttachmentId(rowId), identity, () -> openAttachmentStream(attachmentSecret, random, data), size);
       } catch (FileNotFoundException e) {
         Log.w(TAG, "Missing attachment", e);
       }
@@ -564,6 +632,7 @@ public class FullBackupExporter extends FullBackupBase {
   private static int exportSticker(@NonNull AttachmentSecret attachmentSecret,
                                    @NonNull Cursor cursor,
                                    @NonNull BackupFrameOutputStream outputStream,
+                                   @Nullable IncrementalBackupChain.Contents chainContents,
                                    int count,
                                    long estimatedCount)
       throws IOException
@@ -578,8 +647,14 @@ public class FullBackupExporter extends FullBackupBase {
       // TI_GLUE: eNT9XAHgq0lZdbQs2nfH start
       EventBus.getDefault().post(new BackupEvent(BackupEvent.Type.PROGRESS, ++count, 0, estimatedCount, 0));
       // TI_GLUE: eNT9XAHgq0lZdbQs2nfH end
-      try (InputStream inputStream = ModernDecryptingPartInputStream.createFor(attachmentSecret, random, new File(data), 0)) {
-        outputStream.writeSticker(rowId, inputStream, size);
+      String identity = IncrementalBackupChain.getIdentity(random, data);
+
+      if (chainContents != null && !chainContents.shouldWrite(identity)) {
+        return count;
+      }
+
+      try {
+        outputStream.writeSticker(rowId, identity, () -> ModernDecryptingPartInputStream.createFor(attachmentSecret, random, new File(data), 0), size);
       } catch (FileNotFoundException e) {
         Log.w(TAG, "Missing sticker", e);
       }
@@ -670,40 +745,6 @@ public class FullBackupExporter extends FullBackupBase {
     return count;
   }
 
-  private static boolean isNonExpiringMessage(@NonNull SQLiteDatabase db, @NonNull Cursor cursor) {
-    long id                = CursorUtil.requireLong(cursor, MessageTable.ID);
-    long expireStarted     = CursorUtil.requireLong(cursor, MessageTable.EXPIRE_STARTED);
-    long expiresIn         = CursorUtil.requireLong(cursor, MessageTable.EXPIRES_IN);
-    long latestRevisionId  = CursorUtil.requireLong(cursor, MessageTable.LATEST_REVISION_ID);
-
-    long expiresAt     = expireStarted + expiresIn;
-    long timeRemaining = expiresAt - System.currentTimeMillis();
-
-    if (latestRevisionId > 0 && latestRevisionId != id ) {
-      return isForNonExpiringMessage(db, latestRevisionId);
-    }
-
-    if (expireStarted > 0 && timeRemaining <= EXPIRATION_BACKUP_THRESHOLD) {
-      return false;
-    }
-
-    return true;
-  }
-
-  private static boolean isForNonExpiringMessage(@NonNull SQLiteDatabase db, long messageId) {
-    String[] columns = new String[] { MessageTable.ID, MessageTable.EXPIRE_STARTED, MessageTable.EXPIRES_IN, MessageTable.LATEST_REVISION_ID };
-    String   where   = MessageTable.ID + " = ?";
-    String[] args    = SqlUtil.buildArgs(messageId);
-
-    try (Cursor mmsCursor = db.query(MessageTable.TABLE_NAME, columns, where, args, null, null, null)) {
-      if (mmsCursor != null && mmsCursor.moveToFirst()) {
-        return isNonExpiringMessage(db, mmsCursor);
-      }
-    }
-
-    return false;
-  }
-
   public interface PostProcessor {
     int postProcess(@NonNull Cursor cursor, int count) throws IOException;
   }
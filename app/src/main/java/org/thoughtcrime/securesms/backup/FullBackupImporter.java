@@ -5,6 +5,7 @@ import android.annotation.SuppressLint;
 import android.content.ContentValues;
 import android.content.Context;
 import android.content.SharedPreferences;
+import android.database.Cursor;
 import android.net.Uri;
 import android.util.Pair;
 
@@ -19,6 +20,7 @@ import net.zetetic.database.sqlcipher.SQLiteDatabase;
 import org.greenrobot.eventbus.EventBus;
 import org.signal.core.util.SqlUtil;
 import org.signal.core.util.logging.Log;
+import org.signal.devicetransfer.MultiplexedInput;
 import org.thoughtcrime.securesms.backup.proto.Attachment;
 import org.thoughtcrime.securesms.backup.proto.Avatar;
 import org.thoughtcrime.securesms.backup.proto.BackupFrame;
@@ -34,11 +36,13 @@ import org.thoughtcrime.securesms.database.EmojiSearchTable;
 import org.thoughtcrime.securesms.database.KeyValueDatabase;
 import org.thoughtcrime.securesms.database.SearchTable;
 import org.thoughtcrime.securesms.database.StickerTable;
+import org.thoughtcrime.securesms.database.UnreadCountTable;
 import org.thoughtcrime.securesms.dependencies.AppDependencies;
 import org.thoughtcrime.securesms.keyvalue.KeyValueDataSet;
 import org.thoughtcrime.securesms.keyvalue.SignalStore;
 import org.thoughtcrime.securesms.profiles.AvatarHelper;
 import org.thoughtcrime.securesms.recipients.RecipientId;
+import org.thoughtcrime.securesms.trustedIntroductions.backup.TrustedIntroductionsBackup;
 import org.thoughtcrime.securesms.util.BackupUtil;
 import org.thoughtcrime.securesms.util.Util;
 
@@ -52,6 +56,7 @@ import java.security.InvalidAlgorithmParameterException;
 import java.security.InvalidKeyException;
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.LinkedHashMap;
 import java.util.LinkedHashSet;
@@ -103,14 +108,72 @@ public class FullBackupImporter extends FullBackupBase {
     }
   }
 
+  /**
+   * Restores a backup that may be the base of an {@link IncrementalBackupChain}. The newest file of the chain is imported, and the
+   * attachment and sticker data it doesn't contain is then filled in from the older files of the chain.
+   *
+   * @param deltas The deltas that belong to the base backup at {@code uri}, oldest first.
+   */
+  public static void importFile(@NonNull Context context, @NonNull AttachmentSecret attachmentSecret,
+                                @NonNull SQLiteDatabase db, @NonNull Uri uri, @NonNull List<Uri> deltas, @Nullable Uri tiUri, @NonNull String passphrase)
+      throws IOException
+  {
+    if (deltas.isEmpty()) {
+      importFile(context, attachmentSecret, db, uri, tiUri, passphrase);
+      return;
+    }
+
+    List<Uri> chain     = IncrementalBackupChain.getRestoreOrder(uri, deltas);
+    Uri       newest    = chain.get(0);
+    Uri       newestTi  = IncrementalBackupChain.getTiBackup(newest);
+    List<Uri> olderUris = chain.subList(1, chain.size());
+
+    Log.i(TAG, "Restoring a chain of " + (deltas.size() + 1) + " backups.");
+
+    try (InputStream is = getInputStream(context, newest)) {
+      // TI_GLUE: eNT9XAHgq0lZdbQs2nfH start
+      Uri chainTiUri = newestTi != null ? newestTi : tiUri;
+      if (chainTiUri != null) {
+        try (InputStream tiInputStream = getInputStream(context, chainTiUri)) {
+          importFile(context, attachmentSecret, db, is, tiInputStream, passphrase, olderUris, null);
+        }
+      } else {
+        importFile(context, attachmentSecret, db, is, null, passphrase, olderUris, null);
+      }
+      // TI_GLUE: eNT9XAHgq0lZdbQs2nfH end
+    }
+  }
+
   // TI_GLUE: eNT9XAHgq0lZdbQs2nfH start
   public static void importFile(@NonNull Context context, @NonNull AttachmentSecret attachmentSecret,
                                 @NonNull SQLiteDatabase db, @NonNull InputStream is, @Nullable InputStream tiIs, @NonNull String passphrase)
       throws IOException
+  {
+    importFile(context, attachmentSecret, db, is, tiIs, passphrase, Collections.emptyList(), null);
+  }
+
+  /**
+   * @param streamChannels Where to read attachment and sticker data from, if it was sent apart from the rest of the backup, see
+   *                       {@link FullBackupExporter#transfer}.
+   */
+  public static void importFile(@NonNull Context context, @NonNull AttachmentSecret attachmentSecret,
+                                @NonNull SQLiteDatabase db, @NonNull InputStream is, @Nullable InputStream tiIs, @NonNull String passphrase,
+                                @NonNull MultiplexedInput streamChannels)
+      throws IOException
+  {
+    importFile(context, attachmentSecret, db, is, tiIs, passphrase, Collections.emptyList(), streamChannels);
+  }
+
+  private static void importFile(@NonNull Context context, @NonNull AttachmentSecret attachmentSecret,
+                                 @NonNull SQLiteDatabase db, @NonNull InputStream is, @Nullable InputStream tiIs, @NonNull String passphrase,
+                                 @NonNull List<Uri> olderChainUris, @Nullable MultiplexedInput streamChannels)
+      throws IOException
   {
     // TI_GLUE: eNT9XAHgq0lZdbQs2nfH end
     int count = 0;
 
+    ChainRestore chainRestore = olderChainUris.isEmpty() ? null : new ChainRestore();
+
     SQLiteDatabase keyValueDatabase = KeyValueDatabase.getInstance(AppDependencies.getApplication()).getSqlCipherDatabase();
 
     db.setForeignKeyConstraintsEnabled(false);
@@ -118,6 +181,9 @@ public class FullBackupImporter extends FullBackupBase {
     keyValueDatabase.beginTransaction();
     try {
       BackupRecordInputStream inputStream = new BackupRecordInputStream(is, passphrase);
+      if (streamChannels != null) {
+        inputStream.readStreamsFrom(streamChannels);
+      }
       // TI_GLUE: eNT9XAHgq0lZdbQs2nfH start
       BackupRecordInputStream tiInputStream = tiIs != null ?   new BackupRecordInputStream(tiIs, passphrase) : null;
       // TI_GLUE: eNT9XAHgq0lZdbQs2nfH end
@@ -134,20 +200,25 @@ public class FullBackupImporter extends FullBackupBase {
         if      (frame.version != null)    processVersion(db, frame.version);
         else if (frame.statement != null)  processStatement(db, frame.statement);
         else if (frame.preference != null) processPreference(context, frame.preference);
-        else if (frame.attachment != null) processAttachment(context, attachmentSecret, db, frame.attachment, inputStream);
-        else if (frame.sticker != null)    processSticker(context, attachmentSecret, db, frame.sticker, inputStream);
+        else if (frame.attachment != null) processAttachment(context, attachmentSecret, db, frame.attachment, inputStream, chainRestore);
+        else if (frame.sticker != null)    processSticker(context, attachmentSecret, db, frame.sticker, inputStream, chainRestore);
         else if (frame.avatar != null)     processAvatar(context, db, frame.avatar, inputStream);
         else if (frame.keyValue != null)   processKeyValue(frame.keyValue);
         else                            count--;
       }
 
+      if (chainRestore != null) {
+        restoreFromOlderChainFiles(context, attachmentSecret, db, chainRestore, olderChainUris, passphrase);
+      }
+
       // TI_GLUE: eNT9XAHgq0lZdbQs2nfH start
       if(tiInputStream != null) {
         while ((frame = tiInputStream.readFrame()).end != Boolean.TRUE) {
           if (frame.statement != null) processStatement(db, frame.statement);
+          else if (frame.trustedIntroductions != null) TrustedIntroductionsBackup.restore(db, frame.trustedIntroductions);
           else if (frame.preference != null) processPreference(context, frame.preference);
-          else if (frame.attachment != null) processAttachment(context, attachmentSecret, db, frame.attachment, inputStream);
-          else if (frame.sticker != null) processSticker(context, attachmentSecret, db, frame.sticker, inputStream);
+          else if (frame.attachment != null) processAttachment(context, attachmentSecret, db, frame.attachment, inputStream, null);
+          else if (frame.sticker != null) processSticker(context, attachmentSecret, db, frame.sticker, inputStream, null);
           else if (frame.avatar != null) processAvatar(context, db, frame.avatar, inputStream);
           else if (frame.keyValue != null) processKeyValue(frame.keyValue);
         }
@@ -203,6 +274,12 @@ public class FullBackupImporter extends FullBackupBase {
     boolean isForMmsFtsSecretTable = statement.statement.contains(SearchTable.FTS_TABLE_NAME + "_");
     boolean isForEmojiSecretTable  = statement.statement.contains(EmojiSearchTable.TABLE_NAME + "_");
     boolean isForSqliteSecretTable = statement.statement.toLowerCase().startsWith("create table sqlite_");
+    boolean isForUnreadCountTable  = statement.statement.startsWith("INSERT INTO " + UnreadCountTable.TABLE_NAME + " ");
+
+    if (isForUnreadCountTable) {
+      // Older backups exported the counters, but they're rebuilt by the message triggers as the messages are restored
+      return;
+    }
 
     if (isForMmsFtsSecretTable || isForEmojiSecretTable || isForSqliteSecretTable) {
       Log.i(TAG, "Ignoring import for statement: " + statement.statement);
@@ -223,22 +300,46 @@ public class FullBackupImporter extends FullBackupBase {
     else                       db.execSQL(statement.statement);
   }
 
-  private static void processAttachment(@NonNull Context context, @NonNull AttachmentSecret attachmentSecret, @NonNull SQLiteDatabase db, @NonNull Attachment attachment, BackupRecordInputStream inputStream)
+  private static void processAttachment(@NonNull Context context, @NonNull AttachmentSecret attachmentSecret, @NonNull SQLiteDatabase db, @NonNull Attachment attachment, BackupRecordInputStream inputStream, @Nullable ChainRestore chainRestore)
       throws IOException
   {
-    File                       dataFile      = AttachmentTable.newDataFile(context);
-    Pair<byte[], OutputStream> output        = ModernEncryptingPartOutputStream.createFor(attachmentSecret, dataFile, false);
-    boolean                    isLegacyTable = SqlUtil.tableExists(db, "part");
+    boolean isLegacyTable = SqlUtil.tableExists(db, "part");
 
     String dataFileColumnName   = isLegacyTable ? "_data" : AttachmentTable.DATA_FILE;
     String dataRandomColumnName = isLegacyTable ? "data_random" : AttachmentTable.DATA_RANDOM;
     String idColumnName         = isLegacyTable ? "_id" : AttachmentTable.ID;
     String tableName            = isLegacyTable ? "part" : AttachmentTable.TABLE_NAME;
 
+    ContentValues contentValues = readAttachmentData(context, attachmentSecret, attachment, inputStream, dataFileColumnName, dataRandomColumnName);
+
+    db.update(tableName,
+              contentValues,
+              idColumnName + " = ?",
+              SqlUtil.buildArgs(attachment.rowId));
+
+    if (chainRestore != null && attachment.rowId != null) {
+      chainRestore.attachmentRows.add(attachment.rowId);
+      if (attachment.identity != null) {
+        chainRestore.attachmentData.put(attachment.identity, contentValues);
+      }
+    }
+  }
+
+  private static @NonNull ContentValues readAttachmentData(@NonNull Context context,
+                                                           @NonNull AttachmentSecret attachmentSecret,
+                                                           @NonNull Attachment attachment,
+                                                           @NonNull BackupRecordInputStream inputStream,
+                                                           @NonNull String dataFileColumnName,
+                                                           @NonNull String dataRandomColumnName)
+      throws IOException
+  {
+    File                       dataFile = AttachmentTable.newDataFile(context);
+    Pair<byte[], OutputStream> output   = ModernEncryptingPartOutputStream.createFor(attachmentSecret, dataFile, false);
+
     ContentValues contentValues = new ContentValues();
 
     try {
-      inputStream.readAttachmentTo(output.second, attachment.length);
+      inputStream.readAttachmentTo(output.second, attachment.length, attachment.channel);
 
       contentValues.put(dataFileColumnName, dataFile.getAbsolutePath());
       contentValues.put(dataRandomColumnName, output.first);
@@ -249,13 +350,27 @@ public class FullBackupImporter extends FullBackupBase {
       contentValues.put(dataRandomColumnName, (String) null);
     }
 
-    db.update(tableName,
-              contentValues,
-              idColumnName + " = ?",
-              SqlUtil.buildArgs(attachment.rowId));
+    return contentValues;
+  }
+
+  private static void processSticker(@NonNull Context context, @NonNull AttachmentSecret attachmentSecret, @NonNull SQLiteDatabase db, @NonNull Sticker sticker, BackupRecordInputStream inputStream, @Nullable ChainRestore chainRestore)
+      throws IOException
+  {
+    ContentValues contentValues = readStickerData(context, attachmentSecret, sticker, inputStream);
+
+    db.update(StickerTable.TABLE_NAME, contentValues,
+              StickerTable._ID + " = ?",
+              new String[] {String.valueOf(sticker.rowId)});
+
+    if (chainRestore != null && sticker.rowId != null) {
+      chainRestore.stickerRows.add(sticker.rowId);
+      if (sticker.identity != null) {
+        chainRestore.stickerData.put(sticker.identity, contentValues);
+      }
+    }
   }
 
-  private static void processSticker(@NonNull Context context, @NonNull AttachmentSecret attachmentSecret, @NonNull SQLiteDatabase db, @NonNull Sticker sticker, BackupRecordInputStream inputStream)
+  private static @NonNull ContentValues readStickerData(@NonNull Context context, @NonNull AttachmentSecret attachmentSecret, @NonNull Sticker sticker, @NonNull BackupRecordInputStream inputStream)
       throws IOException
   {
     File stickerDirectory = context.getDir(StickerTable.DIRECTORY, Context.MODE_PRIVATE);
@@ -263,16 +378,139 @@ public class FullBackupImporter extends FullBackupBase {
 
     Pair<byte[], OutputStream> output = ModernEncryptingPartOutputStream.createFor(attachmentSecret, dataFile, false);
 
-    inputStream.readAttachmentTo(output.second, sticker.length);
+    inputStream.readAttachmentTo(output.second, sticker.length, sticker.channel);
 
     ContentValues contentValues = new ContentValues();
     contentValues.put(StickerTable.FILE_PATH, dataFile.getAbsolutePath());
     contentValues.put(StickerTable.FILE_LENGTH, sticker.length);
     contentValues.put(StickerTable.FILE_RANDOM, output.first);
 
-    db.update(StickerTable.TABLE_NAME, contentValues,
-              StickerTable._ID + " = ?",
-              new String[] {String.valueOf(sticker.rowId)});
+    return contentValues;
+  }
+
+  /**
+   * Fills in the attachment and sticker data that the newest file of a chain refers to, but doesn't contain. That's either data
+   * that's in an older file of the chain, or data that's shared by several rows and was only written once.
+   *
+   * @param olderChainUris The older files of the chain, newest first.
+   */
+  private static void restoreFromOlderChainFiles(@NonNull Context context,
+                                                 @NonNull AttachmentSecret attachmentSecret,
+                                                 @NonNull SQLiteDatabase db,
+                                                 @NonNull ChainRestore chainRestore,
+                                                 @NonNull List<Uri> olderChainUris,
+                                                 @NonNull String passphrase)
+      throws IOException
+  {
+    Map<String, List<Long>> missingAttachments = findMissingData(db, AttachmentTable.TABLE_NAME, AttachmentTable.ID, AttachmentTable.DATA_FILE, AttachmentTable.DATA_RANDOM, chainRestore.attachmentRows);
+    Map<String, List<Long>> missingStickers    = findMissingData(db, StickerTable.TABLE_NAME, StickerTable._ID, StickerTable.FILE_PATH, StickerTable.FILE_RANDOM, chainRestore.stickerRows);
+
+    Log.i(TAG, "Data missing from the newest file of the chain. Attachments: " + missingAttachments.size() + ", stickers: " + missingStickers.size());
+
+    fillMissingData(db, AttachmentTable.TABLE_NAME, AttachmentTable.ID, missingAttachments, chainRestore.attachmentData);
+    fillMissingData(db, StickerTable.TABLE_NAME, StickerTable._ID, missingStickers, chainRestore.stickerData);
+
+    for (Uri olderUri : olderChainUris) {
+      if (missingAttachments.isEmpty() && missingStickers.isEmpty()) {
+        break;
+      }
+
+      try (InputStream is = getInputStream(context, olderUri)) {
+        BackupRecordInputStream inputStream = new BackupRecordInputStream(is, passphrase);
+        BackupFrame             frame;
+
+        while ((frame = inputStream.readFrame()).end != Boolean.TRUE) {
+          if (frame.attachment != null) {
+            List<Long> rowIds = frame.attachment.identity != null ? missingAttachments.remove(frame.attachment.identity) : null;
+
+            if (rowIds != null) {
+              ContentValues contentValues = readAttachmentData(context, attachmentSecret, frame.attachment, inputStream, AttachmentTable.DATA_FILE, AttachmentTable.DATA_RANDOM);
+              updateRows(db, AttachmentTable.TABLE_NAME, AttachmentTable.ID, rowIds, contentValues);
+            } else {
+              inputStream.readAttachmentTo(new DiscardingOutputStream(), frame.attachment.length != null ? frame.attachment.length : 0);
+            }
+          } else if (frame.sticker != null) {
+            List<Long> rowIds = frame.sticker.identity != null ? missingStickers.remove(frame.sticker.identity) : null;
+
+            if (rowIds != null) {
+              updateRows(db, StickerTable.TABLE_NAME, StickerTable._ID, rowIds, readStickerData(context, attachmentSecret, frame.sticker, inputStream));
+            } else {
+              inputStream.readAttachmentTo(new DiscardingOutputStream(), frame.sticker.length != null ? frame.sticker.length : 0);
+            }
+          } else if (frame.avatar != null) {
+            inputStream.readAttachmentTo(new DiscardingOutputStream(), frame.avatar.length != null ? frame.avatar.length : 0);
+          }
+        }
+      }
+    }
+
+    if (!missingAttachments.isEmpty() || !missingStickers.isEmpty()) {
+      Log.w(TAG, "Data missing from the whole chain. Attachments: " + missingAttachments.size() + ", stickers: " + missingStickers.size());
+
+      ContentValues noAttachmentData = new ContentValues();
+      noAttachmentData.put(AttachmentTable.DATA_FILE, (String) null);
+      noAttachmentData.put(AttachmentTable.DATA_RANDOM, (String) null);
+
+      for (List<Long> rowIds : missingAttachments.values()) {
+        updateRows(db, AttachmentTable.TABLE_NAME, AttachmentTable.ID, rowIds, noAttachmentData);
+      }
+
+      ContentValues noStickerData = new ContentValues();
+      noStickerData.put(StickerTable.FILE_PATH, (String) null);
+      noStickerData.put(StickerTable.FILE_RANDOM, (String) null);
+
+      for (List<Long> rowIds : missingStickers.values()) {
+        updateRows(db, StickerTable.TABLE_NAME, StickerTable._ID, rowIds, noStickerData);
+      }
+    }
+  }
+
+  /**
+   * @return The rows that refer to data that wasn't restored, grouped by the identity of that data. The data columns still hold the
+   *         values from the device the backup was made on, which the identity is derived from.
+   */
+  private static @NonNull Map<String, List<Long>> findMissingData(@NonNull SQLiteDatabase db,
+                                                                  @NonNull String table,
+                                                                  @NonNull String idColumn,
+                                                                  @NonNull String dataColumn,
+                                                                  @NonNull String randomColumn,
+                                                                  @NonNull Set<Long> restoredRows)
+  {
+    Map<String, List<Long>> missing = new HashMap<>();
+
+    try (Cursor cursor = db.query(table, new String[] { idColumn, dataColumn, randomColumn }, dataColumn + " IS NOT NULL", null, null, null, null)) {
+      while (cursor.moveToNext()) {
+        long rowId = cursor.getLong(0);
+
+        if (!restoredRows.contains(rowId)) {
+          String identity = IncrementalBackupChain.getIdentity(cursor.getBlob(2), cursor.getString(1));
+          missing.computeIfAbsent(identity, unused -> new LinkedList<>()).add(rowId);
+        }
+      }
+    }
+
+    return missing;
+  }
+
+  private static void fillMissingData(@NonNull SQLiteDatabase db,
+                                      @NonNull String table,
+                                      @NonNull String idColumn,
+                                      @NonNull Map<String, List<Long>> missing,
+                                      @NonNull Map<String, ContentValues> restored)
+  {
+    for (Map.Entry<String, ContentValues> entry : restored.entrySet()) {
+      List<Long> rowIds = missing.remove(entry.getKey());
+
+      if (rowIds != null) {
+        updateRows(db, table, idColumn, rowIds, entry.getValue());
+      }
+    }
+  }
+
+  private static void updateRows(@NonNull SQLiteDatabase db, @NonNull String table, @NonNull String idColumn, @NonNull List<Long> rowIds, @NonNull ContentValues contentValues) {
+    for (SqlUtil.Query query : SqlUtil.buildCollectionQuery(idColumn, rowIds)) {
+      db.update(table, contentValues, query.getWhere(), query.getWhereArgs());
+    }
   }
 
   private static void processAvatar(@NonNull Context context, @NonNull SQLiteDatabase db, @NonNull Avatar avatar, @NonNull BackupRecordInputStream inputStream) throws IOException {
@@ -415,6 +653,24 @@ public class FullBackupImporter extends FullBackupBase {
     return new ArrayList<>(dropOrder);
   }
 
+  /**
+   * What was restored from the newest file of a chain, so the rest can be filled in from the older files.
+   */
+  private static class ChainRestore {
+    private final Set<Long>                  attachmentRows = new HashSet<>();
+    private final Set<Long>                  stickerRows    = new HashSet<>();
+    private final Map<String, ContentValues> attachmentData = new HashMap<>();
+    private final Map<String, ContentValues> stickerData    = new HashMap<>();
+  }
+
+  private static class DiscardingOutputStream extends OutputStream {
+    @Override
+    public void write(int b) {}
+
+    @Override
+    public void write(@NonNull byte[] b, int off, int len) {}
+  }
+
   public static class DatabaseDowngradeException extends IOException {
     DatabaseDowngradeException(int currentVersion, int backupVersion) {
       super("Tried to import a backup with version " + backupVersion + " into a database with version " + currentVersion);
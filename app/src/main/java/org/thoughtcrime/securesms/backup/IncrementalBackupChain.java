@@ -0,0 +1,361 @@
+package org.thoughtcrime.securesms.backup;
+
+import android.Manifest;
+import android.content.Context;
+import android.net.Uri;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+import androidx.documentfile.provider.DocumentFile;
+
+import org.signal.core.util.Hex;
+import org.signal.core.util.logging.Log;
+import org.thoughtcrime.securesms.database.NoExternalStorageException;
+import org.thoughtcrime.securesms.keyvalue.SignalStore;
+import org.thoughtcrime.securesms.permissions.Permissions;
+import org.thoughtcrime.securesms.util.BackupUtil;
+import org.thoughtcrime.securesms.util.StorageUtil;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * A chain of local backups, made of a full base backup followed by delta files. Every delta contains the whole database, but only
+ * the attachment and sticker data that isn't already in an earlier file of the chain. Data is matched by its identity, which is
+ * derived from the random that the data file is encrypted with, so it changes whenever the data file is rewritten.
+ * <p>
+ * A base is named like any other backup, e.g. signal-2024-01-01-02-00-00.backup, and its deltas are named after it,
+ * e.g. signal-2024-01-01-02-00-00.1.delta. Once a chain has {@link #MAX_DELTAS} deltas, the next backup starts a new base, which
+ * folds the deltas back into a single file that the old chain can be deleted in favor of.
+ */
+public final class IncrementalBackupChain {
+
+  private static final String TAG = Log.tag(IncrementalBackupChain.class);
+
+  public static final String BACKUP_EXTENSION = ".backup";
+  public static final String DELTA_EXTENSION  = ".delta";
+  public static final String TI_PREFIX        = "ti-";
+
+  private static final String MANIFEST_FILE = "backup_chain";
+  private static final int    MAX_DELTAS    = 6;
+
+  private final String      baseName;
+  private final int         sequence;
+  private final Set<String> existing;
+  private final Contents    contents;
+
+  private IncrementalBackupChain(@NonNull String baseName, int sequence, @Nullable Set<String> existing) {
+    this.baseName = baseName;
+    this.sequence = sequence;
+    this.existing = existing;
+    this.contents = new Contents(existing);
+  }
+
+  /**
+   * Continues the chain recorded by the last successful backup if all of its files are still in the backup directory, or starts a
+   * new base named after the provided timestamp otherwise.
+   */
+  public static @NonNull IncrementalBackupChain open(@NonNull Context context, @NonNull File backupDirectory, @NonNull String timestamp) {
+    String base = "signal-" + timestamp;
+
+    try (BufferedReader reader = new BufferedReader(new FileReader(getManifestFile(context)))) {
+      String previousBase = reader.readLine();
+      String previousSeq  = reader.readLine();
+
+      if (previousBase == null || previousSeq == null) {
+        Log.w(TAG, "Incomplete manifest, starting a new base.");
+        return new IncrementalBackupChain(base, 0, null);
+      }
+
+      int previousSequence = Integer.parseInt(previousSeq);
+      if (previousSequence >= MAX_DELTAS) {
+        Log.i(TAG, "Chain has " + previousSequence + " deltas, starting a new base.");
+        return new IncrementalBackupChain(base, 0, null);
+      }
+
+      if (!new File(backupDirectory, previousBase + BACKUP_EXTENSION).exists() || getDeltas(new File(backupDirectory, previousBase + BACKUP_EXTENSION)).size() != previousSequence) {
+        Log.w(TAG, "Chain files are missing, starting a new base.");
+        return new IncrementalBackupChain(base, 0, null);
+      }
+
+      Set<String> identities = new HashSet<>();
+      String      line;
+
+      while ((line = reader.readLine()) != null) {
+        identities.add(line);
+      }
+
+      return new IncrementalBackupChain(previousBase, previousSequence + 1, identities);
+    } catch (IOException | NumberFormatException e) {
+      Log.i(TAG, "No usable manifest, starting a new base.");
+      return new IncrementalBackupChain(base, 0, null);
+    }
+  }
+
+  /**
+   * Forget the current chain, so that the next backup starts a new base. Needed whenever the passphrase changes, since every
+   * file of a chain has to be readable with the same one.
+   */
+  public static void reset(@NonNull Context context) {
+    File manifest = getManifestFile(context);
+    if (manifest.exists() && !manifest.delete()) {
+      Log.w(TAG, "Failed to delete the backup chain manifest.");
+    }
+  }
+
+  public boolean isDelta() {
+    return sequence > 0;
+  }
+
+  public @NonNull String getFileName() {
+    return isDelta() ? getDeltaName(baseName, sequence) : baseName + BACKUP_EXTENSION;
+  }
+
+  public @NonNull String getTiFileName() {
+    return TI_PREFIX + getFileName();
+  }
+
+  public @NonNull Contents getContents() {
+    return contents;
+  }
+
+  /**
+   * Record this backup as the newest file of the chain. Must only be called once the backup has been written and verified.
+   */
+  public void commit(@NonNull Context context) throws IOException {
+    File manifest = getManifestFile(context);
+    File temp     = new File(manifest.getPath() + ".tmp");
+
+    try (BufferedWriter writer = new BufferedWriter(new FileWriter(temp))) {
+      writer.write(baseName);
+      writer.newLine();
+      writer.write(String.valueOf(sequence));
+      writer.newLine();
+
+      if (existing != null) {
+        for (String identity : existing) {
+          writer.write(identity);
+          writer.newLine();
+        }
+      }
+
+      for (String identity : contents.written) {
+        writer.write(identity);
+        writer.newLine();
+      }
+    }
+
+    if (!temp.renameTo(manifest)) {
+      temp.delete();
+      throw new IOException("Failed to save the backup chain manifest.");
+    }
+  }
+
+  /**
+   * @return The deltas that belong to the provided base backup, oldest first. Stops at the first gap in the sequence, since the
+   *         deltas after it can't be restored.
+   */
+  public static @NonNull List<File> getDeltas(@NonNull File base) {
+    String name = base.getName();
+    File   dir  = base.getParentFile();
+
+    if (dir == null || !name.endsWith(BACKUP_EXTENSION)) {
+      return Collections.emptyList();
+    }
+
+    String     baseName = name.substring(0, name.length() - BACKUP_EXTENSION.length());
+    List<File> deltas   = new ArrayList<>();
+
+    for (int i = 1; ; i++) {
+      File delta = new File(dir, getDeltaName(baseName, i));
+      if (!delta.isFile()) {
+        break;
+      }
+      deltas.add(delta);
+    }
+
+    return deltas;
+  }
+
+  /**
+   * @return The deltas that belong to the base backup in the provided directory, oldest first. Stops at the first gap in the
+   *         sequence, just like {@link #getDeltas(File)}.
+   */
+  public static @NonNull List<DocumentFile> getDeltas(@NonNull DocumentFile directory, @NonNull String baseFileName) {
+    if (!baseFileName.endsWith(BACKUP_EXTENSION)) {
+      return Collections.emptyList();
+    }
+
+    String                    baseName = baseFileName.substring(0, baseFileName.length() - BACKUP_EXTENSION.length());
+    Map<String, DocumentFile> files    = new HashMap<>();
+
+    for (DocumentFile file : directory.listFiles()) {
+      if (file.isFile() && file.getName() != null) {
+        files.put(file.getName(), file);
+      }
+    }
+
+    List<DocumentFile> deltas = new ArrayList<>();
+
+    for (int i = 1; ; i++) {
+      DocumentFile delta = files.get(getDeltaName(baseName, i));
+      if (delta == null) {
+        break;
+      }
+      deltas.add(delta);
+    }
+
+    return deltas;
+  }
+
+  /**
+   * A backup picked for restore is usually a single document, which doesn't give access to the files next to it. Its deltas are
+   * then looked up in the directory that backups are written to, if a backup with the same name and size is found there.
+   *
+   * @return The deltas that belong to the provided base backup, oldest first, or null if it isn't known where to look for them.
+   */
+  public static @Nullable List<Uri> getDeltas(@NonNull Context context, @NonNull Uri base) {
+    if ("file".equals(base.getScheme()) && base.getPath() != null) {
+      return toUris(getDeltas(new File(base.getPath())));
+    }
+
+    DocumentFile document = DocumentFile.fromSingleUri(context, base);
+    String       name     = document != null ? document.getName() : null;
+
+    if (name == null || !name.endsWith(BACKUP_EXTENSION)) {
+      return null;
+    }
+
+    if (!BackupUtil.isUserSelectionRequired(context)) {
+      if (!Permissions.hasAll(context, Manifest.permission.READ_EXTERNAL_STORAGE)) {
+        Log.w(TAG, "Can't read the backup directory to look for deltas.");
+        return null;
+      }
+
+      try {
+        File file = new File(StorageUtil.getBackupDirectory(), name);
+        return file.isFile() && file.length() == document.length() ? toUris(getDeltas(file)) : null;
+      } catch (NoExternalStorageException e) {
+        Log.w(TAG, "No backup directory to look for deltas in.", e);
+        return null;
+      }
+    }
+
+    Uri          directoryUri = SignalStore.settings().getLatestSignalBackupDirectory();
+    DocumentFile directory    = directoryUri != null ? DocumentFile.fromTreeUri(context, directoryUri) : null;
+
+    if (directory == null || !directory.canRead()) {
+      return null;
+    }
+
+    DocumentFile file = directory.findFile(name);
+    if (file == null || !file.isFile() || file.length() != document.length()) {
+      return null;
+    }
+
+    List<Uri> uris = new ArrayList<>();
+    for (DocumentFile delta : getDeltas(directory, name)) {
+      uris.add(delta.getUri());
+    }
+
+    return uris;
+  }
+
+  /**
+   * @return The files of a chain in the order they're restored in, newest first. The newest file is imported, and the data it
+   *         doesn't contain is looked for in the rest.
+   */
+  public static @NonNull <T> List<T> getRestoreOrder(@NonNull T base, @NonNull List<T> deltas) {
+    List<T> files = new ArrayList<>(deltas.size() + 1);
+    files.add(base);
+    files.addAll(deltas);
+    Collections.reverse(files);
+    return files;
+  }
+
+  /**
+   * @return The TI backup written next to the provided backup, if it exists.
+   */
+  public static @Nullable Uri getTiBackup(@NonNull Uri backup) {
+    if (!"file".equals(backup.getScheme()) || backup.getPath() == null) {
+      return null;
+    }
+
+    File file = new File(backup.getPath());
+    File ti   = new File(file.getParentFile(), TI_PREFIX + file.getName());
+
+    return ti.isFile() ? Uri.fromFile(ti) : null;
+  }
+
+  /**
+   * @return The identity of an attachment or sticker data file. Prefers the random the file was encrypted with, which is unique
+   *         per file, and falls back to the path for very old attachments that don't have one.
+   */
+  public static @NonNull String getIdentity(@Nullable byte[] random, @NonNull String dataFile) {
+    try {
+      MessageDigest digest = MessageDigest.getInstance("SHA-256");
+      byte[]        hash   = digest.digest(random != null && random.length > 0 ? random : dataFile.getBytes(StandardCharsets.UTF_8));
+
+      return Hex.toStringCondensed(Arrays.copyOf(hash, 16));
+    } catch (NoSuchAlgorithmException e) {
+      throw new AssertionError(e);
+    }
+  }
+
+  private static @NonNull List<Uri> toUris(@NonNull List<File> files) {
+    List<Uri> uris = new ArrayList<>(files.size());
+    for (File file : files) {
+      uris.add(Uri.fromFile(file));
+    }
+    return uris;
+  }
+
+  private static @NonNull String getDeltaName(@NonNull String baseName, int sequence) {
+    return baseName + "." + sequence + DELTA_EXTENSION;
+  }
+
+  private static @NonNull File getManifestFile(@NonNull Context context) {
+    return new File(context.getFilesDir(), MANIFEST_FILE);
+  }
+
+  /**
+   * Decides which attachment and sticker data gets written to the backup that's being created.
+   */
+  public static final class Contents {
+
+    private final Set<String> existing;
+    private final Set<String> written = new HashSet<>();
+
+    private Contents(@Nullable Set<String> existing) {
+      this.existing = existing;
+    }
+
+    /**
+     * A base writes the data of every row, just like a regular backup, so that it can be restored on its own. A delta writes each
+     * piece of data at most once, and only if it isn't already in the chain.
+     */
+    boolean shouldWrite(@NonNull String identity) {
+      if (existing == null) {
+        written.add(identity);
+        return true;
+      }
+
+      return !existing.contains(identity) && written.add(identity);
+    }
+  }
+}
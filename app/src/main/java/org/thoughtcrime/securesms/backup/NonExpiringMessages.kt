@@ -0,0 +1,120 @@
+/*
+ * Copyright 2024 Signal Messenger, LLC
+ * SPDX-License-Identifier: AGPL-3.0-only
+ */
+
+package org.thoughtcrime.securesms.backup
+
+import androidx.annotation.VisibleForTesting
+import net.zetetic.database.sqlcipher.SQLiteDatabase
+import org.signal.core.util.logging.Log
+import org.signal.core.util.requireLong
+import org.signal.core.util.select
+import org.thoughtcrime.securesms.database.MessageTable
+import java.util.BitSet
+
+/**
+ * The IDs of the messages that a [FullBackupExporter] backup keeps, read in a single pass over the message table. Rows of other tables are
+ * matched to their message with a lookup here rather than with a query per row.
+ *
+ * A message is kept unless its expiration timer has started and it disappears within the threshold. An old revision of an edited message is
+ * kept if its latest revision is.
+ */
+class NonExpiringMessages private constructor(
+  private val ids: BitSet,
+  private val largeIds: Set<Long>
+) {
+
+  companion object {
+    private val TAG = Log.tag(NonExpiringMessages::class)
+
+    @JvmStatic
+    fun read(db: SQLiteDatabase, expirationThreshold: Long): NonExpiringMessages {
+      val builder = Builder(System.currentTimeMillis(), expirationThreshold)
+
+      db.select(MessageTable.ID, MessageTable.EXPIRE_STARTED, MessageTable.EXPIRES_IN, MessageTable.LATEST_REVISION_ID)
+        .from(MessageTable.TABLE_NAME)
+        .run()
+        .use { cursor ->
+          while (cursor.moveToNext()) {
+            builder.add(
+              id = cursor.requireLong(MessageTable.ID),
+              expireStarted = cursor.requireLong(MessageTable.EXPIRE_STARTED),
+              expiresIn = cursor.requireLong(MessageTable.EXPIRES_IN),
+              latestRevisionId = cursor.requireLong(MessageTable.LATEST_REVISION_ID)
+            )
+          }
+        }
+
+      return builder.build()
+    }
+  }
+
+  operator fun contains(messageId: Long): Boolean {
+    return if (messageId in 0..Int.MAX_VALUE) {
+      ids[messageId.toInt()]
+    } else {
+      largeIds.contains(messageId)
+    }
+  }
+
+  @VisibleForTesting
+  class Builder(private val now: Long, private val expirationThreshold: Long) {
+    private val kept = BitSet()
+    private val largeKept: MutableSet<Long> = HashSet()
+    private val latestRevisions: MutableMap<Long, Long> = HashMap()
+
+    fun add(id: Long, expireStarted: Long, expiresIn: Long, latestRevisionId: Long) {
+      if (latestRevisionId > 0 && latestRevisionId != id) {
+        latestRevisions[id] = latestRevisionId
+        return
+      }
+
+      val timeRemaining = expireStarted + expiresIn - now
+
+      if (expireStarted <= 0 || timeRemaining > expirationThreshold) {
+        keep(id)
+      }
+    }
+
+    fun build(): NonExpiringMessages {
+      val keptRevisions = latestRevisions.keys.filter { isLatestRevisionKept(it) }
+      keptRevisions.forEach { keep(it) }
+
+      if (largeKept.isNotEmpty()) {
+        Log.w(TAG, "${largeKept.size} message IDs are too large for the bitset.")
+      }
+
+      return NonExpiringMessages(kept, largeKept)
+    }
+
+    /**
+     * Follows the revisions of [id] until one that isn't an old revision, which decides. A revision that no longer exists isn't kept.
+     */
+    private fun isLatestRevisionKept(id: Long): Boolean {
+      var current = id
+      var steps = 0
+
+      while (true) {
+        current = latestRevisions[current] ?: return isKept(current)
+
+        if (++steps > latestRevisions.size) {
+          Log.w(TAG, "Revisions of message $id form a cycle.")
+          return false
+        }
+      }
+    }
+
+    private fun keep(id: Long) {
+      if (id in 0..Int.MAX_VALUE) {
+        kept.set(id.toInt())
+      } else {
+        largeKept += id
+      }
+    }
+
+    private fun isKept(id: Long): Boolean {
+      return if (id in 0..Int.MAX_VALUE) kept[id.toInt()] else largeKept.contains(id)
+    }
+  }
+}
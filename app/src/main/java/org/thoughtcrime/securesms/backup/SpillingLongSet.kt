@@ -0,0 +1,110 @@
+/*
+ * Copyright 2024 Signal Messenger, LLC
+ * SPDX-License-Identifier: AGPL-3.0-only
+ */
+
+package org.thoughtcrime.securesms.backup
+
+import org.signal.core.util.logging.Log
+import java.io.BufferedOutputStream
+import java.io.Closeable
+import java.io.DataOutputStream
+import java.io.File
+import java.io.FileOutputStream
+import java.io.RandomAccessFile
+
+/**
+ * A set of longs that keeps at most [maxInMemory] of them in memory. Once that fills up, the values are sorted and written to a run file in
+ * [directory], and lookups binary search each run on disk. Meant for things like the IDs seen while verifying a backup, which are usually
+ * few enough to stay in memory, but are unbounded.
+ *
+ * Call [close] to delete the run files.
+ */
+class SpillingLongSet(
+  private val directory: File,
+  private val maxInMemory: Int = DEFAULT_MAX_IN_MEMORY
+) : Closeable {
+
+  companion object {
+    private val TAG = Log.tag(SpillingLongSet::class)
+
+    const val DEFAULT_MAX_IN_MEMORY = 64 * 1024
+  }
+
+  private val memory: MutableSet<Long> = HashSet()
+  private val runs: MutableList<Run> = mutableListOf()
+
+  /**
+   * @return true if [value] wasn't in the set yet
+   */
+  fun add(value: Long): Boolean {
+    if (contains(value)) {
+      return false
+    }
+
+    memory.add(value)
+
+    if (memory.size >= maxInMemory) {
+      spill()
+    }
+
+    return true
+  }
+
+  operator fun contains(value: Long): Boolean {
+    return memory.contains(value) || runs.any { it.contains(value) }
+  }
+
+  override fun close() {
+    memory.clear()
+    runs.forEach { it.close() }
+    runs.clear()
+  }
+
+  private fun spill() {
+    val values = memory.toLongArray().apply { sort() }
+    val file = File.createTempFile("ids", ".run", directory)
+
+    DataOutputStream(BufferedOutputStream(FileOutputStream(file))).use { output ->
+      values.forEach { output.writeLong(it) }
+    }
+
+    Log.d(TAG, "Spilled ${values.size} values to run ${runs.size}")
+
+    runs += Run(file, values.size.toLong(), values.first(), values.last())
+    memory.clear()
+  }
+
+  private class Run(private val file: File, private val count: Long, private val min: Long, private val max: Long) : Closeable {
+    private val randomAccessFile = RandomAccessFile(file, "r")
+
+    fun contains(value: Long): Boolean {
+      if (value < min || value > max) {
+        return false
+      }
+
+      var low = 0L
+      var high = count - 1
+
+      while (low <= high) {
+        val middle = (low + high) ushr 1
+
+        randomAccessFile.seek(middle * Long.SIZE_BYTES)
+        val current = randomAccessFile.readLong()
+
+        when {
+          current < value -> low = middle + 1
+          current > value -> high = middle - 1
+          else -> return true
+        }
+      }
+
+      return false
+    }
+
+    override fun close() {
+      randomAccessFile.close()
+      file.delete()
+    }
+  }
+}
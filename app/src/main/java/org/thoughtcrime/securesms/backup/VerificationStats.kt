@@ -0,0 +1,18 @@
+/*
+ * Copyright 2024 Signal Messenger, LLC
+ * SPDX-License-Identifier: AGPL-3.0-only
+ */
+
+package org.thoughtcrime.securesms.backup
+
+/**
+ * How much of a backup a verification pass went through, and how fast.
+ */
+data class VerificationStats(val frames: Long, val bytes: Long, val durationMs: Long) {
+  val framesPerSecond: Double
+    get() = if (durationMs > 0) frames * 1000.0 / durationMs else frames.toDouble()
+
+  override fun toString(): String {
+    return "$frames frames, $bytes bytes in $durationMs ms (${framesPerSecond.toLong()} frames/s)"
+  }
+}
@@ -5,6 +5,7 @@
 
 package org.thoughtcrime.securesms.backup.v2
 
+import android.os.Process
 import androidx.annotation.WorkerThread
 import kotlinx.coroutines.Dispatchers
 import kotlinx.coroutines.withContext
@@ -29,7 +30,9 @@ import org.thoughtcrime.securesms.attachments.AttachmentId
 import org.thoughtcrime.securesms.attachments.Cdn
 import org.thoughtcrime.securesms.attachments.DatabaseAttachment
 import org.thoughtcrime.securesms.backup.v2.database.ChatItemImportInserter
+import org.thoughtcrime.securesms.backup.v2.database.beginChatItemImport
 import org.thoughtcrime.securesms.backup.v2.database.clearAllDataForBackupRestore
+import org.thoughtcrime.securesms.backup.v2.database.finishChatItemImport
 import org.thoughtcrime.securesms.backup.v2.processor.AccountDataProcessor
 import org.thoughtcrime.securesms.backup.v2.processor.AdHocCallBackupProcessor
 import org.thoughtcrime.securesms.backup.v2.processor.ChatBackupProcessor
@@ -40,6 +43,7 @@ import org.thoughtcrime.securesms.backup.v2.proto.BackupInfo
 import org.thoughtcrime.securesms.backup.v2.stream.BackupExportWriter
 import org.thoughtcrime.securesms.backup.v2.stream.BackupImportReader
 import org.thoughtcrime.securesms.backup.v2.stream.EncryptedBackupReader
+import org.thoughtcrime.securesms.backup.v2.stream.EncryptedBackupVerifier
 import org.thoughtcrime.securesms.backup.v2.stream.EncryptedBackupWriter
 import org.thoughtcrime.securesms.backup.v2.stream.PlainTextBackupReader
 import org.thoughtcrime.securesms.backup.v2.stream.PlainTextBackupWriter
@@ -83,13 +87,15 @@ import java.io.OutputStream
 import java.time.ZonedDateTime
 import java.util.Currency
 import java.util.Locale
+import java.util.concurrent.ExecutorService
+import java.util.concurrent.Executors
 import java.util.concurrent.atomic.AtomicLong
 import kotlin.time.Duration.Companion.milliseconds
 
 object BackupRepository {
 
   private val TAG = Log.tag(BackupRepository::class.java)
-  private const val VERSION = 1L
+  const val VERSION = 1L
   private const val REMOTE_MAIN_DB_SNAPSHOT_NAME = "remote-signal-snapshot"
   private const val REMOTE_KEYVALUE_DB_SNAPSHOT_NAME = "remote-signal-key-value-snapshot"
   private const val LOCAL_MAIN_DB_SNAPSHOT_NAME = "local-signal-snapshot"
@@ -199,49 +205,70 @@ object BackupRepository {
     localBackupProgressEmitter: ExportProgressListener,
     archiveAttachment: (AttachmentTable.LocalArchivableAttachment, () -> InputStream?) -> Unit
   ) {
+    val compressionExecutor = createCompressionExecutor()
     val writer = EncryptedBackupWriter(
       key = SignalStore.svr.getOrCreateMasterKey().deriveBackupKey(),
       aci = SignalStore.account.aci!!,
       outputStream = NonClosingOutputStream(main),
-      append = { main.write(it) }
+      append = { main.write(it) },
+      compressionExecutor = compressionExecutor
     )
 
-    export(currentTime = System.currentTimeMillis(), isLocal = true, writer = writer, progressEmitter = localBackupProgressEmitter) { dbSnapshot ->
-      val localArchivableAttachments = dbSnapshot
-        .attachmentTable
-        .getLocalArchivableAttachments()
-        .associateBy { MediaName.fromDigest(it.remoteDigest) }
+    try {
+      export(currentTime = System.currentTimeMillis(), isLocal = true, writer = writer, progressEmitter = localBackupProgressEmitter) { dbSnapshot ->
+        val localArchivableAttachments = dbSnapshot
+          .attachmentTable
+          .getLocalArchivableAttachments()
+          .associateBy { MediaName.fromDigest(it.remoteDigest) }
 
-      localBackupProgressEmitter.onAttachment(0, localArchivableAttachments.size.toLong())
+        localBackupProgressEmitter.onAttachment(0, localArchivableAttachments.size.toLong())
 
-      val progress = AtomicLong(0)
+        val progress = AtomicLong(0)
 
-      LimitedWorker.execute(SignalExecutors.BOUNDED_IO, 4, localArchivableAttachments.values) { attachment ->
-        try {
-          archiveAttachment(attachment) { dbSnapshot.attachmentTable.getAttachmentStream(attachment) }
-        } catch (e: IOException) {
-          Log.w(TAG, "Unable to open attachment, skipping", e)
-        }
+        LimitedWorker.execute(SignalExecutors.BOUNDED_IO, 4, localArchivableAttachments.values) { attachment ->
+          try {
+            archiveAttachment(attachment) { dbSnapshot.attachmentTable.getAttachmentStream(attachment) }
+          } catch (e: IOException) {
+            Log.w(TAG, "Unable to open attachment, skipping", e)
+          }
 
-        val currentProgress = progress.incrementAndGet()
-        localBackupProgressEmitter.onAttachment(currentProgress, localArchivableAttachments.size.toLong())
+          val currentProgress = progress.incrementAndGet()
+          localBackupProgressEmitter.onAttachment(currentProgress, localArchivableAttachments.size.toLong())
+        }
       }
+    } finally {
+      compressionExecutor.shutdown()
     }
   }
 
   fun export(outputStream: OutputStream, append: (ByteArray) -> Unit, plaintext: Boolean = false, currentTime: Long = System.currentTimeMillis()) {
-    val writer: BackupExportWriter = if (plaintext) {
+    val compressionExecutor = if (plaintext) null else createCompressionExecutor()
+    val writer: BackupExportWriter = if (compressionExecutor == null) {
       PlainTextBackupWriter(outputStream)
     } else {
       EncryptedBackupWriter(
         key = SignalStore.svr.getOrCreateMasterKey().deriveBackupKey(),
         aci = SignalStore.account.aci!!,
         outputStream = outputStream,
-        append = append
+        append = append,
+        compressionExecutor = compressionExecutor
       )
     }
 
-    export(currentTime = currentTime, isLocal = false, writer = writer)
+    try {
+      export(currentTime = currentTime, isLocal = false, writer = writer)
+    } finally {
+      compressionExecutor?.shutdown()
+    }
+  }
+
+  /**
+   * Compression keeps its threads busy for the whole export, so each export gets its own pool sized to the device instead of
+   * tying up [SignalExecutors.BOUNDED]. The caller has to shut it down once the export is done.
+   */
+  private fun createCompressionExecutor(): ExecutorService {
+    val threads = Runtime.getRuntime().availableProcessors().coerceAtLeast(1)
+    return Executors.newFixedThreadPool(threads, SignalExecutors.NumberedThreadFactory("backup-compression", Process.THREAD_PRIORITY_BACKGROUND))
   }
 
   /**
@@ -327,6 +354,19 @@ object BackupRepository {
     }
   }
 
+  /**
+   * Verify a local backup written by [localExport] in a single pass, without importing it.
+   */
+  fun localVerify(mainStreamFactory: () -> InputStream, mainStreamLength: Long, spillDirectory: File, isCanceled: () -> Boolean): EncryptedBackupVerifier.Result {
+    val verifier = EncryptedBackupVerifier(
+      key = SignalStore.svr.getOrCreateMasterKey().deriveBackupKey(),
+      aci = SignalStore.account.requireAci(),
+      spillDirectory = spillDirectory
+    )
+
+    return verifier.verify(mainStreamLength, mainStreamFactory, isCanceled)
+  }
+
   fun localImport(mainStreamFactory: () -> InputStream, mainStreamLength: Long, selfData: SelfData): ImportResult {
     val backupKey = SignalStore.svr.getOrCreateMasterKey().deriveBackupKey()
 
@@ -398,6 +438,7 @@ object BackupRepository {
 
       eventTimer.emit("setup")
       val importState = ImportState(backupKey)
+      val deferredIndexes: List<String> = SignalDatabase.messages.beginChatItemImport()
       val chatItemInserter: ChatItemImportInserter = ChatItemBackupProcessor.beginImport(importState)
 
       val totalLength = frameReader.getStreamLength()
@@ -442,9 +483,13 @@ object BackupRepository {
       if (chatItemInserter.flush()) {
         eventTimer.emit("chatItem")
       }
+      chatItemInserter.close()
 
       importExtras?.invoke(eventTimer)
 
+      SignalDatabase.messages.finishChatItemImport(deferredIndexes)
+      eventTimer.emit("indexes")
+
       importState.chatIdToLocalThreadId.values.forEach {
         SignalDatabase.threads.update(it, unarchive = false, allowDeletion = false)
       }
@@ -0,0 +1,336 @@
+/*
+ * Copyright 2024 Signal Messenger, LLC
+ * SPDX-License-Identifier: AGPL-3.0-only
+ */
+
+package org.thoughtcrime.securesms.backup.v2
+
+import android.content.Context
+import android.os.Process
+import org.greenrobot.eventbus.EventBus
+import org.signal.core.util.concurrent.SignalExecutors
+import org.signal.core.util.logging.Log
+import org.signal.libsignal.protocol.InvalidMacException
+import org.signal.libsignal.protocol.InvalidMessageException
+import org.thoughtcrime.securesms.attachments.AttachmentId
+import org.thoughtcrime.securesms.attachments.DatabaseAttachment
+import org.thoughtcrime.securesms.backup.v2.BackupRepository.getThumbnailMediaName
+import org.thoughtcrime.securesms.database.AttachmentTable
+import org.thoughtcrime.securesms.database.SignalDatabase
+import org.thoughtcrime.securesms.dependencies.AppDependencies
+import org.thoughtcrime.securesms.events.PartProgressEvent
+import org.thoughtcrime.securesms.jobs.RestoreAttachmentJob
+import org.thoughtcrime.securesms.jobs.RestoreAttachmentThumbnailJob
+import org.thoughtcrime.securesms.keyvalue.SignalStore
+import org.thoughtcrime.securesms.mms.MmsException
+import org.thoughtcrime.securesms.notifications.v2.ConversationId
+import org.thoughtcrime.securesms.transport.RetryLaterException
+import org.thoughtcrime.securesms.util.NetworkUtil
+import org.thoughtcrime.securesms.util.RemoteConfig
+import org.whispersystems.signalservice.api.backup.MediaName
+import org.whispersystems.signalservice.api.messages.SignalServiceAttachment
+import org.whispersystems.signalservice.api.push.exceptions.MissingConfigurationException
+import org.whispersystems.signalservice.api.push.exceptions.NonSuccessfulResponseCodeException
+import org.whispersystems.signalservice.api.push.exceptions.RangeException
+import java.io.IOException
+import java.util.concurrent.ExecutionException
+import java.util.concurrent.ExecutorCompletionService
+import java.util.concurrent.ExecutorService
+import java.util.concurrent.Executors
+
+/**
+ * Restores the media in a backup in bulk, rather than through a job per attachment. Attachments are read a page at a time, downloaded from the archive
+ * CDN on a pool of threads sized to the current network, decrypted straight into their data files, and committed to the database in batches.
+ *
+ * Thumbnails of offloaded attachments are restored before any full-size attachments, since they're small and fill in the most of the UI. Within each,
+ * the most recently active threads go first.
+ *
+ * A failure that's specific to one attachment is recorded on it the same way [RestoreAttachmentJob] would. Anything else stops the restore, and what
+ * wasn't finished is picked up again by the next run.
+ *
+ * An attachment that has its own [RestoreAttachmentJob], for instance because the user tapped it, is left to that job, so the two never download
+ * into the same transfer file.
+ */
+class RestoreMediaEngine(
+  private val context: Context,
+  private val isCanceled: () -> Boolean
+) {
+
+  companion object {
+    private val TAG = Log.tag(RestoreMediaEngine::class)
+
+    private const val PAGE_SIZE = 100
+    private const val COMMIT_BATCH_SIZE = 25
+
+    private const val WIFI_WORKERS = 8
+    private const val MOBILE_WORKERS = 4
+    private const val ROAMING_WORKERS = 2
+
+    private fun getWorkerCount(context: Context): Int {
+      return when {
+        NetworkUtil.isConnectedWifi(context) -> WIFI_WORKERS
+        NetworkUtil.isConnectedRoaming(context) -> ROAMING_WORKERS
+        else -> MOBILE_WORKERS
+      }
+    }
+  }
+
+  /**
+   * @param offloadSentBefore Attachments on messages sent before this time only have their thumbnails restored, or null to restore everything in full.
+   */
+  @Throws(IOException::class, RetryLaterException::class)
+  fun restore(offloadSentBefore: Long?) {
+    SignalDatabase.attachments.startRestoringAttachments(offloadSentBefore)
+
+    val workers = getWorkerCount(context)
+    val executor = Executors.newFixedThreadPool(workers, SignalExecutors.NumberedThreadFactory("restore-media", Process.THREAD_PRIORITY_BACKGROUND))
+
+    Log.i(TAG, "Restoring media with $workers workers (${NetworkUtil.getNetworkTypeDescriptor(context)})")
+
+    try {
+      val thumbnails = SignalDatabase.attachments.getRestoringThumbnailIdsByRecency()
+      Log.i(TAG, "Restoring ${thumbnails.size} thumbnails")
+
+      restoreAll(thumbnails, executor, workers, ::restoreThumbnail) {
+        SignalDatabase.attachments.finalizeAttachmentThumbnailsAfterDownload(it)
+      }
+
+      val attachments = SignalDatabase.attachments.getRestoringAttachmentIdsByRecency()
+      Log.i(TAG, "Restoring ${attachments.size} attachments")
+
+      restoreAll(attachments, executor, workers, ::restoreAttachment) {
+        SignalDatabase.attachments.finalizeAttachmentsAfterDownload(it)
+        AppDependencies.messageNotifier.updateNotification(context, ConversationId.forConversation(0))
+      }
+    } finally {
+      executor.shutdownNow()
+    }
+  }
+
+  /**
+   * Downloads the given attachments in order, keeping up to twice as many downloads queued as there are workers so that none of them sit idle
+   * between pages. Downloads that finish are committed [COMMIT_BATCH_SIZE] at a time.
+   */
+  @Throws(IOException::class, RetryLaterException::class)
+  private fun <T : Any> restoreAll(ids: List<AttachmentId>, executor: ExecutorService, workers: Int, download: (DatabaseAttachment) -> T?, commit: (List<T>) -> Unit) {
+    val completionService = ExecutorCompletionService<T?>(executor)
+    val remainingPages = ids.chunked(PAGE_SIZE).iterator()
+    val queued = ArrayDeque<DatabaseAttachment>()
+    val finished = ArrayList<T>(COMMIT_BATCH_SIZE)
+
+    var inFlight = 0
+    var failure: Exception? = null
+
+    while (true) {
+      while (failure == null && !isCanceled() && inFlight < workers * 2) {
+        if (queued.isEmpty() && remainingPages.hasNext()) {
+          queued += loadPage(remainingPages.next())
+          continue
+        }
+
+        val attachment = queued.removeFirstOrNull() ?: break
+        completionService.submit { download(attachment) }
+        inFlight++
+      }
+
+      if (inFlight == 0) {
+        break
+      }
+
+      try {
+        completionService.take().get()?.let { finished += it }
+      } catch (e: ExecutionException) {
+        // Let the downloads already running finish and be committed, but don't start any more
+        failure = failure ?: (e.cause as? Exception ?: e)
+      }
+      inFlight--
+
+      if (finished.size >= COMMIT_BATCH_SIZE || (inFlight == 0 && finished.isNotEmpty())) {
+        commit(finished.toList())
+        finished.clear()
+      }
+    }
+
+    when (val error = failure) {
+      null -> Unit
+      is IOException -> throw error
+      is RetryLaterException -> throw error
+      else -> throw IOException(error)
+    }
+  }
+
+  private fun loadPage(ids: List<AttachmentId>): List<DatabaseAttachment> {
+    val attachmentsById = SignalDatabase.attachments.getAttachments(ids).associateBy { it.attachmentId }
+    return ids.mapNotNull { attachmentsById[it] }
+  }
+
+  @Throws(IOException::class, RetryLaterException::class)
+  private fun restoreAttachment(attachment: DatabaseAttachment): AttachmentTable.DownloadedAttachment? {
+    if (attachment.transferState != AttachmentTable.TRANSFER_RESTORE_IN_PROGRESS) {
+      Log.i(TAG, "${attachment.attachmentId} no longer needs to be restored")
+      return null
+    }
+
+    if (RestoreAttachmentJob.hasPendingJob(attachment.attachmentId)) {
+      Log.i(TAG, "${attachment.attachmentId} is being restored by its own job")
+      return null
+    }
+
+    if (!SignalStore.backup.backsUpMedia || attachment.archiveMediaName.isNullOrEmpty()) {
+      // Only archived media is restored in bulk, the job knows how to fall back to the transit CDN
+      AppDependencies.jobManager.add(
+        RestoreAttachmentJob(
+          messageId = attachment.mmsId,
+          attachmentId = attachment.attachmentId,
+          manual = false,
+          forceArchiveDownload = true,
+          restoreMode = RestoreAttachmentJob.RestoreMode.ORIGINAL
+        )
+      )
+      return null
+    }
+
+    val archiveFile = SignalDatabase.attachments.getOrCreateArchiveTransferFile(attachment.attachmentId)
+
+    try {
+      if (attachment.size > RemoteConfig.maxAttachmentReceiveSizeBytes) {
+        throw MmsException("Attachment too large, failing download")
+      }
+
+      val pointer = RestoreAttachmentJob.createAttachmentPointer(attachment, useArchiveCdn = true)
+      val cdnCredentials = BackupRepository.getCdnReadCredentials(attachment.archiveCdn).successOrThrow().headers
+
+      val progressListener = object : SignalServiceAttachment.ProgressListener {
+        override fun onAttachmentProgress(total: Long, progress: Long) {
+          EventBus.getDefault().postSticky(PartProgressEvent(attachment, PartProgressEvent.Type.NETWORK, total, progress))
+        }
+
+        override fun shouldCancel(): Boolean {
+          return isCanceled()
+        }
+      }
+
+      val downloaded = AppDependencies.signalServiceMessageReceiver
+        .streamArchivedAttachment(
+          SignalStore.svr.getOrCreateMasterKey().deriveBackupKey().deriveMediaSecrets(MediaName(attachment.archiveMediaName!!)),
+          cdnCredentials,
+          archiveFile,
+          pointer,
+          RemoteConfig.maxAttachmentReceiveSizeBytes,
+          progressListener
+        )
+        .use { SignalDatabase.attachments.writeAttachmentAfterDownload(attachment.mmsId, attachment.attachmentId, it) }
+
+      archiveFile.delete()
+
+      return downloaded
+    } catch (e: RangeException) {
+      Log.w(TAG, "Range exception, file size " + archiveFile.length(), e)
+      if (archiveFile.delete()) {
+        throw RetryLaterException(e)
+      } else {
+        throw IOException("Failed to delete temp download file following range exception")
+      }
+    } catch (e: NonSuccessfulResponseCodeException) {
+      if (e.code == 401) {
+        SignalStore.backup.cdnReadCredentials = null
+        throw RetryLaterException(e)
+      }
+
+      Log.w(TAG, "Unable to restore ${attachment.attachmentId}", e)
+      SignalDatabase.attachments.setTransferProgressFailed(attachment.attachmentId, attachment.mmsId)
+    } catch (e: InvalidMessageException) {
+      Log.w(TAG, "Unable to restore ${attachment.attachmentId}", e)
+      if (e.cause is InvalidMacException) {
+        SignalDatabase.attachments.setTransferProgressPermanentFailure(attachment.attachmentId, attachment.mmsId)
+      } else {
+        SignalDatabase.attachments.setTransferProgressFailed(attachment.attachmentId, attachment.mmsId)
+      }
+    } catch (e: RestoreAttachmentJob.InvalidPartException) {
+      Log.w(TAG, "Unable to restore ${attachment.attachmentId}", e)
+      SignalDatabase.attachments.setTransferProgressFailed(attachment.attachmentId, attachment.mmsId)
+    } catch (e: MmsException) {
+      Log.w(TAG, "Unable to restore ${attachment.attachmentId}", e)
+      SignalDatabase.attachments.setTransferProgressFailed(attachment.attachmentId, attachment.mmsId)
+    } catch (e: MissingConfigurationException) {
+      Log.w(TAG, "Unable to restore ${attachment.attachmentId}", e)
+      SignalDatabase.attachments.setTransferProgressFailed(attachment.attachmentId, attachment.mmsId)
+    }
+
+    return null
+  }
+
+  @Throws(IOException::class, RetryLaterException::class)
+  private fun restoreThumbnail(attachment: DatabaseAttachment): AttachmentTable.DownloadedThumbnail? {
+    if (attachment.transferState != AttachmentTable.TRANSFER_RESTORE_OFFLOADED || attachment.thumbnailRestoreState != AttachmentTable.ThumbnailRestoreState.IN_PROGRESS) {
+      Log.i(TAG, "${attachment.attachmentId} no longer needs its thumbnail restored")
+      return null
+    }
+
+    if (attachment.archiveMediaName == null || attachment.archiveMediaId == null) {
+      Log.w(TAG, "${attachment.attachmentId} was never archived! Cannot restore its thumbnail.")
+      SignalDatabase.attachments.setThumbnailRestoreProgressFailed(attachment.attachmentId, attachment.mmsId)
+      return null
+    }
+
+    val thumbnailTransferFile = SignalDatabase.attachments.createArchiveThumbnailTransferFile()
+    val thumbnailFile = SignalDatabase.attachments.createArchiveThumbnailTransferFile()
+    var downloaded: AttachmentTable.DownloadedThumbnail? = null
+
+    try {
+      val pointer = RestoreAttachmentThumbnailJob.createThumbnailPointer(attachment)
+      val cdnCredentials = BackupRepository.getCdnReadCredentials(attachment.archiveCdn).successOrThrow().headers
+
+      val progressListener = object : SignalServiceAttachment.ProgressListener {
+        override fun onAttachmentProgress(total: Long, progress: Long) = Unit
+
+        override fun shouldCancel(): Boolean {
+          return isCanceled()
+        }
+      }
+
+      // Thumbnails don't have a known size, so their inner layer still goes through a file
+      downloaded = AppDependencies.signalServiceMessageReceiver
+        .retrieveArchivedAttachment(
+          SignalStore.svr.getOrCreateMasterKey().deriveBackupKey().deriveMediaSecrets(attachment.getThumbnailMediaName()),
+          cdnCredentials,
+          thumbnailTransferFile,
+          pointer,
+          thumbnailFile,
+          RemoteConfig.maxAttachmentReceiveSizeBytes,
+          true,
+          progressListener
+        )
+        .use { SignalDatabase.attachments.writeAttachmentThumbnailAfterDownload(attachment.attachmentId, attachment.archiveMediaId!!, it, thumbnailTransferFile) }
+    } catch (e: NonSuccessfulResponseCodeException) {
+      if (e.code == 401) {
+        SignalStore.backup.cdnReadCredentials = null
+        throw RetryLaterException(e)
+      }
+
+      Log.w(TAG, "Unable to restore thumbnail for ${attachment.attachmentId}", e)
+      SignalDatabase.attachments.setThumbnailRestoreProgressFailed(attachment.attachmentId, attachment.mmsId)
+    } catch (e: InvalidMessageException) {
+      Log.w(TAG, "Unable to restore thumbnail for ${attachment.attachmentId}", e)
+      SignalDatabase.attachments.setThumbnailRestoreProgressFailed(attachment.attachmentId, attachment.mmsId)
+    } catch (e: RestoreAttachmentThumbnailJob.InvalidPartException) {
+      Log.w(TAG, "Unable to restore thumbnail for ${attachment.attachmentId}", e)
+      SignalDatabase.attachments.setThumbnailRestoreProgressFailed(attachment.attachmentId, attachment.mmsId)
+    } catch (e: MmsException) {
+      Log.w(TAG, "Unable to restore thumbnail for ${attachment.attachmentId}", e)
+      SignalDatabase.attachments.setThumbnailRestoreProgressFailed(attachment.attachmentId, attachment.mmsId)
+    } catch (e: MissingConfigurationException) {
+      Log.w(TAG, "Unable to restore thumbnail for ${attachment.attachmentId}", e)
+      SignalDatabase.attachments.setThumbnailRestoreProgressFailed(attachment.attachmentId, attachment.mmsId)
+    } finally {
+      thumbnailFile.delete()
+
+      // The transfer file is deleted once the thumbnail is committed
+      if (downloaded == null) {
+        thumbnailTransferFile.delete()
+      }
+    }
+
+    return downloaded
+  }
+}
@@ -0,0 +1,65 @@
+/*
+ * Copyright 2024 Signal Messenger, LLC
+ * SPDX-License-Identifier: AGPL-3.0-only
+ */
+
+package org.thoughtcrime.securesms.backup.v2.database
+
+import android.content.ContentValues
+import net.zetetic.database.sqlcipher.SQLiteStatement
+import org.thoughtcrime.securesms.database.SQLiteDatabase
+
+/**
+ * Inserts rows into [tableName] using multi-row `INSERT ... VALUES (...), (...)` statements that are compiled once and reused.
+ *
+ * Unlike [org.signal.core.util.SqlUtil.buildBulkInsert], every value is bound as an argument rather than inlined into the SQL, so the SQL only
+ * depends on the number of rows. That means a full batch is only compiled once per import rather than once per batch. Values are bound the same
+ * way that [org.signal.core.util.SqlUtil.buildBulkInsert] binds them, so the rows that end up in the database are identical.
+ */
+class BulkInsertStatement(
+  private val db: SQLiteDatabase,
+  private val tableName: String,
+  private val columns: Array<String>,
+  maxQueryArgs: Int = MAX_QUERY_ARGS
+) : AutoCloseable {
+
+  companion object {
+    private const val MAX_QUERY_ARGS = 999
+  }
+
+  private val rowsPerStatement = maxQueryArgs / columns.size
+  private val statements: MutableMap<Int, SQLiteStatement> = mutableMapOf()
+
+  fun insert(rows: List<ContentValues>) {
+    for (batch in rows.chunked(rowsPerStatement)) {
+      val statement = statements.getOrPut(batch.size) { db.compileStatement(buildSql(batch.size)) }
+
+      var index = 1
+      for (values in batch) {
+        for (column in columns) {
+          when (val value = values[column]) {
+            null -> statement.bindNull(index)
+            is ByteArray -> statement.bindBlob(index, value)
+            else -> statement.bindString(index, value.toString())
+          }
+          index++
+        }
+      }
+
+      statement.executeInsert()
+      statement.clearBindings()
+    }
+  }
+
+  override fun close() {
+    statements.values.forEach { it.close() }
+    statements.clear()
+  }
+
+  private fun buildSql(rowCount: Int): String {
+    val row = columns.joinToString(separator = ", ", prefix = "(", postfix = ")") { "?" }
+    val values = (1..rowCount).joinToString(separator = ", ") { row }
+
+    return "INSERT INTO $tableName (${columns.joinToString(separator = ", ")}) VALUES $values"
+  }
+}
@@ -84,6 +84,10 @@ import java.io.IOException
 import java.util.HashMap
 import java.util.LinkedList
 import java.util.Queue
+import java.util.concurrent.ExecutionException
+import java.util.concurrent.Executor
+import java.util.concurrent.Future
+import java.util.concurrent.FutureTask
 import kotlin.jvm.optionals.getOrNull
 import org.thoughtcrime.securesms.backup.v2.proto.BodyRange as BackupBodyRange
 import org.thoughtcrime.securesms.backup.v2.proto.GiftBadge as BackupGiftBadge
@@ -93,9 +97,19 @@ import org.thoughtcrime.securesms.backup.v2.proto.GiftBadge as BackupGiftBadge
  * attachments, etc), this will populate items in batches, doing bulk lookups to improve throughput. We keep these in a buffer
  * and only do more queries when the buffer is empty.
  *
+ * While a batch is being turned into chat items, the extras for the next batch are already being looked up on [prefetchExecutor].
+ * Messages are read in pages of [pageSize] from [pageLoader], each starting after the last message of the previous page, so that
+ * there's never one cursor over every message held open for the whole export.
+ *
  * All of this complexity is hidden from the user -- they just get a normal iterator interface.
  */
-class ChatItemExportIterator(private val cursor: Cursor, private val batchSize: Int, private val archiveMedia: Boolean) : Iterator<ChatItem?>, Closeable {
+class ChatItemExportIterator(
+  private val pageLoader: (after: PagePosition?, limit: Int) -> Cursor,
+  private val batchSize: Int,
+  private val pageSize: Int,
+  private val archiveMedia: Boolean,
+  private val prefetchExecutor: Executor
+) : Iterator<ChatItem?>, Closeable {
 
   companion object {
     private val TAG = Log.tag(ChatItemExportIterator::class.java)
@@ -103,6 +117,11 @@ class ChatItemExportIterator(private val cursor: Cursor, private val batchSize:
     const val COLUMN_BASE_TYPE = "base_type"
   }
 
+  /**
+   * The position of a message in export order, which is by date received, with ties broken by ID.
+   */
+  data class PagePosition(val dateReceived: Long, val id: Long)
+
   /**
    * A queue of already-parsed ChatItems. Processing in batches means that we read ahead in the cursor and put
    * the pending items here.
@@ -111,8 +130,17 @@ class ChatItemExportIterator(private val cursor: Cursor, private val batchSize:
 
   private val revisionMap: HashMap<Long, ArrayList<ChatItem>> = HashMap()
 
+  private var page: Cursor? = null
+  private var pageRowCount = 0
+  private var lastPosition: PagePosition? = null
+  private var exhausted = false
+
+  /** The batch after the current one, read ahead so that its extras can be looked up in the background. */
+  private var nextRecords: LinkedHashMap<Long, BackupMessageRecord> = linkedMapOf()
+  private var nextExtras: Future<BatchExtras>? = null
+
   override fun hasNext(): Boolean {
-    return buffer.isNotEmpty() || (cursor.count > 0 && !cursor.isLast && !cursor.isAfterLast)
+    return buffer.isNotEmpty() || nextRecords.isNotEmpty() || !exhausted
   }
 
   override fun next(): ChatItem? {
@@ -120,21 +148,25 @@ class ChatItemExportIterator(private val cursor: Cursor, private val batchSize:
       return buffer.remove()
     }
 
-    val records: LinkedHashMap<Long, BackupMessageRecord> = linkedMapOf()
+    val records: LinkedHashMap<Long, BackupMessageRecord> = nextRecords.takeIf { it.isNotEmpty() } ?: readBatch()
+    if (records.isEmpty()) {
+      return null
+    }
 
-    for (i in 0 until batchSize) {
-      if (cursor.moveToNext()) {
-        val record = cursor.toBackupMessageRecord()
-        records[record.id] = record
-      } else {
-        break
-      }
+    val extras: BatchExtras = nextExtras?.let { awaitExtras(it) } ?: BatchExtras.load(records)
+
+    nextRecords = readBatch()
+    nextExtras = if (nextRecords.isNotEmpty()) {
+      val prefetchRecords = nextRecords
+      FutureTask { BatchExtras.load(prefetchRecords) }.also { prefetchExecutor.execute(it) }
+    } else {
+      null
     }
 
-    val reactionsById: Map<Long, List<ReactionRecord>> = SignalDatabase.reactions.getReactionsForMessages(records.keys).map { entry -> entry.key to entry.value.sortedBy { it.dateReceived } }.toMap()
-    val mentionsById: Map<Long, List<Mention>> = SignalDatabase.mentions.getMentionsForMessages(records.keys)
-    val attachmentsById: Map<Long, List<DatabaseAttachment>> = SignalDatabase.attachments.getAttachmentsForMessages(records.keys)
-    val groupReceiptsById: Map<Long, List<GroupReceiptTable.GroupReceiptInfo>> = SignalDatabase.groupReceipts.getGroupReceiptInfoForMessages(records.keys)
+    val reactionsById: Map<Long, List<ReactionRecord>> = extras.reactionsById
+    val mentionsById: Map<Long, List<Mention>> = extras.mentionsById
+    val attachmentsById: Map<Long, List<DatabaseAttachment>> = extras.attachmentsById
+    val groupReceiptsById: Map<Long, List<GroupReceiptTable.GroupReceiptInfo>> = extras.groupReceiptsById
 
     for ((id, record) in records) {
       val builder = record.toBasicChatItemBuilder(groupReceiptsById[id])
@@ -199,7 +231,7 @@ class ChatItemExportIterator(private val cursor: Cursor, private val batchSize:
           builder.updateMessage = record.toGroupUpdate()
         }
         MessageTypes.isCallLog(record.type) -> {
-          builder.updateMessage = record.toCallUpdate()
+          builder.updateMessage = record.toCallUpdate(extras.callsById[id])
         }
         MessageTypes.isPaymentsNotification(record.type) -> {
           builder.paymentNotification = record.toPaymentNotificationUpdate()
@@ -253,7 +285,45 @@ class ChatItemExportIterator(private val cursor: Cursor, private val batchSize:
   }
 
   override fun close() {
-    cursor.close()
+    nextExtras?.cancel(false)
+    nextExtras = null
+    page?.close()
+    page = null
+  }
+
+  /**
+   * Reads up to [batchSize] messages, moving on to the next page whenever the current one runs out.
+   */
+  private fun readBatch(): LinkedHashMap<Long, BackupMessageRecord> {
+    val records: LinkedHashMap<Long, BackupMessageRecord> = linkedMapOf()
+
+    while (records.size < batchSize && !exhausted) {
+      val cursor = page ?: pageLoader(lastPosition, pageSize).also {
+        page = it
+        pageRowCount = 0
+      }
+
+      if (cursor.moveToNext()) {
+        val record = cursor.toBackupMessageRecord()
+        records[record.id] = record
+        lastPosition = PagePosition(record.dateReceived, record.id)
+        pageRowCount++
+      } else {
+        cursor.close()
+        page = null
+        exhausted = pageRowCount < pageSize
+      }
+    }
+
+    return records
+  }
+
+  private fun awaitExtras(future: Future<BatchExtras>): BatchExtras {
+    return try {
+      future.get()
+    } catch (e: ExecutionException) {
+      throw e.cause ?: e
+    }
   }
 
   private fun simpleUpdate(type: SimpleChatUpdate.Type): ChatUpdateMessage {
@@ -355,9 +425,7 @@ class ChatItemExportIterator(private val cursor: Cursor, private val batchSize:
     }
   }
 
-  private fun BackupMessageRecord.toCallUpdate(): ChatUpdateMessage? {
-    val call = calls.getCallByMessageId(this.id)
-
+  private fun BackupMessageRecord.toCallUpdate(call: CallTable.Call?): ChatUpdateMessage? {
     return if (call != null) {
       call.toCallUpdate()
     } else {
@@ -1132,6 +1200,32 @@ class ChatItemExportIterator(private val cursor: Cursor, private val batchSize:
     )
   }
 
+  /**
+   * Everything about a batch of messages that's looked up in bulk, rather than read from the message itself. These are read from
+   * [SignalDatabase], not from the snapshot the messages are paged from.
+   */
+  private class BatchExtras(
+    val reactionsById: Map<Long, List<ReactionRecord>>,
+    val mentionsById: Map<Long, List<Mention>>,
+    val attachmentsById: Map<Long, List<DatabaseAttachment>>,
+    val groupReceiptsById: Map<Long, List<GroupReceiptTable.GroupReceiptInfo>>,
+    val callsById: Map<Long, CallTable.Call>
+  ) {
+    companion object {
+      fun load(records: Map<Long, BackupMessageRecord>): BatchExtras {
+        val callMessageIds = records.values.filter { MessageTypes.isCallLog(it.type) }.map { it.id }
+
+        return BatchExtras(
+          reactionsById = SignalDatabase.reactions.getReactionsForMessages(records.keys).map { entry -> entry.key to entry.value.sortedBy { it.dateReceived } }.toMap(),
+          mentionsById = SignalDatabase.mentions.getMentionsForMessages(records.keys),
+          attachmentsById = SignalDatabase.attachments.getAttachmentsForMessages(records.keys),
+          groupReceiptsById = SignalDatabase.groupReceipts.getGroupReceiptInfoForMessages(records.keys),
+          callsById = if (callMessageIds.isNotEmpty()) calls.getCalls(callMessageIds, includeDeleted = true) else emptyMap()
+        )
+      }
+    }
+  }
+
   private class BackupMessageRecord(
     val id: Long,
     val dateSent: Long,
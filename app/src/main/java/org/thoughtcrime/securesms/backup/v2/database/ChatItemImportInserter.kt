@@ -11,10 +11,8 @@ import okio.ByteString
 import org.signal.core.util.Base64
 import org.signal.core.util.Hex
 import org.signal.core.util.SqlUtil
-import org.signal.core.util.forEach
 import org.signal.core.util.logging.Log
 import org.signal.core.util.orNull
-import org.signal.core.util.requireLong
 import org.signal.core.util.toInt
 import org.signal.core.util.update
 import org.thoughtcrime.securesms.attachments.ArchivedAttachment
@@ -88,16 +86,20 @@ import org.thoughtcrime.securesms.backup.v2.proto.GiftBadge as BackupGiftBadge
 /**
  * An object that will ingest all fo the [ChatItem]s you want to write, buffer them until hitting a specified batch size, and then batch insert them
  * for fast throughput.
+ *
+ * Message IDs are assigned up front, so that reactions and receipts can refer to their message before it's inserted, and the inserts themselves
+ * go through [BulkInsertStatement]s that are only compiled once. Call [close] when you're done to release them.
  */
 class ChatItemImportInserter(
   private val db: SQLiteDatabase,
   private val importState: ImportState,
   private val batchSize: Int
-) {
+) : AutoCloseable {
   companion object {
     private val TAG = Log.tag(ChatItemImportInserter::class.java)
 
     private val MESSAGE_COLUMNS = arrayOf(
+      MessageTable.ID,
       MessageTable.DATE_SENT,
       MessageTable.DATE_RECEIVED,
       MessageTable.DATE_SERVER,
@@ -152,6 +154,10 @@ class ChatItemImportInserter(
   private val buffer: Buffer = Buffer()
   private var messageId: Long = SqlUtil.getNextAutoIncrementId(db, MessageTable.TABLE_NAME)
 
+  private val messageStatement = BulkInsertStatement(db, MessageTable.TABLE_NAME, MESSAGE_COLUMNS)
+  private val reactionStatement = BulkInsertStatement(db, ReactionTable.TABLE_NAME, REACTION_COLUMNS)
+  private val groupReceiptStatement = BulkInsertStatement(db, GroupReceiptTable.TABLE_NAME, GROUP_RECEIPT_COLUMNS)
+
   /**
    * Indicate that you want to insert the [ChatItem] into the database.
    * If this item causes the buffer to hit the batch size, then a batch of items will actually be inserted.
@@ -191,12 +197,14 @@ class ChatItemImportInserter(
         revision.contentValues.put(MessageTable.ORIGINAL_MESSAGE_ID, originalId)
         revision.contentValues.put(MessageTable.LATEST_REVISION_ID, latestRevisionId)
         revision.contentValues.put(MessageTable.REVISION_NUMBER, (messageId - originalId))
+        revision.contentValues.put(MessageTable.ID, messageId)
         buffer.messages += revision
         messageId++
       }
 
       messageInsert.contentValues.put(MessageTable.ORIGINAL_MESSAGE_ID, originalId)
     }
+    messageInsert.contentValues.put(MessageTable.ID, messageId)
     buffer.messages += messageInsert
     buffer.reactions += chatItem.toReactionContentValues(messageId)
     buffer.groupReceipts += chatItem.toGroupReceiptContentValues(messageId, chatBackupRecipientId)
@@ -214,22 +222,14 @@ class ChatItemImportInserter(
       return false
     }
 
-    var messageInsertIndex = 0
-    SqlUtil.buildBulkInsert(MessageTable.TABLE_NAME, MESSAGE_COLUMNS, buffer.messages.map { it.contentValues }).forEach { query ->
-      db.rawQuery("${query.where} RETURNING ${MessageTable.ID}", query.whereArgs).forEach { cursor ->
-        val finalMessageId = cursor.requireLong(MessageTable.ID)
-        val relatedInsert = buffer.messages[messageInsertIndex++]
-        relatedInsert.followUp?.invoke(finalMessageId)
-      }
-    }
+    messageStatement.insert(buffer.messages.map { it.contentValues })
 
-    SqlUtil.buildBulkInsert(ReactionTable.TABLE_NAME, REACTION_COLUMNS, buffer.reactions).forEach {
-      db.execSQL(it.where, it.whereArgs)
+    for (messageInsert in buffer.messages) {
+      messageInsert.followUp?.invoke(messageInsert.contentValues.getAsLong(MessageTable.ID))
     }
 
-    SqlUtil.buildBulkInsert(GroupReceiptTable.TABLE_NAME, GROUP_RECEIPT_COLUMNS, buffer.groupReceipts).forEach {
-      db.execSQL(it.where, it.whereArgs)
-    }
+    reactionStatement.insert(buffer.reactions)
+    groupReceiptStatement.insert(buffer.groupReceipts)
 
     messageId = SqlUtil.getNextAutoIncrementId(db, MessageTable.TABLE_NAME)
 
@@ -238,6 +238,12 @@ class ChatItemImportInserter(
     return true
   }
 
+  override fun close() {
+    messageStatement.close()
+    reactionStatement.close()
+    groupReceiptStatement.close()
+  }
+
   private fun ChatItem.toMessageInsert(fromRecipientId: RecipientId, chatRecipientId: RecipientId, threadId: Long): MessageInsert {
     val contentValues = this.toMessageContentValues(fromRecipientId, chatRecipientId, threadId)
 
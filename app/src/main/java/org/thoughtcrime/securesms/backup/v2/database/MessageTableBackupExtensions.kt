@@ -5,19 +5,61 @@
 
 package org.thoughtcrime.securesms.backup.v2.database
 
+import android.database.Cursor
 import org.signal.core.util.SqlUtil
+import org.signal.core.util.concurrent.SignalExecutors
 import org.signal.core.util.logging.Log
+import org.signal.core.util.readToList
+import org.signal.core.util.requireNonNullString
 import org.signal.core.util.select
 import org.thoughtcrime.securesms.backup.v2.ImportState
+import org.thoughtcrime.securesms.database.GroupReceiptTable
 import org.thoughtcrime.securesms.database.MessageTable
 import org.thoughtcrime.securesms.database.MessageTypes
+import org.thoughtcrime.securesms.database.ReactionTable
+import org.thoughtcrime.securesms.database.SignalDatabase
 import java.util.concurrent.TimeUnit
 
 private val TAG = Log.tag(MessageTable::class.java)
 private const val BASE_TYPE = "base_type"
 
+private const val BACKUP_EXPORT_ORDER_INDEX = "message_backup_export_order_index"
+
+/**
+ * Note: The backup export runs against a snapshot of the database, so this adds an index on the snapshot that lets the export page
+ * through messages in order without sorting the whole table for every page.
+ */
 fun MessageTable.getMessagesForBackup(backupTime: Long, mediaBackupEnabled: Boolean): ChatItemExportIterator {
-  val cursor = readableDatabase
+  writableDatabase.execSQL("CREATE INDEX IF NOT EXISTS $BACKUP_EXPORT_ORDER_INDEX ON ${MessageTable.TABLE_NAME} (${MessageTable.DATE_RECEIVED}, ${MessageTable.ID})")
+
+  return ChatItemExportIterator(
+    pageLoader = { after, limit -> getMessagePageForBackup(backupTime, after, limit) },
+    batchSize = 100,
+    pageSize = 1000,
+    archiveMedia = mediaBackupEnabled,
+    prefetchExecutor = SignalExecutors.BOUNDED_IO
+  )
+}
+
+/**
+ * Reads the next page of messages to export, using the position of the last message of the previous page as the key to start after.
+ */
+private fun MessageTable.getMessagePageForBackup(backupTime: Long, after: ChatItemExportIterator.PagePosition?, limit: Int): Cursor {
+  val expirationClause = """
+    (
+      ${MessageTable.EXPIRE_STARTED} = 0 
+      OR 
+      (${MessageTable.EXPIRES_IN} > 0 AND (${MessageTable.EXPIRE_STARTED} + ${MessageTable.EXPIRES_IN}) > $backupTime + ${TimeUnit.DAYS.toMillis(1)})
+    )
+  """
+
+  val (where, args) = if (after != null) {
+    "$expirationClause AND (${MessageTable.DATE_RECEIVED} > ? OR (${MessageTable.DATE_RECEIVED} = ? AND ${MessageTable.ID} > ?))" to SqlUtil.buildArgs(after.dateReceived, after.dateReceived, after.id)
+  } else {
+    expirationClause to SqlUtil.buildArgs()
+  }
+
+  return readableDatabase
     .select(
       MessageTable.ID,
       MessageTable.DATE_SENT,
@@ -54,25 +96,48 @@ fun MessageTable.getMessagesForBackup(backupTime: Long, mediaBackupEnabled: Bool
       MessageTable.MESSAGE_EXTRAS
     )
     .from(MessageTable.TABLE_NAME)
-    .where(
-      """
-      (
-        ${MessageTable.EXPIRE_STARTED} = 0 
-        OR 
-        (${MessageTable.EXPIRES_IN} > 0 AND (${MessageTable.EXPIRE_STARTED} + ${MessageTable.EXPIRES_IN}) > $backupTime + ${TimeUnit.DAYS.toMillis(1)})
-      )
-      """
-    )
-    .orderBy("${MessageTable.DATE_RECEIVED} ASC")
+    .where(where, args)
+    .orderBy("${MessageTable.DATE_RECEIVED} ASC, ${MessageTable.ID} ASC")
+    .limit(limit)
     .run()
-
-  return ChatItemExportIterator(cursor, 100, mediaBackupEnabled)
 }
 
 fun MessageTable.createChatItemInserter(importState: ImportState): ChatItemImportInserter {
   return ChatItemImportInserter(writableDatabase, importState, 100)
 }
 
+/**
+ * Drops the non-unique indexes on the tables that chat items are imported into, as well as the search index triggers, so that the import doesn't
+ * have to keep them up to date row by row. Building them once at the end is much cheaper.
+ *
+ * @return The statements that recreate the dropped indexes, which must be passed to [finishChatItemImport] within the same transaction.
+ */
+fun MessageTable.beginChatItemImport(): List<String> {
+  val tables = arrayOf(MessageTable.TABLE_NAME, ReactionTable.TABLE_NAME, GroupReceiptTable.TABLE_NAME)
+
+  val indexes: List<Pair<String, String>> = writableDatabase
+    .select("name", "sql")
+    .from("sqlite_master")
+    .where("type = 'index' AND sql IS NOT NULL AND sql NOT LIKE 'CREATE UNIQUE%' AND tbl_name IN (${tables.joinToString { "?" }})", tables)
+    .run()
+    .readToList { cursor -> cursor.requireNonNullString("name") to cursor.requireNonNullString("sql") }
+
+  Log.d(TAG, "[beginChatItemImport] Deferring ${indexes.size} indexes.")
+  indexes.forEach { (name, _) -> writableDatabase.execSQL("DROP INDEX IF EXISTS $name") }
+
+  SignalDatabase.messageSearch.pauseIndexing()
+
+  return indexes.map { (_, sql) -> sql }
+}
+
+/**
+ * Recreates the indexes dropped by [beginChatItemImport] and rebuilds the search index from the imported messages.
+ */
+fun MessageTable.finishChatItemImport(deferredIndexes: List<String>) {
+  deferredIndexes.forEach { writableDatabase.execSQL(it) }
+  SignalDatabase.messageSearch.resumeIndexingAndRebuild()
+}
+
 fun MessageTable.clearAllDataForBackupRestore() {
   writableDatabase.delete(MessageTable.TABLE_NAME, null, null)
   SqlUtil.resetAutoIncrementValue(writableDatabase, MessageTable.TABLE_NAME)
@@ -10,6 +10,7 @@ import android.net.Uri
 import androidx.documentfile.provider.DocumentFile
 import org.signal.core.util.androidx.DocumentFileInfo
 import org.signal.core.util.androidx.DocumentFileUtil.delete
+import org.signal.core.util.androidx.DocumentFileUtil.findFile
 import org.signal.core.util.androidx.DocumentFileUtil.hasFile
 import org.signal.core.util.androidx.DocumentFileUtil.inputStream
 import org.signal.core.util.androidx.DocumentFileUtil.listFiles
@@ -159,27 +160,18 @@ class ArchiveFileSystem private constructor(private val context: Context, root:
   fun deleteUnusedFiles() {
     Log.i(TAG, "Deleting unused files")
 
-    val allFiles: MutableMap<String, DocumentFileInfo> = filesFileSystem.allFiles().toMutableMap()
+    val usedFiles: MutableSet<String> = HashSet()
     val snapshots: List<SnapshotInfo> = listSnapshots()
 
     snapshots
       .mapNotNull { SnapshotFileSystem.filesInputStream(context, it.file) }
       .forEach { input ->
         ArchivedFilesReader(input).use { reader ->
-          reader.forEach { f -> f.mediaName?.let { allFiles.remove(it) } }
+          reader.forEach { f -> f.mediaName?.let { usedFiles.add(it) } }
         }
       }
 
-    var deleted = 0
-    allFiles
-      .values
-      .forEach {
-        if (it.documentFile.delete()) {
-          deleted++
-        }
-      }
-
-    Log.d(TAG, "Cleanup removed $deleted/${allFiles.size} files")
+    FilesIndex.load(filesFileSystem).deleteUnused(usedFiles)
   }
 
   /** Useful metadata for a given archive snapshot */
@@ -246,6 +238,11 @@ class SnapshotFileSystem(private val context: Context, private val snapshotDirec
  */
 class FilesFileSystem(private val context: Context, private val root: DocumentFile) {
 
+  companion object {
+    const val INDEX_NAME = "index"
+    const val INDEX_JOURNAL_NAME = "index-journal"
+  }
+
   private val subFolders: Map<String, DocumentFile>
 
   init {
@@ -261,7 +258,7 @@ class FilesFileSystem(private val context: Context, private val root: DocumentFi
   }
 
   /**
-   * Enumerate all files in the directory.
+   * Enumerate all files in the directory. This is slow for large archives, prefer [FilesIndex] when possible.
    */
   fun allFiles(): Map<String, DocumentFileInfo> {
     val allFiles = HashMap<String, DocumentFileInfo>()
@@ -276,16 +273,55 @@ class FilesFileSystem(private val context: Context, private val root: DocumentFi
     return allFiles
   }
 
+  /**
+   * Enumerate the files in the single shard directory that [mediaName] belongs to.
+   */
+  fun shardFiles(mediaName: MediaName): List<DocumentFileInfo> {
+    return subFolders[mediaName.shard]!!.listFiles(context)
+  }
+
+  fun indexInputStream(): InputStream? {
+    return root.findFile(context, INDEX_NAME)?.documentFile?.inputStream(context)
+  }
+
+  /**
+   * Open the index for writing, replacing whatever it contained before.
+   */
+  fun indexOutputStream(): OutputStream? {
+    val file = root.findFile(context, INDEX_NAME)?.documentFile ?: root.createFile("application/octet-stream", INDEX_NAME) ?: return null
+    return context.contentResolver.openOutputStream(file.uri, "wt")
+  }
+
+  fun indexJournalInputStream(): InputStream? {
+    return root.findFile(context, INDEX_JOURNAL_NAME)?.documentFile?.inputStream(context)
+  }
+
+  /**
+   * Open the index journal for appending, creating it if needed.
+   */
+  fun indexJournalOutputStream(): OutputStream? {
+    val file = root.findFile(context, INDEX_JOURNAL_NAME)?.documentFile ?: root.createFile("application/octet-stream", INDEX_JOURNAL_NAME) ?: return null
+    return context.contentResolver.openOutputStream(file.uri, "wa")
+  }
+
+  /**
+   * Delete the index journal, once everything in it has been written to the index.
+   *
+   * @return true if there's no journal left
+   */
+  fun deleteIndexJournal(): Boolean {
+    return root.delete(context, INDEX_JOURNAL_NAME) != false
+  }
+
   /**
    * Creates a new file for the given [mediaName] and returns the output stream for writing to it. The caller
-   * is responsible for determining if the file already exists (see [allFiles]) and deleting it (see [delete]).
+   * is responsible for determining if the file already exists (see [FilesIndex]) and deleting it (see [delete]).
    *
    * Calling this with a pre-existing file will likely create a second file with a modified name, but is generally
    * undefined and should be avoided.
    */
   fun fileOutputStream(mediaName: MediaName): OutputStream? {
-    val subFileDirectoryName = mediaName.name.substring(0..1)
-    val subFileDirectory = subFolders[subFileDirectoryName]!!
+    val subFileDirectory = subFolders[mediaName.shard]!!
     val file = subFileDirectory.createFile("application/octet-stream", mediaName.name)
     return file?.outputStream(context)
   }
@@ -303,13 +339,16 @@ class FilesFileSystem(private val context: Context, private val root: DocumentFi
    * @return true if deleted, false if not, null if not found
    */
   fun delete(mediaName: MediaName): Boolean? {
-    val subFileDirectoryName = mediaName.name.substring(0..1)
-    val subFileDirectory = subFolders[subFileDirectoryName]!!
+    val subFileDirectory = subFolders[mediaName.shard]!!
 
     return subFileDirectory.delete(context, mediaName.name)
   }
 }
 
+/** The name of the sub directory that the file for a media name is stored in. */
+val MediaName.shard: String
+  get() = name.substring(0..1)
+
 private fun String.toMilliseconds(): Long {
   val parts: List<String> = split("-").dropLastWhile { it.isEmpty() }
 
@@ -0,0 +1,366 @@
+/*
+ * Copyright 2024 Signal Messenger, LLC
+ * SPDX-License-Identifier: AGPL-3.0-only
+ */
+
+package org.thoughtcrime.securesms.backup.v2.local
+
+import org.signal.core.util.androidx.DocumentFileInfo
+import org.signal.core.util.logging.Log
+import org.signal.core.util.readNBytesOrThrow
+import org.signal.core.util.readVarInt32
+import org.signal.core.util.writeVarInt32
+import org.thoughtcrime.securesms.backup.v2.local.proto.FilesIndexFrame
+import org.whispersystems.signalservice.api.backup.MediaName
+import java.io.IOException
+import java.io.InputStream
+import java.io.OutputStream
+import kotlin.random.Random
+import kotlin.time.Duration.Companion.minutes
+
+/**
+ * An index of the files in the shared files directory of a local archive, keyed by media name, that's stored next to the files themselves.
+ * Knowing what's already been written without listing the directory matters a lot, since listing thousands of files through the storage
+ * access framework is very slow.
+ *
+ * The index also acts as a checkpoint for exports. Every so often while files are being written, the changes since the last checkpoint are
+ * appended to a journal next to the index, so an interrupted export only has to write the files that came after the last checkpoint.
+ * Appending keeps each checkpoint proportional to what changed rather than to the size of the archive. The journal is folded back into
+ * the index when the export finishes. Since anything after the last checkpoint may or may not be on disk, an index with a journal or
+ * that wasn't [finish]ed is only trusted for what it contains, and the rest is checked one shard at a time.
+ */
+class FilesIndex private constructor(
+  private val filesFileSystem: FilesFileSystem,
+  private val entries: MutableMap<String, Long>,
+  private var complete: Boolean,
+  private var generation: Long
+) {
+
+  companion object {
+    private val TAG = Log.tag(FilesIndex::class)
+
+    private const val CHECKPOINT_FILE_COUNT = 500
+    private val CHECKPOINT_INTERVAL = 1.minutes.inWholeMilliseconds
+
+    /**
+     * Load the index for [filesFileSystem]. If there isn't a usable index, which is the case for archives written before there was one,
+     * the files directory is listed once and the index is built from that.
+     */
+    fun load(filesFileSystem: FilesFileSystem): FilesIndex {
+      val contents: Contents? = try {
+        filesFileSystem.indexInputStream()?.use { read(it) }
+      } catch (e: IOException) {
+        Log.w(TAG, "Unable to read files index", e)
+        null
+      }
+
+      if (contents != null) {
+        val entries = contents.entries.toMutableMap()
+
+        val journalBatches = try {
+          filesFileSystem.indexJournalInputStream()?.use { readJournal(it, contents.generation, entries) } ?: 0
+        } catch (e: IOException) {
+          Log.w(TAG, "Unable to read files index journal", e)
+          0
+        }
+
+        val complete = contents.complete && journalBatches == 0
+        Log.d(TAG, "Loaded index with ${entries.size} files from $journalBatches checkpoints, complete: $complete")
+        return FilesIndex(filesFileSystem, entries, complete, contents.generation)
+      }
+
+      Log.i(TAG, "No usable files index, listing all files")
+      return fromListing(filesFileSystem, filesFileSystem.allFiles())
+    }
+
+    private fun fromListing(filesFileSystem: FilesFileSystem, files: Map<String, DocumentFileInfo>): FilesIndex {
+      val entries = HashMap<String, Long>(files.size)
+      files.values.forEach { entries[it.name] = it.size }
+
+      return FilesIndex(filesFileSystem, entries, complete = true, generation = 0)
+    }
+
+    /**
+     * Reads an index written by [write].
+     *
+     * @return the contents of the index, or null if it was cut short or can't be parsed
+     */
+    fun read(input: InputStream): Contents? {
+      val entries = HashMap<String, Long>()
+
+      while (true) {
+        val frame: FilesIndexFrame = try {
+          val length = input.readVarInt32()
+          if (length < 0) {
+            return null
+          }
+          FilesIndexFrame.ADAPTER.decode(input.readNBytesOrThrow(length))
+        } catch (e: IOException) {
+          Log.w(TAG, "Files index is truncated or corrupt", e)
+          return null
+        }
+
+        when {
+          frame.entry != null -> entries[frame.entry.mediaName] = frame.entry.size
+          frame.footer != null -> return if (frame.footer.count == entries.size) Contents(entries, frame.footer.complete, frame.footer.generation) else null
+          else -> return null
+        }
+      }
+    }
+
+    /**
+     * Applies the checkpoints of a journal written by [writeJournal] to [entries], in order. Checkpoints of another [generation] of the index
+     * were made before it was last rewritten, e.g. if the journal couldn't be deleted, so they're skipped. Reading stops at the first
+     * checkpoint that was cut short or can't be parsed, since it and anything after it may or may not be on disk.
+     *
+     * @return the number of checkpoints that were applied
+     */
+    fun readJournal(input: InputStream, generation: Long, entries: MutableMap<String, Long>): Int {
+      var batches = 0
+      val batch = LinkedHashMap<String, Long?>()
+
+      while (true) {
+        val frame: FilesIndexFrame = try {
+          val length = input.readVarInt32()
+          if (length < 0) {
+            return batches
+          }
+          FilesIndexFrame.ADAPTER.decode(input.readNBytesOrThrow(length))
+        } catch (e: IOException) {
+          Log.w(TAG, "Files index journal is truncated or corrupt after $batches checkpoints", e)
+          return batches
+        }
+
+        when {
+          frame.entry != null -> batch[frame.entry.mediaName] = frame.entry.size
+          frame.removed != null -> batch[frame.removed.mediaName] = null
+          frame.footer != null -> {
+            if (frame.footer.count != batch.size) {
+              Log.w(TAG, "Files index journal checkpoint has ${batch.size} changes, expected ${frame.footer.count}")
+              return batches
+            }
+
+            if (frame.footer.generation == generation) {
+              for ((mediaName, size) in batch) {
+                if (size != null) {
+                  entries[mediaName] = size
+                } else {
+                  entries.remove(mediaName)
+                }
+              }
+              batches++
+            }
+
+            batch.clear()
+          }
+          else -> return batches
+        }
+      }
+    }
+
+    /**
+     * Appends one checkpoint of [changes] to a journal, where a null size means the file was removed. The checkpoint ends with a footer, so
+     * that [readJournal] can tell a whole checkpoint apart from one that was only partly written.
+     */
+    fun writeJournal(output: OutputStream, generation: Long, changes: Map<String, Long?>) {
+      for ((mediaName, size) in changes) {
+        if (size != null) {
+          output.writeFrame(FilesIndexFrame(entry = FilesIndexFrame.Entry(mediaName = mediaName, size = size)))
+        } else {
+          output.writeFrame(FilesIndexFrame(removed = FilesIndexFrame.Removed(mediaName = mediaName)))
+        }
+      }
+      output.writeFrame(FilesIndexFrame(footer = FilesIndexFrame.Footer(count = changes.size, complete = false, generation = generation)))
+    }
+
+    /**
+     * Writes [entries] followed by a footer, so that [read] can tell a whole index apart from one that was only partly written. The
+     * [generation] ties the journal to this version of the index.
+     */
+    fun write(output: OutputStream, entries: Map<String, Long>, complete: Boolean, generation: Long = 0) {
+      for ((mediaName, size) in entries) {
+        output.writeFrame(FilesIndexFrame(entry = FilesIndexFrame.Entry(mediaName = mediaName, size = size)))
+      }
+      output.writeFrame(FilesIndexFrame(footer = FilesIndexFrame.Footer(count = entries.size, complete = complete, generation = generation)))
+    }
+
+    private fun OutputStream.writeFrame(frame: FilesIndexFrame) {
+      val bytes = frame.encode()
+      writeVarInt32(bytes.size)
+      write(bytes)
+    }
+  }
+
+  private val loadedComplete = complete
+  private val listedShards: MutableMap<String, Map<String, DocumentFileInfo>> = HashMap()
+
+  /** Changes since the last checkpoint, where a null size means the file was removed. */
+  private val changes: MutableMap<String, Long?> = LinkedHashMap()
+
+  private var writtenSinceCheckpoint = 0
+  private var lastCheckpoint = System.currentTimeMillis()
+
+  /**
+   * @return true if a file for [mediaName] of [size] bytes has already been written, in which case it doesn't need to be written again
+   */
+  @Synchronized
+  fun contains(mediaName: MediaName, size: Long): Boolean {
+    if (entries[mediaName.name] == size) {
+      return true
+    }
+
+    if (!complete && !entries.containsKey(mediaName.name)) {
+      val file = shardFiles(mediaName)[mediaName.name]
+      if (file != null && file.size == size) {
+        entries[mediaName.name] = size
+        changes[mediaName.name] = size
+        return true
+      }
+    }
+
+    return false
+  }
+
+  /**
+   * Get ready to write a file for [mediaName], deleting whatever is there now, since the file system may not allow overwriting it.
+   * The first call marks the index as incomplete until [finish] is called, which only takes an empty checkpoint in the journal.
+   */
+  @Synchronized
+  fun prepareToWrite(mediaName: MediaName) {
+    if (complete) {
+      complete = false
+      appendCheckpoint()
+    }
+
+    val exists = if (entries.containsKey(mediaName.name)) true else listedShards[mediaName.shard]?.containsKey(mediaName.name) == true
+    if (exists) {
+      filesFileSystem.delete(mediaName)
+      entries.remove(mediaName.name)
+      changes[mediaName.name] = null
+    }
+  }
+
+  /**
+   * Record that a file for [mediaName] of [size] bytes has been written, checkpointing the index every so often.
+   */
+  @Synchronized
+  fun markWritten(mediaName: MediaName, size: Long) {
+    entries[mediaName.name] = size
+    changes[mediaName.name] = size
+    writtenSinceCheckpoint++
+
+    if (writtenSinceCheckpoint >= CHECKPOINT_FILE_COUNT || System.currentTimeMillis() - lastCheckpoint >= CHECKPOINT_INTERVAL) {
+      appendCheckpoint()
+    }
+  }
+
+  /**
+   * Save a checkpoint without marking the index as complete, e.g. after a failure, so that the next export picks up from here.
+   */
+  @Synchronized
+  fun checkpoint() {
+    if (!complete && changes.isNotEmpty()) {
+      appendCheckpoint()
+    }
+  }
+
+  /**
+   * Save the index, folding the journal into it, once every file that was started has been completely written. An index that was loaded
+   * from an interrupted export stays incomplete, since files written after its last checkpoint that weren't needed again are still
+   * unknown. [deleteUnused] fixes that up.
+   */
+  @Synchronized
+  fun finish() {
+    complete = loadedComplete
+    listedShards.clear()
+    compact()
+  }
+
+  /**
+   * Delete every file that isn't in [used]. An index that wasn't finished doesn't know about every file on disk, so the files directory
+   * is listed instead, and the index is rebuilt from the listing.
+   *
+   * @return the number of files deleted
+   */
+  @Synchronized
+  fun deleteUnused(used: Set<String>): Int {
+    var deleted = 0
+
+    if (complete) {
+      val unused = entries.keys.filterNot { used.contains(it) }
+      for (name in unused) {
+        if (filesFileSystem.delete(MediaName(name)) != false) {
+          entries.remove(name)
+          deleted++
+        }
+      }
+      Log.d(TAG, "Cleanup removed $deleted/${unused.size} files")
+    } else {
+      val allFiles = filesFileSystem.allFiles().toMutableMap()
+      val unused = allFiles.values.filterNot { used.contains(it.name) }
+      for (file in unused) {
+        if (file.documentFile.delete()) {
+          allFiles.remove(file.name)
+          deleted++
+        }
+      }
+      Log.d(TAG, "Cleanup removed $deleted/${unused.size} files after listing")
+
+      entries.clear()
+      allFiles.values.forEach { entries[it.name] = it.size }
+      complete = true
+      listedShards.clear()
+    }
+
+    compact()
+    return deleted
+  }
+
+  private fun shardFiles(mediaName: MediaName): Map<String, DocumentFileInfo> {
+    return listedShards.getOrPut(mediaName.shard) {
+      filesFileSystem.shardFiles(mediaName).associateBy { it.name }
+    }
+  }
+
+  /**
+   * Append the changes since the last checkpoint to the journal. Falls back to rewriting the whole index if the journal can't be appended to.
+   */
+  private fun appendCheckpoint() {
+    try {
+      val output = filesFileSystem.indexJournalOutputStream() ?: throw IOException("Unable to open files index journal")
+      output.buffered().use { writeJournal(it, generation, changes) }
+      changes.clear()
+    } catch (e: IOException) {
+      Log.w(TAG, "Unable to append to files index journal, rewriting the index", e)
+      compact()
+    }
+
+    writtenSinceCheckpoint = 0
+    lastCheckpoint = System.currentTimeMillis()
+  }
+
+  /**
+   * Rewrite the whole index as a new generation and then drop the journal. If the journal can't be deleted, its checkpoints are skipped on
+   * load, since they belong to an older generation.
+   */
+  private fun compact() {
+    try {
+      val output = filesFileSystem.indexOutputStream() ?: throw IOException("Unable to open files index")
+      val nextGeneration = Random.nextLong()
+      output.buffered().use { write(it, entries, complete, nextGeneration) }
+      generation = nextGeneration
+      changes.clear()
+
+      if (!filesFileSystem.deleteIndexJournal()) {
+        Log.w(TAG, "Unable to delete files index journal")
+      }
+    } catch (e: IOException) {
+      Log.w(TAG, "Unable to save files index", e)
+    }
+
+    writtenSinceCheckpoint = 0
+    lastCheckpoint = System.currentTimeMillis()
+  }
+
+  class Contents(val entries: Map<String, Long>, val complete: Boolean, val generation: Long)
+}
@@ -19,6 +19,7 @@ import org.whispersystems.signalservice.api.backup.MediaName
 import org.whispersystems.signalservice.api.crypto.AttachmentCipherOutputStream
 import org.whispersystems.signalservice.api.crypto.AttachmentCipherStreamUtil
 import org.whispersystems.signalservice.internal.crypto.PaddingInputStream
+import java.io.File
 import java.io.IOException
 import java.io.InputStream
 import java.io.OutputStream
@@ -44,6 +45,7 @@ object LocalArchiver {
     var metadataStream: OutputStream? = null
     var mainStream: OutputStream? = null
     var filesStream: OutputStream? = null
+    var filesIndex: FilesIndex? = null
 
     try {
       metadataStream = snapshotFileSystem.metadataOutputStream() ?: return ArchiveResult.failure(FailureCause.METADATA_STREAM)
@@ -52,8 +54,9 @@ object LocalArchiver {
 
       mainStream = snapshotFileSystem.mainOutputStream() ?: return ArchiveResult.failure(FailureCause.MAIN_STREAM)
 
-      Log.i(TAG, "Listing all current files")
-      val allFiles = filesFileSystem.allFiles()
+      Log.i(TAG, "Loading files index")
+      val index = FilesIndex.load(filesFileSystem)
+      filesIndex = index
       stopwatch.split("files-list")
 
       val mediaNames: MutableSet<MediaName> = Collections.synchronizedSet(HashSet())
@@ -64,10 +67,8 @@ object LocalArchiver {
 
         mediaNames.add(mediaName)
 
-        if (allFiles[mediaName.name]?.size != attachment.cipherLength) {
-          if (allFiles.containsKey(mediaName.name)) {
-            filesFileSystem.delete(mediaName)
-          }
+        if (!index.contains(mediaName, attachment.cipherLength)) {
+          index.prepareToWrite(mediaName)
 
           source()?.use { sourceStream ->
             val iv = Random.nextBytes(16) // todo [local-backup] but really do an iv from table
@@ -86,14 +87,18 @@ object LocalArchiver {
                     StreamUtil.copy(input, output)
                   }
                 }
+                index.markWritten(mediaName, attachment.cipherLength)
               } catch (e: IOException) {
                 Log.w(TAG, "Unable to save attachment", e)
+                filesFileSystem.delete(mediaName)
                 // todo [local-backup] should we abort here?
               }
             }
           }
         }
       }
+      index.finish()
+      filesIndex = null
       stopwatch.split("frames-and-files")
 
       filesStream = snapshotFileSystem.filesOutputStream() ?: return ArchiveResult.failure(FailureCause.FILES_STREAM)
@@ -102,6 +107,7 @@ object LocalArchiver {
       }
       stopwatch.split("files-metadata")
     } finally {
+      filesIndex?.checkpoint()
       metadataStream?.close()
       mainStream?.close()
       filesStream?.close()
@@ -133,6 +139,26 @@ object LocalArchiver {
     return ArchiveResult.success(Unit)
   }
 
+  /**
+   * Verify the main archive file of [snapshotFileSystem] without importing it, using [spillDirectory] for bookkeeping that doesn't fit in memory.
+   */
+  fun verify(snapshotFileSystem: SnapshotFileSystem, spillDirectory: File, isCanceled: () -> Boolean): Boolean {
+    val mainStreamLength = snapshotFileSystem.mainLength() ?: return false
+
+    val result = BackupRepository.localVerify(
+      mainStreamFactory = { snapshotFileSystem.mainInputStream()!! },
+      mainStreamLength = mainStreamLength,
+      spillDirectory = spillDirectory,
+      isCanceled = isCanceled
+    )
+
+    if (!result.isValid) {
+      Log.w(TAG, "Archive failed verification: ${result.error}")
+    }
+
+    return result.isValid
+  }
+
   private val AttachmentTable.LocalArchivableAttachment.cipherLength: Long
     get() = AttachmentCipherStreamUtil.getCiphertextLength(PaddingInputStream.getPaddedSize(size))
 
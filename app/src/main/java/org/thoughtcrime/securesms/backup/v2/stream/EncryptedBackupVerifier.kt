@@ -0,0 +1,221 @@
+/*
+ * Copyright 2024 Signal Messenger, LLC
+ * SPDX-License-Identifier: AGPL-3.0-only
+ */
+
+package org.thoughtcrime.securesms.backup.v2.stream
+
+import com.google.common.io.CountingInputStream
+import org.signal.core.util.drain
+import org.signal.core.util.logging.Log
+import org.signal.core.util.readNBytesOrThrow
+import org.signal.core.util.readVarInt32
+import org.signal.core.util.stream.MacInputStream
+import org.signal.core.util.stream.TruncatingInputStream
+import org.thoughtcrime.securesms.backup.SpillingLongSet
+import org.thoughtcrime.securesms.backup.VerificationStats
+import org.thoughtcrime.securesms.backup.v2.BackupRepository
+import org.thoughtcrime.securesms.backup.v2.proto.BackupInfo
+import org.thoughtcrime.securesms.backup.v2.proto.ChatItem
+import org.thoughtcrime.securesms.backup.v2.proto.FilePointer
+import org.thoughtcrime.securesms.backup.v2.proto.Frame
+import org.thoughtcrime.securesms.backup.v2.proto.Reaction
+import org.whispersystems.signalservice.api.backup.BackupKey
+import org.whispersystems.signalservice.api.push.ServiceId.ACI
+import java.io.EOFException
+import java.io.File
+import java.io.IOException
+import java.io.InputStream
+import java.util.zip.GZIPInputStream
+import javax.crypto.Cipher
+import javax.crypto.CipherInputStream
+import javax.crypto.Mac
+import javax.crypto.spec.IvParameterSpec
+import javax.crypto.spec.SecretKeySpec
+
+/**
+ * Verifies a backup written by [EncryptedBackupWriter] without importing it. Unlike [EncryptedBackupReader], which reads the whole file once
+ * to check the MAC before reading it again for frames, this reads the file a single time and checks the MAC as it goes.
+ *
+ * Besides the MAC, it checks the frame structure, that attachment pointers are usable, and that every recipient and chat that's referred to
+ * was defined by an earlier frame. The IDs that have been defined are kept in [SpillingLongSet]s that spill to [spillDirectory], so memory
+ * use stays constant no matter how large the backup is.
+ */
+class EncryptedBackupVerifier(
+  private val key: BackupKey,
+  private val aci: ACI,
+  private val spillDirectory: File
+) {
+
+  companion object {
+    private val TAG = Log.tag(EncryptedBackupVerifier::class)
+  }
+
+  /**
+   * @param isCanceled checked between frames, a canceled verification is reported as a failure
+   */
+  fun verify(length: Long, dataStream: () -> InputStream, isCanceled: () -> Boolean = { false }): Result {
+    val startTime = System.currentTimeMillis()
+    val countingStream = CountingInputStream(dataStream())
+    var frames = 0L
+
+    val error: String? = try {
+      countingStream.use {
+        References(spillDirectory).use { references ->
+          verifyStream(countingStream, length, references, isCanceled) { frames++ }
+        }
+      }
+    } catch (e: IOException) {
+      Log.w(TAG, "Unable to read backup", e)
+      "Unable to read backup: ${e.message}"
+    }
+
+    val stats = VerificationStats(frames, countingStream.count, System.currentTimeMillis() - startTime)
+    Log.i(TAG, "Verified $stats, error: $error")
+
+    return Result(error, stats)
+  }
+
+  private fun verifyStream(countingStream: InputStream, length: Long, references: References, isCanceled: () -> Boolean, onFrame: () -> Unit): String? {
+    val keyMaterial = key.deriveBackupSecrets(aci)
+
+    val mac = Mac.getInstance("HmacSHA256").apply {
+      init(SecretKeySpec(keyMaterial.macKey, "HmacSHA256"))
+    }
+
+    val macStream = MacInputStream(
+      wrapped = TruncatingInputStream(countingStream, maxBytes = length - EncryptedBackupReader.MAC_SIZE),
+      mac = mac
+    )
+
+    val iv = macStream.readNBytesOrThrow(16)
+    val cipher = Cipher.getInstance("AES/CBC/PKCS5Padding").apply {
+      init(Cipher.DECRYPT_MODE, SecretKeySpec(keyMaterial.cipherKey, "AES"), IvParameterSpec(iv))
+    }
+
+    val stream = GZIPInputStream(CipherInputStream(macStream, cipher))
+
+    val header: BackupInfo = readMessage(stream)?.let { BackupInfo.ADAPTER.decode(it) } ?: return "Missing header"
+    if (header.version > BackupRepository.VERSION) {
+      return "Unsupported version ${header.version}"
+    }
+
+    var accounts = 0
+
+    while (true) {
+      if (isCanceled()) {
+        return "Canceled"
+      }
+
+      val frame: Frame = readMessage(stream)?.let { Frame.ADAPTER.decode(it) } ?: break
+      onFrame()
+
+      val error: String? = when {
+        frame.account != null -> if (++accounts > 1) "More than one account frame" else null
+        frame.recipient != null -> if (!references.recipients.add(frame.recipient.id)) "Duplicate recipient ${frame.recipient.id}" else null
+        frame.chat != null -> when {
+          frame.chat.recipientId !in references.recipients -> "Chat ${frame.chat.id} refers to unknown recipient ${frame.chat.recipientId}"
+          !references.chats.add(frame.chat.id) -> "Duplicate chat ${frame.chat.id}"
+          else -> null
+        }
+        frame.chatItem != null -> verifyChatItem(frame.chatItem, references)
+        frame.adHocCall != null -> if (frame.adHocCall.recipientId !in references.recipients) "Call ${frame.adHocCall.callId} refers to unknown recipient" else null
+        frame.stickerPack != null -> null
+        else -> "Empty frame"
+      }
+
+      if (error != null) {
+        return error
+      }
+    }
+
+    if (accounts == 0) {
+      return "Missing account frame"
+    }
+
+    // Whatever is left after the last frame is padding, which is covered by the MAC too
+    macStream.drain()
+
+    val expectedMac = countingStream.readNBytesOrThrow(EncryptedBackupReader.MAC_SIZE)
+    if (!mac.doFinal().contentEquals(expectedMac)) {
+      return "Invalid MAC"
+    }
+
+    return null
+  }
+
+  private fun verifyChatItem(chatItem: ChatItem, references: References): String? {
+    if (chatItem.chatId !in references.chats) {
+      return "Chat item refers to unknown chat ${chatItem.chatId}"
+    }
+
+    if (chatItem.authorId !in references.recipients) {
+      return "Chat item refers to unknown author ${chatItem.authorId}"
+    }
+
+    val reactions: List<Reaction> = chatItem.standardMessage?.reactions ?: chatItem.contactMessage?.reactions ?: chatItem.stickerMessage?.reactions ?: emptyList()
+    if (reactions.any { it.authorId !in references.recipients }) {
+      return "Reaction refers to unknown author"
+    }
+
+    val pointers: List<FilePointer> = listOfNotNull(chatItem.standardMessage?.longText, chatItem.stickerMessage?.sticker?.data) +
+      chatItem.standardMessage?.attachments.orEmpty().mapNotNull { it.pointer } +
+      chatItem.standardMessage?.linkPreview.orEmpty().mapNotNull { it.image }
+
+    pointers.forEach { pointer ->
+      verifyFilePointer(pointer)?.let { return it }
+    }
+
+    return chatItem.revisions.firstNotNullOfOrNull { verifyChatItem(it, references) }
+  }
+
+  private fun verifyFilePointer(pointer: FilePointer): String? {
+    val backupLocator = pointer.backupLocator
+    val attachmentLocator = pointer.attachmentLocator
+
+    return when {
+      backupLocator != null -> when {
+        backupLocator.size < 0 -> "Attachment has invalid length ${backupLocator.size}"
+        backupLocator.key.size == 0 || backupLocator.digest.size == 0 -> "Attachment is missing its key or digest"
+        else -> null
+      }
+      attachmentLocator != null -> when {
+        attachmentLocator.size < 0 -> "Attachment has invalid length ${attachmentLocator.size}"
+        attachmentLocator.key.size == 0 || attachmentLocator.digest.size == 0 -> "Attachment is missing its key or digest"
+        else -> null
+      }
+      pointer.invalidAttachmentLocator != null -> null
+      else -> "Attachment has no locator"
+    }
+  }
+
+  private fun readMessage(stream: InputStream): ByteArray? {
+    return try {
+      val length = stream.readVarInt32().takeIf { it >= 0 } ?: return null
+      stream.readNBytesOrThrow(length)
+    } catch (e: EOFException) {
+      null
+    }
+  }
+
+  /**
+   * The IDs defined so far, which later frames may refer to.
+   */
+  private class References(spillDirectory: File) : AutoCloseable {
+    val recipients = SpillingLongSet(spillDirectory)
+    val chats = SpillingLongSet(spillDirectory)
+
+    override fun close() {
+      recipients.close()
+      chats.close()
+    }
+  }
+
+  /**
+   * @param error why the backup isn't valid, or null if it is
+   */
+  class Result(val error: String?, val stats: VerificationStats) {
+    val isValid: Boolean
+      get() = error == null
+  }
+}
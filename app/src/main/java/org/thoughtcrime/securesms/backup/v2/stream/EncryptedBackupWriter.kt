@@ -14,6 +14,7 @@ import org.whispersystems.signalservice.api.backup.BackupKey
 import org.whispersystems.signalservice.api.push.ServiceId.ACI
 import java.io.IOException
 import java.io.OutputStream
+import java.util.concurrent.Executor
 import javax.crypto.Cipher
 import javax.crypto.CipherOutputStream
 import javax.crypto.Mac
@@ -25,15 +26,21 @@ import javax.crypto.spec.SecretKeySpec
  * As it's being written, it will be both encrypted and compressed. Specifically, the backup frames
  * are gzipped, that gzipped data is encrypted, and then an HMAC of the encrypted data is appended
  * to the end of the [outputStream].
+ *
+ * If a [compressionExecutor] is provided, frames are compressed in blocks of [compressionBlockSize] on that
+ * executor with a [ParallelGzipOutputStream], while encryption and the MAC still happen in order on the writing
+ * thread. The result is the same single gzip stream either way.
  */
 class EncryptedBackupWriter(
   key: BackupKey,
   aci: ACI,
   private val outputStream: OutputStream,
-  private val append: (ByteArray) -> Unit
+  private val append: (ByteArray) -> Unit,
+  compressionExecutor: Executor? = null,
+  compressionBlockSize: Int = ParallelGzipOutputStream.DEFAULT_BLOCK_SIZE
 ) : BackupExportWriter {
 
-  private val mainStream: PaddedGzipOutputStream
+  private val mainStream: OutputStream
   private val macStream: MacOutputStream
 
   init {
@@ -55,7 +62,11 @@ class EncryptedBackupWriter(
     macStream = MacOutputStream(outputStream, mac)
     val cipherStream = CipherOutputStream(macStream, cipher)
 
-    mainStream = PaddedGzipOutputStream(cipherStream)
+    mainStream = if (compressionExecutor != null) {
+      ParallelGzipOutputStream(cipherStream, compressionExecutor, compressionBlockSize)
+    } else {
+      PaddedGzipOutputStream(cipherStream)
+    }
   }
 
   override fun write(header: BackupInfo) {
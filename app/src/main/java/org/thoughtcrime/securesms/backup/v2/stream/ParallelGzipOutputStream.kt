@@ -0,0 +1,226 @@
+/*
+ * Copyright 2024 Signal Messenger, LLC
+ * SPDX-License-Identifier: AGPL-3.0-only
+ */
+
+package org.thoughtcrime.securesms.backup.v2.stream
+
+import org.whispersystems.signalservice.internal.crypto.PaddingInputStream
+import java.io.ByteArrayOutputStream
+import java.io.IOException
+import java.io.InterruptedIOException
+import java.io.OutputStream
+import java.nio.ByteBuffer
+import java.nio.ByteOrder
+import java.util.ArrayDeque
+import java.util.concurrent.ExecutionException
+import java.util.concurrent.Executor
+import java.util.concurrent.Future
+import java.util.concurrent.FutureTask
+import java.util.zip.CRC32
+import java.util.zip.Deflater
+
+/**
+ * A [PaddedGzipOutputStream] that compresses on several threads at once. Data is split into blocks of [blockSize] that are each
+ * deflated on [executor], and the results are written to [outputStream] in order on the calling thread as a single GZIP member,
+ * the same way pigz does it. Every block but the last ends with a sync flush, so the deflated blocks can simply be concatenated,
+ * and each block uses the end of the block before it as its dictionary, so it compresses about as well as a serial stream.
+ * Readers don't have to do anything special, since it's a plain GZIP stream.
+ *
+ * At most [maxPendingBlocks] blocks are compressed or waiting to be written at any time, which bounds memory use and makes the
+ * writer wait on the compressors when it gets ahead of them.
+ */
+class ParallelGzipOutputStream(
+  private val outputStream: OutputStream,
+  private val executor: Executor,
+  private val blockSize: Int = DEFAULT_BLOCK_SIZE,
+  private val maxPendingBlocks: Int = DEFAULT_MAX_PENDING_BLOCKS
+) : OutputStream() {
+
+  companion object {
+    const val DEFAULT_BLOCK_SIZE = 1024 * 1024
+    const val DEFAULT_MAX_PENDING_BLOCKS = 8
+
+    private const val DICTIONARY_SIZE = 32 * 1024
+
+    /** The same header as [java.util.zip.GZIPOutputStream] writes: magic, deflate and no flags, time or extra flags. */
+    private val GZIP_HEADER = byteArrayOf(0x1f, 0x8b.toByte(), Deflater.DEFLATED.toByte(), 0, 0, 0, 0, 0, 0, 0)
+  }
+
+  private val pending = ArrayDeque<Future<ByteArray>>()
+  private val crc = CRC32()
+
+  private var block = ByteArray(blockSize)
+  private var blockLength = 0
+  private var previousBlock: ByteArray? = null
+  private var previousBlockLength = 0
+  private var uncompressedSize = 0L
+  private var compressedSize = 0L
+  private var started = false
+  private var closed = false
+
+  override fun write(b: Int) {
+    throwIfClosed()
+
+    block[blockLength++] = b.toByte()
+
+    if (blockLength == blockSize) {
+      submitBlock()
+    }
+  }
+
+  override fun write(b: ByteArray, off: Int, len: Int) {
+    throwIfClosed()
+
+    var offset = off
+    var remaining = len
+
+    while (remaining > 0) {
+      val count = minOf(remaining, blockSize - blockLength)
+      System.arraycopy(b, offset, block, blockLength, count)
+
+      blockLength += count
+      offset += count
+      remaining -= count
+
+      if (blockLength == blockSize) {
+        submitBlock()
+      }
+    }
+  }
+
+  /**
+   * Writes out the blocks that have already been compressed. Data in blocks that are still being filled or compressed is not flushed.
+   */
+  override fun flush() {
+    writeCompletedBlocks()
+    outputStream.flush()
+  }
+
+  /**
+   * Compresses whatever is left, writes out all of the blocks and the GZIP trailer, and then pads the compressed stream, just like
+   * [PaddedGzipOutputStream].
+   */
+  override fun close() {
+    if (closed) {
+      return
+    }
+
+    try {
+      submitBlock(last = true)
+
+      while (pending.isNotEmpty()) {
+        writeBlock(pending.removeFirst())
+      }
+
+      val trailer = ByteBuffer.allocate(8).order(ByteOrder.LITTLE_ENDIAN)
+        .putInt(crc.value.toInt())
+        .putInt(uncompressedSize.toInt())
+        .array()
+
+      writeCompressed(trailer)
+
+      val paddedSize: Long = PaddingInputStream.getPaddedSize(compressedSize)
+      outputStream.write(ByteArray((paddedSize - compressedSize).toInt()))
+    } finally {
+      closed = true
+      pending.forEach { it.cancel(false) }
+      pending.clear()
+      outputStream.close()
+    }
+  }
+
+  private fun throwIfClosed() {
+    if (closed) {
+      throw IOException("Stream closed")
+    }
+  }
+
+  private fun submitBlock(last: Boolean = false) {
+    val data = block
+    val length = blockLength
+    val dictionary = previousBlock
+    val dictionaryLength = previousBlockLength
+
+    crc.update(data, 0, length)
+    uncompressedSize += length
+
+    block = ByteArray(blockSize)
+    blockLength = 0
+    previousBlock = data
+    previousBlockLength = length
+
+    while (pending.size >= maxPendingBlocks) {
+      writeBlock(pending.removeFirst())
+    }
+
+    val task = FutureTask { compress(data, length, dictionary, dictionaryLength, last) }
+    executor.execute(task)
+    pending.addLast(task)
+
+    writeCompletedBlocks()
+  }
+
+  private fun writeCompletedBlocks() {
+    while (pending.isNotEmpty() && pending.peekFirst()!!.isDone) {
+      writeBlock(pending.removeFirst())
+    }
+  }
+
+  private fun writeBlock(future: Future<ByteArray>) {
+    val compressed: ByteArray = try {
+      future.get()
+    } catch (e: InterruptedException) {
+      throw InterruptedIOException("Interrupted while compressing").apply { initCause(e) }
+    } catch (e: ExecutionException) {
+      throw e.cause as? IOException ?: IOException(e.cause)
+    }
+
+    if (!started) {
+      writeCompressed(GZIP_HEADER)
+      started = true
+    }
+
+    writeCompressed(compressed)
+  }
+
+  private fun writeCompressed(data: ByteArray) {
+    outputStream.write(data)
+    compressedSize += data.size
+  }
+
+  /**
+   * Deflates a block without the zlib wrapper. Every block but the last ends on a byte boundary with a sync flush and without a
+   * final deflate block, so it can be followed by the next one.
+   */
+  private fun compress(data: ByteArray, length: Int, dictionary: ByteArray?, dictionaryLength: Int, last: Boolean): ByteArray {
+    val deflater = Deflater(Deflater.DEFAULT_COMPRESSION, true)
+    val output = ByteArrayOutputStream(maxOf(length / 4, 512))
+    val buffer = ByteArray(64 * 1024)
+
+    try {
+      if (dictionary != null && dictionaryLength > 0) {
+        val size = minOf(dictionaryLength, DICTIONARY_SIZE)
+        deflater.setDictionary(dictionary, dictionaryLength - size, size)
+      }
+
+      deflater.setInput(data, 0, length)
+
+      if (last) {
+        deflater.finish()
+        while (!deflater.finished()) {
+          output.write(buffer, 0, deflater.deflate(buffer))
+        }
+      } else {
+        do {
+          val count = deflater.deflate(buffer, 0, buffer.size, Deflater.SYNC_FLUSH)
+          output.write(buffer, 0, count)
+        } while (count == buffer.size)
+      }
+    } finally {
+      deflater.end()
+    }
+
+    return output.toByteArray()
+  }
+}
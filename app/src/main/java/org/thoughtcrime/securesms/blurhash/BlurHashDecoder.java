@@ -21,26 +21,73 @@
 package org.thoughtcrime.securesms.blurhash;
 
 import android.graphics.Bitmap;
-import android.graphics.Color;
 
+import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
+import androidx.annotation.VisibleForTesting;
 
+import com.bumptech.glide.load.engine.bitmap_recycle.BitmapPool;
+
+import org.thoughtcrime.securesms.util.LRUCache;
+
+import java.util.Collections;
+import java.util.Map;
+
+import static org.thoughtcrime.securesms.blurhash.BlurHashUtil.cosines;
 import static org.thoughtcrime.securesms.blurhash.BlurHashUtil.linearTosRGB;
 import static org.thoughtcrime.securesms.blurhash.BlurHashUtil.sRGBToLinear;
 import static org.thoughtcrime.securesms.blurhash.BlurHashUtil.signPow;
 
+/**
+ * Decodes blur hashes into pixels.
+ * <p>
+ * The basis for each pixel is the product of a cosine that only depends on its x position and a cosine that only
+ * depends on its y position, so rather than evaluating both for every pixel and component, we build a table for each
+ * axis up front. Decoded pixels are also cached by hash and size, since the same placeholders are bound repeatedly while
+ * scrolling.
+ */
 class BlurHashDecoder {
 
+  private static final Map<String, int[]> PIXEL_CACHE = Collections.synchronizedMap(new LRUCache<>(64));
+
   static @Nullable Bitmap decode(@Nullable String blurHash, int width, int height) {
-    return decode(blurHash, width, height, 1f);
+    return decode(blurHash, width, height, 1f, null);
   }
 
-  static @Nullable Bitmap decode(@Nullable String blurHash, int width, int height, double punch) {
+  /**
+   * @param bitmapPool If present, the bitmap will be taken from this pool rather than freshly allocated.
+   */
+  static @Nullable Bitmap decode(@Nullable String blurHash, int width, int height, double punch, @Nullable BitmapPool bitmapPool) {
+    int[] pixels = decodePixels(blurHash, width, height, punch);
+
+    if (pixels == null) {
+      return null;
+    }
+
+    Bitmap bitmap = bitmapPool != null ? bitmapPool.get(width, height, Bitmap.Config.ARGB_8888)
+                                       : Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
+
+    bitmap.setPixels(pixels, 0, width, 0, 0, width, height);
+
+    return bitmap;
+  }
 
+  /**
+   * @return ARGB pixels in row-major order. Callers must not modify the result, since it may be shared with the cache.
+   */
+  @VisibleForTesting
+  static @Nullable int[] decodePixels(@Nullable String blurHash, int width, int height, double punch) {
     if (blurHash == null || blurHash.length() < 6) {
       return null;
     }
 
+    String cacheKey = blurHash + ":" + width + "x" + height + ":" + punch;
+    int[]  cached   = PIXEL_CACHE.get(cacheKey);
+
+    if (cached != null) {
+      return cached;
+    }
+
     int numCompEnc = Base83.decode(blurHash, 0, 1);
     int numCompX   = (numCompEnc % 9) + 1;
     int numCompY   = (numCompEnc / 9) + 1;
@@ -49,65 +96,83 @@ class BlurHashDecoder {
       return null;
     }
 
-    int        maxAcEnc = Base83.decode(blurHash, 1, 2);
-    double     maxAc    = (maxAcEnc + 1) / 166f;
-    double[][] colors   = new double[numCompX * numCompY][];
-    for (int i = 0; i < colors.length; i++) {
+    int     maxAcEnc = Base83.decode(blurHash, 1, 2);
+    double  maxAc    = (maxAcEnc + 1) / 166f;
+    float[] colors   = new float[numCompX * numCompY * 3];
+    for (int i = 0; i < numCompX * numCompY; i++) {
       if (i == 0) {
         int colorEnc = Base83.decode(blurHash, 2, 6);
-        colors[i] = decodeDc(colorEnc);
+        decodeDc(colorEnc, colors);
       } else {
         int from = 4 + i * 2;
         int colorEnc = Base83.decode(blurHash, from, from + 2);
-        colors[i] = decodeAc(colorEnc, maxAc * punch);
+        decodeAc(colorEnc, maxAc * punch, colors, i * 3);
       }
     }
 
-    return composeBitmap(width, height, numCompX, numCompY, colors);
+    int[] pixels = composePixels(width, height, numCompX, numCompY, colors);
+    PIXEL_CACHE.put(cacheKey, pixels);
+
+    return pixels;
   }
 
-  private static double[] decodeDc(int colorEnc) {
+  private static void decodeDc(int colorEnc, @NonNull float[] colors) {
     int r = colorEnc >> 16;
     int g = (colorEnc >> 8) & 255;
     int b = colorEnc & 255;
-    return new double[] {sRGBToLinear(r),
-                         sRGBToLinear(g),
-                         sRGBToLinear(b)};
+
+    colors[0] = (float) sRGBToLinear(r);
+    colors[1] = (float) sRGBToLinear(g);
+    colors[2] = (float) sRGBToLinear(b);
   }
 
-  private static double[] decodeAc(int value, double maxAc) {
+  private static void decodeAc(int value, double maxAc, @NonNull float[] colors, int offset) {
     int r = value / (19 * 19);
     int g = (value / 19) % 19;
     int b = value % 19;
-    return new double[]{
-        signPow((r - 9) / 9.0f, 2f) * maxAc,
-        signPow((g - 9) / 9.0f, 2f) * maxAc,
-        signPow((b - 9) / 9.0f, 2f) * maxAc
-    };
+
+    colors[offset]     = (float) (signPow((r - 9) / 9.0f, 2f) * maxAc);
+    colors[offset + 1] = (float) (signPow((g - 9) / 9.0f, 2f) * maxAc);
+    colors[offset + 2] = (float) (signPow((b - 9) / 9.0f, 2f) * maxAc);
   }
 
-  private static Bitmap composeBitmap(int width, int height, int numCompX, int numCompY, double[][] colors) {
-    Bitmap bitmap = Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
+  private static @NonNull int[] composePixels(int width, int height, int numCompX, int numCompY, @NonNull float[] colors) {
+    float[] cosX   = toFloats(cosines(width, numCompX));
+    float[] cosY   = toFloats(cosines(height, numCompY));
+    int[]   pixels = new int[width * height];
+
     for (int y = 0; y < height; y++) {
       for (int x = 0; x < width; x++) {
 
-        double r = 0f;
-        double g = 0f;
-        double b = 0f;
+        float r = 0f;
+        float g = 0f;
+        float b = 0f;
 
         for (int j = 0; j < numCompY; j++) {
+          float basisY = cosY[y * numCompY + j];
+
           for (int i = 0; i < numCompX; i++) {
-            double basis = (Math.cos(Math.PI * x * i / width) * Math.cos(Math.PI * y * j / height));
-            double[] color = colors[j * numCompX + i];
-            r += color[0] * basis;
-            g += color[1] * basis;
-            b += color[2] * basis;
+            float basis = cosX[x * numCompX + i] * basisY;
+            int   color = (j * numCompX + i) * 3;
+
+            r += colors[color] * basis;
+            g += colors[color + 1] * basis;
+            b += colors[color + 2] * basis;
           }
         }
-        bitmap.setPixel(x, y, Color.rgb((int) linearTosRGB(r), (int) linearTosRGB(g), (int) linearTosRGB(b)));
+
+        pixels[y * width + x] = 0xff000000 | ((int) linearTosRGB(r) << 16) | ((int) linearTosRGB(g) << 8) | (int) linearTosRGB(b);
       }
     }
 
-    return bitmap;
+    return pixels;
+  }
+
+  private static @NonNull float[] toFloats(@NonNull double[] values) {
+    float[] floats = new float[values.length];
+    for (int i = 0; i < values.length; i++) {
+      floats[i] = (float) values[i];
+    }
+    return floats;
   }
 }
@@ -26,9 +26,11 @@ import android.graphics.BitmapFactory;
 
 import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
+import androidx.annotation.VisibleForTesting;
 
 import java.io.InputStream;
 
+import static org.thoughtcrime.securesms.blurhash.BlurHashUtil.cosines;
 import static org.thoughtcrime.securesms.blurhash.BlurHashUtil.linearTosRGB;
 import static org.thoughtcrime.securesms.blurhash.BlurHashUtil.max;
 import static org.thoughtcrime.securesms.blurhash.BlurHashUtil.sRGBToLinear;
@@ -65,7 +67,8 @@ public final class BlurHashEncoder {
     return encode(pixels, width, height, componentX, componentY);
   }
 
-  private static String encode(int[] pixels, int width, int height, int componentX, int componentY) {
+  @VisibleForTesting
+  static String encode(int[] pixels, int width, int height, int componentX, int componentY) {
 
     if (componentX < 1 || componentX > 9 || componentY < 1 || componentY > 9) {
       throw new IllegalArgumentException("Blur hash must have between 1 and 9 components");
@@ -74,12 +77,24 @@ public final class BlurHashEncoder {
       throw new IllegalArgumentException("Width and height must match the pixels array");
     }
 
+    double[] linear = new double[pixels.length * 3];
+    for (int p = 0; p < pixels.length; p++) {
+      int pixel = pixels[p];
+      linear[p * 3]     = sRGBToLinear((pixel >> 16) & 0xff);
+      linear[p * 3 + 1] = sRGBToLinear((pixel >> 8)  & 0xff);
+      linear[p * 3 + 2] = sRGBToLinear( pixel        & 0xff);
+    }
+
+    double[] cosX = cosines(width, componentX);
+    double[] cosY = cosines(height, componentY);
+
     double[][] factors = new double[componentX * componentY][3];
     for (int j = 0; j < componentY; j++) {
       for (int i = 0; i < componentX; i++) {
         double normalisation = i == 0 && j == 0 ? 1 : 2;
-        applyBasisFunction(pixels, width, height,
+        applyBasisFunction(linear, width, height,
             normalisation, i, j,
+            cosX, componentX, cosY, componentY,
             factors, j * componentX + i);
       }
     }
@@ -109,20 +124,21 @@ public final class BlurHashEncoder {
     return new String(hash);
   }
 
-  private static void applyBasisFunction(int[] pixels, int width, int height,
+  private static void applyBasisFunction(double[] linear, int width, int height,
                                          double normalisation, int i, int j,
+                                         double[] cosX, int componentX,
+                                         double[] cosY, int componentY,
                                          double[][] factors, int index)
   {
     double r = 0, g = 0, b = 0;
     for (int x = 0; x < width; x++) {
+      double basisX = normalisation * cosX[x * componentX + i];
       for (int y = 0; y < height; y++) {
-        double basis = normalisation
-                     * Math.cos((Math.PI * i * x) / width)
-                     * Math.cos((Math.PI * j * y) / height);
-        int pixel = pixels[y * width + x];
-        r += basis * sRGBToLinear((pixel >> 16) & 0xff);
-        g += basis * sRGBToLinear((pixel >> 8)  & 0xff);
-        b += basis * sRGBToLinear( pixel        & 0xff);
+        double basis = basisX * cosY[y * componentY + j];
+        int    p     = (y * width + x) * 3;
+        r += basis * linear[p];
+        g += basis * linear[p + 1];
+        b += basis * linear[p + 2];
       }
     }
     double scale = 1.0 / (width * height);
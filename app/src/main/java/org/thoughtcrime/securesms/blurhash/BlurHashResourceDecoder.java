@@ -8,7 +8,8 @@ import androidx.annotation.Nullable;
 import com.bumptech.glide.load.Options;
 import com.bumptech.glide.load.ResourceDecoder;
 import com.bumptech.glide.load.engine.Resource;
-import com.bumptech.glide.load.resource.SimpleResource;
+import com.bumptech.glide.load.engine.bitmap_recycle.BitmapPool;
+import com.bumptech.glide.load.resource.bitmap.BitmapResource;
 
 import java.io.IOException;
 
@@ -16,6 +17,12 @@ public class BlurHashResourceDecoder implements ResourceDecoder<BlurHash, Bitmap
 
   private static final int MAX_DIMEN = 20;
 
+  private final BitmapPool bitmapPool;
+
+  public BlurHashResourceDecoder(@NonNull BitmapPool bitmapPool) {
+    this.bitmapPool = bitmapPool;
+  }
+
   @Override
   public boolean handles(@NonNull BlurHash source, @NonNull Options options) throws IOException {
     return true;
@@ -34,6 +41,6 @@ public class BlurHashResourceDecoder implements ResourceDecoder<BlurHash, Bitmap
       finalWidth  = (int) (finalHeight * width / (float) height);
     }
 
-    return new SimpleResource<>(BlurHashDecoder.decode(source.getHash(), finalWidth, finalHeight));
+    return BitmapResource.obtain(BlurHashDecoder.decode(source.getHash(), finalWidth, finalHeight, 1f, bitmapPool), bitmapPool);
   }
 }
\ No newline at end of file
@@ -22,7 +22,22 @@ package org.thoughtcrime.securesms.blurhash;
 
 final class BlurHashUtil {
 
+  private static final double[] SRGB_TO_LINEAR = new double[256];
+
+  static {
+    for (int i = 0; i < SRGB_TO_LINEAR.length; i++) {
+      SRGB_TO_LINEAR[i] = computeSRGBToLinear(i);
+    }
+  }
+
   static double sRGBToLinear(long value) {
+    if (value >= 0 && value < SRGB_TO_LINEAR.length) {
+      return SRGB_TO_LINEAR[(int) value];
+    }
+    return computeSRGBToLinear(value);
+  }
+
+  private static double computeSRGBToLinear(long value) {
     double v = value / 255.0;
     if (v <= 0.04045) {
       return v / 12.92;
@@ -44,6 +59,20 @@ final class BlurHashUtil {
     return Math.copySign(Math.pow(Math.abs(val), exp), val);
   }
 
+  /**
+   * Builds a table of the cosine basis for one axis, where the value for position {@code p} and component {@code c} is at
+   * {@code p * components + c}.
+   */
+  static double[] cosines(int size, int components) {
+    double[] table = new double[size * components];
+    for (int p = 0; p < size; p++) {
+      for (int c = 0; c < components; c++) {
+        table[p * components + c] = Math.cos(Math.PI * c * p / size);
+      }
+    }
+    return table;
+  }
+
   static double max(double[][] values, int from, int endExclusive) {
     double result = Double.NEGATIVE_INFINITY;
     for (int i = from; i < endExclusive; i++) {
@@ -564,7 +564,7 @@ class ConversationFragment :
 
   override fun onCreate(savedInstanceState: Bundle?) {
     super.onCreate(savedInstanceState)
-    SignalLocalMetrics.ConversationOpen.start()
+    SignalLocalMetrics.ConversationOpen.start(args.threadId)
   }
 
   override fun onViewCreated(view: View, savedInstanceState: Bundle?) {
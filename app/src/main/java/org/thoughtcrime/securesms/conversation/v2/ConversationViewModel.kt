@@ -220,24 +220,24 @@ class ConversationViewModel(
     disposables += conversationThreadState.flatMapObservable { threadState ->
       Observable.create<Unit> { emitter ->
         val controller = threadState.items.controller
-        val messageUpdateObserver = DatabaseObserver.MessageObserver {
-          controller.onDataItemChanged(ConversationElementKey.forMessage(it.id))
-        }
         val messageInsertObserver = DatabaseObserver.MessageObserver {
           controller.onDataItemInserted(ConversationElementKey.forMessage(it.id), 0)
         }
-        val conversationObserver = DatabaseObserver.Observer {
-          controller.onDataInvalidated()
+        val conversationChangeObserver = DatabaseObserver.ConversationChangeObserver { change ->
+          if (change.isInvalidated || change.deleted.isNotEmpty()) {
+            controller.onDataInvalidated()
+          } else {
+            change.inserted.forEach { controller.onDataItemInserted(ConversationElementKey.forMessage(it.id), 0) }
+            change.updated.forEach { controller.onDataItemChanged(ConversationElementKey.forMessage(it.id)) }
+          }
         }
 
-        AppDependencies.databaseObserver.registerMessageUpdateObserver(messageUpdateObserver)
         AppDependencies.databaseObserver.registerMessageInsertObserver(threadId, messageInsertObserver)
-        AppDependencies.databaseObserver.registerConversationObserver(threadId, conversationObserver)
+        AppDependencies.databaseObserver.registerConversationChangeObserver(threadId, conversationChangeObserver)
 
         emitter.setCancellable {
-          AppDependencies.databaseObserver.unregisterObserver(messageUpdateObserver)
           AppDependencies.databaseObserver.unregisterObserver(messageInsertObserver)
-          AppDependencies.databaseObserver.unregisterObserver(conversationObserver)
+          AppDependencies.databaseObserver.unregisterObserver(conversationChangeObserver)
         }
       }
     }.subscribeOn(Schedulers.io()).subscribe()
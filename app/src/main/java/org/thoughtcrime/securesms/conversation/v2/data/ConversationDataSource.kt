@@ -98,16 +98,22 @@ class ConversationDataSource(
     val stopwatch = Stopwatch(title = "load($start, $length), thread $threadId", decimalPlaces = 2)
     var records: MutableList<MessageRecord> = ArrayList(length)
 
-    MessageTable.mmsReaderFor(SignalDatabase.messages.getConversation(threadId, start.toLong(), length.toLong()))
-      .use { reader ->
-        reader.forEach { record ->
-          if (cancellationSignal.isCanceled) {
-            return@forEach
-          }
+    val preloaded: ConversationPreloader.PreloadedPage? = if (start == 0) ConversationPreloader.consume(threadId, length) else null
 
-          records.add(record)
+    if (preloaded != null) {
+      records.addAll(preloaded.records.take(length))
+    } else {
+      MessageTable.mmsReaderFor(SignalDatabase.messages.getConversation(threadId, start.toLong(), length.toLong()))
+        .use { reader ->
+          reader.forEach { record ->
+            if (cancellationSignal.isCanceled) {
+              return@forEach
+            }
+
+            records.add(record)
+          }
         }
-      }
+    }
 
     if (messageRequestData.isHidden && (start + length >= totalSize)) {
       records.add(RemovedContactHidden(threadId))
@@ -117,9 +123,9 @@ class ConversationDataSource(
       records.add(UniversalExpireTimerUpdate(threadId))
     }
 
-    stopwatch.split("messages")
+    stopwatch.split(if (preloaded != null) "messages-preloaded" else "messages")
 
-    val extraData = MessageDataFetcher.fetch(records)
+    val extraData = preloaded?.extraData ?: MessageDataFetcher.fetch(records)
     stopwatch.split("extra-data")
 
     records = MessageDataFetcher.updateModelsWithData(records, extraData).toMutableList()
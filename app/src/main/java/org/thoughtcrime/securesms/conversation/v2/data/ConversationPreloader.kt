@@ -0,0 +1,277 @@
+/*
+ * Copyright 2024 Signal Messenger, LLC
+ * SPDX-License-Identifier: AGPL-3.0-only
+ */
+
+package org.thoughtcrime.securesms.conversation.v2.data
+
+import androidx.annotation.WorkerThread
+import org.signal.core.util.ThreadUtil
+import org.signal.core.util.concurrent.SignalExecutors
+import org.signal.core.util.logging.Log
+import org.thoughtcrime.securesms.database.DatabaseObserver
+import org.thoughtcrime.securesms.database.MessageTable
+import org.thoughtcrime.securesms.database.SignalDatabase
+import org.thoughtcrime.securesms.database.model.MessageRecord
+import org.thoughtcrime.securesms.dependencies.AppDependencies
+import org.thoughtcrime.securesms.recipients.RecipientId
+import org.thoughtcrime.securesms.util.LRUCache
+import org.thoughtcrime.securesms.util.SignalLocalMetrics
+import org.thoughtcrime.securesms.util.ThrottledDebouncer
+import org.thoughtcrime.securesms.util.concurrent.SerialExecutor
+import kotlin.time.Duration.Companion.minutes
+import kotlin.time.Duration.Companion.seconds
+
+/**
+ * Warms the data needed to open the conversations a user is most likely to open next, so that the first page of
+ * [ConversationDataSource] can be served from memory.
+ *
+ * Likelihood is based on recent send/receive activity (the same signals we report through
+ * [org.thoughtcrime.securesms.jobs.ConversationShortcutRankingUpdateJob]), plus boosts for unread and recently active threads.
+ *
+ * Preloaded pages are single-use, expire after a short time, and are dropped as soon as the conversation or one of their messages changes.
+ */
+object ConversationPreloader {
+
+  private val TAG = Log.tag(ConversationPreloader::class.java)
+
+  /** Matches the first load of [ConversationDataSource]: one page plus two buffer pages. */
+  private const val PRELOAD_MESSAGE_COUNT = 75
+  private const val MAX_PRELOADED_THREADS = 3
+  private const val CANDIDATE_THREADS = 15
+  private const val MAX_TRACKED_RECIPIENTS = 100
+  private const val UNREAD_BOOST = 1f
+  private const val RECENCY_WEIGHT = 0.5f
+
+  private val MAX_AGE = 30.seconds.inWholeMilliseconds
+  private val SCORE_HALF_LIFE = 30.minutes.inWholeMilliseconds
+  private val NOTIFICATION_THROTTLE = 5.seconds.inWholeMilliseconds
+
+  private val executor = SerialExecutor(SignalExecutors.BOUNDED)
+  private val preloaded: LinkedHashMap<Long, PreloadedPage> = LinkedHashMap()
+  private val interactions: MutableMap<RecipientId, Interaction> = LRUCache(MAX_TRACKED_RECIPIENTS)
+
+  /** Only accessed on the main thread. */
+  private val notificationThrottles: MutableMap<Long, ThrottledDebouncer> = LRUCache(MAX_PRELOADED_THREADS * 2)
+
+  /**
+   * Records that the user exchanged a message with a recipient, making their conversation a more likely candidate for preloading.
+   */
+  @JvmStatic
+  fun onInteraction(recipientId: RecipientId) {
+    val now = System.currentTimeMillis()
+
+    synchronized(interactions) {
+      val existing = interactions[recipientId]
+      interactions[recipientId] = Interaction(score = (existing?.scoreAt(now) ?: 0f) + 1f, timestamp = now)
+    }
+  }
+
+  /**
+   * Called when the conversation list has finished rendering. Preloads the highest ranked conversations.
+   */
+  @JvmStatic
+  fun onConversationListSettled() {
+    executor.execute {
+      val candidates: List<Long> = rankCandidates()
+      Log.d(TAG, "Preloading ${candidates.size} conversations.")
+      candidates.forEach { preloadInternal(it) }
+    }
+  }
+
+  /**
+   * Called when a notification is posted for a thread, since that conversation is likely to be opened soon. Every new message
+   * drops the thread's page, so a busy thread is preloaded at most once per [NOTIFICATION_THROTTLE], plus once after it goes quiet.
+   */
+  @JvmStatic
+  fun onNotification(threadId: Long) {
+    executor.execute {
+      SignalDatabase.threads.getRecipientIdForThreadId(threadId)?.let { onInteraction(it) }
+    }
+
+    ThreadUtil.runOnMain {
+      notificationThrottles
+        .getOrPut(threadId) { ThrottledDebouncer(NOTIFICATION_THROTTLE) }
+        .publish { executor.execute { preloadInternal(threadId) } }
+    }
+  }
+
+  /**
+   * Takes the preloaded page for the thread if it can satisfy a load of [length] messages from the start of the conversation.
+   * Pages are removed once taken, whether or not they were usable.
+   */
+  fun consume(threadId: Long, length: Int): PreloadedPage? {
+    val page: PreloadedPage = synchronized(preloaded) { preloaded.remove(threadId) } ?: return null
+    page.release()
+
+    val fresh = System.currentTimeMillis() - page.createdAt < MAX_AGE
+    val sufficient = page.records.size >= length || page.records.size < PRELOAD_MESSAGE_COUNT
+
+    return if (fresh && sufficient) {
+      SignalLocalMetrics.ConversationOpen.onPreloadHit(threadId)
+      page
+    } else {
+      null
+    }
+  }
+
+  @WorkerThread
+  private fun rankCandidates(): List<Long> {
+    val now = System.currentTimeMillis()
+    val scored: MutableList<Pair<Long, Float>> = mutableListOf()
+
+    SignalDatabase.threads.readerFor(SignalDatabase.threads.getRecentConversationList(CANDIDATE_THREADS, false, false)).use { reader ->
+      var position = 0
+      while (true) {
+        val record = reader.getNext() ?: break
+        val interactionScore = synchronized(interactions) { interactions[record.recipient.id]?.scoreAt(now) } ?: 0f
+        val unreadScore = if (record.unreadCount > 0) UNREAD_BOOST else 0f
+        val recencyScore = RECENCY_WEIGHT / (position + 1)
+
+        scored += record.threadId to (interactionScore + unreadScore + recencyScore)
+        position++
+      }
+    }
+
+    return scored
+      .sortedByDescending { it.second }
+      .take(MAX_PRELOADED_THREADS)
+      .map { it.first }
+  }
+
+  @WorkerThread
+  private fun preloadInternal(threadId: Long) {
+    val existing = synchronized(preloaded) { preloaded[threadId] }
+    if (existing != null && System.currentTimeMillis() - existing.createdAt < MAX_AGE) {
+      return
+    }
+
+    // Resolving the recipient also puts it in the live recipient cache, which is where the conversation reads it from
+    SignalDatabase.threads.getRecipientForThreadId(threadId) ?: return
+
+    val watch = PageWatch(threadId)
+    watch.register()
+
+    val records: MutableList<MessageRecord> = ArrayList(PRELOAD_MESSAGE_COUNT)
+    MessageTable.mmsReaderFor(SignalDatabase.messages.getConversation(threadId, 0, PRELOAD_MESSAGE_COUNT.toLong())).use { reader ->
+      reader.forEach { records += it }
+    }
+
+    val extraData = MessageDataFetcher.fetch(records)
+    val page = PreloadedPage(threadId, System.currentTimeMillis(), records, extraData, watch)
+
+    if (!watch.attach(page)) {
+      Log.d(TAG, "Thread $threadId changed while preloading, dropping the page.")
+      watch.release()
+      return
+    }
+
+    val evicted: List<PreloadedPage> = synchronized(preloaded) {
+      val replaced: PreloadedPage? = preloaded.put(threadId, page)
+      val overflow: PreloadedPage? = if (preloaded.size > MAX_PRELOADED_THREADS) preloaded.remove(preloaded.keys.first()) else null
+      listOfNotNull(replaced, overflow)
+    }
+    evicted.forEach { it.release() }
+
+    if (watch.hasChanged()) {
+      invalidate(page)
+      return
+    }
+
+    Log.d(TAG, "Preloaded ${records.size} messages for thread $threadId.")
+  }
+
+  private fun invalidate(page: PreloadedPage) {
+    val removed = synchronized(preloaded) { preloaded.remove(page.threadId, page) }
+    if (removed) {
+      page.release()
+    }
+  }
+
+  class PreloadedPage internal constructor(
+    val threadId: Long,
+    val createdAt: Long,
+    val records: List<MessageRecord>,
+    val extraData: MessageDataFetcher.ExtraMessageData,
+    private val watch: PageWatch
+  ) {
+    internal fun release() {
+      watch.release()
+    }
+  }
+
+  /**
+   * Watches a thread for anything that would make its preloaded page stale: conversation changes (including receipts) and updates to the
+   * page's messages (including reactions). It is registered before the page is read, so that changes made while loading are caught too.
+   */
+  internal class PageWatch(private val threadId: Long) {
+    private val updatedWhileLoading: MutableSet<Long> = HashSet()
+    private var page: PreloadedPage? = null
+    private var messageIds: Set<Long>? = null
+    private var changed = false
+
+    private val conversationObserver = DatabaseObserver.Observer { onChanged() }
+    private val messageObserver = DatabaseObserver.MessageObserver { onMessageUpdated(it.id) }
+
+    fun register() {
+      AppDependencies.databaseObserver.registerVerboseConversationObserver(threadId, conversationObserver)
+      AppDependencies.databaseObserver.registerMessageUpdateObserver(messageObserver)
+    }
+
+    fun release() {
+      AppDependencies.databaseObserver.unregisterObserver(conversationObserver)
+      AppDependencies.databaseObserver.unregisterObserver(messageObserver)
+    }
+
+    /**
+     * @return False if the thread or one of the page's messages changed while the page was being read.
+     */
+    @Synchronized
+    fun attach(page: PreloadedPage): Boolean {
+      val ids = page.records.map { it.id }.toSet()
+      if (changed || updatedWhileLoading.any { it in ids }) {
+        return false
+      }
+
+      this.page = page
+      this.messageIds = ids
+      updatedWhileLoading.clear()
+      return true
+    }
+
+    @Synchronized
+    fun hasChanged(): Boolean = changed
+
+    private fun onMessageUpdated(messageId: Long) {
+      val stale = synchronized(this) {
+        val ids = messageIds
+        if (ids == null) {
+          updatedWhileLoading += messageId
+          false
+        } else {
+          messageId in ids
+        }
+      }
+
+      if (stale) {
+        onChanged()
+      }
+    }
+
+    private fun onChanged() {
+      val current = synchronized(this) {
+        changed = true
+        page
+      }
+
+      current?.let { invalidate(it) }
+    }
+  }
+
+  private data class Interaction(val score: Float, val timestamp: Long) {
+    fun scoreAt(now: Long): Float {
+      val halfLives = (now - timestamp).toFloat() / SCORE_HALF_LIFE
+      return score / Math.pow(2.0, halfLives.toDouble()).toFloat()
+    }
+  }
+}
@@ -125,6 +125,7 @@ import org.thoughtcrime.securesms.contacts.paged.ContactSearchData;
 import org.thoughtcrime.securesms.contacts.paged.ContactSearchKey;
 import org.thoughtcrime.securesms.contacts.paged.ContactSearchMediator;
 import org.thoughtcrime.securesms.contacts.paged.ContactSearchState;
+import org.thoughtcrime.securesms.conversation.v2.data.ConversationPreloader;
 import org.thoughtcrime.securesms.conversationlist.chatfilter.ConversationFilterRequest;
 import org.thoughtcrime.securesms.conversationlist.chatfilter.ConversationFilterSource;
 import org.thoughtcrime.securesms.conversationlist.chatfilter.ConversationListFilterPullView;
@@ -996,6 +997,7 @@ public class ConversationListFragment extends MainFragment implements ActionMode
     AppStartup.getInstance().onCriticalRenderEventEnd();
     startupStopwatch.split("first-render");
     startupStopwatch.stop(TAG);
+    ConversationPreloader.onConversationListSettled();
     mediaControllerOwner.getVoiceNoteMediaController().finishPostpone();
 
     if (getParentFragment() != null) {
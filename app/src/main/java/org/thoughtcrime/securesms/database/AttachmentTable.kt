@@ -20,6 +20,7 @@ import android.content.ContentValues
 import android.content.Context
 import android.database.Cursor
 import android.media.MediaDataSource
+import android.net.Uri
 import android.os.Parcelable
 import android.text.TextUtils
 import androidx.annotation.RequiresApi
@@ -66,6 +67,7 @@ import org.thoughtcrime.securesms.attachments.Attachment
 import org.thoughtcrime.securesms.attachments.AttachmentId
 import org.thoughtcrime.securesms.attachments.Cdn
 import org.thoughtcrime.securesms.attachments.DatabaseAttachment
+import org.thoughtcrime.securesms.attachments.ThumbnailPyramid
 import org.thoughtcrime.securesms.audio.AudioHash
 import org.thoughtcrime.securesms.blurhash.BlurHash
 import org.thoughtcrime.securesms.crypto.AttachmentSecret
@@ -80,6 +82,7 @@ import org.thoughtcrime.securesms.database.model.databaseprotos.AudioWaveFormDat
 import org.thoughtcrime.securesms.dependencies.AppDependencies
 import org.thoughtcrime.securesms.jobs.AttachmentDownloadJob
 import org.thoughtcrime.securesms.jobs.AttachmentUploadJob
+import org.thoughtcrime.securesms.jobs.AttachmentThumbnailPyramidJob
 import org.thoughtcrime.securesms.jobs.GenerateAudioWaveFormJob
 import org.thoughtcrime.securesms.mms.MediaStream
 import org.thoughtcrime.securesms.mms.MmsException
@@ -166,6 +169,9 @@ class AttachmentTable(
 
     private const val DIRECTORY = "parts"
 
+    /** Prefix for the [DATA_HASH_END] of data files that could not be hashed. */
+    private const val UNHASHABLE_PREFIX = "UNHASHABLE-"
+
     const val TRANSFER_PROGRESS_DONE = 0
     const val TRANSFER_PROGRESS_STARTED = 1
     const val TRANSFER_PROGRESS_PENDING = 2
@@ -332,6 +338,32 @@ class AttachmentTable(
       }
   }
 
+  /**
+   * Returns up to [limit] distinct files that [getUnhashedDataFile] would return, most recent first, so that they can be hashed as a batch.
+   */
+  fun getUnhashedDataFiles(limit: Int): List<Pair<File, AttachmentId>> {
+    return readableDatabase
+      .select(ID, DATA_FILE)
+      .from(TABLE_NAME)
+      .where("$DATA_FILE NOT NULL AND $DATA_HASH_END IS NULL AND $TRANSFER_STATE = $TRANSFER_PROGRESS_DONE")
+      .orderBy("$ID DESC")
+      .limit(limit)
+      .run()
+      .readToList {
+        File(it.requireNonNullString(DATA_FILE)) to AttachmentId(it.requireLong(ID))
+      }
+      .distinctBy { it.first }
+  }
+
+  fun getUnhashedDataFileCount(): Int {
+    return readableDatabase
+      .count()
+      .from(TABLE_NAME)
+      .where("$DATA_FILE NOT NULL AND $DATA_HASH_END IS NULL AND $TRANSFER_STATE = $TRANSFER_PROGRESS_DONE")
+      .run()
+      .readToSingleInt()
+  }
+
   /**
    * Sets the [DATA_HASH_END] for a given file. This is used to backfill the hash for attachments that were created before we started hashing them.
    * As a result, this will _not_ update the hashes on files that are not fully uploaded.
@@ -377,6 +409,7 @@ class AttachmentTable(
           if (!file.delete()) {
             Log.w(TAG, "Failed to delete duped file!")
           }
+          ThumbnailPyramid.deleteFor(file)
         }
       } else {
         val updateCount = writableDatabase
@@ -401,6 +434,22 @@ class AttachmentTable(
       .firstOrNull()
   }
 
+  fun getAttachments(attachmentIds: Collection<AttachmentId>): List<DatabaseAttachment> {
+    if (attachmentIds.isEmpty()) {
+      return emptyList()
+    }
+
+    val query = SqlUtil.buildSingleCollectionQuery(ID, attachmentIds.map { it.id })
+
+    return readableDatabase
+      .select(*PROJECTION)
+      .from(TABLE_NAME)
+      .where(query.where, query.whereArgs)
+      .run()
+      .readToList { it.readAttachments() }
+      .flatten()
+  }
+
   fun getAttachmentsForMessage(mmsId: Long): List<DatabaseAttachment> {
     return readableDatabase
       .select(*PROJECTION)
@@ -521,15 +570,115 @@ class AttachmentTable(
       }
   }
 
+  /**
+   * The size of every attachment that still has to be restored in full, including the ones that are being restored now.
+   */
   fun getTotalRestorableAttachmentSize(): Long {
     return readableDatabase
       .select("SUM($DATA_SIZE)")
       .from(TABLE_NAME)
-      .where("$TRANSFER_STATE = ?", TRANSFER_NEEDS_RESTORE.toString())
+      .where("$TRANSFER_STATE = ? OR $TRANSFER_STATE = ?", TRANSFER_NEEDS_RESTORE.toString(), TRANSFER_RESTORE_IN_PROGRESS.toString())
       .run()
       .readToSingleLong()
   }
 
+  /**
+   * Moves every attachment that's waiting to be restored into the state it's restored from. Attachments on messages sent before [offloadSentBefore]
+   * are offloaded and only have their thumbnails restored, everything else is restored in full.
+   */
+  fun startRestoringAttachments(offloadSentBefore: Long?) {
+    writableDatabase.withinTransaction { db ->
+      if (offloadSentBefore != null) {
+        db.update(TABLE_NAME)
+          .values(TRANSFER_STATE to TRANSFER_RESTORE_OFFLOADED)
+          .where("$TRANSFER_STATE = ? AND $MESSAGE_ID IN (SELECT ${MessageTable.ID} FROM ${MessageTable.TABLE_NAME} WHERE ${MessageTable.DATE_SENT} < ?)", TRANSFER_NEEDS_RESTORE, offloadSentBefore)
+          .run()
+      }
+
+      db.update(TABLE_NAME)
+        .values(TRANSFER_STATE to TRANSFER_RESTORE_IN_PROGRESS)
+        .where("$TRANSFER_STATE = ?", TRANSFER_NEEDS_RESTORE)
+        .run()
+
+      db.update(TABLE_NAME)
+        .values(THUMBNAIL_RESTORE_STATE to ThumbnailRestoreState.IN_PROGRESS.value)
+        .where("$TRANSFER_STATE = ? AND $THUMBNAIL_RESTORE_STATE = ?", TRANSFER_RESTORE_OFFLOADED, ThumbnailRestoreState.NEEDS_RESTORE.value)
+        .run()
+    }
+
+    notifyConversationListListeners()
+    notifyAttachmentListeners()
+  }
+
+  /**
+   * Moves the attachments and thumbnails left in progress by [startRestoringAttachments] back to needing a restore, for when the restore has given up.
+   * They can then be restored individually, or by a later bulk restore. Attachments and thumbnails that are being restored by their own jobs are
+   * left alone, since those jobs still own their state.
+   */
+  fun stopRestoringAttachments(restoringInJobs: Set<AttachmentId>, restoringThumbnailsInJobs: Set<AttachmentId>) {
+    writableDatabase.withinTransaction { db ->
+      val attachments = db.select(ID)
+        .from(TABLE_NAME)
+        .where("$TRANSFER_STATE = ?", TRANSFER_RESTORE_IN_PROGRESS)
+        .run()
+        .readToList { AttachmentId(it.requireLong(ID)) }
+        .filterNot { it in restoringInJobs }
+
+      for (query in SqlUtil.buildCollectionQuery(ID, attachments.map { it.id })) {
+        db.update(TABLE_NAME)
+          .values(TRANSFER_STATE to TRANSFER_NEEDS_RESTORE)
+          .where(query.where, query.whereArgs)
+          .run()
+      }
+
+      val thumbnails = db.select(ID)
+        .from(TABLE_NAME)
+        .where("$THUMBNAIL_RESTORE_STATE = ?", ThumbnailRestoreState.IN_PROGRESS.value)
+        .run()
+        .readToList { AttachmentId(it.requireLong(ID)) }
+        .filterNot { it in restoringThumbnailsInJobs }
+
+      for (query in SqlUtil.buildCollectionQuery(ID, thumbnails.map { it.id })) {
+        db.update(TABLE_NAME)
+          .values(THUMBNAIL_RESTORE_STATE to ThumbnailRestoreState.NEEDS_RESTORE.value)
+          .where(query.where, query.whereArgs)
+          .run()
+      }
+    }
+
+    notifyConversationListListeners()
+    notifyAttachmentListeners()
+  }
+
+  /**
+   * The attachments being restored in full, with the most recently active threads first.
+   */
+  fun getRestoringAttachmentIdsByRecency(): List<AttachmentId> {
+    return getAttachmentIdsByRecency("$TABLE_NAME.$TRANSFER_STATE = ?", TRANSFER_RESTORE_IN_PROGRESS)
+  }
+
+  /**
+   * The offloaded attachments that are having their thumbnails restored, with the most recently active threads first.
+   */
+  fun getRestoringThumbnailIdsByRecency(): List<AttachmentId> {
+    return getAttachmentIdsByRecency("$TABLE_NAME.$TRANSFER_STATE = ? AND $TABLE_NAME.$THUMBNAIL_RESTORE_STATE = ?", TRANSFER_RESTORE_OFFLOADED, ThumbnailRestoreState.IN_PROGRESS.value)
+  }
+
+  private fun getAttachmentIdsByRecency(where: String, vararg args: Any): List<AttachmentId> {
+    val query = """
+      SELECT $TABLE_NAME.$ID
+      FROM $TABLE_NAME
+        INNER JOIN ${MessageTable.TABLE_NAME} ON $TABLE_NAME.$MESSAGE_ID = ${MessageTable.TABLE_NAME}.${MessageTable.ID}
+        INNER JOIN ${ThreadTable.TABLE_NAME} ON ${MessageTable.TABLE_NAME}.${MessageTable.THREAD_ID} = ${ThreadTable.TABLE_NAME}.${ThreadTable.ID}
+      WHERE $where
+      ORDER BY ${ThreadTable.TABLE_NAME}.${ThreadTable.DATE} DESC, ${MessageTable.TABLE_NAME}.${MessageTable.DATE_RECEIVED} DESC
+    """
+
+    return readableDatabase
+      .rawQuery(query, SqlUtil.buildArgs(*args))
+      .readToList { AttachmentId(it.requireLong(ID)) }
+  }
+
   /**
    * Finds the next eligible attachment that needs to be uploaded to the archive service.
    * If it exists, it'll also atomically be marked as [ArchiveTransferState.BACKFILL_UPLOAD_IN_PROGRESS].
@@ -800,7 +949,9 @@ class AttachmentTable(
       .filterNotNull()
       .toSet() + stickers.allStickerFiles
 
-    val onDiskButNotInDatabase: Set<String> = filesOnDisk - filesInDb
+    val onDiskButNotInDatabase: Set<String> = (filesOnDisk - filesInDb)
+      .filterNot { path -> ThumbnailPyramid.dataFilePathFor(path)?.let { it in filesInDb } ?: false }
+      .toSet()
 
     for (filePath in onDiskButNotInDatabase) {
       val success = File(filePath).delete()
@@ -833,7 +984,7 @@ class AttachmentTable(
   fun markDataFileAsUnhashable(file: File) {
     val updateCount = writableDatabase
       .update(TABLE_NAME)
-      .values(DATA_HASH_END to "UNHASHABLE-${UUID.randomUUID()}")
+      .values(DATA_HASH_END to "$UNHASHABLE_PREFIX${UUID.randomUUID()}")
       .where("$DATA_FILE = ? AND $DATA_HASH_END IS NULL AND $TRANSFER_STATE = $TRANSFER_PROGRESS_DONE", file.absolutePath)
       .run()
 
@@ -912,6 +1063,15 @@ class AttachmentTable(
    */
   @Throws(MmsException::class)
   fun finalizeAttachmentAfterDownload(mmsId: Long, attachmentId: AttachmentId, inputStream: InputStream) {
+    finalizeAttachmentsAfterDownload(listOf(writeAttachmentAfterDownload(mmsId, attachmentId, inputStream)))
+  }
+
+  /**
+   * The first half of [finalizeAttachmentAfterDownload], which writes the downloaded data to a new data file without changing the attachment. This can
+   * run for several attachments at once, and the results can then be committed together with [finalizeAttachmentsAfterDownload].
+   */
+  @Throws(MmsException::class)
+  fun writeAttachmentAfterDownload(mmsId: Long, attachmentId: AttachmentId, inputStream: InputStream): DownloadedAttachment {
     Log.i(TAG, "[finalizeAttachmentAfterDownload] Finalizing downloaded data for $attachmentId. (MessageId: $mmsId, $attachmentId)")
 
     val existingPlaceholder: DatabaseAttachment = getAttachment(attachmentId) ?: throw MmsException("No attachment found for id: $attachmentId")
@@ -925,110 +1085,159 @@ class AttachmentTable(
     if (fileWriteResult.file.extension.equals(".trustedintro")){
       Log.i(TAG,"Do something...")
     }
-    val transferFile: File? = getTransferFile(databaseHelper.signalReadableDatabase, attachmentId)
 
-    val foundDuplicate = writableDatabase.withinTransaction { db ->
-      // We can look and see if we have any exact matches on hash_ends and dedupe the file if we see one.
-      // We don't look at hash_start here because that could result in us matching on a file that got compressed down to something smaller, effectively lowering
-      // the quality of the attachment we received.
-      val hashMatch: DataFileInfo? = readableDatabase
-        .select(ID, DATA_FILE, DATA_SIZE, DATA_RANDOM, DATA_HASH_START, DATA_HASH_END, TRANSFORM_PROPERTIES, UPLOAD_TIMESTAMP, ARCHIVE_CDN, ARCHIVE_MEDIA_NAME, ARCHIVE_MEDIA_ID)
-        .from(TABLE_NAME)
-        .where("$DATA_HASH_END = ? AND $DATA_HASH_END NOT NULL AND $TRANSFER_STATE = $TRANSFER_PROGRESS_DONE AND $DATA_FILE NOT NULL", fileWriteResult.hash)
-        .run()
-        .readToList { it.readDataFileInfo() }
-        .firstOrNull()
+    return DownloadedAttachment(mmsId, existingPlaceholder, fileWriteResult)
+  }
 
-      val values = ContentValues()
+  /**
+   * The second half of [finalizeAttachmentAfterDownload], which associates each attachment with the data file written for it. All of the attachments
+   * are updated in a single transaction.
+   */
+  fun finalizeAttachmentsAfterDownload(downloads: List<DownloadedAttachment>) {
+    if (downloads.isEmpty()) {
+      return
+    }
 
-      if (hashMatch != null) {
-        Log.i(TAG, "[finalizeAttachmentAfterDownload] Found that ${hashMatch.id} has the same DATA_HASH_END. Deduping. (MessageId: $mmsId, $attachmentId)")
-        values.put(DATA_FILE, hashMatch.file.absolutePath)
-        values.put(DATA_SIZE, hashMatch.length)
-        values.put(DATA_RANDOM, hashMatch.random)
-        values.put(DATA_HASH_START, hashMatch.hashEnd)
-        values.put(DATA_HASH_END, hashMatch.hashEnd)
-        values.put(ARCHIVE_CDN, hashMatch.archiveCdn)
-        values.put(ARCHIVE_MEDIA_NAME, hashMatch.archiveMediaName)
-        values.put(ARCHIVE_MEDIA_ID, hashMatch.archiveMediaId)
-      } else {
-        values.put(DATA_FILE, fileWriteResult.file.absolutePath)
-        values.put(DATA_SIZE, fileWriteResult.length)
-        values.put(DATA_RANDOM, fileWriteResult.random)
-        values.put(DATA_HASH_START, fileWriteResult.hash)
-        values.put(DATA_HASH_END, fileWriteResult.hash)
-      }
+    val transferFiles: List<File> = downloads.mapNotNull { getTransferFile(databaseHelper.signalReadableDatabase, it.placeholder.attachmentId) }
 
-      val visualHashString = existingPlaceholder.getVisualHashStringOrNull()
-      if (visualHashString != null) {
-        values.put(BLUR_HASH, visualHashString)
-      }
+    val duplicates: List<DownloadedAttachment> = writableDatabase.withinTransaction { db ->
+      downloads.filter { download ->
+        val mmsId = download.mmsId
+        val attachmentId = download.placeholder.attachmentId
+        val fileWriteResult = download.fileWriteResult
 
-      values.put(TRANSFER_STATE, TRANSFER_PROGRESS_DONE)
-      values.put(TRANSFER_FILE, null as String?)
-      values.put(TRANSFORM_PROPERTIES, TransformProperties.forSkipTransform().serialize())
-      values.put(ARCHIVE_TRANSFER_FILE, null as String?)
+        // We can look and see if we have any exact matches on hash_ends and dedupe the file if we see one.
+        // We don't look at hash_start here because that could result in us matching on a file that got compressed down to something smaller, effectively lowering
+        // the quality of the attachment we received.
+        val hashMatch: DataFileInfo? = readableDatabase
+          .select(ID, DATA_FILE, DATA_SIZE, DATA_RANDOM, DATA_HASH_START, DATA_HASH_END, TRANSFORM_PROPERTIES, UPLOAD_TIMESTAMP, ARCHIVE_CDN, ARCHIVE_MEDIA_NAME, ARCHIVE_MEDIA_ID)
+          .from(TABLE_NAME)
+          .where("$DATA_HASH_END = ? AND $DATA_HASH_END NOT NULL AND $TRANSFER_STATE = $TRANSFER_PROGRESS_DONE AND $DATA_FILE NOT NULL", fileWriteResult.hash)
+          .run()
+          .readToList { it.readDataFileInfo() }
+          .firstOrNull()
+
+        val values = ContentValues()
+
+        if (hashMatch != null) {
+          Log.i(TAG, "[finalizeAttachmentAfterDownload] Found that ${hashMatch.id} has the same DATA_HASH_END. Deduping. (MessageId: $mmsId, $attachmentId)")
+          values.put(DATA_FILE, hashMatch.file.absolutePath)
+          values.put(DATA_SIZE, hashMatch.length)
+          values.put(DATA_RANDOM, hashMatch.random)
+          values.put(DATA_HASH_START, hashMatch.hashEnd)
+          values.put(DATA_HASH_END, hashMatch.hashEnd)
+          values.put(ARCHIVE_CDN, hashMatch.archiveCdn)
+          values.put(ARCHIVE_MEDIA_NAME, hashMatch.archiveMediaName)
+          values.put(ARCHIVE_MEDIA_ID, hashMatch.archiveMediaId)
+        } else {
+          values.put(DATA_FILE, fileWriteResult.file.absolutePath)
+          values.put(DATA_SIZE, fileWriteResult.length)
+          values.put(DATA_RANDOM, fileWriteResult.random)
+          values.put(DATA_HASH_START, fileWriteResult.hash)
+          values.put(DATA_HASH_END, fileWriteResult.hash)
+        }
 
-      db.update(TABLE_NAME)
-        .values(values)
-        .where("$ID = ?", attachmentId.id)
-        .run()
+        val visualHashString = download.placeholder.getVisualHashStringOrNull()
+        if (visualHashString != null) {
+          values.put(BLUR_HASH, visualHashString)
+        }
+
+        values.put(TRANSFER_STATE, TRANSFER_PROGRESS_DONE)
+        values.put(TRANSFER_FILE, null as String?)
+        values.put(TRANSFORM_PROPERTIES, TransformProperties.forSkipTransform().serialize())
+        values.put(ARCHIVE_TRANSFER_FILE, null as String?)
+
+        db.update(TABLE_NAME)
+          .values(values)
+          .where("$ID = ?", attachmentId.id)
+          .run()
 
-      Log.i(TAG, "[finalizeAttachmentAfterDownload] Finalized downloaded data for $attachmentId. (MessageId: $mmsId, $attachmentId)")
+        Log.i(TAG, "[finalizeAttachmentAfterDownload] Finalized downloaded data for $attachmentId. (MessageId: $mmsId, $attachmentId)")
 
-      hashMatch != null
+        hashMatch != null
+      }
     }
 
-    val threadId = messages.getThreadIdForMessage(mmsId)
+    val threadIds: MutableSet<Long> = mutableSetOf()
+
+    for (download in downloads) {
+      val threadId = messages.getThreadIdForMessage(download.mmsId)
+
+      if (!messages.isStory(download.mmsId)) {
+        threads.updateSnippetUriSilently(threadId, PartAuthority.getAttachmentDataUri(download.placeholder.attachmentId))
+      }
 
-    if (!messages.isStory(mmsId)) {
-      threads.updateSnippetUriSilently(threadId, PartAuthority.getAttachmentDataUri(attachmentId))
+      threadIds += threadId
     }
 
-    notifyConversationListeners(threadId)
+    notifyConversationListeners(threadIds)
     notifyConversationListListeners()
     notifyAttachmentListeners()
 
-    if (foundDuplicate) {
-      if (!fileWriteResult.file.delete()) {
+    for (duplicate in duplicates) {
+      if (!duplicate.fileWriteResult.file.delete()) {
         Log.w(TAG, "Failed to delete unused attachment")
       }
     }
 
-    if (transferFile != null) {
+    for (transferFile in transferFiles) {
       if (!transferFile.delete()) {
         Log.w(TAG, "Unable to delete transfer file.")
       }
     }
 
-    if (MediaUtil.isAudio(existingPlaceholder)) {
-      GenerateAudioWaveFormJob.enqueue(existingPlaceholder.attachmentId)
+    for (download in downloads) {
+      if (MediaUtil.isAudio(download.placeholder)) {
+        GenerateAudioWaveFormJob.enqueue(download.placeholder.attachmentId)
+      }
+
+      AttachmentThumbnailPyramidJob.enqueueIfSupported(download.placeholder.attachmentId, download.placeholder.contentType)
     }
   }
 
   @Throws(IOException::class)
   fun finalizeAttachmentThumbnailAfterDownload(attachmentId: AttachmentId, archiveMediaId: String, inputStream: InputStream, transferFile: File) {
+    finalizeAttachmentThumbnailsAfterDownload(listOf(writeAttachmentThumbnailAfterDownload(attachmentId, archiveMediaId, inputStream, transferFile)))
+  }
+
+  /**
+   * Like [writeAttachmentAfterDownload], but for a thumbnail restored from the archive. Commit the result with [finalizeAttachmentThumbnailsAfterDownload].
+   */
+  @Throws(MmsException::class)
+  fun writeAttachmentThumbnailAfterDownload(attachmentId: AttachmentId, archiveMediaId: String, inputStream: InputStream, transferFile: File): DownloadedThumbnail {
     Log.i(TAG, "[finalizeAttachmentThumbnailAfterDownload] Finalizing downloaded data for $attachmentId.")
     val fileWriteResult: DataFileWriteResult = writeToDataFile(newDataFile(context), inputStream, TransformProperties.empty())
 
+    return DownloadedThumbnail(archiveMediaId, fileWriteResult, transferFile)
+  }
+
+  fun finalizeAttachmentThumbnailsAfterDownload(thumbnails: List<DownloadedThumbnail>) {
+    if (thumbnails.isEmpty()) {
+      return
+    }
+
     writableDatabase.withinTransaction { db ->
-      val values = contentValuesOf(
-        THUMBNAIL_FILE to fileWriteResult.file.absolutePath,
-        THUMBNAIL_RANDOM to fileWriteResult.random,
-        THUMBNAIL_RESTORE_STATE to ThumbnailRestoreState.FINISHED.value
-      )
+      for (thumbnail in thumbnails) {
+        val values = contentValuesOf(
+          THUMBNAIL_FILE to thumbnail.fileWriteResult.file.absolutePath,
+          THUMBNAIL_RANDOM to thumbnail.fileWriteResult.random,
+          THUMBNAIL_RESTORE_STATE to ThumbnailRestoreState.FINISHED.value
+        )
 
-      db.update(TABLE_NAME)
-        .values(values)
-        .where("$ARCHIVE_MEDIA_ID = ?", archiveMediaId)
-        .run()
+        db.update(TABLE_NAME)
+          .values(values)
+          .where("$ARCHIVE_MEDIA_ID = ?", thumbnail.archiveMediaId)
+          .run()
+      }
     }
 
     notifyConversationListListeners()
     notifyAttachmentListeners()
 
-    if (!transferFile.delete()) {
-      Log.w(TAG, "Unable to delete transfer file.")
+    for (thumbnail in thumbnails) {
+      if (!thumbnail.transferFile.delete()) {
+        Log.w(TAG, "Unable to delete transfer file.")
+      }
     }
   }
 
@@ -1075,6 +1284,8 @@ class AttachmentTable(
     if (updateCount <= 0) {
       Log.w(TAG, "[finalizeAttachmentAfterUpload] Failed to update attachment after upload! $id")
     }
+
+    AttachmentThumbnailPyramidJob.enqueueIfSupported(id, attachment.contentType)
   }
 
   @Throws(MmsException::class)
@@ -1701,6 +1912,7 @@ class AttachmentTable(
     if (!File(filePath).delete()) {
       Log.w(TAG, "[deleteDataFileIfPossible] Failed to delete $attachmentId. Path: $filePath")
     }
+    ThumbnailPyramid.deleteFor(File(filePath))
 
     if (MediaUtil.isImageType(contentType) || MediaUtil.isVideoType(contentType)) {
       Glide.get(context).clearDiskCache()
@@ -1785,6 +1997,9 @@ class AttachmentTable(
         throw IllegalStateException("Couldn't rename ${tempFile.path} to ${destination.path}")
       }
 
+      // If we just replaced the contents of an existing file, any thumbnails made from the old contents are stale.
+      ThumbnailPyramid.deleteFor(destination)
+
       DataFileWriteResult(
         file = destination,
         length = length,
@@ -1962,43 +2177,123 @@ class AttachmentTable(
 
     Log.d(TAG, "[insertAttachmentWithData] Inserting attachment for messageId $messageId. (MessageId: $messageId, ${attachment.uri})")
 
+    // If we can tell what the content is without reading all of it (e.g. it's a forward of an attachment we already have), we can check for a duplicate
+    // before copying anything to disk. Otherwise, to avoid performing long-running operations in a transaction, we write the data to an independent file
+    // first in a way that doesn't rely on db state.
+    val knownHash: String? = getContentHashWithoutCopying(attachment.uri!!)
+    var fileWriteResult: DataFileWriteResult? = null
+
+    if (knownHash != null && findCompatibleHashMatch(knownHash, attachment.transformProperties ?: TransformProperties.empty(), quote) != null) {
+      Log.d(TAG, "[insertAttachmentWithData] Content hash already has a compatible data file. Skipping the copy. (MessageId: $messageId, ${attachment.uri})")
+    } else {
+      fileWriteResult = writeAttachmentDataToNewFile(attachment)
+      Log.d(TAG, "[insertAttachmentWithData] Wrote data to file: ${fileWriteResult.file.absolutePath} (MessageId: $messageId, ${attachment.uri})")
+    }
+
+    var insertResult = insertAttachmentWithDataRow(messageId, attachment, quote, knownHash ?: fileWriteResult!!.hash, fileWriteResult)
+
+    if (insertResult == null) {
+      Log.w(TAG, "[insertAttachmentWithData] The duplicate we found went away before we could use it. Writing the data after all. (MessageId: $messageId, ${attachment.uri})")
+      fileWriteResult = writeAttachmentDataToNewFile(attachment)
+      insertResult = insertAttachmentWithDataRow(messageId, attachment, quote, fileWriteResult.hash, fileWriteResult)!!
+    }
+
+    val (attachmentId: AttachmentId, foundDuplicate: Boolean) = insertResult
+
+    if (foundDuplicate && fileWriteResult != null) {
+      if (!fileWriteResult.file.delete()) {
+        Log.w(TAG, "[insertAttachmentWithData] Failed to delete duplicate file: ${fileWriteResult.file.absolutePath}")
+      }
+    }
+
+    notifyAttachmentListeners()
+    return attachmentId
+  }
+
+  @Throws(MmsException::class)
+  private fun writeAttachmentDataToNewFile(attachment: Attachment): DataFileWriteResult {
     val dataStream = try {
       PartAuthority.getAttachmentStream(context, attachment.uri!!)
     } catch (e: IOException) {
       throw MmsException(e)
     }
 
-    // To avoid performing long-running operations in a transaction, we write the data to an independent file first in a way that doesn't rely on db state.
-    val fileWriteResult: DataFileWriteResult = writeToDataFile(newDataFile(context), dataStream, attachment.transformProperties ?: TransformProperties.empty())
-    Log.d(TAG, "[insertAttachmentWithData] Wrote data to file: ${fileWriteResult.file.absolutePath} (MessageId: $messageId, ${attachment.uri})")
+    return writeToDataFile(newDataFile(context), dataStream, attachment.transformProperties ?: TransformProperties.empty())
+  }
+
+  /**
+   * Returns the plaintext hash of the content at [uri] if it can be determined without copying it into a new data file, otherwise null.
+   * Forwarded attachments already know the hash of their data, and stickers are small enough that hashing them is much cheaper than writing them out again.
+   */
+  private fun getContentHashWithoutCopying(uri: Uri): String? {
+    return when {
+      PartAuthority.isAttachmentUri(uri) -> {
+        readableDatabase
+          .select(DATA_HASH_END)
+          .from(TABLE_NAME)
+          .where("$ID = ? AND $DATA_FILE NOT NULL AND $TRANSFER_STATE = $TRANSFER_PROGRESS_DONE", PartAuthority.requireAttachmentId(uri).id)
+          .run()
+          .readToSingleObject { it.requireString(DATA_HASH_END) }
+          ?.takeUnless { it.startsWith(UNHASHABLE_PREFIX) }
+      }
+      PartAuthority.isStickerUri(uri) -> {
+        try {
+          val messageDigest = MessageDigest.getInstance("SHA-256")
+          DigestInputStream(PartAuthority.getAttachmentStream(context, uri), messageDigest).use { it.drain() }
+          Base64.encodeWithPadding(messageDigest.digest())
+        } catch (e: IOException) {
+          Log.w(TAG, "[getContentHashWithoutCopying] Failed to hash sticker.", e)
+          null
+        }
+      }
+      else -> null
+    }
+  }
+
+  /**
+   * Finds an attachment whose starting or ending hash matches [hash] and has compatible transform properties, preferring the one with the most recent
+   * upload timestamp.
+   */
+  private fun findCompatibleHashMatch(hash: String, transformProperties: TransformProperties, quote: Boolean): DataFileInfo? {
+    return readableDatabase
+      .select(ID, DATA_FILE, DATA_SIZE, DATA_RANDOM, DATA_HASH_START, DATA_HASH_END, TRANSFORM_PROPERTIES, UPLOAD_TIMESTAMP, ARCHIVE_CDN, ARCHIVE_MEDIA_NAME, ARCHIVE_MEDIA_ID)
+      .from(TABLE_NAME)
+      .where("$DATA_FILE NOT NULL AND ($DATA_HASH_START = ? OR $DATA_HASH_END = ?)", hash, hash)
+      .run()
+      .readToList { it.readDataFileInfo() }
+      .sortedByDescending { it.uploadTimestamp }
+      .firstOrNull { existingMatch ->
+        areTransformationsCompatible(
+          newProperties = transformProperties,
+          potentialMatchProperties = existingMatch.transformProperties,
+          newHashStart = hash,
+          potentialMatchHashEnd = existingMatch.hashEnd,
+          newIsQuote = quote
+        )
+      }
+  }
 
-    val (attachmentId: AttachmentId, foundDuplicate: Boolean) = writableDatabase.withinTransaction { db ->
+  /**
+   * Inserts the row for [insertAttachmentWithData], deduping against existing data files with the same [hash].
+   *
+   * @return The new attachment ID and whether or not a duplicate was used, or null if no data was written and there is no longer a duplicate to use.
+   */
+  private fun insertAttachmentWithDataRow(messageId: Long, attachment: Attachment, quote: Boolean, hash: String, fileWriteResult: DataFileWriteResult?): Pair<AttachmentId, Boolean>? {
+    return writableDatabase.withinTransaction { db ->
       val contentValues = ContentValues()
       var transformProperties = attachment.transformProperties ?: TransformProperties.empty()
 
       // First we'll check if our file hash matches the starting or ending hash of any other attachments and has compatible transform properties.
-      // We'll prefer the match with the most recent upload timestamp.
-      val hashMatch: DataFileInfo? = readableDatabase
-        .select(ID, DATA_FILE, DATA_SIZE, DATA_RANDOM, DATA_HASH_START, DATA_HASH_END, TRANSFORM_PROPERTIES, UPLOAD_TIMESTAMP, ARCHIVE_CDN, ARCHIVE_MEDIA_NAME, ARCHIVE_MEDIA_ID)
-        .from(TABLE_NAME)
-        .where("$DATA_FILE NOT NULL AND ($DATA_HASH_START = ? OR $DATA_HASH_END = ?)", fileWriteResult.hash, fileWriteResult.hash)
-        .run()
-        .readToList { it.readDataFileInfo() }
-        .sortedByDescending { it.uploadTimestamp }
-        .firstOrNull { existingMatch ->
-          areTransformationsCompatible(
-            newProperties = transformProperties,
-            potentialMatchProperties = existingMatch.transformProperties,
-            newHashStart = fileWriteResult.hash,
-            potentialMatchHashEnd = existingMatch.hashEnd,
-            newIsQuote = quote
-          )
-        }
+      val hashMatch: DataFileInfo? = findCompatibleHashMatch(hash, transformProperties, quote)
+
+      if (hashMatch == null && fileWriteResult == null) {
+        return@withinTransaction null
+      }
 
       if (hashMatch != null) {
-        if (fileWriteResult.hash == hashMatch.hashStart) {
+        if (hash == hashMatch.hashStart) {
           Log.i(TAG, "[insertAttachmentWithData] Found that the new attachment hash matches the DATA_HASH_START of ${hashMatch.id}. Using all of it's fields. (MessageId: $messageId, ${attachment.uri})")
-        } else if (fileWriteResult.hash == hashMatch.hashEnd) {
+        } else if (hash == hashMatch.hashEnd) {
           Log.i(TAG, "[insertAttachmentWithData] Found that the new attachment hash matches the DATA_HASH_END of ${hashMatch.id}. Using all of it's fields. (MessageId: $messageId, ${attachment.uri})")
         } else {
           throw IllegalStateException("Should not be possible based on query.")
@@ -2007,7 +2302,7 @@ class AttachmentTable(
         contentValues.put(DATA_FILE, hashMatch.file.absolutePath)
         contentValues.put(DATA_SIZE, hashMatch.length)
         contentValues.put(DATA_RANDOM, hashMatch.random)
-        contentValues.put(DATA_HASH_START, fileWriteResult.hash)
+        contentValues.put(DATA_HASH_START, hash)
         contentValues.put(DATA_HASH_END, hashMatch.hashEnd)
         contentValues.put(ARCHIVE_CDN, hashMatch.archiveCdn)
         contentValues.put(ARCHIVE_MEDIA_NAME, hashMatch.archiveMediaName)
@@ -2019,7 +2314,7 @@ class AttachmentTable(
         }
       } else {
         Log.i(TAG, "[insertAttachmentWithData] No matching hash found. (MessageId: $messageId, ${attachment.uri})")
-        contentValues.put(DATA_FILE, fileWriteResult.file.absolutePath)
+        contentValues.put(DATA_FILE, fileWriteResult!!.file.absolutePath)
         contentValues.put(DATA_SIZE, fileWriteResult.length)
         contentValues.put(DATA_RANDOM, fileWriteResult.random)
         contentValues.put(DATA_HASH_START, fileWriteResult.hash)
@@ -2081,15 +2376,6 @@ class AttachmentTable(
 
       AttachmentId(rowId) to (hashMatch != null)
     }
-
-    if (foundDuplicate) {
-      if (!fileWriteResult.file.delete()) {
-        Log.w(TAG, "[insertAttachmentWithData] Failed to delete duplicate file: ${fileWriteResult.file.absolutePath}")
-      }
-    }
-
-    notifyAttachmentListeners()
-    return attachmentId
   }
 
   private fun getTransferFile(db: SQLiteDatabase, attachmentId: AttachmentId): File? {
@@ -2233,6 +2519,24 @@ class AttachmentTable(
     val transformProperties: TransformProperties
   )
 
+  /**
+   * Downloaded data that's been written by [writeAttachmentAfterDownload], and is waiting to be committed by [finalizeAttachmentsAfterDownload].
+   */
+  class DownloadedAttachment(
+    val mmsId: Long,
+    val placeholder: DatabaseAttachment,
+    val fileWriteResult: DataFileWriteResult
+  )
+
+  /**
+   * A downloaded thumbnail that's been written by [writeAttachmentThumbnailAfterDownload], and is waiting to be committed by [finalizeAttachmentThumbnailsAfterDownload].
+   */
+  class DownloadedThumbnail(
+    val archiveMediaId: String,
+    val fileWriteResult: DataFileWriteResult,
+    val transferFile: File
+  )
+
   @VisibleForTesting
   class DataFileInfo(
     val id: AttachmentId,
@@ -232,13 +232,18 @@ class CallTable(context: Context, databaseHelper: SignalDatabase) : DatabaseTabl
       .readToSingleObject(Call.Deserializer)
   }
 
-  fun getCalls(messageIds: Collection<Long>): Map<Long, Call> {
+  /**
+   * @param includeDeleted Whether to include calls whose latest event is a delete, which are normally hidden.
+   *
+   * @return a map of raw MessageId -> Call
+   */
+  fun getCalls(messageIds: Collection<Long>, includeDeleted: Boolean = false): Map<Long, Call> {
     val queries = SqlUtil.buildCollectionQuery(MESSAGE_ID, messageIds)
     val maps = queries.map { query ->
       readableDatabase
         .select()
         .from(TABLE_NAME)
-        .where("$EVENT != ${Event.serialize(Event.DELETE)} AND ${query.where}", query.whereArgs)
+        .where(if (includeDeleted) query.where else "$EVENT != ${Event.serialize(Event.DELETE)} AND ${query.where}", query.whereArgs)
         .run()
         .readToMap { c -> c.requireLong(MESSAGE_ID) to Call.deserialize(c) }
     }
@@ -6,6 +6,7 @@ import androidx.annotation.NonNull;
 import androidx.annotation.VisibleForTesting;
 
 import org.jetbrains.annotations.NotNull;
+import org.signal.core.util.ThreadUtil;
 import org.signal.core.util.concurrent.SignalExecutors;
 import org.thoughtcrime.securesms.database.model.MessageId;
 import org.thoughtcrime.securesms.recipients.Recipient;
@@ -14,13 +15,17 @@ import org.thoughtcrime.securesms.service.webrtc.links.CallLinkRoomId;
 import org.thoughtcrime.securesms.util.concurrent.SerialExecutor;
 
 import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
-import java.util.HashSet;
+import java.util.LinkedHashSet;
 import java.util.Map;
 import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
 
 /**
  * Allows listening to database changes to varying degrees of specificity.
@@ -45,13 +50,19 @@ public class DatabaseObserver {
   private static final String KEY_STORY_OBSERVER        = "Story";
   private static final String KEY_SCHEDULED_MESSAGES    = "ScheduledMessages";
   private static final String KEY_CONVERSATION_DELETES  = "ConversationDeletes";
+  private static final String KEY_CONVERSATION_CHANGE   = "ConversationChange:";
+  private static final String KEY_MESSAGE_DELETE        = "MessageDelete:";
 
   private static final String KEY_CALL_UPDATES          = "CallUpdates";
   private static final String KEY_CALL_LINK_UPDATES     = "CallLinkUpdates";
   private static final String KEY_IN_APP_PAYMENTS       = "InAppPayments";
 
-  private final Application application;
-  private final Executor    executor;
+  /** Roughly one frame. Conversation notifications within this window are delivered together. */
+  private static final long COALESCE_WINDOW_MS = 16;
+
+  private final Application           application;
+  private final Executor              executor;
+  private final NotificationCoalescer coalescer;
 
   private final Set<Observer>                      conversationListObservers;
   private final Map<Long, Set<Observer>>           conversationObservers;
@@ -72,27 +83,40 @@ public class DatabaseObserver {
   private final Map<CallLinkRoomId, Set<Observer>> callLinkObservers;
   private final Set<InAppPaymentObserver>          inAppPaymentObservers;
 
+  private final Map<Long, Set<ConversationChangeObserver>> conversationChangeObservers;
+  private final Map<Long, ConversationChange.Builder>      pendingConversationChanges;
+
   public DatabaseObserver(Application application) {
+    this(application,
+         new SerialExecutor(SignalExecutors.BOUNDED),
+         Executors.newSingleThreadScheduledExecutor(new SignalExecutors.NumberedThreadFactory("signal-db-observer", ThreadUtil.PRIORITY_BACKGROUND_THREAD)));
+  }
+
+  @VisibleForTesting
+  DatabaseObserver(@NonNull Application application, @NonNull Executor executor, @NonNull ScheduledExecutorService scheduler) {
     this.application                  = application;
-    this.executor                     = new SerialExecutor(SignalExecutors.BOUNDED);
-    this.conversationListObservers    = new HashSet<>();
-    this.conversationObservers        = new HashMap<>();
-    this.verboseConversationObservers = new HashMap<>();
-    this.conversationDeleteObservers  = new HashMap<>();
-    this.paymentObservers             = new HashMap<>();
-    this.allPaymentsObservers         = new HashSet<>();
-    this.chatColorsObservers          = new HashSet<>();
-    this.stickerObservers             = new HashSet<>();
-    this.stickerPackObservers         = new HashSet<>();
-    this.attachmentObservers          = new HashSet<>();
-    this.messageUpdateObservers       = new HashSet<>();
-    this.messageInsertObservers       = new HashMap<>();
-    this.notificationProfileObservers = new HashSet<>();
-    this.storyObservers               = new HashMap<>();
-    this.scheduledMessageObservers    = new HashMap<>();
-    this.callUpdateObservers          = new HashSet<>();
-    this.callLinkObservers            = new HashMap<>();
-    this.inAppPaymentObservers        = new HashSet<>();
+    this.executor                     = executor;
+    this.coalescer                    = new NotificationCoalescer(scheduler, executor, COALESCE_WINDOW_MS);
+    this.conversationListObservers    = ConcurrentHashMap.newKeySet();
+    this.conversationObservers        = new ConcurrentHashMap<>();
+    this.verboseConversationObservers = new ConcurrentHashMap<>();
+    this.conversationDeleteObservers  = new ConcurrentHashMap<>();
+    this.paymentObservers             = new ConcurrentHashMap<>();
+    this.allPaymentsObservers         = ConcurrentHashMap.newKeySet();
+    this.chatColorsObservers          = ConcurrentHashMap.newKeySet();
+    this.stickerObservers             = ConcurrentHashMap.newKeySet();
+    this.stickerPackObservers         = ConcurrentHashMap.newKeySet();
+    this.attachmentObservers          = ConcurrentHashMap.newKeySet();
+    this.messageUpdateObservers       = ConcurrentHashMap.newKeySet();
+    this.messageInsertObservers       = new ConcurrentHashMap<>();
+    this.notificationProfileObservers = ConcurrentHashMap.newKeySet();
+    this.storyObservers               = new ConcurrentHashMap<>();
+    this.scheduledMessageObservers    = new ConcurrentHashMap<>();
+    this.callUpdateObservers          = ConcurrentHashMap.newKeySet();
+    this.callLinkObservers            = new ConcurrentHashMap<>();
+    this.inAppPaymentObservers        = ConcurrentHashMap.newKeySet();
+    this.conversationChangeObservers  = new ConcurrentHashMap<>();
+    this.pendingConversationChanges   = new HashMap<>();
   }
 
   public void registerConversationListObserver(@NonNull Observer listener) {
@@ -202,6 +226,17 @@ public class DatabaseObserver {
     executor.execute(() -> inAppPaymentObservers.add(observer));
   }
 
+  /**
+   * Adds an observer that receives typed, coalesced changes for the given thread. Prefer this over
+   * {@link #registerConversationObserver(long, Observer)} when you're able to apply individual
+   * inserts and updates rather than reloading everything.
+   */
+  public void registerConversationChangeObserver(long threadId, @NonNull ConversationChangeObserver listener) {
+    executor.execute(() -> {
+      registerMapped(conversationChangeObservers, threadId, listener);
+    });
+  }
+
   public void unregisterObserver(@NonNull Observer listener) {
     executor.execute(() -> {
       conversationListObservers.remove(listener);
@@ -234,6 +269,12 @@ public class DatabaseObserver {
     });
   }
 
+  public void unregisterObserver(@NonNull ConversationChangeObserver listener) {
+    executor.execute(() -> {
+      unregisterMapped(conversationChangeObservers, listener);
+    });
+  }
+
   public void notifyConversationListeners(Set<Long> threadIds) {
     for (long threadId : threadIds) {
       notifyConversationListeners(threadId);
@@ -241,15 +282,41 @@ public class DatabaseObserver {
   }
 
   public void notifyConversationListeners(long threadId) {
-    runPostSuccessfulTransaction(KEY_CONVERSATION + threadId, () -> {
+    runPostSuccessfulTransactionCoalesced(KEY_CONVERSATION + threadId, () -> {
       notifyMapped(conversationObservers, threadId);
       notifyMapped(verboseConversationObservers, threadId);
     });
+    publishConversationChange(KEY_CONVERSATION + threadId, threadId, ConversationChange.Builder::invalidate);
+  }
+
+  /**
+   * Notifies conversation listeners that a message was inserted at the end of the thread.
+   * {@link ConversationChangeObserver}s will be told which message was inserted, and all other
+   * conversation observers are notified as if by {@link #notifyConversationListeners(long)}.
+   */
+  public void notifyMessageInserted(long threadId, @NonNull MessageId messageId) {
+    runPostSuccessfulTransactionCoalesced(KEY_CONVERSATION + threadId, () -> {
+      notifyMapped(conversationObservers, threadId);
+      notifyMapped(verboseConversationObservers, threadId);
+    });
+    publishConversationChange(KEY_MESSAGE_INSERT + messageId, threadId, change -> change.insert(messageId));
+  }
+
+  /**
+   * Notifies conversation listeners that a message was deleted from the thread. Behaves like
+   * {@link #notifyMessageInserted(long, MessageId)}.
+   */
+  public void notifyMessageDeleted(long threadId, @NonNull MessageId messageId) {
+    runPostSuccessfulTransactionCoalesced(KEY_CONVERSATION + threadId, () -> {
+      notifyMapped(conversationObservers, threadId);
+      notifyMapped(verboseConversationObservers, threadId);
+    });
+    publishConversationChange(KEY_MESSAGE_DELETE + messageId, threadId, change -> change.delete(messageId));
   }
 
   public void notifyVerboseConversationListeners(Set<Long> threadIds) {
     for (long threadId : threadIds) {
-      runPostSuccessfulTransaction(KEY_VERBOSE_CONVERSATION + threadId, () -> {
+      runPostSuccessfulTransactionCoalesced(KEY_VERBOSE_CONVERSATION + threadId, () -> {
         notifyMapped(verboseConversationObservers, threadId);
       });
     }
@@ -268,7 +335,7 @@ public class DatabaseObserver {
   }
 
   public void notifyConversationListListeners() {
-    runPostSuccessfulTransaction(KEY_CONVERSATION_LIST, () -> {
+    runPostSuccessfulTransactionCoalesced(KEY_CONVERSATION_LIST, () -> {
       for (Observer listener : conversationListObservers) {
         listener.onChanged();
       }
@@ -313,10 +380,30 @@ public class DatabaseObserver {
     });
   }
 
+  /**
+   * Notifies message update observers. If anyone is observing conversation changes, the message's
+   * thread is looked up so the update can be included in its {@link ConversationChange}. Prefer
+   * {@link #notifyMessageUpdateObservers(long, MessageId)} when the thread is already known.
+   */
   public void notifyMessageUpdateObservers(@NonNull MessageId messageId) {
+    runPostSuccessfulTransaction(KEY_MESSAGE_UPDATE + messageId.toString(), () -> {
+      messageUpdateObservers.stream().forEach(l -> l.onMessageChanged(messageId));
+
+      if (!conversationChangeObservers.isEmpty()) {
+        long threadId = SignalDatabase.messages().getThreadIdForMessage(messageId.getId());
+
+        if (threadId > 0) {
+          mergeConversationChange(threadId, change -> change.update(messageId));
+        }
+      }
+    });
+  }
+
+  public void notifyMessageUpdateObservers(long threadId, @NonNull MessageId messageId) {
     runPostSuccessfulTransaction(KEY_MESSAGE_UPDATE + messageId.toString(), () -> {
       messageUpdateObservers.stream().forEach(l -> l.onMessageChanged(messageId));
     });
+    publishConversationChange(KEY_MESSAGE_UPDATE + messageId, threadId, change -> change.update(messageId));
   }
 
   public void notifyMessageInsertObservers(long threadId, @NonNull MessageId messageId) {
@@ -381,11 +468,63 @@ public class DatabaseObserver {
     });
   }
 
+  /**
+   * Like {@link #runPostSuccessfulTransaction(String, Runnable)}, but repeated notifications for the
+   * same key are also collapsed across transactions if they happen within {@link #COALESCE_WINDOW_MS}.
+   * Only use this for notifications where the runnable is fully described by its key.
+   */
+  private void runPostSuccessfulTransactionCoalesced(@NonNull String dedupeKey, @NonNull Runnable runnable) {
+    SignalDatabase.runPostSuccessfulTransaction(dedupeKey, () -> {
+      coalescer.publish(dedupeKey, runnable);
+    });
+  }
+
+  /**
+   * Merges a change into the pending {@link ConversationChange} for the thread, which is delivered
+   * once the coalescing window closes.
+   */
+  private void publishConversationChange(@NonNull String dedupeKey, long threadId, @NonNull ConversationChangeMutation mutation) {
+    SignalDatabase.runPostSuccessfulTransaction(KEY_CONVERSATION_CHANGE + dedupeKey, () -> {
+      mergeConversationChange(threadId, mutation);
+    });
+  }
+
+  private void mergeConversationChange(long threadId, @NonNull ConversationChangeMutation mutation) {
+    synchronized (pendingConversationChanges) {
+      ConversationChange.Builder builder = pendingConversationChanges.get(threadId);
+
+      if (builder == null) {
+        builder = new ConversationChange.Builder(threadId);
+        pendingConversationChanges.put(threadId, builder);
+      }
+
+      mutation.apply(builder);
+    }
+
+    coalescer.publish(KEY_CONVERSATION_CHANGE + threadId, () -> {
+      ConversationChange.Builder builder;
+
+      synchronized (pendingConversationChanges) {
+        builder = pendingConversationChanges.remove(threadId);
+      }
+
+      Set<ConversationChangeObserver> listeners = conversationChangeObservers.get(threadId);
+
+      if (builder != null && listeners != null) {
+        ConversationChange change = builder.build();
+
+        for (ConversationChangeObserver listener : listeners) {
+          listener.onConversationChanged(change);
+        }
+      }
+    });
+  }
+
   private <K, V> void registerMapped(@NonNull Map<K, Set<V>> map, @NonNull K key, @NonNull V listener) {
     Set<V> listeners = map.get(key);
 
     if (listeners == null) {
-      listeners = new HashSet<>();
+      listeners = ConcurrentHashMap.newKeySet();
     }
 
     listeners.add(listener);
@@ -444,4 +583,95 @@ public class DatabaseObserver {
   public interface InAppPaymentObserver {
     void onInAppPaymentChanged(@NonNull InAppPaymentTable.InAppPayment inAppPayment);
   }
+
+  public interface ConversationChangeObserver {
+    /**
+     * Called with all of the changes to a thread that happened within a single coalescing window.
+     * Executed on a serial executor, so don't do any long-running tasks!
+     */
+    void onConversationChanged(@NonNull ConversationChange change);
+  }
+
+  private interface ConversationChangeMutation {
+    void apply(@NonNull ConversationChange.Builder builder);
+  }
+
+  /**
+   * A batch of changes to a single thread. If {@link #isInvalidated()} is true, something changed
+   * that can't be described by the individual message ids, and consumers should reload everything.
+   */
+  public static final class ConversationChange {
+    private final long           threadId;
+    private final boolean        invalidated;
+    private final Set<MessageId> inserted;
+    private final Set<MessageId> updated;
+    private final Set<MessageId> deleted;
+
+    private ConversationChange(@NonNull Builder builder) {
+      this.threadId    = builder.threadId;
+      this.invalidated = builder.invalidated;
+      this.inserted    = Collections.unmodifiableSet(builder.inserted);
+      this.updated     = Collections.unmodifiableSet(builder.updated);
+      this.deleted     = Collections.unmodifiableSet(builder.deleted);
+    }
+
+    public long getThreadId() {
+      return threadId;
+    }
+
+    public boolean isInvalidated() {
+      return invalidated;
+    }
+
+    /**
+     * @return Inserted messages, in the order they were inserted.
+     */
+    public @NonNull Set<MessageId> getInserted() {
+      return inserted;
+    }
+
+    public @NonNull Set<MessageId> getUpdated() {
+      return updated;
+    }
+
+    public @NonNull Set<MessageId> getDeleted() {
+      return deleted;
+    }
+
+    private static final class Builder {
+      private final long           threadId;
+      private final Set<MessageId> inserted = new LinkedHashSet<>();
+      private final Set<MessageId> updated  = new LinkedHashSet<>();
+      private final Set<MessageId> deleted  = new LinkedHashSet<>();
+      private       boolean        invalidated;
+
+      private Builder(long threadId) {
+        this.threadId = threadId;
+      }
+
+      void invalidate() {
+        invalidated = true;
+      }
+
+      void insert(@NonNull MessageId messageId) {
+        inserted.add(messageId);
+      }
+
+      void update(@NonNull MessageId messageId) {
+        if (!inserted.contains(messageId)) {
+          updated.add(messageId);
+        }
+      }
+
+      void delete(@NonNull MessageId messageId) {
+        inserted.remove(messageId);
+        updated.remove(messageId);
+        deleted.add(messageId);
+      }
+
+      @NonNull ConversationChange build() {
+        return new ConversationChange(this);
+      }
+    }
+  }
 }
@@ -1351,13 +1351,16 @@ class GroupTable(context: Context?, databaseHelper: SignalDatabase?) : DatabaseT
   }
 
   private fun serviceIdsToRecipientIds(serviceIds: Sequence<ServiceId>): MutableList<RecipientId> {
-    return serviceIds
+    val allServiceIds: List<ServiceId> = serviceIds.toList()
+    val recipientIds: Map<ServiceId, RecipientId> = RecipientId.fromServiceIds(allServiceIds.filterNot { it.isUnknown })
+
+    return allServiceIds
       .map { serviceId ->
         if (serviceId.isUnknown) {
           Log.w(TAG, "Saw an unknown UUID when mapping to RecipientIds!")
           null
         } else {
-          val id = RecipientId.from(serviceId)
+          val id = recipientIds.getValue(serviceId)
           val remapped = RemappedRecords.getInstance().getRecipient(id)
           if (remapped.isPresent) {
             Log.w(TAG, "Saw that $id remapped to $remapped. Using the mapping.")
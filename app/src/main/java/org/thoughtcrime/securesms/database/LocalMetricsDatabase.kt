@@ -176,12 +176,14 @@ class LocalMetricsDatabase private constructor(
           count = getCount(eventName),
           p50 = eventPercent(eventName, 50),
           p90 = eventPercent(eventName, 90),
+          p95 = eventPercent(eventName, 95),
           p99 = eventPercent(eventName, 99),
           splits = splits.map { splitName ->
             SplitMetrics(
               name = splitName,
               p50 = splitPercent(eventName, splitName, 50),
               p90 = splitPercent(eventName, splitName, 90),
+              p95 = splitPercent(eventName, splitName, 95),
               p99 = splitPercent(eventName, splitName, 99)
             )
           }
@@ -257,6 +259,7 @@ class LocalMetricsDatabase private constructor(
     val count: Long,
     val p50: Long,
     val p90: Long,
+    val p95: Long,
     val p99: Long,
     val splits: List<SplitMetrics>
   )
@@ -265,6 +268,7 @@ class LocalMetricsDatabase private constructor(
     val name: String,
     val p50: Long,
     val p90: Long,
+    val p95: Long,
     val p99: Long
   )
 }
@@ -35,7 +35,6 @@ import org.signal.core.util.SqlUtil.buildSingleCollectionQuery
 import org.signal.core.util.SqlUtil.buildTrueUpdateQuery
 import org.signal.core.util.SqlUtil.getNextAutoIncrementId
 import org.signal.core.util.Stopwatch
-import org.signal.core.util.count
 import org.signal.core.util.delete
 import org.signal.core.util.deleteAll
 import org.signal.core.util.exists
@@ -867,7 +866,7 @@ open class MessageTable(context: Context?, databaseHelper: SignalDatabase) : Dat
     threads.update(threadId, true)
 
     notifyConversationListeners(threadId)
-    AppDependencies.databaseObserver.notifyMessageUpdateObservers(MessageId(messageId))
+    AppDependencies.databaseObserver.notifyMessageUpdateObservers(threadId, MessageId(messageId))
   }
 
   fun insertGroupCall(
@@ -2021,7 +2020,7 @@ open class MessageTable(context: Context?, databaseHelper: SignalDatabase) : Dat
   fun markAsRateLimited(messageId: Long) {
     val threadId = getThreadIdForMessage(messageId)
     updateMailboxBitmask(messageId, 0, MessageTypes.MESSAGE_RATE_LIMITED_BIT, Optional.of(threadId))
-    AppDependencies.databaseObserver.notifyMessageUpdateObservers(MessageId(messageId))
+    AppDependencies.databaseObserver.notifyMessageUpdateObservers(threadId, MessageId(messageId))
   }
 
   fun clearRateLimitStatus(ids: Collection<Long>) {
@@ -2036,21 +2035,21 @@ open class MessageTable(context: Context?, databaseHelper: SignalDatabase) : Dat
   fun markAsSending(messageId: Long) {
     val threadId = getThreadIdForMessage(messageId)
     updateMailboxBitmask(messageId, MessageTypes.BASE_TYPE_MASK, MessageTypes.BASE_SENDING_TYPE, Optional.of(threadId))
-    AppDependencies.databaseObserver.notifyMessageUpdateObservers(MessageId(messageId))
+    AppDependencies.databaseObserver.notifyMessageUpdateObservers(threadId, MessageId(messageId))
     AppDependencies.databaseObserver.notifyConversationListListeners()
   }
 
   fun markAsSentFailed(messageId: Long) {
     val threadId = getThreadIdForMessage(messageId)
     updateMailboxBitmask(messageId, MessageTypes.BASE_TYPE_MASK, MessageTypes.BASE_SENT_FAILED_TYPE, Optional.of(threadId))
-    AppDependencies.databaseObserver.notifyMessageUpdateObservers(MessageId(messageId))
+    AppDependencies.databaseObserver.notifyMessageUpdateObservers(threadId, MessageId(messageId))
     AppDependencies.databaseObserver.notifyConversationListListeners()
   }
 
   fun markAsSent(messageId: Long, secure: Boolean) {
     val threadId = getThreadIdForMessage(messageId)
     updateMailboxBitmask(messageId, MessageTypes.BASE_TYPE_MASK, MessageTypes.BASE_SENT_TYPE or if (secure) MessageTypes.PUSH_MESSAGE_BIT or MessageTypes.SECURE_MESSAGE_BIT else 0, Optional.of(threadId))
-    AppDependencies.databaseObserver.notifyMessageUpdateObservers(MessageId(messageId))
+    AppDependencies.databaseObserver.notifyMessageUpdateObservers(threadId, MessageId(messageId))
     AppDependencies.databaseObserver.notifyConversationListListeners()
   }
 
@@ -2363,13 +2362,11 @@ open class MessageTable(context: Context?, databaseHelper: SignalDatabase) : Dat
       }
   }
 
+  /**
+   * Served from the trigger-maintained [UnreadCountTable], so this does not scan the thread's unread messages.
+   */
   fun getUnreadMentionCount(threadId: Long): Int {
-    return readableDatabase
-      .count()
-      .from("$TABLE_NAME INDEXED BY $INDEX_THREAD_UNREAD_COUNT")
-      .where("$THREAD_ID = ? AND $STORY_TYPE = 0 AND $PARENT_STORY_ID <= 0 AND $LATEST_REVISION_ID IS NULL AND $SCHEDULED_DATE = -1 AND $READ = 0 AND $MENTIONS_SELF = 1", threadId)
-      .run()
-      .readToSingleInt()
+    return SignalDatabase.unreadCounts.getUnreadMentionCount(threadId)
   }
 
   /**
@@ -2713,7 +2710,11 @@ open class MessageTable(context: Context?, databaseHelper: SignalDatabase) : Dat
     }
 
     if (notifyObservers) {
-      notifyConversationListeners(threadId)
+      if (editedMessage == null && retrieved.quote == null && !retrieved.storyType.isStory) {
+        AppDependencies.databaseObserver.notifyMessageInserted(threadId, MessageId(messageId))
+      } else {
+        notifyConversationListeners(threadId)
+      }
     }
 
     if (retrieved.storyType.isStory) {
@@ -2827,7 +2828,7 @@ open class MessageTable(context: Context?, databaseHelper: SignalDatabase) : Dat
     }
 
     if (updated) {
-      AppDependencies.databaseObserver.notifyMessageUpdateObservers(MessageId(messageId))
+      AppDependencies.databaseObserver.notifyMessageUpdateObservers(threadId, MessageId(messageId))
       notifyConversationListeners(threadId)
     }
   }
@@ -3310,7 +3311,7 @@ open class MessageTable(context: Context?, databaseHelper: SignalDatabase) : Dat
     }
 
     if (notify) {
-      notifyConversationListeners(threadId)
+      AppDependencies.databaseObserver.notifyMessageDeleted(threadId, MessageId(messageId))
       notifyStickerListeners()
       notifyStickerPackListeners()
       OptimizeMessageSearchIndexJob.enqueue()
@@ -4170,13 +4171,18 @@ open class MessageTable(context: Context?, databaseHelper: SignalDatabase) : Dat
     return db.rawQuery(SNIPPET_QUERY, buildArgs(threadId))
   }
 
+  /**
+   * Served from the trigger-maintained [UnreadCountTable], so this does not scan the thread's unread messages.
+   */
   fun getUnreadCount(threadId: Long): Int {
-    return readableDatabase
-      .select("COUNT(*)")
-      .from("$TABLE_NAME INDEXED BY $INDEX_THREAD_UNREAD_COUNT")
-      .where("$THREAD_ID = $threadId AND $STORY_TYPE = 0 AND $PARENT_STORY_ID <= 0 AND $LATEST_REVISION_ID IS NULL AND $SCHEDULED_DATE = -1 AND $READ = 0")
-      .run()
-      .readToSingleInt()
+    return SignalDatabase.unreadCounts.getUnreadCount(threadId)
+  }
+
+  /**
+   * The number of outgoing messages in the thread with reactions that have not been seen yet.
+   */
+  fun getUnreadReactionCount(threadId: Long): Int {
+    return SignalDatabase.unreadCounts.getUnreadReactionCount(threadId)
   }
 
   fun messageExists(messageRecord: MessageRecord): Boolean {
@@ -4332,7 +4338,7 @@ open class MessageTable(context: Context?, databaseHelper: SignalDatabase) : Dat
     }
 
     for (update in messageUpdates) {
-      AppDependencies.databaseObserver.notifyMessageUpdateObservers(update.messageId)
+      AppDependencies.databaseObserver.notifyMessageUpdateObservers(update.threadId, update.messageId)
       AppDependencies.databaseObserver.notifyVerboseConversationListeners(setOf(update.threadId))
     }
 
@@ -4360,7 +4366,7 @@ open class MessageTable(context: Context?, databaseHelper: SignalDatabase) : Dat
     }
 
     for (threadUpdate in messageUpdates) {
-      AppDependencies.databaseObserver.notifyMessageUpdateObservers(threadUpdate.messageId)
+      AppDependencies.databaseObserver.notifyMessageUpdateObservers(threadUpdate.threadId, threadUpdate.messageId)
     }
 
     return messageUpdates.isNotEmpty()
@@ -4393,7 +4399,7 @@ open class MessageTable(context: Context?, databaseHelper: SignalDatabase) : Dat
     }
 
     for (update in messageUpdates) {
-      AppDependencies.databaseObserver.notifyMessageUpdateObservers(update.messageId)
+      AppDependencies.databaseObserver.notifyMessageUpdateObservers(update.threadId, update.messageId)
       AppDependencies.databaseObserver.notifyVerboseConversationListeners(setOf(update.threadId))
 
       if (messageQualifier == MessageQualifier.STORY) {
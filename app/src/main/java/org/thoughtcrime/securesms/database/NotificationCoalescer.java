@@ -0,0 +1,54 @@
+package org.thoughtcrime.securesms.database;
+
+import androidx.annotation.NonNull;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Collapses bursts of notifications for the same key into a single dispatch. The first
+ * notification for a key opens a window, and any notification published for that key before the
+ * window closes is dropped in favor of the pending one. Runnables published under the same key
+ * must therefore be interchangeable.
+ */
+final class NotificationCoalescer {
+
+  private final ScheduledExecutorService scheduler;
+  private final Executor                 dispatchExecutor;
+  private final long                     windowMs;
+  private final Map<String, Runnable>    pending;
+
+  NotificationCoalescer(@NonNull ScheduledExecutorService scheduler, @NonNull Executor dispatchExecutor, long windowMs) {
+    this.scheduler        = scheduler;
+    this.dispatchExecutor = dispatchExecutor;
+    this.windowMs         = windowMs;
+    this.pending          = new HashMap<>();
+  }
+
+  void publish(@NonNull String key, @NonNull Runnable runnable) {
+    synchronized (pending) {
+      if (pending.containsKey(key)) {
+        return;
+      }
+
+      pending.put(key, runnable);
+    }
+
+    scheduler.schedule(() -> dispatch(key), windowMs, TimeUnit.MILLISECONDS);
+  }
+
+  private void dispatch(@NonNull String key) {
+    Runnable runnable;
+
+    synchronized (pending) {
+      runnable = pending.remove(key);
+    }
+
+    if (runnable != null) {
+      dispatchExecutor.execute(runnable);
+    }
+  }
+}
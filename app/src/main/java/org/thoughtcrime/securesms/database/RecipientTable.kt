@@ -410,6 +410,9 @@ open class RecipientTable(context: Context, databaseHelper: SignalDatabase) : Da
     /** Used as a placeholder recipient for self during migrations when self isn't yet available. */
     private val PLACEHOLDER_SELF_ID = -2L
 
+    /** Marks an identifier in a bulk lookup that didn't match any row. */
+    private val MISSING_ROW = IdentifierRow(RecipientId.UNKNOWN, null, null, null)
+
     @JvmStatic
     fun maskCapabilitiesToLong(capabilities: SignalServiceProfile.Capabilities): Long {
       var value: Long = 0
@@ -504,26 +507,132 @@ open class RecipientTable(context: Context, databaseHelper: SignalDatabase) : Da
       }
 
       db.runPostSuccessfulTransaction {
-        if (result.affectedIds.isNotEmpty()) {
-          result.affectedIds.forEach { AppDependencies.databaseObserver.notifyRecipientChanged(it) }
-          RetrieveProfileJob.enqueue(result.affectedIds)
+        onPnpTuplesProcessed(listOf(result))
+      }
+    }
+
+    return result.finalId
+  }
+
+  /**
+   * Bulk version of [getAndPossiblyMerge]. Tuples that already match a single recipient are found with a few `IN (...)` lookups, and
+   * all remaining tuples are processed within a single transaction. Useful when resolving many identifiers at once, like group members.
+   *
+   * @return A map of every provided tuple to its final [RecipientId].
+   */
+  @JvmOverloads
+  fun getAndPossiblyMergeBulk(tuples: Collection<PnpTuple>, pniVerified: Boolean = false): Map<PnpTuple, RecipientId> {
+    val distinctTuples: Set<PnpTuple> = tuples.toSet()
+    if (distinctTuples.isEmpty()) {
+      return emptyMap()
+    }
+
+    distinctTuples.forEach { require(it.aci != null || it.pni != null || it.e164 != null) { "Must provide an ACI, PNI, or E164!" } }
+
+    val results: MutableMap<PnpTuple, RecipientId> = HashMap(distinctTuples.size)
+
+    val byAci: Map<ACI, IdentifierRow> = getIdentifierRows(ACI_COLUMN, distinctTuples.mapNotNull { it.aci?.toString() }).filter { it.aci != null }.associateBy { it.aci!! }
+    val byPni: Map<PNI, IdentifierRow> = getIdentifierRows(PNI_COLUMN, distinctTuples.mapNotNull { it.pni?.toString() }).filter { it.pni != null }.associateBy { it.pni!! }
+    val byE164: Map<String, IdentifierRow> = getIdentifierRows(E164, distinctTuples.mapNotNull { it.e164 }).filter { it.e164 != null }.associateBy { it.e164!! }
+
+    for (tuple in distinctTuples) {
+      val matches: List<IdentifierRow?> = listOfNotNull(
+        tuple.aci?.let { byAci[it] ?: MISSING_ROW },
+        tuple.pni?.let { byPni[it] ?: MISSING_ROW },
+        tuple.e164?.let { byE164[it] ?: MISSING_ROW }
+      )
+
+      val singleMatch: IdentifierRow? = matches.distinct().singleOrNull()
+      if (singleMatch != null && singleMatch !== MISSING_ROW) {
+        results[tuple] = singleMatch.id
+      }
+    }
+
+    val unmatched: List<PnpTuple> = distinctTuples.filterNot { results.containsKey(it) }
+    if (unmatched.isEmpty()) {
+      return results
+    }
+
+    Log.d(TAG, "[getAndPossiblyMergeBulk] ${unmatched.size} of ${distinctTuples.size} tuples require a transaction.")
+
+    val db = writableDatabase
+    val processed: MutableList<ProcessPnpTupleResult> = ArrayList(unmatched.size)
+
+    db.withinTransaction {
+      for (tuple in unmatched) {
+        val result = processPnpTuple(e164 = tuple.e164, pni = tuple.pni, aci = tuple.aci, pniVerified = pniVerified)
+
+        if (result.operations.isNotEmpty() || result.requiredInsert) {
+          Log.i(TAG, "[getAndPossiblyMergeBulk] (${tuple.aci}, ${tuple.pni}, ${tuple.e164}) BreadCrumbs: ${result.breadCrumbs}, Operations: ${result.operations}, RequiredInsert: ${result.requiredInsert}, FinalId: ${result.finalId}")
         }
 
-        if (result.oldIds.isNotEmpty()) {
-          result.oldIds.forEach { oldId ->
-            Recipient.live(oldId).refresh(result.finalId)
-            AppDependencies.recipientCache.remap(oldId, result.finalId)
-          }
+        results[tuple] = result.finalId
+        processed += result
+      }
+
+      db.runPostSuccessfulTransaction {
+        onPnpTuplesProcessed(processed)
+      }
+    }
+
+    // A later tuple may have merged away a recipient that an earlier tuple resolved to, so follow any merges to their final ID
+    val remaps: Map<RecipientId, RecipientId> = processed.flatMap { result -> result.oldIds.map { it to result.finalId } }.toMap()
+    if (remaps.isNotEmpty()) {
+      for ((tuple, id) in results) {
+        var finalId = id
+        val seen: MutableSet<RecipientId> = mutableSetOf()
+        while (remaps.containsKey(finalId) && seen.add(finalId)) {
+          finalId = remaps.getValue(finalId)
         }
+        results[tuple] = finalId
+      }
+    }
 
-        if (result.affectedIds.isNotEmpty() || result.oldIds.isNotEmpty()) {
-          StorageSyncHelper.scheduleSyncForDataChange()
-          RecipientId.clearCache()
+    return results
+  }
+
+  private fun getIdentifierRows(column: String, values: Collection<String>): List<IdentifierRow> {
+    return SqlUtil.buildCollectionQuery(column, values).flatMap { query ->
+      readableDatabase
+        .select(ID, ACI_COLUMN, PNI_COLUMN, E164)
+        .from(TABLE_NAME)
+        .where(query.where, query.whereArgs)
+        .run()
+        .readToList { cursor ->
+          IdentifierRow(
+            id = RecipientId.from(cursor.requireLong(ID)),
+            aci = ACI.parseOrNull(cursor.requireString(ACI_COLUMN)),
+            pni = PNI.parseOrNull(cursor.requireString(PNI_COLUMN)),
+            e164 = cursor.requireString(E164)
+          )
         }
+    }
+  }
+
+  /**
+   * Handles the side effects of processing PNP tuples. Must be called after the transaction that did the processing has succeeded.
+   */
+  private fun onPnpTuplesProcessed(results: Collection<ProcessPnpTupleResult>) {
+    val affectedIds: Set<RecipientId> = results.flatMap { it.affectedIds }.toSet()
+
+    if (affectedIds.isNotEmpty()) {
+      affectedIds.forEach { AppDependencies.databaseObserver.notifyRecipientChanged(it) }
+      RetrieveProfileJob.enqueue(affectedIds)
+    }
+
+    var hasOldIds = false
+    for (result in results) {
+      result.oldIds.forEach { oldId ->
+        Recipient.live(oldId).refresh(result.finalId)
+        AppDependencies.recipientCache.remap(oldId, result.finalId)
+        hasOldIds = true
       }
     }
 
-    return result.finalId
+    if (affectedIds.isNotEmpty() || hasOldIds) {
+      StorageSyncHelper.scheduleSyncForDataChange()
+      RecipientId.clearCache()
+    }
   }
 
   fun getAllServiceIdProfileKeyPairs(): Map<ServiceId, ProfileKey> {
@@ -4754,6 +4863,22 @@ open class RecipientTable(context: Context, databaseHelper: SignalDatabase) : Da
     val aci: ACI?
   )
 
+  /**
+   * A set of identifiers that are known to belong to the same recipient. At least one must be present.
+   */
+  data class PnpTuple(
+    val aci: ACI?,
+    val pni: PNI?,
+    val e164: String?
+  )
+
+  private data class IdentifierRow(
+    val id: RecipientId,
+    val aci: ACI?,
+    val pni: PNI?,
+    val e164: String?
+  )
+
   data class ProcessPnpTupleResult(
     val finalId: RecipientId,
     val requiredInsert: Boolean,
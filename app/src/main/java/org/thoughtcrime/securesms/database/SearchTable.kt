@@ -248,6 +248,24 @@ class SearchTable(context: Context, databaseHelper: SignalDatabase) : DatabaseTa
     return true
   }
 
+  /**
+   * Drops the triggers that keep the index in sync with the message table, so that a large number of messages can be inserted without indexing
+   * them one at a time. Must be followed by [resumeIndexingAndRebuild] within the same transaction, or else the index will fall out of sync.
+   */
+  fun pauseIndexing() {
+    writableDatabase.execSQL("DROP TRIGGER IF EXISTS $TRIGGER_AFTER_INSERT")
+    writableDatabase.execSQL("DROP TRIGGER IF EXISTS $TRIGGER_AFTER_DELETE")
+    writableDatabase.execSQL("DROP TRIGGER IF EXISTS $TRIGGER_AFTER_UPDATE")
+  }
+
+  /**
+   * Recreates the triggers dropped by [pauseIndexing] and then rebuilds the whole index from the message table in a single pass.
+   */
+  fun resumeIndexingAndRebuild() {
+    CREATE_TRIGGERS.forEach { writableDatabase.execSQL(it) }
+    writableDatabase.execSQL("INSERT INTO $FTS_TABLE_NAME ($FTS_TABLE_NAME) VALUES ('rebuild')")
+  }
+
   /**
    * Drops all tables and recreates them.
    */
@@ -76,6 +76,7 @@ open class SignalDatabase(private val context: Application, databaseSecret: Data
   val nameCollisionTables: NameCollisionTables = NameCollisionTables(context, this)
   val inAppPaymentTable: InAppPaymentTable = InAppPaymentTable(context, this)
   val inAppPaymentSubscriberTable: InAppPaymentSubscriberTable = InAppPaymentSubscriberTable(context, this)
+  val unreadCountTable: UnreadCountTable = UnreadCountTable(context, this)
   // TI_GLUE: eNT9XAHgq0lZdbQs2nfH start
   val tiDatabase: org.thoughtcrime.securesms.trustedIntroductions.glue.TI_DatabaseGlue =  org.thoughtcrime.securesms.trustedIntroductions.glue.TI_DatabaseGlue.createSingleton(context, this)
   val tiIdentityTable: org.thoughtcrime.securesms.trustedIntroductions.glue.IdentityTableGlue =  org.thoughtcrime.securesms.trustedIntroductions.glue.IdentityTableGlue.createSingleton(context, this)
@@ -119,6 +120,7 @@ open class SignalDatabase(private val context: Application, databaseSecret: Data
     NameCollisionTables.createTables(db)
     db.execSQL(InAppPaymentTable.CREATE_TABLE)
     db.execSQL(InAppPaymentSubscriberTable.CREATE_TABLE)
+    db.execSQL(UnreadCountTable.CREATE_TABLE)
     // TI_GLUE: eNT9XAHgq0lZdbQs2nfH start
     db.execSQL(org.thoughtcrime.securesms.trustedIntroductions.glue.TI_DatabaseGlue.getCreateTable())
     db.execSQL(org.thoughtcrime.securesms.trustedIntroductions.glue.IdentityTableGlue.getCreateTable())
@@ -152,6 +154,7 @@ open class SignalDatabase(private val context: Application, databaseSecret: Data
 
     executeStatements(db, SearchTable.CREATE_TRIGGERS)
     executeStatements(db, MessageSendLogTables.CREATE_TRIGGERS)
+    executeStatements(db, UnreadCountTable.CREATE_TRIGGERS)
 
     NameCollisionTables.createIndexes(db)
 
@@ -523,6 +526,11 @@ open class SignalDatabase(private val context: Application, databaseSecret: Data
     val storySends: StorySendTable
       get() = instance!!.storySendTable
 
+    @get:JvmStatic
+    @get:JvmName("unreadCounts")
+    val unreadCounts: UnreadCountTable
+      get() = instance!!.unreadCountTable
+
     @get:JvmStatic
     @get:JvmName("unknownStorageIds")
     val unknownStorageIds: UnknownStorageIdTable
@@ -40,6 +40,7 @@ import org.thoughtcrime.securesms.database.SignalDatabase.Companion.mentions
 import org.thoughtcrime.securesms.database.SignalDatabase.Companion.messageLog
 import org.thoughtcrime.securesms.database.SignalDatabase.Companion.messages
 import org.thoughtcrime.securesms.database.SignalDatabase.Companion.recipients
+import org.thoughtcrime.securesms.database.SignalDatabase.Companion.unreadCounts
 import org.thoughtcrime.securesms.database.ThreadBodyUtil.ThreadBody
 import org.thoughtcrime.securesms.database.model.MessageRecord
 import org.thoughtcrime.securesms.database.model.MmsMessageRecord
@@ -536,13 +537,12 @@ class ThreadTable(context: Context, databaseHelper: SignalDatabase) : DatabaseTa
 
         messages.setReactionsSeen(threadId, sinceTimestamp)
 
-        val unreadCount = messages.getUnreadCount(threadId)
-        val unreadMentionsCount = messages.getUnreadMentionCount(threadId)
+        val counts = unreadCounts.getCounts(threadId)
 
         val contentValues = contentValuesOf(
           READ to ReadStatus.READ.serialize(),
-          UNREAD_COUNT to unreadCount,
-          UNREAD_SELF_MENTION_COUNT to unreadMentionsCount
+          UNREAD_COUNT to counts.unreadCount,
+          UNREAD_SELF_MENTION_COUNT to counts.unreadMentionCount
         )
 
         if (lastSeen) {
@@ -1367,8 +1367,9 @@ class ThreadTable(context: Context, databaseHelper: SignalDatabase) : DatabaseTa
 
   fun updateReadState(threadId: Long) {
     val previous = getThreadRecord(threadId)
-    val unreadCount = messages.getUnreadCount(threadId)
-    val unreadMentionsCount = messages.getUnreadMentionCount(threadId)
+    val counts = unreadCounts.getCounts(threadId)
+    val unreadCount = counts.unreadCount
+    val unreadMentionsCount = counts.unreadMentionCount
 
     writableDatabase
       .update(TABLE_NAME)
@@ -1455,12 +1456,11 @@ class ThreadTable(context: Context, databaseHelper: SignalDatabase) : DatabaseTa
     if (forcedUnread) {
       values.put(READ, ReadStatus.FORCED_UNREAD.serialize())
     } else if (threadId != null) {
-      val unreadCount = messages.getUnreadCount(threadId)
-      val unreadMentionsCount = messages.getUnreadMentionCount(threadId)
+      val counts = unreadCounts.getCounts(threadId)
 
-      values.put(READ, if (unreadCount == 0) ReadStatus.READ.serialize() else ReadStatus.UNREAD.serialize())
-      values.put(UNREAD_COUNT, unreadCount)
-      values.put(UNREAD_SELF_MENTION_COUNT, unreadMentionsCount)
+      values.put(READ, if (counts.unreadCount == 0) ReadStatus.READ.serialize() else ReadStatus.UNREAD.serialize())
+      values.put(UNREAD_COUNT, counts.unreadCount)
+      values.put(UNREAD_SELF_MENTION_COUNT, counts.unreadMentionCount)
     }
 
     writableDatabase
@@ -1612,8 +1612,9 @@ class ThreadTable(context: Context, databaseHelper: SignalDatabase) : DatabaseTa
       }
 
       val threadBody: ThreadBody = ThreadBodyUtil.getFormattedBodyFor(context, record)
-      val unreadCount: Int = messages.getUnreadCount(threadId)
-      val unreadMentionCount: Int = messages.getUnreadMentionCount(threadId)
+      val counts = unreadCounts.getCounts(threadId)
+      val unreadCount: Int = counts.unreadCount
+      val unreadMentionCount: Int = counts.unreadMentionCount
 
       updateThread(
         threadId = threadId,
@@ -0,0 +1,153 @@
+/*
+ * Copyright 2024 Signal Messenger, LLC
+ * SPDX-License-Identifier: AGPL-3.0-only
+ */
+
+package org.thoughtcrime.securesms.database
+
+import android.content.Context
+import org.signal.core.util.readToSingleObject
+import org.signal.core.util.requireInt
+import org.signal.core.util.select
+
+/**
+ * Per-thread unread, unread-mention and unread-reaction counters. Rows are maintained entirely by triggers on the
+ * [MessageTable], so reading a thread's counts is a single primary key lookup rather than a scan of its unread messages.
+ *
+ * The predicates used by the triggers must match the ones that previously backed [MessageTable.getUnreadCount] and
+ * [MessageTable.getUnreadMentionCount].
+ */
+class UnreadCountTable(context: Context, databaseHelper: SignalDatabase) : DatabaseTable(context, databaseHelper) {
+
+  companion object {
+    const val TABLE_NAME = "thread_unread_count"
+
+    private const val THREAD_ID = "thread_id"
+    private const val UNREAD_COUNT = "unread_count"
+    private const val UNREAD_MENTION_COUNT = "unread_mention_count"
+    private const val UNREAD_REACTION_COUNT = "unread_reaction_count"
+
+    const val CREATE_TABLE = """
+      CREATE TABLE $TABLE_NAME (
+        $THREAD_ID INTEGER PRIMARY KEY REFERENCES ${ThreadTable.TABLE_NAME} (${ThreadTable.ID}) ON DELETE CASCADE,
+        $UNREAD_COUNT INTEGER NOT NULL DEFAULT 0,
+        $UNREAD_MENTION_COUNT INTEGER NOT NULL DEFAULT 0,
+        $UNREAD_REACTION_COUNT INTEGER NOT NULL DEFAULT 0
+      )
+    """
+
+    val CREATE_TRIGGERS: Array<String>
+      get() = arrayOf(
+        """
+        CREATE TRIGGER message_unread_count_ai AFTER INSERT ON ${MessageTable.TABLE_NAME}
+        WHEN (${unread("new")}) OR (${unreadReaction("new")})
+        BEGIN
+          ${increment("new")}
+        END;
+        """,
+        """
+        CREATE TRIGGER message_unread_count_ad AFTER DELETE ON ${MessageTable.TABLE_NAME}
+        WHEN (${unread("old")}) OR (${unreadReaction("old")})
+        BEGIN
+          ${decrement("old")}
+        END;
+        """,
+        """
+        CREATE TRIGGER message_unread_count_au AFTER UPDATE OF ${TRACKED_COLUMNS.joinToString(", ")} ON ${MessageTable.TABLE_NAME}
+        WHEN old.${MessageTable.THREAD_ID} != new.${MessageTable.THREAD_ID} OR
+          (${unread("old")}) != (${unread("new")}) OR
+          (${unreadMention("old")}) != (${unreadMention("new")}) OR
+          (${unreadReaction("old")}) != (${unreadReaction("new")})
+        BEGIN
+          ${decrement("old")}
+          ${increment("new")}
+        END;
+        """
+      )
+
+    private val TRACKED_COLUMNS = arrayOf(
+      MessageTable.THREAD_ID,
+      MessageTable.TYPE,
+      MessageTable.READ,
+      MessageTable.MENTIONS_SELF,
+      MessageTable.REACTIONS_UNREAD,
+      MessageTable.STORY_TYPE,
+      MessageTable.PARENT_STORY_ID,
+      MessageTable.SCHEDULED_DATE,
+      MessageTable.LATEST_REVISION_ID
+    )
+
+    private fun visible(row: String): String {
+      return "$row.${MessageTable.STORY_TYPE} = 0 AND $row.${MessageTable.PARENT_STORY_ID} <= 0 AND $row.${MessageTable.LATEST_REVISION_ID} IS NULL"
+    }
+
+    private fun unread(row: String): String {
+      return "${visible(row)} AND $row.${MessageTable.SCHEDULED_DATE} = -1 AND $row.${MessageTable.READ} = 0"
+    }
+
+    private fun unreadMention(row: String): String {
+      return "${unread(row)} AND $row.${MessageTable.MENTIONS_SELF} = 1"
+    }
+
+    private fun unreadReaction(row: String): String {
+      return "${visible(row)} AND $row.${MessageTable.REACTIONS_UNREAD} = 1 AND (${outgoing(row)})"
+    }
+
+    private fun outgoing(row: String): String {
+      return MessageTypes.OUTGOING_MESSAGE_TYPES.joinToString(" OR ") { "($row.${MessageTable.TYPE} & ${MessageTypes.BASE_TYPE_MASK} = $it)" }
+    }
+
+    private fun increment(row: String): String {
+      return """
+        INSERT INTO $TABLE_NAME ($THREAD_ID, $UNREAD_COUNT, $UNREAD_MENTION_COUNT, $UNREAD_REACTION_COUNT)
+        VALUES ($row.${MessageTable.THREAD_ID}, ${unread(row)}, ${unreadMention(row)}, ${unreadReaction(row)})
+        ON CONFLICT ($THREAD_ID) DO UPDATE SET
+          $UNREAD_COUNT = $UNREAD_COUNT + excluded.$UNREAD_COUNT,
+          $UNREAD_MENTION_COUNT = $UNREAD_MENTION_COUNT + excluded.$UNREAD_MENTION_COUNT,
+          $UNREAD_REACTION_COUNT = $UNREAD_REACTION_COUNT + excluded.$UNREAD_REACTION_COUNT;
+      """
+    }
+
+    private fun decrement(row: String): String {
+      return """
+        UPDATE $TABLE_NAME SET
+          $UNREAD_COUNT = MAX(0, $UNREAD_COUNT - (${unread(row)})),
+          $UNREAD_MENTION_COUNT = MAX(0, $UNREAD_MENTION_COUNT - (${unreadMention(row)})),
+          $UNREAD_REACTION_COUNT = MAX(0, $UNREAD_REACTION_COUNT - (${unreadReaction(row)}))
+        WHERE $THREAD_ID = $row.${MessageTable.THREAD_ID};
+      """
+    }
+  }
+
+  fun getCounts(threadId: Long): UnreadCounts {
+    return readableDatabase
+      .select(UNREAD_COUNT, UNREAD_MENTION_COUNT, UNREAD_REACTION_COUNT)
+      .from(TABLE_NAME)
+      .where("$THREAD_ID = ?", threadId)
+      .run()
+      .readToSingleObject { cursor ->
+        UnreadCounts(
+          unreadCount = cursor.requireInt(UNREAD_COUNT),
+          unreadMentionCount = cursor.requireInt(UNREAD_MENTION_COUNT),
+          unreadReactionCount = cursor.requireInt(UNREAD_REACTION_COUNT)
+        )
+      } ?: UnreadCounts.EMPTY
+  }
+
+  fun getUnreadCount(threadId: Long): Int = getCounts(threadId).unreadCount
+
+  fun getUnreadMentionCount(threadId: Long): Int = getCounts(threadId).unreadMentionCount
+
+  fun getUnreadReactionCount(threadId: Long): Int = getCounts(threadId).unreadReactionCount
+
+  data class UnreadCounts(
+    val unreadCount: Int,
+    val unreadMentionCount: Int,
+    val unreadReactionCount: Int
+  ) {
+    companion object {
+      @JvmField
+      val EMPTY = UnreadCounts(0, 0, 0)
+    }
+  }
+}
@@ -0,0 +1,117 @@
+/*
+ * Copyright 2024 Signal Messenger, LLC
+ * SPDX-License-Identifier: AGPL-3.0-only
+ */
+
+package org.thoughtcrime.securesms.database.helpers.migration
+
+import android.app.Application
+import net.zetetic.database.sqlcipher.SQLiteDatabase
+
+/**
+ * Adds a per-thread table of unread, unread-mention and unread-reaction counts that is kept up to date by triggers on the
+ * message table, and backfills it from the existing messages.
+ */
+@Suppress("ClassName")
+object V244_ThreadUnreadCountTable : SignalDatabaseMigration {
+  override fun migrate(context: Application, db: SQLiteDatabase, oldVersion: Int, newVersion: Int) {
+    db.execSQL(
+      """
+      CREATE TABLE thread_unread_count (
+        thread_id INTEGER PRIMARY KEY REFERENCES thread (_id) ON DELETE CASCADE,
+        unread_count INTEGER NOT NULL DEFAULT 0,
+        unread_mention_count INTEGER NOT NULL DEFAULT 0,
+        unread_reaction_count INTEGER NOT NULL DEFAULT 0
+      )
+      """
+    )
+
+    db.execSQL(
+      """
+      CREATE TRIGGER message_unread_count_ai AFTER INSERT ON message
+      WHEN
+        (new.story_type = 0 AND new.parent_story_id <= 0 AND new.latest_revision_id IS NULL AND new.scheduled_date = -1 AND new.read = 0) OR
+        (new.story_type = 0 AND new.parent_story_id <= 0 AND new.latest_revision_id IS NULL AND new.reactions_unread = 1 AND (new.type & 31) IN (21, 23, 22, 24, 25, 26, 2, 11))
+      BEGIN
+        INSERT INTO thread_unread_count (thread_id, unread_count, unread_mention_count, unread_reaction_count)
+        VALUES (
+          new.thread_id,
+          new.story_type = 0 AND new.parent_story_id <= 0 AND new.latest_revision_id IS NULL AND new.scheduled_date = -1 AND new.read = 0,
+          new.story_type = 0 AND new.parent_story_id <= 0 AND new.latest_revision_id IS NULL AND new.scheduled_date = -1 AND new.read = 0 AND new.mentions_self = 1,
+          new.story_type = 0 AND new.parent_story_id <= 0 AND new.latest_revision_id IS NULL AND new.reactions_unread = 1 AND (new.type & 31) IN (21, 23, 22, 24, 25, 26, 2, 11)
+        )
+        ON CONFLICT (thread_id) DO UPDATE SET
+          unread_count = unread_count + excluded.unread_count,
+          unread_mention_count = unread_mention_count + excluded.unread_mention_count,
+          unread_reaction_count = unread_reaction_count + excluded.unread_reaction_count;
+      END;
+      """
+    )
+
+    db.execSQL(
+      """
+      CREATE TRIGGER message_unread_count_ad AFTER DELETE ON message
+      WHEN
+        (old.story_type = 0 AND old.parent_story_id <= 0 AND old.latest_revision_id IS NULL AND old.scheduled_date = -1 AND old.read = 0) OR
+        (old.story_type = 0 AND old.parent_story_id <= 0 AND old.latest_revision_id IS NULL AND old.reactions_unread = 1 AND (old.type & 31) IN (21, 23, 22, 24, 25, 26, 2, 11))
+      BEGIN
+        UPDATE thread_unread_count SET
+          unread_count = MAX(0, unread_count - (old.story_type = 0 AND old.parent_story_id <= 0 AND old.latest_revision_id IS NULL AND old.scheduled_date = -1 AND old.read = 0)),
+          unread_mention_count = MAX(0, unread_mention_count - (old.story_type = 0 AND old.parent_story_id <= 0 AND old.latest_revision_id IS NULL AND old.scheduled_date = -1 AND old.read = 0 AND old.mentions_self = 1)),
+          unread_reaction_count = MAX(0, unread_reaction_count - (old.story_type = 0 AND old.parent_story_id <= 0 AND old.latest_revision_id IS NULL AND old.reactions_unread = 1 AND (old.type & 31) IN (21, 23, 22, 24, 25, 26, 2, 11)))
+        WHERE thread_id = old.thread_id;
+      END;
+      """
+    )
+
+    db.execSQL(
+      """
+      CREATE TRIGGER message_unread_count_au AFTER UPDATE OF thread_id, type, read, mentions_self, reactions_unread, story_type, parent_story_id, scheduled_date, latest_revision_id ON message
+      WHEN old.thread_id != new.thread_id OR
+        (old.story_type = 0 AND old.parent_story_id <= 0 AND old.latest_revision_id IS NULL AND old.scheduled_date = -1 AND old.read = 0) !=
+          (new.story_type = 0 AND new.parent_story_id <= 0 AND new.latest_revision_id IS NULL AND new.scheduled_date = -1 AND new.read = 0) OR
+        (old.story_type = 0 AND old.parent_story_id <= 0 AND old.latest_revision_id IS NULL AND old.scheduled_date = -1 AND old.read = 0 AND old.mentions_self = 1) !=
+          (new.story_type = 0 AND new.parent_story_id <= 0 AND new.latest_revision_id IS NULL AND new.scheduled_date = -1 AND new.read = 0 AND new.mentions_self = 1) OR
+        (old.story_type = 0 AND old.parent_story_id <= 0 AND old.latest_revision_id IS NULL AND old.reactions_unread = 1 AND (old.type & 31) IN (21, 23, 22, 24, 25, 26, 2, 11)) !=
+          (new.story_type = 0 AND new.parent_story_id <= 0 AND new.latest_revision_id IS NULL AND new.reactions_unread = 1 AND (new.type & 31) IN (21, 23, 22, 24, 25, 26, 2, 11))
+      BEGIN
+        UPDATE thread_unread_count SET
+          unread_count = MAX(0, unread_count - (old.story_type = 0 AND old.parent_story_id <= 0 AND old.latest_revision_id IS NULL AND old.scheduled_date = -1 AND old.read = 0)),
+          unread_mention_count = MAX(0, unread_mention_count - (old.story_type = 0 AND old.parent_story_id <= 0 AND old.latest_revision_id IS NULL AND old.scheduled_date = -1 AND old.read = 0 AND old.mentions_self = 1)),
+          unread_reaction_count = MAX(0, unread_reaction_count - (old.story_type = 0 AND old.parent_story_id <= 0 AND old.latest_revision_id IS NULL AND old.reactions_unread = 1 AND (old.type & 31) IN (21, 23, 22, 24, 25, 26, 2, 11)))
+        WHERE thread_id = old.thread_id;
+
+        INSERT INTO thread_unread_count (thread_id, unread_count, unread_mention_count, unread_reaction_count)
+        VALUES (
+          new.thread_id,
+          new.story_type = 0 AND new.parent_story_id <= 0 AND new.latest_revision_id IS NULL AND new.scheduled_date = -1 AND new.read = 0,
+          new.story_type = 0 AND new.parent_story_id <= 0 AND new.latest_revision_id IS NULL AND new.scheduled_date = -1 AND new.read = 0 AND new.mentions_self = 1,
+          new.story_type = 0 AND new.parent_story_id <= 0 AND new.latest_revision_id IS NULL AND new.reactions_unread = 1 AND (new.type & 31) IN (21, 23, 22, 24, 25, 26, 2, 11)
+        )
+        ON CONFLICT (thread_id) DO UPDATE SET
+          unread_count = unread_count + excluded.unread_count,
+          unread_mention_count = unread_mention_count + excluded.unread_mention_count,
+          unread_reaction_count = unread_reaction_count + excluded.unread_reaction_count;
+      END;
+      """
+    )
+
+    db.execSQL(
+      """
+      INSERT OR REPLACE INTO thread_unread_count (thread_id, unread_count, unread_mention_count, unread_reaction_count)
+      SELECT
+        thread_id,
+        SUM(scheduled_date = -1 AND read = 0),
+        SUM(scheduled_date = -1 AND read = 0 AND mentions_self = 1),
+        SUM(reactions_unread = 1 AND (type & 31) IN (21, 23, 22, 24, 25, 26, 2, 11))
+      FROM message
+      WHERE
+        story_type = 0 AND
+        parent_story_id <= 0 AND
+        latest_revision_id IS NULL AND
+        thread_id IN (SELECT _id FROM thread)
+      GROUP BY thread_id
+      """
+    )
+  }
+}
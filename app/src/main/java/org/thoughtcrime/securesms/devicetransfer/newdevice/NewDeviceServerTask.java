@@ -3,6 +3,7 @@ package org.thoughtcrime.securesms.devicetransfer.newdevice;
 import android.content.Context;
 
 import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
 
 import net.zetetic.database.sqlcipher.SQLiteDatabase;
 
@@ -10,7 +11,8 @@ import org.greenrobot.eventbus.EventBus;
 import org.greenrobot.eventbus.Subscribe;
 import org.greenrobot.eventbus.ThreadMode;
 import org.signal.core.util.logging.Log;
-import org.signal.devicetransfer.ServerTask;
+import org.signal.devicetransfer.MultiplexedInput;
+import org.signal.devicetransfer.MultiplexedServerTask;
 import org.thoughtcrime.securesms.AppInitialization;
 import org.thoughtcrime.securesms.backup.BackupEvent;
 import org.thoughtcrime.securesms.backup.BackupPassphrase;
@@ -26,13 +28,24 @@ import java.io.InputStream;
 /**
  * Performs the restore with the backup data coming in over the input stream. Used in
  * conjunction with {@link org.signal.devicetransfer.DeviceToDeviceTransferService}.
+ * <p>
+ * When the old device supports it, attachments and stickers come in over channels of their own.
  */
-final class NewDeviceServerTask implements ServerTask {
+final class NewDeviceServerTask implements MultiplexedServerTask {
 
   private static final String TAG = Log.tag(NewDeviceServerTask.class);
 
   @Override
   public void run(@NonNull Context context, @NonNull InputStream inputStream) {
+    receive(context, inputStream, null);
+  }
+
+  @Override
+  public void run(@NonNull Context context, @NonNull InputStream inputStream, @NonNull MultiplexedInput channels) {
+    receive(context, inputStream, channels);
+  }
+
+  private void receive(@NonNull Context context, @NonNull InputStream inputStream, @Nullable MultiplexedInput channels) {
     long start = System.currentTimeMillis();
 
     Log.i(TAG, "Starting backup restore.");
@@ -46,12 +59,22 @@ final class NewDeviceServerTask implements ServerTask {
 
       BackupPassphrase.set(context, passphrase);
       // TI_GLUE: eNT9XAHgq0lZdbQs2nfH start
-      FullBackupImporter.importFile(context,
-                                    AttachmentSecretProvider.getInstance(context).getOrCreateAttachmentSecret(),
-                                    database,
-                                    inputStream,
-                                    null,
-                                    passphrase);
+      if (channels != null) {
+        FullBackupImporter.importFile(context,
+                                      AttachmentSecretProvider.getInstance(context).getOrCreateAttachmentSecret(),
+                                      database,
+                                      inputStream,
+                                      null,
+                                      passphrase,
+                                      channels);
+      } else {
+        FullBackupImporter.importFile(context,
+                                      AttachmentSecretProvider.getInstance(context).getOrCreateAttachmentSecret(),
+                                      database,
+                                      inputStream,
+                                      null,
+                                      passphrase);
+      }
       // TI_GLUE: eNT9XAHgq0lZdbQs2nfH end
 
       SignalDatabase.runPostBackupRestoreTasks(database);
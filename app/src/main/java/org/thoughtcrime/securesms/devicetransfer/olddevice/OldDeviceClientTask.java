@@ -3,12 +3,14 @@ package org.thoughtcrime.securesms.devicetransfer.olddevice;
 import android.content.Context;
 
 import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
 
 import org.greenrobot.eventbus.EventBus;
 import org.greenrobot.eventbus.Subscribe;
 import org.greenrobot.eventbus.ThreadMode;
 import org.signal.core.util.logging.Log;
-import org.signal.devicetransfer.ClientTask;
+import org.signal.devicetransfer.MultiplexedClientTask;
+import org.signal.devicetransfer.MultiplexedOutput;
 import org.thoughtcrime.securesms.backup.BackupEvent;
 import org.thoughtcrime.securesms.backup.FullBackupExporter;
 import org.thoughtcrime.securesms.crypto.AttachmentSecretProvider;
@@ -22,8 +24,11 @@ import java.io.OutputStream;
 /**
  * Create the backup stream of the old device and sends it over the wire via the output stream.
  * Used in conjunction with {@link org.signal.devicetransfer.DeviceToDeviceTransferService}.
+ * <p>
+ * When the new device supports it, attachments and stickers are sent over channels of their own,
+ * in parallel with the rest of the backup.
  */
-final class OldDeviceClientTask implements ClientTask {
+final class OldDeviceClientTask implements MultiplexedClientTask {
 
   private static final String TAG = Log.tag(OldDeviceClientTask.class);
 
@@ -33,6 +38,15 @@ final class OldDeviceClientTask implements ClientTask {
 
   @Override
   public void run(@NonNull Context context, @NonNull OutputStream outputStream) throws IOException {
+    send(context, outputStream, null);
+  }
+
+  @Override
+  public void run(@NonNull Context context, @NonNull OutputStream outputStream, @NonNull MultiplexedOutput channels) throws IOException {
+    send(context, outputStream, channels);
+  }
+
+  private void send(@NonNull Context context, @NonNull OutputStream outputStream, @Nullable MultiplexedOutput channels) throws IOException {
     DeviceTransferBlockingInterceptor.getInstance().blockNetwork();
 
     long start = System.currentTimeMillis();
@@ -45,7 +59,8 @@ final class OldDeviceClientTask implements ClientTask {
                                   SignalDatabase.getBackupDatabase(),
                                   outputStream,
                                   outputStream, // TODO: probably a bad idea (check if really immutable)
-                                  "deadbeef");
+                                  "deadbeef",
+                                  channels);
       // TI_GLUE: eNT9XAHgq0lZdbQs2nfH end
     } catch (Exception e) {
       DeviceTransferBlockingInterceptor.getInstance().unblockNetwork();
@@ -2,20 +2,26 @@ package org.thoughtcrime.securesms.glide.cache;
 
 
 import androidx.annotation.NonNull;
+import androidx.annotation.VisibleForTesting;
 
 import org.signal.core.util.StreamUtil;
 import org.thoughtcrime.securesms.util.Util;
 
+import java.io.ByteArrayInputStream;
 import java.io.Closeable;
+import java.io.DataInputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.OutputStream;
+import java.security.GeneralSecurityException;
 import java.security.InvalidAlgorithmParameterException;
 import java.security.InvalidKeyException;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
 
 import javax.crypto.Cipher;
 import javax.crypto.CipherInputStream;
@@ -25,6 +31,16 @@ import javax.crypto.NoSuchPaddingException;
 import javax.crypto.spec.IvParameterSpec;
 import javax.crypto.spec.SecretKeySpec;
 
+/**
+ * Reads and writes Glide disk cache files, which are AES-CTR encrypted with a key derived from a random value stored in
+ * the file header.
+ * <p>
+ * Most cache hits are small thumbnails, so files up to {@link #SMALL_ENTRY_MAX_BYTES} are read with a single read and
+ * decrypted in place with a per-thread {@link Mac} and {@link Cipher}, rather than allocating a new cipher stream for
+ * every hit. Glide usually checks whether a decoder handles a file right before decoding it, so the most recently
+ * decrypted small file on each thread is kept around to avoid decrypting it twice. It's only reused if the file's header
+ * still has the same random value, which is new on every write, so a rewritten file is never served stale.
+ */
 class EncryptedCoder {
 
   private static byte[] MAGIC_BYTES = {(byte)0x91, (byte)0x5e, (byte)0x6d, (byte)0xb4,
@@ -32,6 +48,14 @@ class EncryptedCoder {
                                        (byte)0xe5, (byte)0xb1, (byte)0x1b, (byte)0xd7,
                                        (byte)0x29, (byte)0xe5, (byte)0x04, (byte)0xcc};
 
+  private static final int RANDOM_LENGTH         = 32;
+  private static final int HEADER_LENGTH         = MAGIC_BYTES.length + RANDOM_LENGTH;
+  private static final int SMALL_ENTRY_MAX_BYTES = 256 * 1024;
+
+  private static final ThreadLocal<Mac>        MAC        = new ThreadLocal<>();
+  private static final ThreadLocal<Cipher>     CIPHER     = new ThreadLocal<>();
+  private static final ThreadLocal<SmallEntry> LAST_ENTRY = new ThreadLocal<>();
+
   OutputStream createEncryptedOutputStream(@NonNull byte[] masterKey, @NonNull File file)
       throws IOException
   {
@@ -59,7 +83,77 @@ class EncryptedCoder {
     }
   }
 
-  CipherInputStream createEncryptedInputStream(@NonNull byte[] masterKey, @NonNull File file) throws IOException {
+  InputStream createEncryptedInputStream(@NonNull byte[] masterKey, @NonNull File file) throws IOException {
+    long length = file.length();
+
+    if (length >= HEADER_LENGTH + MAGIC_BYTES.length && length <= SMALL_ENTRY_MAX_BYTES) {
+      return readSmallEntry(masterKey, file, (int) length);
+    } else {
+      return createCipherInputStream(masterKey, file);
+    }
+  }
+
+  private @NonNull InputStream readSmallEntry(@NonNull byte[] masterKey, @NonNull File file, int length) throws IOException {
+    byte[] data = new byte[length];
+
+    try (DataInputStream inputStream = new DataInputStream(new FileInputStream(file))) {
+      inputStream.readFully(data, 0, HEADER_LENGTH);
+
+      SmallEntry lastEntry = LAST_ENTRY.get();
+
+      if (lastEntry != null && lastEntry.matches(masterKey, file, data)) {
+        return lastEntry.newInputStream();
+      }
+
+      inputStream.readFully(data, HEADER_LENGTH, length - HEADER_LENGTH);
+    }
+
+    if (!equals(data, 0, MAGIC_BYTES)) {
+      throw new IOException("Not an encrypted cache file!");
+    }
+
+    try {
+      Mac mac = MAC.get();
+      if (mac == null) {
+        mac = Mac.getInstance("HmacSHA256");
+        MAC.set(mac);
+      }
+
+      Cipher cipher = CIPHER.get();
+      if (cipher == null) {
+        cipher = Cipher.getInstance("AES/CTR/NoPadding");
+        CIPHER.set(cipher);
+      }
+
+      mac.init(new SecretKeySpec(masterKey, "HmacSHA256"));
+      mac.update(data, MAGIC_BYTES.length, RANDOM_LENGTH);
+
+      cipher.init(Cipher.DECRYPT_MODE, new SecretKeySpec(mac.doFinal(), "AES"), new IvParameterSpec(new byte[16]));
+      cipher.doFinal(data, HEADER_LENGTH, length - HEADER_LENGTH, data, HEADER_LENGTH);
+    } catch (GeneralSecurityException e) {
+      throw new AssertionError(e);
+    }
+
+    if (!equals(data, HEADER_LENGTH, MAGIC_BYTES)) {
+      throw new IOException("Key change on encrypted cache file!");
+    }
+
+    SmallEntry entry = new SmallEntry(masterKey, file, data);
+    LAST_ENTRY.set(entry);
+
+    return entry.newInputStream();
+  }
+
+  private static boolean equals(@NonNull byte[] data, int offset, @NonNull byte[] expected) {
+    int result = 0;
+    for (int i = 0; i < expected.length; i++) {
+      result |= data[offset + i] ^ expected[i];
+    }
+    return result == 0;
+  }
+
+  @VisibleForTesting
+  @NonNull CipherInputStream createCipherInputStream(@NonNull byte[] masterKey, @NonNull File file) throws IOException {
     Closeable cleanupFinally = null;
     try {
       Mac    mac    = Mac.getInstance("HmacSHA256");
@@ -103,5 +197,34 @@ class EncryptedCoder {
     }
   }
 
+  /**
+   * A decrypted small file. The header at the start of {@link #data} is left as it was read, so it can be compared with
+   * the header of the file as it is now.
+   */
+  private static final class SmallEntry {
+    private final byte[] masterKey;
+    private final File   file;
+    private final byte[] data;
+
+    private SmallEntry(@NonNull byte[] masterKey, @NonNull File file, @NonNull byte[] data) {
+      this.masterKey = masterKey;
+      this.file      = file;
+      this.data      = data;
+    }
 
+    /**
+     * @param header A buffer of the file's current length, starting with its header.
+     */
+    boolean matches(@NonNull byte[] otherMasterKey, @NonNull File other, @NonNull byte[] header) {
+      return file.equals(other) &&
+             data.length == header.length &&
+             Arrays.equals(masterKey, otherMasterKey) &&
+             EncryptedCoder.equals(header, 0, Arrays.copyOf(data, HEADER_LENGTH));
+    }
+
+    @NonNull InputStream newInputStream() {
+      int offset = HEADER_LENGTH + MAGIC_BYTES.length;
+      return new ByteArrayInputStream(data, offset, data.length - offset);
+    }
+  }
 }
@@ -15,6 +15,7 @@ import org.thoughtcrime.securesms.R;
 import org.thoughtcrime.securesms.attachments.Attachment;
 import org.thoughtcrime.securesms.attachments.AttachmentId;
 import org.thoughtcrime.securesms.attachments.DatabaseAttachment;
+import org.thoughtcrime.securesms.attachments.StreamingAttachmentUploader;
 import org.thoughtcrime.securesms.crypto.AttachmentSecret;
 import org.thoughtcrime.securesms.crypto.AttachmentSecretProvider;
 import org.thoughtcrime.securesms.crypto.ModernDecryptingPartInputStream;
@@ -50,10 +51,14 @@ import org.thoughtcrime.securesms.video.videoconverter.exceptions.EncodingExcept
 import java.io.ByteArrayInputStream;
 import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.OutputStream;
+import java.io.SequenceInputStream;
 import java.util.Objects;
 import java.util.concurrent.TimeUnit;
 
+import kotlin.Pair;
+
 public final class AttachmentCompressionJob extends BaseJob {
 
   public static final String KEY = "AttachmentCompressionJob";
@@ -271,7 +276,8 @@ public final class AttachmentCompressionJob extends BaseJob {
             File file = AttachmentTable.newDataFile(context);
             file.deleteOnExit();
 
-            boolean faststart = false;
+            boolean                     faststart       = false;
+            StreamingAttachmentUploader streamingUpload = null;
             try {
               try (OutputStream outputStream = ModernEncryptingPartOutputStream.createFor(attachmentSecret, file, true).second) {
                 transcoder.transcode(percent -> {
@@ -305,9 +311,19 @@ public final class AttachmentCompressionJob extends BaseJob {
               });
 
               final long plaintextLength = ModernEncryptingPartOutputStream.getPlaintextLength(file.length());
-              try (MediaStream mediaStream = new MediaStream(postProcessor.process(plaintextLength), MimeTypes.VIDEO_MP4, 0, 0, true)) {
-                attachmentDatabase.updateAttachmentData(attachment, mediaStream);
-                faststart = true;
+              try {
+                Pair<SequenceInputStream, Long> processed = postProcessor.processWithLength(plaintextLength);
+                InputStream                     dataStream = processed.getFirst();
+
+                streamingUpload = StreamingAttachmentUploader.startIfPossible(context, attachment, MimeTypes.VIDEO_MP4, processed.getSecond(), cancelationSignal);
+                if (streamingUpload != null) {
+                  dataStream = streamingUpload.tee(dataStream);
+                }
+
+                try (MediaStream mediaStream = new MediaStream(dataStream, MimeTypes.VIDEO_MP4, 0, 0, true)) {
+                  attachmentDatabase.updateAttachmentData(attachment, mediaStream);
+                  faststart = true;
+                }
               } catch (VideoPostProcessingException e) {
                 Log.w(TAG, "Exception thrown during post processing.", e);
                 final Throwable cause = e.getCause();
@@ -316,6 +332,11 @@ public final class AttachmentCompressionJob extends BaseJob {
                 } else if (cause instanceof EncodingException) {
                   throw (EncodingException) cause;
                 }
+              } finally {
+                if (!faststart && streamingUpload != null) {
+                  streamingUpload.cancel();
+                  streamingUpload = null;
+                }
               }
 
               if (!faststart) {
@@ -331,6 +352,10 @@ public final class AttachmentCompressionJob extends BaseJob {
 
             attachmentDatabase.markAttachmentAsTransformed(attachment.attachmentId, faststart);
 
+            if (streamingUpload != null) {
+              streamingUpload.finish();
+            }
+
             return Objects.requireNonNull(attachmentDatabase.getAttachment(attachment.attachmentId));
           } else {
             Log.i(TAG, "Transcode was not required");
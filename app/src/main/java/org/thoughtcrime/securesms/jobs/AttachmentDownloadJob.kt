@@ -44,6 +44,7 @@ import org.whispersystems.signalservice.api.push.exceptions.MissingConfiguration
 import org.whispersystems.signalservice.api.push.exceptions.NonSuccessfulResponseCodeException
 import org.whispersystems.signalservice.api.push.exceptions.PushNetworkException
 import org.whispersystems.signalservice.api.push.exceptions.RangeException
+import org.whispersystems.signalservice.internal.push.AttachmentChunkState
 import java.io.File
 import java.io.IOException
 import java.util.Optional
@@ -69,6 +70,9 @@ class AttachmentDownloadJob private constructor(
     private const val KEY_MANUAL = "part_manual"
     private const val KEY_FORCE_ARCHIVE = "force_archive"
 
+    /** Attachments at least this large are fetched as concurrent byte ranges that can resume chunk-by-chunk. */
+    private const val CHUNKED_DOWNLOAD_THRESHOLD = 4L * 1024 * 1024
+
     @JvmStatic
     fun constructQueueString(attachmentId: AttachmentId): String {
       return "AttachmentDownloadJob-" + attachmentId.id
@@ -279,6 +283,14 @@ class AttachmentDownloadJob private constructor(
             false,
             progressListener
           )
+      } else if (attachment.size >= CHUNKED_DOWNLOAD_THRESHOLD) {
+        messageReceiver
+          .retrieveAttachmentChunked(
+            pointer,
+            attachmentFile,
+            maxReceiveSize,
+            progressListener
+          )
       } else {
         messageReceiver
           .retrieveAttachment(
@@ -293,6 +305,7 @@ class AttachmentDownloadJob private constructor(
     } catch (e: RangeException) {
       val transferFile = archiveFile ?: attachmentFile
       Log.w(TAG, "Range exception, file size " + transferFile.length(), e)
+      AttachmentChunkState.stateFileFor(transferFile).delete()
       if (transferFile.delete()) {
         Log.i(TAG, "Deleted temp download file to recover")
         throw RetryLaterException(e)
@@ -21,7 +21,9 @@ import java.security.MessageDigest
 /**
  * This job backfills hashes for attachments that were sent before we started hashing them.
  * In order to avoid hammering the device with hash calculations and disk I/O, this job will
- * calculate the hash for a single attachment and then reschedule itself to run again if necessary.
+ * hash a small batch of attachments, pausing between each one, and then reschedule itself to run again if necessary.
+ *
+ * Each hash is saved as soon as it's calculated, so an interrupted batch only loses the file it was working on.
  */
 class AttachmentHashBackfillJob private constructor(parameters: Parameters) : Job(parameters) {
 
@@ -29,6 +31,11 @@ class AttachmentHashBackfillJob private constructor(parameters: Parameters) : Jo
     val TAG = Log.tag(AttachmentHashBackfillJob::class.java)
 
     const val KEY = "AttachmentHashBackfillJob"
+
+    private const val BATCH_SIZE = 20
+    private const val BATCH_MAX_BYTES = 50L * 1024 * 1024
+    private const val PAUSE_BETWEEN_FILES_MS = 100L
+    private const val PAUSE_BETWEEN_BATCHES_MS = 1000L
   }
 
   private var activeFile: File? = null
@@ -47,19 +54,51 @@ class AttachmentHashBackfillJob private constructor(parameters: Parameters) : Jo
   override fun getFactoryKey() = KEY
 
   override fun run(): Result {
-    val (file: File?, attachmentId: AttachmentId?) = SignalDatabase.attachments.getUnhashedDataFile() ?: (null to null)
-    if (file == null || attachmentId == null) {
+    val batch: List<Pair<File, AttachmentId>> = SignalDatabase.attachments.getUnhashedDataFiles(BATCH_SIZE)
+    if (batch.isEmpty()) {
       Log.i(TAG, "No more unhashed files! Task complete.")
       return Result.success()
     }
 
-    activeFile = file
+    var filesHashed = 0
+    var bytesHashed = 0L
+
+    for ((file, attachmentId) in batch) {
+      if (isCanceled || bytesHashed >= BATCH_MAX_BYTES) {
+        break
+      }
+
+      activeFile = file
+      val length = file.length()
+
+      if (!hashFile(file, attachmentId)) {
+        return Result.retry(defaultBackoff())
+      }
+
+      filesHashed++
+      bytesHashed += length
+
+      ThreadUtil.sleep(PAUSE_BETWEEN_FILES_MS)
+    }
+
+    activeFile = null
+    Log.i(TAG, "Hashed $filesHashed files ($bytesHashed bytes). ${SignalDatabase.attachments.getUnhashedDataFileCount()} attachments remaining.")
 
+    // Sleep just so we don't hammer the device with hash calculations and disk I/O
+    ThreadUtil.sleep(PAUSE_BETWEEN_BATCHES_MS)
+
+    AppDependencies.jobManager.add(AttachmentHashBackfillJob())
+    return Result.success()
+  }
+
+  /**
+   * @return False if the file should be retried later, otherwise true.
+   */
+  private fun hashFile(file: File, attachmentId: AttachmentId): Boolean {
     if (!file.exists()) {
       Log.w(TAG, "File does not exist! Clearing all usages.", true)
       SignalDatabase.attachments.clearUsagesOfDataFile(file)
-      AppDependencies.jobManager.add(AttachmentHashBackfillJob())
-      return Result.success()
+      return true
     }
 
     try {
@@ -83,15 +122,11 @@ class AttachmentHashBackfillJob private constructor(parameters: Parameters) : Jo
         Log.w(TAG, "Underlying cause was a FileNotFoundException. Clearing all usages.", true)
         SignalDatabase.attachments.clearUsagesOfDataFile(file)
       } else {
-        return Result.retry(defaultBackoff())
+        return false
       }
     }
 
-    // Sleep just so we don't hammer the device with hash calculations and disk I/O
-    ThreadUtil.sleep(1000)
-
-    AppDependencies.jobManager.add(AttachmentHashBackfillJob())
-    return Result.success()
+    return true
   }
 
   override fun onFailure() {
@@ -0,0 +1,85 @@
+package org.thoughtcrime.securesms.jobs
+
+import org.signal.core.util.logging.Log
+import org.thoughtcrime.securesms.attachments.AttachmentId
+import org.thoughtcrime.securesms.attachments.ThumbnailPyramid
+import org.thoughtcrime.securesms.database.SignalDatabase
+import org.thoughtcrime.securesms.dependencies.AppDependencies
+import org.thoughtcrime.securesms.jobmanager.Job
+import org.thoughtcrime.securesms.jobmanager.JsonJobData
+import java.io.IOException
+import kotlin.time.Duration.Companion.days
+
+/**
+ * Generate and save the [ThumbnailPyramid] for an image or video attachment.
+ */
+class AttachmentThumbnailPyramidJob private constructor(private val attachmentId: AttachmentId, parameters: Parameters) : BaseJob(parameters) {
+
+  companion object {
+    private val TAG = Log.tag(AttachmentThumbnailPyramidJob::class.java)
+
+    private const val KEY_ATTACHMENT_ID = "part_row_id"
+
+    const val KEY = "AttachmentThumbnailPyramidJob"
+
+    @JvmStatic
+    fun enqueueIfSupported(attachmentId: AttachmentId, contentType: String?) {
+      if (ThumbnailPyramid.isSupported(contentType)) {
+        AppDependencies.jobManager.add(AttachmentThumbnailPyramidJob(attachmentId))
+      }
+    }
+  }
+
+  private constructor(attachmentId: AttachmentId) : this(
+    attachmentId,
+    Parameters.Builder()
+      .setQueue("AttachmentThumbnailPyramidJob")
+      .setLifespan(1.days.inWholeMilliseconds)
+      .setMaxAttempts(1)
+      .build()
+  )
+
+  override fun serialize(): ByteArray? {
+    return JsonJobData.Builder()
+      .putLong(KEY_ATTACHMENT_ID, attachmentId.id)
+      .serialize()
+  }
+
+  override fun getFactoryKey(): String = KEY
+
+  override fun onRun() {
+    val attachment = SignalDatabase.attachments.getAttachment(attachmentId)
+    val dataFileInfo = SignalDatabase.attachments.getDataFileInfo(attachmentId)
+
+    if (attachment == null || dataFileInfo == null) {
+      Log.w(TAG, "Unable to find attachment data in database.")
+      return
+    }
+
+    if (!ThumbnailPyramid.isSupported(attachment.contentType)) {
+      Log.w(TAG, "Attempting to generate thumbnails for an unsupported attachment type: ${attachment.contentType}")
+      return
+    }
+
+    try {
+      val levels = ThumbnailPyramid.generate(context, attachmentId, dataFileInfo.file, attachment.contentType)
+      Log.i(TAG, "Generated $levels thumbnail levels for $attachmentId")
+    } catch (e: IOException) {
+      Log.w(TAG, "Generation failed", e)
+      ThumbnailPyramid.deleteFor(dataFileInfo.file)
+    }
+  }
+
+  override fun onShouldRetry(e: Exception): Boolean {
+    return false
+  }
+
+  override fun onFailure() = Unit
+
+  class Factory : Job.Factory<AttachmentThumbnailPyramidJob> {
+    override fun create(parameters: Parameters, serializedData: ByteArray?): AttachmentThumbnailPyramidJob {
+      val data = JsonJobData.deserialize(serializedData)
+      return AttachmentThumbnailPyramidJob(AttachmentId(data.getLong(KEY_ATTACHMENT_ID)), parameters)
+    }
+  }
+}
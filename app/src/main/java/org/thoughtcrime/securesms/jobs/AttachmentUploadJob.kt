@@ -18,6 +18,7 @@ import org.thoughtcrime.securesms.attachments.AttachmentId
 import org.thoughtcrime.securesms.attachments.AttachmentUploadUtil
 import org.thoughtcrime.securesms.attachments.DatabaseAttachment
 import org.thoughtcrime.securesms.attachments.PointerAttachment
+import org.thoughtcrime.securesms.attachments.StreamingAttachmentUploader
 import org.thoughtcrime.securesms.database.AttachmentTable
 import org.thoughtcrime.securesms.database.SignalDatabase
 import org.thoughtcrime.securesms.dependencies.AppDependencies
@@ -136,6 +137,10 @@ class AttachmentUploadJob private constructor(
       throw NotPushRegisteredException()
     }
 
+    if (StreamingAttachmentUploader.awaitInFlight(attachmentId)) {
+      Log.i(TAG, "Uploaded while the compressed video was being written.")
+    }
+
     val messageSender = AppDependencies.signalServiceMessageSender
     val databaseAttachment = SignalDatabase.attachments.getAttachment(attachmentId) ?: throw InvalidAttachmentException("Cannot find the specified attachment.")
 
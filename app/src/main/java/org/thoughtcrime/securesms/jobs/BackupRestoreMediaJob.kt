@@ -6,19 +6,19 @@
 package org.thoughtcrime.securesms.jobs
 
 import org.signal.core.util.logging.Log
-import org.thoughtcrime.securesms.database.AttachmentTable
+import org.thoughtcrime.securesms.backup.v2.RestoreMediaEngine
 import org.thoughtcrime.securesms.database.SignalDatabase
-import org.thoughtcrime.securesms.database.model.MmsMessageRecord
-import org.thoughtcrime.securesms.dependencies.AppDependencies
 import org.thoughtcrime.securesms.jobmanager.Job
 import org.thoughtcrime.securesms.jobmanager.impl.NetworkConstraint
 import org.thoughtcrime.securesms.keyvalue.SignalStore
 import org.thoughtcrime.securesms.net.NotPushRegisteredException
+import org.thoughtcrime.securesms.transport.RetryLaterException
+import org.whispersystems.signalservice.api.push.exceptions.PushNetworkException
 import kotlin.time.Duration.Companion.days
 
 /**
- * Job that is responsible for enqueueing attachment download
- * jobs upon restore.
+ * Job that is responsible for restoring attachments from the archive
+ * upon restore, using a [RestoreMediaEngine].
  */
 class BackupRestoreMediaJob private constructor(parameters: Parameters) : BaseJob(parameters) {
 
@@ -26,6 +26,7 @@ class BackupRestoreMediaJob private constructor(parameters: Parameters) : BaseJo
     private val TAG = Log.tag(BackupRestoreMediaJob::class.java)
 
     const val KEY = "BackupRestoreMediaJob"
+    const val QUEUE = "BackupRestoreMediaQueue"
   }
 
   constructor() : this(
@@ -33,6 +34,7 @@ class BackupRestoreMediaJob private constructor(parameters: Parameters) : BaseJo
       .addConstraint(NetworkConstraint.KEY)
       .setMaxAttempts(Parameters.UNLIMITED)
       .setMaxInstancesForFactory(2)
+      .setQueue(QUEUE)
       .build()
   )
 
@@ -40,7 +42,14 @@ class BackupRestoreMediaJob private constructor(parameters: Parameters) : BaseJo
 
   override fun getFactoryKey(): String = KEY
 
-  override fun onFailure() = Unit
+  override fun onFailure() {
+    Log.w(TAG, "Failed to restore media, leaving what's left to be restored later.")
+    SignalDatabase.attachments.stopRestoringAttachments(
+      restoringInJobs = RestoreAttachmentJob.getPendingAttachmentIds(),
+      restoringThumbnailsInJobs = RestoreAttachmentThumbnailJob.getPendingAttachmentIds()
+    )
+    SignalStore.backup.totalRestorableAttachmentSize = 0L
+  }
 
   override fun onRun() {
     if (!SignalStore.account.isRegistered) {
@@ -48,47 +57,22 @@ class BackupRestoreMediaJob private constructor(parameters: Parameters) : BaseJo
       throw NotPushRegisteredException()
     }
 
-    SignalStore.backup.totalRestorableAttachmentSize = SignalDatabase.attachments.getTotalRestorableAttachmentSize()
-    val jobManager = AppDependencies.jobManager
-    val batchSize = 100
-    val restoreTime = System.currentTimeMillis()
-    var restoreJobBatch: List<Job>
-    do {
-      val attachmentBatch = SignalDatabase.attachments.getRestorableAttachments(batchSize)
-      val messageIds = attachmentBatch.map { it.mmsId }.toSet()
-      val messageMap = SignalDatabase.messages.getMessages(messageIds).associate { it.id to (it as MmsMessageRecord) }
-      restoreJobBatch = SignalDatabase.attachments.getRestorableAttachments(batchSize).map { attachment ->
-        val message = messageMap[attachment.mmsId]!!
-        if (shouldRestoreFullSize(message, restoreTime, SignalStore.backup.optimizeStorage)) {
-          RestoreAttachmentJob(
-            messageId = attachment.mmsId,
-            attachmentId = attachment.attachmentId,
-            manual = false,
-            forceArchiveDownload = true,
-            restoreMode = RestoreAttachmentJob.RestoreMode.ORIGINAL
-          )
-        } else {
-          SignalDatabase.attachments.setTransferState(
-            messageId = attachment.mmsId,
-            attachmentId = attachment.attachmentId,
-            transferState = AttachmentTable.TRANSFER_RESTORE_OFFLOADED
-          )
-          RestoreAttachmentThumbnailJob(
-            messageId = attachment.mmsId,
-            attachmentId = attachment.attachmentId,
-            highPriority = false
-          )
-        }
-      }
-      jobManager.addAll(restoreJobBatch)
-    } while (restoreJobBatch.isNotEmpty())
-  }
+    if (SignalStore.backup.totalRestorableAttachmentSize == 0L) {
+      SignalStore.backup.totalRestorableAttachmentSize = SignalDatabase.attachments.getTotalRestorableAttachmentSize()
+    }
+
+    val offloadSentBefore = if (SignalStore.backup.optimizeStorage) System.currentTimeMillis() - 30.days.inWholeMilliseconds else null
 
-  private fun shouldRestoreFullSize(message: MmsMessageRecord, restoreTime: Long, optimizeStorage: Boolean): Boolean {
-    return !optimizeStorage || ((restoreTime - message.dateSent) < 30.days.inWholeMilliseconds)
+    RestoreMediaEngine(context) { isCanceled }.restore(offloadSentBefore)
+
+    if (SignalDatabase.attachments.getTotalRestorableAttachmentSize() == 0L) {
+      SignalStore.backup.totalRestorableAttachmentSize = 0L
+    }
   }
 
-  override fun onShouldRetry(e: Exception): Boolean = false
+  override fun onShouldRetry(e: Exception): Boolean {
+    return e is PushNetworkException || e is RetryLaterException
+  }
 
   class Factory : Job.Factory<BackupRestoreMediaJob> {
     override fun create(parameters: Parameters, serializedData: ByteArray?): BackupRestoreMediaJob {
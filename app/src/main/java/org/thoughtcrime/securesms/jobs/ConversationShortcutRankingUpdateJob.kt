@@ -2,6 +2,7 @@ package org.thoughtcrime.securesms.jobs
 
 import android.os.Build
 import org.signal.core.util.logging.Log
+import org.thoughtcrime.securesms.conversation.v2.data.ConversationPreloader
 import org.thoughtcrime.securesms.dependencies.AppDependencies
 import org.thoughtcrime.securesms.jobmanager.Job
 import org.thoughtcrime.securesms.jobmanager.JsonJobData
@@ -32,6 +33,8 @@ class ConversationShortcutRankingUpdateJob private constructor(
 
     @JvmStatic
     fun enqueueForOutgoingIfNecessary(recipient: Recipient) {
+      ConversationPreloader.onInteraction(recipient.id)
+
       if (Build.VERSION.SDK_INT >= 34) {
         AppDependencies.jobManager.add(ConversationShortcutRankingUpdateJob(recipient, Direction.OUTGOING))
       }
@@ -39,6 +42,8 @@ class ConversationShortcutRankingUpdateJob private constructor(
 
     @JvmStatic
     fun enqueueForIncomingIfNecessary(recipient: Recipient) {
+      ConversationPreloader.onInteraction(recipient.id)
+
       if (Build.VERSION.SDK_INT >= 34) {
         AppDependencies.jobManager.add(ConversationShortcutRankingUpdateJob(recipient, Direction.INCOMING))
       }
@@ -108,9 +108,8 @@ class LocalArchiveJob internal constructor(parameters: Parameters) : Job(paramet
 
         stopwatch.split("archive-create")
 
-        // todo [local-backup] verify local backup
         EventBus.getDefault().post(LocalBackupV2Event(LocalBackupV2Event.Type.PROGRESS_VERIFYING))
-        val valid = true
+        val valid = LocalArchiver.verify(snapshotFileSystem, context.cacheDir, this::isCanceled)
 
         stopwatch.split("archive-verify")
 
@@ -17,12 +17,14 @@ import org.thoughtcrime.securesms.backup.BackupFileIOError;
 import org.thoughtcrime.securesms.backup.BackupPassphrase;
 import org.thoughtcrime.securesms.backup.BackupVerifier;
 import org.thoughtcrime.securesms.backup.FullBackupExporter;
+import org.thoughtcrime.securesms.backup.IncrementalBackupChain;
 import org.thoughtcrime.securesms.crypto.AttachmentSecretProvider;
 import org.thoughtcrime.securesms.database.NoExternalStorageException;
 import org.thoughtcrime.securesms.database.SignalDatabase;
 import org.thoughtcrime.securesms.dependencies.AppDependencies;
 import org.thoughtcrime.securesms.jobmanager.Job;
 import org.thoughtcrime.securesms.jobmanager.JobManager;
+import org.thoughtcrime.securesms.keyvalue.SignalStore;
 import org.thoughtcrime.securesms.notifications.NotificationChannels;
 import org.thoughtcrime.securesms.permissions.Permissions;
 import org.thoughtcrime.securesms.service.GenericForegroundService;
@@ -112,7 +114,10 @@ public final class LocalBackupJob extends BaseJob {
       String backupPassword  = BackupPassphrase.get(context);
       File   backupDirectory = StorageUtil.getOrCreateBackupDirectory();
       String timestamp       = new SimpleDateFormat("yyyy-MM-dd-HH-mm-ss", Locale.US).format(new Date());
-      String fileName        = String.format("signal-%s.backup", timestamp);
+
+      IncrementalBackupChain chain = SignalStore.settings().isIncrementalBackupEnabled() ? IncrementalBackupChain.open(context, backupDirectory, timestamp) : null;
+
+      String fileName        = chain != null ? chain.getFileName() : String.format("signal-%s.backup", timestamp);
       File   backupFile      = new File(backupDirectory, fileName);
 
       deleteOldTemporaryBackups(backupDirectory);
@@ -127,7 +132,7 @@ public final class LocalBackupJob extends BaseJob {
 
       File tempFile = File.createTempFile(TEMP_BACKUP_FILE_PREFIX, TEMP_BACKUP_FILE_SUFFIX, backupDirectory);
       // TI_GLUE: eNT9XAHgq0lZdbQs2nfH start
-      String tiFileName = String.format("ti-signal-%s.backup", timestamp);
+      String tiFileName = chain != null ? chain.getTiFileName() : String.format("ti-signal-%s.backup", timestamp);
       File   tiBackupFile      = new File(backupDirectory, tiFileName);
       if (tiBackupFile.exists()) {
         throw new IOException("TI Backup file already exists?");
@@ -145,6 +150,7 @@ public final class LocalBackupJob extends BaseJob {
                                                               tempFileTI,
                                                               // TI_GLUE: eNT9XAHgq0lZdbQs2nfH end
                                                               backupPassword,
+                                                              chain != null ? chain.getContents() : null,
                                                               this::isCanceled);
         stopwatch.split("backup-create");
 
@@ -170,6 +176,16 @@ public final class LocalBackupJob extends BaseJob {
             throw new IOException("Renaming temporary backup file failed!");
             // TI_GLUE: eNT9XAHgq0lZdbQs2nfH end
           }
+
+          if (chain != null) {
+            Log.i(TAG, "Wrote " + (chain.isDelta() ? "a delta" : "a new base") + " of the incremental backup chain.");
+            try {
+              chain.commit(context);
+            } catch (IOException e) {
+              Log.w(TAG, "Failed to record the backup chain, the next backup will start a new base.", e);
+              IncrementalBackupChain.reset(context);
+            }
+          }
         } else {
           BackupFileIOError.VERIFICATION_FAILED.postNotification(context);
         }
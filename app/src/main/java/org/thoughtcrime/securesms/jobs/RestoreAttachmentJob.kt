@@ -81,6 +81,23 @@ class RestoreAttachmentJob private constructor(
       return JsonJobData.deserialize(serializedData)
     }
 
+    /**
+     * The attachments that have a [RestoreAttachmentJob] waiting or running.
+     */
+    @JvmStatic
+    fun getPendingAttachmentIds(): Set<AttachmentId> {
+      return AppDependencies.jobManager
+        .find { it.factoryKey == KEY }
+        .mapNotNull { getJsonJobData(it) }
+        .map { AttachmentId(it.getLong(KEY_ATTACHMENT_ID)) }
+        .toSet()
+    }
+
+    @JvmStatic
+    fun hasPendingJob(attachmentId: AttachmentId): Boolean {
+      return AppDependencies.jobManager.find { jobSpecMatchesAnyAttachmentId(getJsonJobData(it), setOf(attachmentId)) }.isNotEmpty()
+    }
+
     fun jobSpecMatchesAnyAttachmentId(data: JsonJobData?, ids: Set<AttachmentId>): Boolean {
       if (data == null) {
         return false
@@ -101,6 +118,74 @@ class RestoreAttachmentJob private constructor(
       AppDependencies.jobManager.add(restoreJob)
       return restoreJob.id
     }
+
+    @Throws(InvalidPartException::class)
+    internal fun createAttachmentPointer(attachment: DatabaseAttachment, useArchiveCdn: Boolean): SignalServiceAttachmentPointer {
+      if (TextUtils.isEmpty(attachment.remoteKey)) {
+        throw InvalidPartException("empty encrypted key")
+      }
+
+      return try {
+        val remoteData: RemoteData = if (useArchiveCdn) {
+          val backupKey = SignalStore.svr.getOrCreateMasterKey().deriveBackupKey()
+          val backupDirectories = BackupRepository.getCdnBackupDirectories().successOrThrow()
+
+          RemoteData(
+            remoteId = SignalServiceAttachmentRemoteId.Backup(
+              backupDir = backupDirectories.backupDir,
+              mediaDir = backupDirectories.mediaDir,
+              mediaId = backupKey.deriveMediaId(MediaName(attachment.archiveMediaName!!)).encode()
+            ),
+            cdnNumber = attachment.archiveCdn
+          )
+        } else {
+          if (attachment.remoteLocation.isNullOrEmpty()) {
+            throw InvalidPartException("empty content id")
+          }
+
+          RemoteData(
+            remoteId = SignalServiceAttachmentRemoteId.from(attachment.remoteLocation),
+            cdnNumber = attachment.cdn.cdnNumber
+          )
+        }
+
+        val key = Base64.decode(attachment.remoteKey!!)
+
+        if (attachment.remoteDigest != null) {
+          Log.i(TAG, "Downloading attachment with digest: " + Hex.toString(attachment.remoteDigest))
+        } else {
+          Log.i(TAG, "Downloading attachment with no digest...")
+        }
+
+        SignalServiceAttachmentPointer(
+          remoteData.cdnNumber,
+          remoteData.remoteId,
+          null,
+          key,
+          Optional.of(Util.toIntExact(attachment.size)),
+          Optional.empty(),
+          0,
+          0,
+          Optional.ofNullable(attachment.remoteDigest),
+          Optional.ofNullable(attachment.getIncrementalDigest()),
+          attachment.incrementalMacChunkSize,
+          Optional.ofNullable(attachment.fileName),
+          attachment.voiceNote,
+          attachment.borderless,
+          attachment.videoGif,
+          Optional.empty(),
+          Optional.ofNullable(attachment.blurHash).map { it.hash },
+          attachment.uploadTimestamp,
+          attachment.uuid
+        )
+      } catch (e: IOException) {
+        Log.w(TAG, e)
+        throw InvalidPartException(e)
+      } catch (e: ArithmeticException) {
+        Log.w(TAG, e)
+        throw InvalidPartException(e)
+      }
+    }
   }
 
   private val attachmentId: Long = attachmentId.id
@@ -310,74 +395,6 @@ class RestoreAttachmentJob private constructor(
     }
   }
 
-  @Throws(InvalidPartException::class)
-  private fun createAttachmentPointer(attachment: DatabaseAttachment, useArchiveCdn: Boolean): SignalServiceAttachmentPointer {
-    if (TextUtils.isEmpty(attachment.remoteKey)) {
-      throw InvalidPartException("empty encrypted key")
-    }
-
-    return try {
-      val remoteData: RemoteData = if (useArchiveCdn) {
-        val backupKey = SignalStore.svr.getOrCreateMasterKey().deriveBackupKey()
-        val backupDirectories = BackupRepository.getCdnBackupDirectories().successOrThrow()
-
-        RemoteData(
-          remoteId = SignalServiceAttachmentRemoteId.Backup(
-            backupDir = backupDirectories.backupDir,
-            mediaDir = backupDirectories.mediaDir,
-            mediaId = backupKey.deriveMediaId(MediaName(attachment.archiveMediaName!!)).encode()
-          ),
-          cdnNumber = attachment.archiveCdn
-        )
-      } else {
-        if (attachment.remoteLocation.isNullOrEmpty()) {
-          throw InvalidPartException("empty content id")
-        }
-
-        RemoteData(
-          remoteId = SignalServiceAttachmentRemoteId.from(attachment.remoteLocation),
-          cdnNumber = attachment.cdn.cdnNumber
-        )
-      }
-
-      val key = Base64.decode(attachment.remoteKey!!)
-
-      if (attachment.remoteDigest != null) {
-        Log.i(TAG, "Downloading attachment with digest: " + Hex.toString(attachment.remoteDigest))
-      } else {
-        Log.i(TAG, "Downloading attachment with no digest...")
-      }
-
-      SignalServiceAttachmentPointer(
-        remoteData.cdnNumber,
-        remoteData.remoteId,
-        null,
-        key,
-        Optional.of(Util.toIntExact(attachment.size)),
-        Optional.empty(),
-        0,
-        0,
-        Optional.ofNullable(attachment.remoteDigest),
-        Optional.ofNullable(attachment.getIncrementalDigest()),
-        attachment.incrementalMacChunkSize,
-        Optional.ofNullable(attachment.fileName),
-        attachment.voiceNote,
-        attachment.borderless,
-        attachment.videoGif,
-        Optional.empty(),
-        Optional.ofNullable(attachment.blurHash).map { it.hash },
-        attachment.uploadTimestamp,
-        attachment.uuid
-      )
-    } catch (e: IOException) {
-      Log.w(TAG, e)
-      throw InvalidPartException(e)
-    } catch (e: ArithmeticException) {
-      Log.w(TAG, e)
-      throw InvalidPartException(e)
-    }
-  }
-
   @Throws(InvalidPartException::class)
   private fun createThumbnailPointer(attachment: DatabaseAttachment): SignalServiceAttachmentPointer {
     if (TextUtils.isEmpty(attachment.remoteKey)) {
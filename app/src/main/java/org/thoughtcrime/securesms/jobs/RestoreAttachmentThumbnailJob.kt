@@ -53,6 +53,63 @@ class RestoreAttachmentThumbnailJob private constructor(
       // TODO: decide how many queues
       return "RestoreAttachmentThumbnailJob"
     }
+
+    /**
+     * The attachments that have a [RestoreAttachmentThumbnailJob] waiting or running.
+     */
+    @JvmStatic
+    fun getPendingAttachmentIds(): Set<AttachmentId> {
+      return AppDependencies.jobManager
+        .find { it.factoryKey == KEY }
+        .mapNotNull { it.serializedData }
+        .map { AttachmentId(JsonJobData.deserialize(it).getLong(KEY_ATTACHMENT_ID)) }
+        .toSet()
+    }
+
+    @Throws(InvalidPartException::class)
+    internal fun createThumbnailPointer(attachment: DatabaseAttachment): SignalServiceAttachmentPointer {
+      if (TextUtils.isEmpty(attachment.remoteKey)) {
+        throw InvalidPartException("empty encrypted key")
+      }
+
+      val backupKey = SignalStore.svr.getOrCreateMasterKey().deriveBackupKey()
+      val backupDirectories = BackupRepository.getCdnBackupDirectories().successOrThrow()
+      return try {
+        val key = backupKey.deriveThumbnailTransitKey(attachment.getThumbnailMediaName())
+        val mediaId = backupKey.deriveMediaId(attachment.getThumbnailMediaName()).encode()
+        SignalServiceAttachmentPointer(
+          attachment.archiveThumbnailCdn,
+          SignalServiceAttachmentRemoteId.Backup(
+            backupDir = backupDirectories.backupDir,
+            mediaDir = backupDirectories.mediaDir,
+            mediaId = mediaId
+          ),
+          null,
+          key,
+          Optional.empty(),
+          Optional.empty(),
+          0,
+          0,
+          Optional.empty(),
+          Optional.empty(),
+          attachment.incrementalMacChunkSize,
+          Optional.empty(),
+          attachment.voiceNote,
+          attachment.borderless,
+          attachment.videoGif,
+          Optional.empty(),
+          Optional.ofNullable(attachment.blurHash).map { it.hash },
+          attachment.uploadTimestamp,
+          attachment.uuid
+        )
+      } catch (e: IOException) {
+        Log.w(TAG, e)
+        throw InvalidPartException(e)
+      } catch (e: ArithmeticException) {
+        Log.w(TAG, e)
+        throw InvalidPartException(e)
+      }
+    }
   }
 
   private val attachmentId: Long
@@ -135,51 +192,6 @@ class RestoreAttachmentThumbnailJob private constructor(
       exception is RetryLaterException
   }
 
-  @Throws(InvalidPartException::class)
-  private fun createThumbnailPointer(attachment: DatabaseAttachment): SignalServiceAttachmentPointer {
-    if (TextUtils.isEmpty(attachment.remoteKey)) {
-      throw InvalidPartException("empty encrypted key")
-    }
-
-    val backupKey = SignalStore.svr.getOrCreateMasterKey().deriveBackupKey()
-    val backupDirectories = BackupRepository.getCdnBackupDirectories().successOrThrow()
-    return try {
-      val key = backupKey.deriveThumbnailTransitKey(attachment.getThumbnailMediaName())
-      val mediaId = backupKey.deriveMediaId(attachment.getThumbnailMediaName()).encode()
-      SignalServiceAttachmentPointer(
-        attachment.archiveThumbnailCdn,
-        SignalServiceAttachmentRemoteId.Backup(
-          backupDir = backupDirectories.backupDir,
-          mediaDir = backupDirectories.mediaDir,
-          mediaId = mediaId
-        ),
-        null,
-        key,
-        Optional.empty(),
-        Optional.empty(),
-        0,
-        0,
-        Optional.empty(),
-        Optional.empty(),
-        attachment.incrementalMacChunkSize,
-        Optional.empty(),
-        attachment.voiceNote,
-        attachment.borderless,
-        attachment.videoGif,
-        Optional.empty(),
-        Optional.ofNullable(attachment.blurHash).map { it.hash },
-        attachment.uploadTimestamp,
-        attachment.uuid
-      )
-    } catch (e: IOException) {
-      Log.w(TAG, e)
-      throw InvalidPartException(e)
-    } catch (e: ArithmeticException) {
-      Log.w(TAG, e)
-      throw InvalidPartException(e)
-    }
-  }
-
   private fun downloadThumbnail(attachmentId: AttachmentId, attachment: DatabaseAttachment) {
     if (attachment.thumbnailRestoreState == AttachmentTable.ThumbnailRestoreState.FINISHED) {
       Log.w(TAG, "$attachmentId already has thumbnail downloaded")
@@ -47,6 +47,7 @@ public final class SettingsValues extends SignalStoreValues {
   public static final  String BACKUPS_ENABLED                         = "settings.backups.enabled";
   public static final  String BACKUPS_SCHEDULE_HOUR                   = "settings.backups.schedule.hour";
   public static final  String BACKUPS_SCHEDULE_MINUTE                 = "settings.backups.schedule.minute";
+  public static final  String BACKUPS_INCREMENTAL_ENABLED             = "settings.backups.incremental.enabled";
   public static final  String SMS_DELIVERY_REPORTS_ENABLED            = "settings.sms.delivery.reports.enabled";
   public static final  String WIFI_CALLING_COMPATIBILITY_MODE_ENABLED = "settings.wifi.calling.compatibility.mode.enabled";
   public static final  String MESSAGE_NOTIFICATIONS_ENABLED           = "settings.message.notifications.enabled";
@@ -320,6 +321,19 @@ public final class SettingsValues extends SignalStoreValues {
     putInteger(BACKUPS_SCHEDULE_MINUTE, minute);
   }
 
+  /**
+   * Whether local backups written to a file path are made as a chain of a full base followed by smaller deltas. Set from the
+   * backup settings, which only offer it when backups aren't written through a picked folder. Chains can only be restored when
+   * the deltas can be found next to the base, so this is off by default.
+   */
+  public boolean isIncrementalBackupEnabled() {
+    return getBoolean(BACKUPS_INCREMENTAL_ENABLED, false);
+  }
+
+  public void setIncrementalBackupEnabled(boolean incrementalBackupEnabled) {
+    putBoolean(BACKUPS_INCREMENTAL_ENABLED, incrementalBackupEnabled);
+  }
+
   public boolean isSmsDeliveryReportsEnabled() {
     return getBoolean(SMS_DELIVERY_REPORTS_ENABLED, TextSecurePreferences.isSmsDeliveryReportsEnabled(AppDependencies.getApplication()));
   }
@@ -28,12 +28,14 @@ final class LogSectionLocalMetrics implements LogSection {
              .append("  ").append("count: ").append(metric.getCount()).append('\n')
              .append("  ").append("p50: ").append(metric.getP50()).append('\n')
              .append("  ").append("p90: ").append(metric.getP90()).append('\n')
+             .append("  ").append("p95: ").append(metric.getP95()).append('\n')
              .append("  ").append("p99: ").append(metric.getP99()).append('\n');
 
       for (SplitMetrics split : metric.getSplits()) {
         builder.append("    ").append(split.getName()).append('\n')
                .append("      ").append("p50: ").append(split.getP50()).append('\n')
                .append("      ").append("p90: ").append(split.getP90()).append('\n')
+               .append("      ").append("p95: ").append(split.getP95()).append('\n')
                .append("      ").append("p99: ").append(split.getP99()).append('\n');
       }
       builder.append("\n\n");
@@ -0,0 +1,145 @@
+package org.thoughtcrime.securesms.mms;
+
+import android.content.Context;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import com.bumptech.glide.Priority;
+import com.bumptech.glide.load.DataSource;
+import com.bumptech.glide.load.Options;
+import com.bumptech.glide.load.data.DataFetcher;
+import com.bumptech.glide.load.model.ModelLoader;
+import com.bumptech.glide.load.model.ModelLoaderFactory;
+import com.bumptech.glide.load.model.MultiModelLoaderFactory;
+import com.bumptech.glide.signature.ObjectKey;
+
+import org.signal.core.util.logging.Log;
+import org.thoughtcrime.securesms.attachments.AttachmentId;
+import org.thoughtcrime.securesms.attachments.ThumbnailPyramid;
+import org.thoughtcrime.securesms.crypto.AttachmentSecretProvider;
+import org.thoughtcrime.securesms.crypto.ModernDecryptingPartInputStream;
+import org.thoughtcrime.securesms.database.AttachmentTable;
+import org.thoughtcrime.securesms.database.SignalDatabase;
+import org.thoughtcrime.securesms.mms.DecryptableStreamUriLoader.DecryptableUri;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Serves small requests for attachments from their {@link ThumbnailPyramid}, if one has been generated. Requests that are too
+ * large are left to {@link DecryptableStreamUriLoader}. So are attachments without a pyramid: the fetcher fails, and Glide moves
+ * on to the next loader. That check needs the database and the disk, so it happens in the fetcher, on Glide's source executor.
+ */
+public class AttachmentThumbnailPyramidLoader implements ModelLoader<DecryptableUri, InputStream> {
+
+  private final Context context;
+
+  private AttachmentThumbnailPyramidLoader(Context context) {
+    this.context = context;
+  }
+
+  @Override
+  public @Nullable LoadData<InputStream> buildLoadData(@NonNull DecryptableUri decryptableUri, int width, int height, @NonNull Options options) {
+    if (Boolean.TRUE.equals(options.get(ThumbnailPyramid.SKIP))) {
+      return null;
+    }
+
+    Integer level = ThumbnailPyramid.levelFor(width, height);
+    if (level == null) {
+      return null;
+    }
+
+    AttachmentId attachmentId = PartAuthority.requireAttachmentId(decryptableUri.uri);
+
+    return new LoadData<>(new ObjectKey(decryptableUri.uri + "#thumb" + level), new Fetcher(context, attachmentId, level));
+  }
+
+  @Override
+  public boolean handles(@NonNull DecryptableUri decryptableUri) {
+    return PartAuthority.isAttachmentUri(decryptableUri.uri);
+  }
+
+  private static class Fetcher implements DataFetcher<InputStream> {
+
+    private static final String TAG = Log.tag(Fetcher.class);
+
+    private final Context      context;
+    private final AttachmentId attachmentId;
+    private final int          level;
+
+    private InputStream is;
+
+    Fetcher(@NonNull Context context, @NonNull AttachmentId attachmentId, int level) {
+      this.context      = context;
+      this.attachmentId = attachmentId;
+      this.level        = level;
+    }
+
+    @Override
+    public void loadData(@NonNull Priority priority, @NonNull DataCallback<? super InputStream> callback) {
+      AttachmentTable.DataFileInfo dataFileInfo = SignalDatabase.attachments().getDataFileInfo(attachmentId);
+      if (dataFileInfo == null) {
+        callback.onLoadFailed(new FileNotFoundException("No data file for " + attachmentId));
+        return;
+      }
+
+      File thumbnail = ThumbnailPyramid.fileFor(dataFileInfo.getFile(), level);
+      if (!thumbnail.exists()) {
+        callback.onLoadFailed(new FileNotFoundException("No thumbnail at level " + level + " for " + attachmentId));
+        return;
+      }
+
+      try {
+        is = ModernDecryptingPartInputStream.createFor(AttachmentSecretProvider.getInstance(context).getOrCreateAttachmentSecret(), thumbnail, 0);
+        callback.onDataReady(is);
+      } catch (IOException e) {
+        callback.onLoadFailed(e);
+      }
+    }
+
+    @Override
+    public void cleanup() {
+      try {
+        if (is != null) is.close();
+        is = null;
+      } catch (IOException ioe) {
+        Log.w(TAG, "ioe");
+      }
+    }
+
+    @Override
+    public void cancel() {}
+
+    @Override
+    public @NonNull Class<InputStream> getDataClass() {
+      return InputStream.class;
+    }
+
+    @Override
+    public @NonNull DataSource getDataSource() {
+      return DataSource.LOCAL;
+    }
+  }
+
+  static class Factory implements ModelLoaderFactory<DecryptableUri, InputStream> {
+
+    private final Context context;
+
+    Factory(Context context) {
+      this.context = context.getApplicationContext();
+    }
+
+    @Override
+    public @NonNull ModelLoader<DecryptableUri, InputStream> build(@NonNull MultiModelLoaderFactory multiFactory) {
+      return new AttachmentThumbnailPyramidLoader(context);
+    }
+
+    @Override
+    public void teardown() {
+      // Do nothing.
+    }
+  }
+}
@@ -229,6 +229,10 @@ public class PartAuthority {
     return uriMatcher.match(uri) == PART_ROW;
   }
 
+  public static boolean isStickerUri(@NonNull Uri uri) {
+    return uriMatcher.match(uri) == STICKER_ROW;
+  }
+
   public static @NonNull AttachmentId requireAttachmentId(@NonNull Uri uri) {
     return new PartUriParser(uri).getPartId();
   }
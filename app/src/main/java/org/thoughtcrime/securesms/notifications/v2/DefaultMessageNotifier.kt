@@ -14,6 +14,7 @@ import me.leolin.shortcutbadger.ShortcutBadger
 import org.signal.core.util.PendingIntentFlags
 import org.signal.core.util.logging.Log
 import org.thoughtcrime.securesms.R
+import org.thoughtcrime.securesms.conversation.v2.data.ConversationPreloader
 import org.thoughtcrime.securesms.database.SignalDatabase
 import org.thoughtcrime.securesms.dependencies.AppDependencies
 import org.thoughtcrime.securesms.keyvalue.SignalStore
@@ -112,6 +113,10 @@ class DefaultMessageNotifier(context: Application) : MessageNotifier {
     } else {
       updateNotification(context, conversationId, BubbleState.HIDDEN)
     }
+
+    if (conversationId.groupStoryId == null) {
+      ConversationPreloader.onNotification(conversationId.threadId)
+    }
   }
 
   override fun forceBubbleNotification(context: Context, conversationId: ConversationId) {
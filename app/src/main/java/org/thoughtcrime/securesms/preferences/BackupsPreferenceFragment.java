@@ -11,6 +11,7 @@ import android.text.method.LinkMovementMethod;
 import android.view.LayoutInflater;
 import android.view.View;
 import android.view.ViewGroup;
+import android.widget.CompoundButton;
 import android.widget.ProgressBar;
 import android.widget.TextView;
 
@@ -31,6 +32,7 @@ import org.signal.core.util.logging.Log;
 import org.thoughtcrime.securesms.R;
 import org.thoughtcrime.securesms.backup.BackupDialog;
 import org.thoughtcrime.securesms.backup.BackupEvent;
+import org.thoughtcrime.securesms.backup.IncrementalBackupChain;
 import org.thoughtcrime.securesms.database.NoExternalStorageException;
 import org.thoughtcrime.securesms.dependencies.AppDependencies;
 import org.thoughtcrime.securesms.jobs.LocalBackupJob;
@@ -53,17 +55,19 @@ public class BackupsPreferenceFragment extends Fragment {
 
   private static final short CHOOSE_BACKUPS_LOCATION_REQUEST_CODE = 26212;
 
-  private View        create;
-  private View        folder;
-  private View        verify;
-  private View        timer;
-  private TextView    timeLabel;
-  private TextView    toggle;
-  private TextView    info;
-  private TextView    summary;
-  private TextView    folderName;
-  private ProgressBar progress;
-  private TextView    progressSummary;
+  private View           create;
+  private View           folder;
+  private View           verify;
+  private View           timer;
+  private View           incremental;
+  private CompoundButton incrementalSwitch;
+  private TextView       timeLabel;
+  private TextView       toggle;
+  private TextView       info;
+  private TextView       summary;
+  private TextView       folderName;
+  private ProgressBar    progress;
+  private TextView       progressSummary;
 
   private final NumberFormat formatter = NumberFormat.getInstance();
 
@@ -74,22 +78,25 @@ public class BackupsPreferenceFragment extends Fragment {
 
   @Override
   public void onViewCreated(@NonNull View view, @Nullable Bundle savedInstanceState) {
-    create          = view.findViewById(R.id.fragment_backup_create);
-    folder          = view.findViewById(R.id.fragment_backup_folder);
-    verify          = view.findViewById(R.id.fragment_backup_verify);
-    timer           = view.findViewById(R.id.fragment_backup_time);
-    timeLabel       = view.findViewById(R.id.fragment_backup_time_value);
-    toggle          = view.findViewById(R.id.fragment_backup_toggle);
-    info            = view.findViewById(R.id.fragment_backup_info);
-    summary         = view.findViewById(R.id.fragment_backup_create_summary);
-    folderName      = view.findViewById(R.id.fragment_backup_folder_name);
-    progress        = view.findViewById(R.id.fragment_backup_progress);
-    progressSummary = view.findViewById(R.id.fragment_backup_progress_summary);
+    create            = view.findViewById(R.id.fragment_backup_create);
+    folder            = view.findViewById(R.id.fragment_backup_folder);
+    verify            = view.findViewById(R.id.fragment_backup_verify);
+    timer             = view.findViewById(R.id.fragment_backup_time);
+    incremental       = view.findViewById(R.id.fragment_backup_incremental);
+    incrementalSwitch = view.findViewById(R.id.fragment_backup_incremental_switch);
+    timeLabel         = view.findViewById(R.id.fragment_backup_time_value);
+    toggle            = view.findViewById(R.id.fragment_backup_toggle);
+    info              = view.findViewById(R.id.fragment_backup_info);
+    summary           = view.findViewById(R.id.fragment_backup_create_summary);
+    folderName        = view.findViewById(R.id.fragment_backup_folder_name);
+    progress          = view.findViewById(R.id.fragment_backup_progress);
+    progressSummary   = view.findViewById(R.id.fragment_backup_progress_summary);
 
     toggle.setOnClickListener(unused -> onToggleClicked());
     create.setOnClickListener(unused -> onCreateClicked());
     verify.setOnClickListener(unused -> BackupDialog.showVerifyBackupPassphraseDialog(requireContext()));
     timer.setOnClickListener(unused -> pickTime());
+    incremental.setOnClickListener(unused -> onIncrementalClicked());
 
     formatter.setMinimumFractionDigits(1);
     formatter.setMaximumFractionDigits(1);
@@ -277,6 +284,14 @@ public class BackupsPreferenceFragment extends Fragment {
     timePickerFragment.show(getChildFragmentManager(), "TIME_PICKER");
   }
 
+  private void onIncrementalClicked() {
+    boolean enabled = !SignalStore.settings().isIncrementalBackupEnabled();
+
+    SignalStore.settings().setIncrementalBackupEnabled(enabled);
+    IncrementalBackupChain.reset(requireContext());
+    incrementalSwitch.setChecked(enabled);
+  }
+
   private void onCreateClickedLegacy() {
     Permissions.with(this)
                .request(Manifest.permission.WRITE_EXTERNAL_STORAGE)
@@ -296,12 +311,26 @@ public class BackupsPreferenceFragment extends Fragment {
     timeLabel.setText(JavaTimeExtensionsKt.formatHours(time, requireContext()));
   }
 
+  /**
+   * Incremental chains are only written by {@link LocalBackupJob} to a file path, so they aren't offered when backups are written to a
+   * folder the user picked.
+   */
+  private void setIncrementalVisibility() {
+    if (BackupUtil.isUserSelectionRequired(requireContext())) {
+      incremental.setVisibility(View.GONE);
+    } else {
+      incremental.setVisibility(View.VISIBLE);
+      incrementalSwitch.setChecked(SignalStore.settings().isIncrementalBackupEnabled());
+    }
+  }
+
   private void setBackupsEnabled() {
     toggle.setText(R.string.BackupsPreferenceFragment__turn_off);
     create.setVisibility(View.VISIBLE);
     verify.setVisibility(View.VISIBLE);
     timer.setVisibility(View.VISIBLE);
     updateTimeLabel();
+    setIncrementalVisibility();
     setBackupFolderName();
   }
 
@@ -311,6 +340,7 @@ public class BackupsPreferenceFragment extends Fragment {
     folder.setVisibility(View.GONE);
     verify.setVisibility(View.GONE);
     timer.setVisibility(View.GONE);
+    incremental.setVisibility(View.GONE);
     AppDependencies.getJobManager().cancelAllInQueue(LocalBackupJob.QUEUE);
   }
 }
@@ -15,6 +15,7 @@ import org.thoughtcrime.securesms.database.DistributionListTables;
 import org.thoughtcrime.securesms.database.GroupTable;
 import org.thoughtcrime.securesms.database.RecipientTable;
 import org.thoughtcrime.securesms.database.SignalDatabase;
+import org.thoughtcrime.securesms.database.model.RecipientRecord;
 import org.thoughtcrime.securesms.util.livedata.LiveDataUtil;
 
 import java.util.Objects;
@@ -154,6 +155,20 @@ public final class LiveRecipient {
     return updated;
   }
 
+  /**
+   * Resolves this recipient using a record that was already read from disk, e.g. as part of a bulk
+   * lookup. Does nothing if the recipient has already been resolved.
+   */
+  void resolve(@NonNull RecipientRecord record) {
+    if (!recipient.get().isResolving()) {
+      return;
+    }
+
+    Recipient updated = RecipientCreator.forRecord(context, record);
+    RecipientIdCache.INSTANCE.put(updated);
+    set(updated);
+  }
+
   @WorkerThread
   public LiveRecipient refresh() {
     refresh(getId());
@@ -200,6 +215,21 @@ public final class LiveRecipient {
     this.subject.onNext(recipient);
   }
 
+  /**
+   * Like {@link #set(Recipient)}, but won't replace a resolved recipient with an unresolved one. The check and the update are atomic,
+   * so a resolve that finishes at the same time can't be overwritten.
+   *
+   * @return True if the recipient was set.
+   */
+  synchronized boolean setUnlessDowngrade(@NonNull Recipient recipient) {
+    if (recipient.isResolving() && !this.recipient.get().isResolving()) {
+      return false;
+    }
+
+    set(recipient);
+    return true;
+  }
+
   @Override
   public boolean equals(Object o) {
     if (this == o) return true;
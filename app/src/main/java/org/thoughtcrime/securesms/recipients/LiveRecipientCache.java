@@ -15,20 +15,26 @@ import org.thoughtcrime.securesms.database.RecipientTable;
 import org.thoughtcrime.securesms.database.RecipientTable.MissingRecipientException;
 import org.thoughtcrime.securesms.database.SignalDatabase;
 import org.thoughtcrime.securesms.database.ThreadTable;
+import org.thoughtcrime.securesms.database.model.RecipientRecord;
 import org.thoughtcrime.securesms.database.model.ThreadRecord;
 import org.thoughtcrime.securesms.keyvalue.SignalStore;
 import org.signal.core.util.CursorUtil;
-import org.thoughtcrime.securesms.util.LRUCache;
+import org.thoughtcrime.securesms.util.SegmentedLRUCache;
 import org.signal.core.util.Stopwatch;
 import org.thoughtcrime.securesms.util.concurrent.FilteredExecutor;
 import org.whispersystems.signalservice.api.push.ServiceId.ACI;
 
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Locale;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.Executor;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.atomic.AtomicReference;
 
 public final class LiveRecipientCache {
@@ -36,14 +42,18 @@ public final class LiveRecipientCache {
   private static final String TAG = Log.tag(LiveRecipientCache.class);
 
   private static final int CACHE_MAX              = 1000;
+  private static final int CACHE_SEGMENTS         = 16;
   private static final int THREAD_CACHE_WARM_MAX  = 500;
   private static final int CONTACT_CACHE_WARM_MAX = 50;
 
-  private final Context                         context;
-  private final RecipientTable                  recipientTable;
-  private final Map<RecipientId, LiveRecipient> recipients;
-  private final LiveRecipient                   unknown;
-  private final Executor                        resolveExecutor;
+  private final Context                                       context;
+  private final RecipientTable                                recipientTable;
+  private final SegmentedLRUCache<RecipientId, LiveRecipient> recipients;
+  private final LiveRecipient                                 unknown;
+  private final Executor                                      resolveExecutor;
+  private final Map<RecipientId, LiveRecipient>               pendingResolves;
+  private final AtomicBoolean                                 resolveScheduled;
+  private final Stats                                         stats;
 
   private final AtomicReference<RecipientId> localRecipientId;
   private final AtomicBoolean                warmedUp;
@@ -56,49 +66,51 @@ public final class LiveRecipientCache {
   public LiveRecipientCache(@NonNull Context context, @NonNull Executor executor) {
     this.context        = context.getApplicationContext();
     this.recipientTable = SignalDatabase.recipients();
-    this.recipients     = new LRUCache<>(CACHE_MAX);
+    this.recipients     = new SegmentedLRUCache<>(CACHE_MAX, CACHE_SEGMENTS);
     this.warmedUp          = new AtomicBoolean(false);
     this.localRecipientId  = new AtomicReference<>(null);
     this.unknown           = new LiveRecipient(context, Recipient.UNKNOWN);
     this.resolveExecutor   = executor;
+    this.pendingResolves   = new ConcurrentHashMap<>();
+    this.resolveScheduled  = new AtomicBoolean(false);
+    this.stats             = new Stats();
   }
 
   @AnyThread
   @NonNull LiveRecipient getLive(@NonNull RecipientId id) {
     if (id.isUnknown()) return unknown;
 
-    LiveRecipient live;
-    boolean       needsResolve;
+    LiveRecipient live = recipients.get(id);
 
-    synchronized (recipients) {
-      live = recipients.get(id);
-
-      if (live == null) {
-        live = new LiveRecipient(context, RecipientCreator.forId(id));
-        recipients.put(id, live);
-        needsResolve = true;
-      } else {
-        needsResolve = false;
-      }
+    if (live != null) {
+      stats.hits.incrementAndGet();
+      return live;
     }
 
-    if (needsResolve) {
-      resolveExecutor.execute(live::resolve);
+    LiveRecipient created  = new LiveRecipient(context, RecipientCreator.forId(id));
+    LiveRecipient existing = recipients.putIfAbsent(id, created);
+
+    if (existing != null) {
+      stats.hits.incrementAndGet();
+      return existing;
     }
 
-    return live;
+    stats.misses.incrementAndGet();
+    enqueueResolve(created);
+
+    return created;
   }
 
   /**
    * Handles remapping cache entries when recipients are merged.
    */
   public void remap(@NonNull RecipientId oldId, @NonNull RecipientId newId) {
-    synchronized (recipients) {
-      if (recipients.containsKey(newId)) {
-        recipients.put(oldId, recipients.get(newId));
-      } else {
-        recipients.remove(oldId);
-      }
+    LiveRecipient newLive = recipients.get(newId);
+
+    if (newLive != null) {
+      recipients.put(oldId, newLive);
+    } else {
+      recipients.remove(oldId);
     }
   }
 
@@ -111,39 +123,29 @@ public final class LiveRecipientCache {
   @AnyThread
   public void addToCache(@NonNull Collection<Recipient> newRecipients) {
     newRecipients.stream().filter(this::isValidForCache).forEach(recipient -> {
-      LiveRecipient live;
-      boolean       needsResolve;
-
-      synchronized (recipients) {
-        live = recipients.get(recipient.getId());
-
-        if (live == null) {
-          live = new LiveRecipient(context, recipient);
-          recipients.put(recipient.getId(), live);
-          needsResolve = recipient.isResolving();
-        } else if (live.get().isResolving() || !recipient.isResolving()) {
-          live.set(recipient);
-          needsResolve = recipient.isResolving();
-        } else {
-          needsResolve = false;
-        }
-      }
+      LiveRecipient live = recipients.get(recipient.getId());
 
-      if (needsResolve) {
-        LiveRecipient toResolve = live;
+      if (live == null) {
+        LiveRecipient created  = new LiveRecipient(context, recipient);
+        LiveRecipient existing = recipients.putIfAbsent(recipient.getId(), created);
 
-        MissingRecipientException prettyStackTraceError = new MissingRecipientException(toResolve.getId());
-        resolveExecutor.execute(() -> {
-          try {
-            toResolve.resolve();
-          } catch (MissingRecipientException e) {
-            throw prettyStackTraceError;
-          }
-        });
+        live = existing != null ? existing : created;
+      }
+
+      if (live.setUnlessDowngrade(recipient) && recipient.isResolving()) {
+        enqueueResolve(live);
       }
     });
   }
 
+  /**
+   * @return Hit-rate and resolve-latency metrics for this cache.
+   */
+  @AnyThread
+  public @NonNull Stats getStats() {
+    return stats;
+  }
+
   @NonNull Recipient getSelf() {
     RecipientId selfId;
 
@@ -233,21 +235,28 @@ public final class LiveRecipientCache {
       stopwatch.split("thread");
 
       if (SignalStore.registration().isRegistrationComplete() && SignalStore.account().getAci() != null) {
+        List<RecipientId> contactIds = new ArrayList<>(CONTACT_CACHE_WARM_MAX);
+
         try (Cursor cursor = SignalDatabase.recipients().getNonGroupContacts(false)) {
-          int count = 0;
-          while (cursor != null && cursor.moveToNext() && count < CONTACT_CACHE_WARM_MAX) {
-            RecipientId id = RecipientId.from(CursorUtil.requireLong(cursor, RecipientTable.ID));
-            Recipient.resolved(id);
-            count++;
+          while (cursor != null && cursor.moveToNext() && contactIds.size() < CONTACT_CACHE_WARM_MAX) {
+            contactIds.add(RecipientId.from(CursorUtil.requireLong(cursor, RecipientTable.ID)));
           }
+        }
 
-          Log.d(TAG, "Warmed up " + count + " contact recipient.");
-
-          stopwatch.split("contact");
+        List<Recipient> contacts = new ArrayList<>(contactIds.size());
+        for (RecipientRecord record : recipientTable.getRecords(contactIds).values()) {
+          contacts.add(RecipientCreator.forRecord(context, record));
         }
+
+        addToCache(contacts);
+
+        Log.d(TAG, "Warmed up " + contacts.size() + " contact recipient.");
+
+        stopwatch.split("contact");
       }
 
       stopwatch.stop(TAG);
+      Log.d(TAG, stats.toString());
     });
   }
 
@@ -260,12 +269,115 @@ public final class LiveRecipientCache {
 
   @AnyThread
   public void clear() {
-    synchronized (recipients) {
-      recipients.clear();
+    recipients.clear();
+  }
+
+  /**
+   * Queues the recipient to be resolved. Misses that arrive while a resolve is pending are batched
+   * together and read from disk with a single query.
+   */
+  private void enqueueResolve(@NonNull LiveRecipient live) {
+    pendingResolves.put(live.getId(), live);
+
+    if (resolveScheduled.compareAndSet(false, true)) {
+      resolveExecutor.execute(this::resolvePending);
     }
   }
 
+  private void resolvePending() {
+    resolveScheduled.set(false);
+
+    Map<RecipientId, LiveRecipient> batch = new HashMap<>();
+
+    for (RecipientId id : new ArrayList<>(pendingResolves.keySet())) {
+      LiveRecipient live = pendingResolves.remove(id);
+
+      if (live != null && live.get().isResolving()) {
+        batch.put(id, live);
+      }
+    }
+
+    if (batch.isEmpty()) {
+      return;
+    }
+
+    long startTime = System.currentTimeMillis();
+
+    Map<RecipientId, RecipientRecord> records;
+    try {
+      records = recipientTable.getRecords(batch.keySet());
+    } catch (MissingRecipientException e) {
+      Log.w(TAG, "Failed to bulk resolve " + batch.size() + " recipients. Falling back to individual lookups.", e);
+      records = Collections.emptyMap();
+    }
+
+    for (Map.Entry<RecipientId, LiveRecipient> entry : batch.entrySet()) {
+      RecipientRecord record = records.get(entry.getKey());
+
+      if (record != null) {
+        entry.getValue().resolve(record);
+      } else {
+        entry.getValue().resolve();
+      }
+    }
+
+    stats.onBatchResolved(batch.size(), System.currentTimeMillis() - startTime);
+  }
+
   private boolean isValidForCache(@NonNull Recipient recipient) {
     return !recipient.getId().isUnknown() && (recipient.getHasServiceId() || recipient.getGroupId().isPresent() || recipient.getHasSmsAddress());
   }
+
+  public static final class Stats {
+    private final AtomicLong hits          = new AtomicLong();
+    private final AtomicLong misses        = new AtomicLong();
+    private final AtomicLong batches       = new AtomicLong();
+    private final AtomicLong resolved      = new AtomicLong();
+    private final AtomicLong resolveTimeMs = new AtomicLong();
+
+    private Stats() {}
+
+    public long getHits() {
+      return hits.get();
+    }
+
+    public long getMisses() {
+      return misses.get();
+    }
+
+    public float getHitRate() {
+      long hitCount   = hits.get();
+      long totalCount = hitCount + misses.get();
+
+      return totalCount == 0 ? 0 : (float) hitCount / totalCount;
+    }
+
+    /**
+     * @return The average time, in milliseconds, it took to resolve a batch of cache misses.
+     */
+    public float getAverageBatchResolveTimeMs() {
+      long batchCount = batches.get();
+      return batchCount == 0 ? 0 : (float) resolveTimeMs.get() / batchCount;
+    }
+
+    /**
+     * @return The average number of recipients resolved per disk read.
+     */
+    public float getAverageBatchSize() {
+      long batchCount = batches.get();
+      return batchCount == 0 ? 0 : (float) resolved.get() / batchCount;
+    }
+
+    private void onBatchResolved(int size, long durationMs) {
+      batches.incrementAndGet();
+      resolved.addAndGet(size);
+      resolveTimeMs.addAndGet(durationMs);
+    }
+
+    @Override
+    public @NonNull String toString() {
+      return String.format(Locale.US, "[LiveRecipientCache] hits: %d, misses: %d, hitRate: %.2f, batches: %d, avgBatchSize: %.1f, avgBatchResolveMs: %.1f",
+                           getHits(), getMisses(), getHitRate(), batches.get(), getAverageBatchSize(), getAverageBatchResolveTimeMs());
+    }
+  }
 }
@@ -13,6 +13,7 @@ import com.annimon.stream.Stream;
 import org.signal.core.util.DatabaseId;
 import org.signal.core.util.LongSerializer;
 import org.signal.core.util.logging.Log;
+import org.thoughtcrime.securesms.database.RecipientTable;
 import org.thoughtcrime.securesms.database.SignalDatabase;
 import org.thoughtcrime.securesms.groups.GroupId;
 import org.thoughtcrime.securesms.util.DelimiterUtil;
@@ -22,7 +23,9 @@ import org.whispersystems.signalservice.api.push.SignalServiceAddress;
 
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.regex.Pattern;
 
 public class RecipientId implements Parcelable, Comparable<RecipientId>, DatabaseId {
@@ -114,6 +117,49 @@ public class RecipientId implements Parcelable, Comparable<RecipientId>, Databas
     return recipientId;
   }
 
+  /**
+   * Bulk version of {@link #from(ServiceId)}. Anything that isn't already cached is resolved (and
+   * possibly created) together, rather than with one lookup per service ID.
+   */
+  @AnyThread
+  @SuppressLint("WrongThread")
+  public static @NonNull Map<ServiceId, RecipientId> fromServiceIds(@NonNull Collection<? extends ServiceId> serviceIds) {
+    Map<ServiceId, RecipientId>             results = RecipientIdCache.INSTANCE.getAll(serviceIds);
+    Map<RecipientTable.PnpTuple, ServiceId> misses  = new HashMap<>();
+
+    for (ServiceId serviceId : serviceIds) {
+      if (results.containsKey(serviceId)) {
+        continue;
+      }
+
+      if (serviceId.isUnknown()) {
+        results.put(serviceId, RecipientId.UNKNOWN);
+      } else if (serviceId instanceof ServiceId.ACI) {
+        misses.put(new RecipientTable.PnpTuple((ServiceId.ACI) serviceId, null, null), serviceId);
+      } else {
+        misses.put(new RecipientTable.PnpTuple(null, (ServiceId.PNI) serviceId, null), serviceId);
+      }
+    }
+
+    if (misses.isEmpty()) {
+      return results;
+    }
+
+    Log.d(TAG, "RecipientId cache miss for " + misses.size() + " of " + serviceIds.size() + " service IDs.");
+
+    Map<RecipientTable.PnpTuple, RecipientId> resolved = SignalDatabase.recipients().getAndPossiblyMergeBulk(misses.keySet());
+    Map<ServiceId, RecipientId>               toCache  = new HashMap<>(resolved.size());
+
+    for (Map.Entry<RecipientTable.PnpTuple, RecipientId> entry : resolved.entrySet()) {
+      toCache.put(misses.get(entry.getKey()), entry.getValue());
+    }
+
+    RecipientIdCache.INSTANCE.putAll(toCache);
+    results.putAll(toCache);
+
+    return results;
+  }
+
   @AnyThread
   public static void clearCache() {
     RecipientIdCache.INSTANCE.clear();
@@ -7,6 +7,8 @@ import org.signal.core.util.logging.Log;
 import org.thoughtcrime.securesms.groups.GroupId;
 import org.whispersystems.signalservice.api.push.ServiceId;
 
+import java.util.Collection;
+import java.util.HashMap;
 import java.util.LinkedHashMap;
 import java.util.Map;
 import java.util.Optional;
@@ -16,7 +18,7 @@ import java.util.Optional;
  */
 final class RecipientIdCache {
 
-  private static final int INSTANCE_CACHE_LIMIT = 1000;
+  private static final int INSTANCE_CACHE_LIMIT = 5000;
 
   static final RecipientIdCache INSTANCE = new RecipientIdCache(INSTANCE_CACHE_LIMIT);
 
@@ -51,6 +53,30 @@ final class RecipientIdCache {
     put(recipientId, e164.orElse(null), serviceId.orElse(null));
   }
 
+  /**
+   * Caches many service IDs while only acquiring the lock once.
+   */
+  synchronized void putAll(@NonNull Map<ServiceId, RecipientId> serviceIds) {
+    ids.putAll(serviceIds);
+  }
+
+  /**
+   * @return The cached ids for any of the provided service IDs. Service IDs that aren't cached are omitted.
+   */
+  synchronized @NonNull Map<ServiceId, RecipientId> getAll(@NonNull Collection<? extends ServiceId> serviceIds) {
+    Map<ServiceId, RecipientId> results = new HashMap<>(serviceIds.size());
+
+    for (ServiceId serviceId : serviceIds) {
+      RecipientId recipientId = ids.get(serviceId);
+
+      if (recipientId != null) {
+        results.put(serviceId, recipientId);
+      }
+    }
+
+    return results;
+  }
+
   synchronized @Nullable RecipientId get(@NonNull GroupId groupId) {
     return ids.get(groupId);
   }
@@ -13,6 +13,7 @@ import org.signal.core.util.logging.Log
 import org.thoughtcrime.securesms.AppInitialization
 import org.thoughtcrime.securesms.backup.BackupPassphrase
 import org.thoughtcrime.securesms.backup.FullBackupImporter
+import org.thoughtcrime.securesms.backup.IncrementalBackupChain
 import org.thoughtcrime.securesms.crypto.AttachmentSecretProvider
 import org.thoughtcrime.securesms.database.SignalDatabase
 import org.thoughtcrime.securesms.jobmanager.impl.DataRestoreConstraint
@@ -57,11 +58,19 @@ object RestoreRepository {
 
       Log.i(TAG, "Passphrase validated.")
 
+      val deltas = IncrementalBackupChain.getDeltas(context, backupFileUri)
+      if (deltas == null) {
+        Log.w(TAG, "Can't look for deltas next to the backup. If it's the base of an incremental chain, only the base is restored.")
+      } else if (deltas.isNotEmpty()) {
+        Log.i(TAG, "Found ${deltas.size} deltas for the backup.")
+      }
+
       FullBackupImporter.importFile(
         context,
         AttachmentSecretProvider.getInstance(context).getOrCreateAttachmentSecret(),
         database,
         backupFileUri,
+        deltas ?: emptyList(),
         // TI_GLUE: eNT9XAHgq0lZdbQs2nfH start
         tiBackupFileUri,
         // TI_GLUE: eNT9XAHgq0lZdbQs2nfH end
@@ -0,0 +1,358 @@
+/*
+ * Copyright 2024 Signal Messenger, LLC
+ * SPDX-License-Identifier: AGPL-3.0-only
+ */
+
+package org.thoughtcrime.securesms.trustedIntroductions.backup
+
+import androidx.sqlite.db.SupportSQLiteDatabase
+import androidx.sqlite.db.SupportSQLiteStatement
+import okio.ByteString.Companion.toByteString
+import org.signal.core.util.Base64
+import org.signal.core.util.SqlUtil
+import org.signal.core.util.logging.Log
+import org.signal.core.util.requireInt
+import org.signal.core.util.requireLong
+import org.signal.core.util.requireNonNullString
+import org.signal.core.util.requireString
+import org.signal.core.util.select
+import org.thoughtcrime.securesms.backup.FullBackupExporter.BackupCanceledException
+import org.thoughtcrime.securesms.backup.FullBackupExporter.BackupCancellationSignal
+import org.thoughtcrime.securesms.backup.proto.TrustedIntroductions
+import org.thoughtcrime.securesms.database.RecipientTable
+import org.thoughtcrime.securesms.trustedIntroductions.TI_Utils.TI_LOG_TAG
+import org.thoughtcrime.securesms.trustedIntroductions.database.TI_Database
+import org.thoughtcrime.securesms.trustedIntroductions.database.TI_IdentityTable
+import org.whispersystems.signalservice.api.push.ServiceId
+import org.whispersystems.signalservice.api.push.ServiceId.PNI
+import java.io.IOException
+
+/**
+ * Writes the trusted introductions and the shadow identity table into a backup as [TrustedIntroductions] frames, and reads them back.
+ *
+ * Each frame carries the service IDs it refers to once, in binary form, and introductions point at them by index. On import, those references
+ * are re-linked against the restored [RecipientTable] in bulk, and rows are inserted by column name, so the result doesn't depend on the column
+ * order of either database.
+ *
+ * An identity key that isn't valid base64 is carried over as the string it was stored as, the same as the plain SQL export would have kept it, so
+ * an introduction is never lost to a bad key.
+ *
+ * Shadow identities are merged into whatever is already stored for their address, keeping the higher verified status. Relinking can map a PNI
+ * and its ACI to the same address, and the order they're restored in shouldn't decide which status survives.
+ */
+object TrustedIntroductionsBackup {
+
+  private val TAG = TI_LOG_TAG.format(Log.tag(TrustedIntroductionsBackup::class.java))
+
+  const val VERSION = 1
+
+  private const val ROWS_PER_FRAME = 500
+
+  private val INSERT_INTRODUCTION = """
+    INSERT INTO ${TI_Database.TABLE_NAME} (
+      ${TI_Database.INTRODUCER_SERVICE_ID},
+      ${TI_Database.INTRODUCEE_SERVICE_ID},
+      ${TI_Database.INTRODUCEE_PUBLIC_IDENTITY_KEY},
+      ${TI_Database.INTRODUCEE_NAME},
+      ${TI_Database.INTRODUCEE_NUMBER},
+      ${TI_Database.PREDICTED_FINGERPRINT},
+      ${TI_Database.TIMESTAMP},
+      ${TI_Database.STATE}
+    ) VALUES (?, ?, ?, ?, ?, ?, ?, ?)
+  """
+
+  private val INSERT_IDENTITY = "INSERT OR IGNORE INTO ${TI_IdentityTable.TABLE_NAME} (${TI_IdentityTable.ADDRESS}, ${TI_IdentityTable.VERIFIED}) VALUES (?, ?)"
+
+  /** Completes the merge after [INSERT_IDENTITY] left an existing row in place. */
+  private val RAISE_IDENTITY_VERIFIED = """
+    UPDATE ${TI_IdentityTable.TABLE_NAME}
+    SET ${TI_IdentityTable.VERIFIED} = ?
+    WHERE ${TI_IdentityTable.ADDRESS} = ? AND (${TI_IdentityTable.VERIFIED} IS NULL OR ${TI_IdentityTable.VERIFIED} < ?)
+  """
+
+  /**
+   * @return True if the rows of [table] are written by [export] rather than as SQL statements.
+   */
+  @JvmStatic
+  fun isExportedAsRecords(table: String): Boolean {
+    return table == TI_Database.TABLE_NAME || table == TI_IdentityTable.TABLE_NAME
+  }
+
+  /**
+   * @return The number of rows that were written.
+   */
+  @JvmStatic
+  @Throws(IOException::class)
+  fun export(db: SupportSQLiteDatabase, writer: FrameWriter, cancellationSignal: BackupCancellationSignal): Int {
+    val identities = exportIdentities(db, writer, cancellationSignal)
+    return exportIntroductions(db, writer, cancellationSignal, identities)
+  }
+
+  private fun exportIdentities(db: SupportSQLiteDatabase, writer: FrameWriter, cancellationSignal: BackupCancellationSignal): Int {
+    if (!SqlUtil.tableExists(db, TI_IdentityTable.TABLE_NAME)) {
+      return 0
+    }
+
+    var count = 0
+    var frame = FrameBuilder()
+
+    db.select(TI_IdentityTable.ADDRESS, TI_IdentityTable.VERIFIED)
+      .from(TI_IdentityTable.TABLE_NAME)
+      .run()
+      .use { cursor ->
+        while (cursor.moveToNext()) {
+          val address = cursor.requireString(TI_IdentityTable.ADDRESS)
+          if (address == null) {
+            Log.w(TAG, "Skipping shadow identity without an address.")
+            continue
+          }
+
+          frame.addIdentity(address, cursor.requireInt(TI_IdentityTable.VERIFIED))
+          count++
+
+          if (frame.size >= ROWS_PER_FRAME) {
+            throwIfCanceled(cancellationSignal)
+            writer.write(frame.build(), count)
+            frame = FrameBuilder()
+          }
+        }
+      }
+
+    if (frame.size > 0) {
+      writer.write(frame.build(), count)
+    }
+
+    return count
+  }
+
+  private fun exportIntroductions(db: SupportSQLiteDatabase, writer: FrameWriter, cancellationSignal: BackupCancellationSignal, alreadyWritten: Int): Int {
+    if (!SqlUtil.tableExists(db, TI_Database.TABLE_NAME)) {
+      return alreadyWritten
+    }
+
+    var count = alreadyWritten
+    var frame = FrameBuilder()
+
+    db.select()
+      .from(TI_Database.TABLE_NAME)
+      .orderBy("${TI_Database.ID} ASC")
+      .run()
+      .use { cursor ->
+        while (cursor.moveToNext()) {
+          val rawIdentityKey = cursor.requireNonNullString(TI_Database.INTRODUCEE_PUBLIC_IDENTITY_KEY)
+          val identityKey = Base64.decodeOrNull(rawIdentityKey)
+          if (identityKey == null) {
+            Log.w(TAG, "Introduction ${cursor.requireLong(TI_Database.ID)} has an invalid identity key, keeping it as is.")
+          }
+
+          val introducer = cursor.requireString(TI_Database.INTRODUCER_SERVICE_ID)
+
+          frame.addIntroduction(
+            TrustedIntroductions.Introduction(
+              introducer = if (introducer == null || introducer == TI_Database.UNKNOWN_INTRODUCER_SERVICE_ID) null else frame.reference(introducer),
+              introducee = frame.reference(cursor.requireNonNullString(TI_Database.INTRODUCEE_SERVICE_ID)),
+              identityKey = identityKey?.toByteString(),
+              rawIdentityKey = if (identityKey == null) rawIdentityKey else null,
+              name = cursor.requireString(TI_Database.INTRODUCEE_NAME),
+              number = cursor.requireString(TI_Database.INTRODUCEE_NUMBER),
+              predictedFingerprint = cursor.requireString(TI_Database.PREDICTED_FINGERPRINT),
+              timestamp = cursor.requireLong(TI_Database.TIMESTAMP),
+              state = cursor.requireInt(TI_Database.STATE)
+            )
+          )
+          count++
+
+          if (frame.size >= ROWS_PER_FRAME) {
+            throwIfCanceled(cancellationSignal)
+            writer.write(frame.build(), count)
+            frame = FrameBuilder()
+          }
+        }
+      }
+
+    if (frame.size > 0) {
+      writer.write(frame.build(), count)
+    }
+
+    return count
+  }
+
+  /**
+   * Restores the rows of [frame]. The tables are expected to have been created by the schema statements that precede the frames.
+   */
+  @JvmStatic
+  fun restore(db: SupportSQLiteDatabase, frame: TrustedIntroductions) {
+    if (frame.version == null || frame.version!! > VERSION) {
+      Log.w(TAG, "Skipping trusted introductions with unsupported version ${frame.version}")
+      return
+    }
+
+    val serviceIds = relink(db, frame.identities)
+
+    val identities = frame.identities.withIndex().filter { it.value.verified != null }
+    if (identities.isNotEmpty()) {
+      if (!SqlUtil.tableExists(db, TI_IdentityTable.TABLE_NAME)) {
+        Log.w(TAG, "Skipping ${identities.size} shadow identities, the table wasn't restored.")
+      } else {
+        db.compileStatement(INSERT_IDENTITY).use { insert ->
+          db.compileStatement(RAISE_IDENTITY_VERIFIED).use { raise ->
+            for ((index, identity) in identities) {
+              val serviceId = serviceIds[index] ?: continue
+              val verified = identity.verified!!.toLong()
+
+              insert.bindString(1, serviceId)
+              insert.bindLong(2, verified)
+              insert.executeInsert()
+              insert.clearBindings()
+
+              raise.bindLong(1, verified)
+              raise.bindString(2, serviceId)
+              raise.bindLong(3, verified)
+              raise.executeUpdateDelete()
+              raise.clearBindings()
+            }
+          }
+        }
+      }
+    }
+
+    if (frame.introductions.isNotEmpty()) {
+      if (!SqlUtil.tableExists(db, TI_Database.TABLE_NAME)) {
+        Log.w(TAG, "Skipping ${frame.introductions.size} introductions, the table wasn't restored.")
+      } else {
+        db.compileStatement(INSERT_INTRODUCTION).use { statement ->
+          for (introduction in frame.introductions) {
+            insertIntroduction(statement, introduction, serviceIds)
+          }
+        }
+      }
+    }
+  }
+
+  private fun insertIntroduction(statement: SupportSQLiteStatement, introduction: TrustedIntroductions.Introduction, serviceIds: List<String?>) {
+    val introducee = introduction.introducee?.let { serviceIds.getOrNull(it) }
+    val identityKey = introduction.identityKey?.let { Base64.encodeWithoutPadding(it.toByteArray()) } ?: introduction.rawIdentityKey
+
+    if (introducee == null || identityKey == null || introduction.state == null || introduction.timestamp == null) {
+      Log.w(TAG, "Skipping incomplete introduction.")
+      return
+    }
+
+    val introducer = introduction.introducer?.let { serviceIds.getOrNull(it) } ?: TI_Database.UNKNOWN_INTRODUCER_SERVICE_ID
+
+    statement.bindString(1, introducer)
+    statement.bindString(2, introducee)
+    statement.bindString(3, identityKey)
+    statement.bindString(4, introduction.name ?: "")
+    statement.bindNullableString(5, introduction.number)
+    statement.bindString(6, introduction.predictedFingerprint ?: "")
+    statement.bindLong(7, introduction.timestamp!!)
+    statement.bindLong(8, introduction.state!!.toLong())
+    statement.executeInsert()
+    statement.clearBindings()
+  }
+
+  /**
+   * Resolves the identities of a frame to the service IDs they should be stored under. A PNI that now belongs to a recipient with an ACI is
+   * replaced by that ACI, since TI always refers to a contact by ACI once it is known. All lookups are done with one query per batch of IDs.
+   */
+  private fun relink(db: SupportSQLiteDatabase, identities: List<TrustedIntroductions.Identity>): List<String?> {
+    val serviceIds: List<ServiceId?> = identities.map { identity -> identity.serviceId?.let { ServiceId.parseOrNull(it) } }
+    val pnis: List<String> = serviceIds.filterIsInstance<PNI>().map { it.toString() }.distinct()
+
+    val acisByPni: MutableMap<String, String> = HashMap()
+    if (pnis.isNotEmpty()) {
+      for (query in SqlUtil.buildCollectionQuery(RecipientTable.PNI_COLUMN, pnis, "${RecipientTable.ACI_COLUMN} NOT NULL AND ")) {
+        db.select(RecipientTable.PNI_COLUMN, RecipientTable.ACI_COLUMN)
+          .from(RecipientTable.TABLE_NAME)
+          .where(query.where, query.whereArgs)
+          .run()
+          .use { cursor ->
+            while (cursor.moveToNext()) {
+              acisByPni[cursor.requireNonNullString(RecipientTable.PNI_COLUMN)] = cursor.requireNonNullString(RecipientTable.ACI_COLUMN)
+            }
+          }
+      }
+    }
+
+    if (acisByPni.isNotEmpty()) {
+      Log.i(TAG, "Re-linked ${acisByPni.size} PNI references to their ACI.")
+    }
+
+    return identities.mapIndexed { index, identity ->
+      val serviceId = serviceIds[index]?.toString()
+      if (serviceId != null) {
+        acisByPni[serviceId] ?: serviceId
+      } else {
+        identity.rawServiceId
+      }
+    }
+  }
+
+  private fun SupportSQLiteStatement.bindNullableString(index: Int, value: String?) {
+    if (value != null) {
+      bindString(index, value)
+    } else {
+      bindNull(index)
+    }
+  }
+
+  private fun throwIfCanceled(cancellationSignal: BackupCancellationSignal) {
+    if (cancellationSignal.isCanceled) {
+      throw BackupCanceledException()
+    }
+  }
+
+  fun interface FrameWriter {
+    /**
+     * @param rowsWritten The number of rows written so far, including the ones in [frame].
+     */
+    @Throws(IOException::class)
+    fun write(frame: TrustedIntroductions, rowsWritten: Int)
+  }
+
+  /**
+   * Collects the rows for a single frame, writing each referenced service ID only once.
+   */
+  private class FrameBuilder {
+    private val identities: MutableList<TrustedIntroductions.Identity> = ArrayList()
+    private val introductions: MutableList<TrustedIntroductions.Introduction> = ArrayList()
+    private val references: MutableMap<String, Int> = HashMap()
+
+    val size: Int
+      get() = identities.size + introductions.size
+
+    fun addIdentity(serviceId: String, verified: Int) {
+      identities += buildIdentity(serviceId, verified)
+    }
+
+    fun addIntroduction(introduction: TrustedIntroductions.Introduction) {
+      introductions += introduction
+    }
+
+    fun reference(serviceId: String): Int {
+      return references.getOrPut(serviceId) {
+        identities += buildIdentity(serviceId, null)
+        identities.size - 1
+      }
+    }
+
+    fun build(): TrustedIntroductions {
+      return TrustedIntroductions(
+        version = VERSION,
+        identities = identities,
+        introductions = introductions
+      )
+    }
+
+    private fun buildIdentity(serviceId: String, verified: Int?): TrustedIntroductions.Identity {
+      val parsed = ServiceId.parseOrNull(serviceId, logFailures = false)
+
+      return TrustedIntroductions.Identity(
+        serviceId = parsed?.toByteString(),
+        rawServiceId = if (parsed == null) serviceId else null,
+        verified = verified
+      )
+    }
+  }
+}
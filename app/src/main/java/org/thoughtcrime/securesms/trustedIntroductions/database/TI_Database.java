@@ -66,15 +66,15 @@ public class TI_Database extends DatabaseTable implements TI_DatabaseGlue {
 
   public static final String TABLE_NAME = "trusted_introductions";
 
-  private static final String ID                      = "_id";
+  public static final String ID                      = "_id";
   public static final String INTRODUCER_SERVICE_ID   = "introducer_service_id";
-  private static final String INTRODUCEE_SERVICE_ID          = "introducee_service_id";
-  private static final String INTRODUCEE_PUBLIC_IDENTITY_KEY = "introducee_identity_key"; // The one contained in the Introduction
-  private static final String INTRODUCEE_NAME                = "introducee_name"; // TODO: snapshot when introduction happened. Necessary? Or wrong approach?
-  private static final String INTRODUCEE_NUMBER     = "introducee_number"; // TODO: snapshot when introduction happened. Necessary? Or wrong approach?
-  private static final String PREDICTED_FINGERPRINT = "predicted_fingerprint";
-  private static final String TIMESTAMP             = "timestamp";
-  private static final String STATE                          = "state";
+  public static final String INTRODUCEE_SERVICE_ID          = "introducee_service_id";
+  public static final String INTRODUCEE_PUBLIC_IDENTITY_KEY = "introducee_identity_key"; // The one contained in the Introduction
+  public static final String INTRODUCEE_NAME                = "introducee_name"; // TODO: snapshot when introduction happened. Necessary? Or wrong approach?
+  public static final String INTRODUCEE_NUMBER     = "introducee_number"; // TODO: snapshot when introduction happened. Necessary? Or wrong approach?
+  public static final String PREDICTED_FINGERPRINT = "predicted_fingerprint";
+  public static final String TIMESTAMP             = "timestamp";
+  public static final String STATE                          = "state";
   public static final long UNKNOWN_INTRODUCEE_RECIPIENT_ID = -1; //TODO: need to search through database for serviceID when new recipient is added in order to initialize.
   public static final String UNKNOWN_INTRODUCER_SERVICE_ID = "-1";
 
@@ -17,6 +17,7 @@ import org.signal.core.util.logging.Log;
 import org.signal.libsignal.protocol.util.ByteUtil;
 import org.thoughtcrime.securesms.R;
 import org.thoughtcrime.securesms.backup.BackupPassphrase;
+import org.thoughtcrime.securesms.backup.IncrementalBackupChain;
 import org.thoughtcrime.securesms.database.NoExternalStorageException;
 import org.thoughtcrime.securesms.dependencies.AppDependencies;
 import org.thoughtcrime.securesms.keyvalue.SignalStore;
@@ -196,7 +197,14 @@ public class BackupUtil {
         long backupTimestamp = getBackupTimestamp(file.getName());
 
         if (backupTimestamp != -1) {
-          backups.add(new BackupInfo(backupTimestamp, file.length(), Uri.fromFile(file)));
+          long size = file.length();
+
+          for (File delta : IncrementalBackupChain.getDeltas(file)) {
+            backupTimestamp = Math.max(backupTimestamp, delta.lastModified());
+            size           += delta.length();
+          }
+
+          backups.add(new BackupInfo(backupTimestamp, size, Uri.fromFile(file)));
         }
       }
     }
@@ -349,11 +357,12 @@ public class BackupUtil {
       File file = new File(Objects.requireNonNull(uri.getPath()));
 
       if (file.exists()) {
-        Log.i(TAG, "Deleting File: " + file.getAbsolutePath());
-
-        if (!file.delete()) {
-          Log.w(TAG, "Delete failed: " + file.getAbsolutePath());
+        for (File delta : IncrementalBackupChain.getDeltas(file)) {
+          deleteFile(new File(delta.getParentFile(), IncrementalBackupChain.TI_PREFIX + delta.getName()));
+          deleteFile(delta);
         }
+
+        deleteFile(file);
       } else {
         DocumentFile document = DocumentFile.fromSingleUri(AppDependencies.getApplication(), uri);
         if (document != null && document.exists()) {
@@ -365,5 +374,17 @@ public class BackupUtil {
         }
       }
     }
+
+    private static void deleteFile(@NonNull File file) {
+      if (!file.exists()) {
+        return;
+      }
+
+      Log.i(TAG, "Deleting File: " + file.getAbsolutePath());
+
+      if (!file.delete()) {
+        Log.w(TAG, "Delete failed: " + file.getAbsolutePath());
+      }
+    }
   }
 }
@@ -0,0 +1,97 @@
+package org.thoughtcrime.securesms.util;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+/**
+ * A size-bounded LRU cache that is split into independently-locked segments, so that concurrent
+ * readers only contend when they hash to the same segment. Eviction is per-segment, which means the
+ * cache as a whole is an approximation of a true LRU, but it never holds more than maxSize entries.
+ */
+public final class SegmentedLRUCache<K, V> {
+
+  private final LRUCache<K, V>[] segments;
+
+  public SegmentedLRUCache(int maxSize, int segmentCount) {
+    if (segmentCount <= 0 || maxSize < segmentCount) {
+      throw new IllegalArgumentException("Invalid size! maxSize: " + maxSize + ", segmentCount: " + segmentCount);
+    }
+
+    //noinspection unchecked
+    this.segments = new LRUCache[segmentCount];
+
+    for (int i = 0; i < segmentCount; i++) {
+      segments[i] = new LRUCache<>(maxSize / segmentCount);
+    }
+  }
+
+  public @Nullable V get(@NonNull K key) {
+    LRUCache<K, V> segment = segmentFor(key);
+
+    synchronized (segment) {
+      return segment.get(key);
+    }
+  }
+
+  /**
+   * Inserts the value if there is no entry for the key.
+   *
+   * @return The existing value, or null if the provided value was inserted.
+   */
+  public @Nullable V putIfAbsent(@NonNull K key, @NonNull V value) {
+    LRUCache<K, V> segment = segmentFor(key);
+
+    synchronized (segment) {
+      V existing = segment.get(key);
+
+      if (existing == null) {
+        segment.put(key, value);
+      }
+
+      return existing;
+    }
+  }
+
+  public void put(@NonNull K key, @NonNull V value) {
+    LRUCache<K, V> segment = segmentFor(key);
+
+    synchronized (segment) {
+      segment.put(key, value);
+    }
+  }
+
+  public void remove(@NonNull K key) {
+    LRUCache<K, V> segment = segmentFor(key);
+
+    synchronized (segment) {
+      segment.remove(key);
+    }
+  }
+
+  public int size() {
+    int size = 0;
+
+    for (LRUCache<K, V> segment : segments) {
+      synchronized (segment) {
+        size += segment.size();
+      }
+    }
+
+    return size;
+  }
+
+  public void clear() {
+    for (LRUCache<K, V> segment : segments) {
+      synchronized (segment) {
+        segment.clear();
+      }
+    }
+  }
+
+  private @NonNull LRUCache<K, V> segmentFor(@NonNull K key) {
+    int hash = key.hashCode();
+    hash ^= (hash >>> 16);
+
+    return segments[(hash & Integer.MAX_VALUE) % segments.length];
+  }
+}
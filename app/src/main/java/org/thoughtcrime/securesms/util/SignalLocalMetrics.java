@@ -79,18 +79,37 @@ public final class SignalLocalMetrics {
     private static final String SPLIT_VIEWMODEL_INIT  = "viewmodel-init";
     private static final String SPLIT_METADATA_LOADED = "metadata-loaded";
     private static final String SPLIT_DATA_LOADED     = "data-loaded";
+    private static final String SPLIT_DATA_PRELOADED  = "data-loaded-preloaded";
     private static final String SPLIT_DATA_POSTED     = "data-posted";
     private static final String SPLIT_RENDER          = "render";
 
-    private static String id;
+    private static String           id;
+    private static volatile long    threadId;
+    private static volatile boolean preloaded;
 
-    public static void start() {
+    public static void start(long openedThreadId) {
       SignalTrace.beginSection("6-ConversationOpen");
-      id = NAME + "-" + System.currentTimeMillis();
+      id        = NAME + "-" + System.currentTimeMillis();
+      threadId  = openedThreadId;
+      preloaded = false;
       LocalMetrics.getInstance().start(id, NAME);
       SignalTrace.beginSection("1-ConversationOpen-ViewModel-Init");
     }
 
+    /**
+     * Marks that the first page of the conversation was served from the preload cache. The data load
+     * is then recorded under its own split so the two paths can be compared. Hits for any thread
+     * other than the one being opened are ignored.
+     */
+    public static void onPreloadHit(long preloadedThreadId) {
+      if (preloadedThreadId != threadId) {
+        return;
+      }
+
+      preloaded = true;
+      LocalMetrics.getInstance().setLabel(id, "preloaded");
+    }
+
     public static void onMetadataLoadStarted() {
       SignalTrace.endSection();
       LocalMetrics.getInstance().split(id, SPLIT_VIEWMODEL_INIT);
@@ -105,7 +124,7 @@ public final class SignalLocalMetrics {
 
     public static void onDataLoaded() {
       SignalTrace.endSection();
-      LocalMetrics.getInstance().split(id, SPLIT_DATA_LOADED);
+      LocalMetrics.getInstance().split(id, preloaded ? SPLIT_DATA_PRELOADED : SPLIT_DATA_LOADED);
       SignalTrace.beginSection("4-ConversationOpen-Data-Posted");
     }
 
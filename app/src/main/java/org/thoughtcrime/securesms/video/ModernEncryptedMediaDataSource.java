@@ -6,13 +6,19 @@ import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
 import androidx.annotation.RequiresApi;
 
+import org.signal.core.util.Conversions;
 import org.thoughtcrime.securesms.crypto.AttachmentSecret;
-import org.thoughtcrime.securesms.crypto.ModernDecryptingPartInputStream;
-import org.thoughtcrime.securesms.video.videoconverter.mediadatasource.InputStreamMediaDataSource;
+import org.thoughtcrime.securesms.util.LRUCache;
 
 import java.io.File;
 import java.io.IOException;
-import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.security.GeneralSecurityException;
+
+import javax.crypto.Cipher;
+import javax.crypto.Mac;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
 
 /**
  * Create via {@link EncryptedMediaDataSource}.
@@ -21,36 +27,157 @@ import java.io.InputStream;
  * <p>
  * It is "modern" compared to the {@link ClassicEncryptedMediaDataSource}. And "modern" refers to
  * the presence of a random part of the key supplied in the constructor.
+ * <p>
+ * Modern part files are AES-CTR encrypted, so rather than decrypting from the start of the file
+ * for every read, we compute the counter for the requested offset and decrypt just the blocks that
+ * cover it. Recently decrypted blocks are kept around, since media extractors tend to issue many
+ * small reads in the same area.
  */
 @RequiresApi(23)
-final class ModernEncryptedMediaDataSource extends InputStreamMediaDataSource {
+final class ModernEncryptedMediaDataSource extends MediaDataSource {
+
+  /** Must be a multiple of the AES block size so that every block starts on a counter boundary. */
+  private static final int BLOCK_SIZE    = 64 * 1024;
+  private static final int CACHED_BLOCKS = 16;
 
-  private final AttachmentSecret attachmentSecret;
-  private final File             mediaFile;
-  private final byte[]           random;
-  private final long             length;
+  private final AttachmentSecret       attachmentSecret;
+  private final File                   mediaFile;
+  private final byte[]                 random;
+  private final long                   length;
+  private final LRUCache<Long, byte[]> blockCache;
+
+  private RandomAccessFile file;
+  private SecretKeySpec    key;
+  private Cipher           cipher;
+  private long             dataOffset;
 
   ModernEncryptedMediaDataSource(@NonNull AttachmentSecret attachmentSecret, @NonNull File mediaFile, @Nullable byte[] random, long length) {
     this.attachmentSecret = attachmentSecret;
     this.mediaFile        = mediaFile;
     this.random           = random;
     this.length           = length;
+    this.blockCache       = new LRUCache<>(CACHED_BLOCKS);
   }
 
   @Override
-  public void close() {}
+  public synchronized int readAt(long position, byte[] bytes, int offset, int length) throws IOException {
+    if (position >= this.length) {
+      return -1;
+    }
+
+    int toRead    = (int) Math.min(length, this.length - position);
+    int totalRead = 0;
+
+    while (totalRead < toRead) {
+      long   current     = position + totalRead;
+      byte[] block       = getBlock(current / BLOCK_SIZE);
+      int    blockOffset = (int) (current % BLOCK_SIZE);
+
+      if (blockOffset >= block.length) {
+        break;
+      }
+
+      int count = Math.min(block.length - blockOffset, toRead - totalRead);
+      System.arraycopy(block, blockOffset, bytes, offset + totalRead, count);
+      totalRead += count;
+    }
+
+    return totalRead == 0 ? -1 : totalRead;
+  }
+
+  @Override
+  public synchronized void close() throws IOException {
+    blockCache.clear();
+
+    if (file != null) {
+      file.close();
+      file = null;
+    }
+  }
 
   @Override
   public long getSize() {
     return length;
   }
 
-  @NonNull
-  public InputStream createInputStream(long position) throws IOException {
-    if (random == null) {
-      return ModernDecryptingPartInputStream.createFor(attachmentSecret, mediaFile, position);
-    } else {
-      return ModernDecryptingPartInputStream.createFor(attachmentSecret, random, mediaFile, position);
+  private @NonNull byte[] getBlock(long blockIndex) throws IOException {
+    byte[] cached = blockCache.get(blockIndex);
+
+    if (cached != null) {
+      return cached;
     }
+
+    ensureOpen();
+
+    long   plaintextOffset = blockIndex * BLOCK_SIZE;
+    byte[] ciphertext      = new byte[(int) Math.min(BLOCK_SIZE, length - plaintextOffset)];
+    int    read            = readFully(dataOffset + plaintextOffset, ciphertext);
+    byte[] iv              = new byte[16];
+
+    Conversions.longTo4ByteArray(iv, 12, plaintextOffset / 16);
+
+    try {
+      cipher.init(Cipher.DECRYPT_MODE, key, new IvParameterSpec(iv));
+      byte[] plaintext = cipher.doFinal(ciphertext, 0, read);
+
+      // A short read means the file is still being written, so only cache complete blocks.
+      if (read == ciphertext.length) {
+        blockCache.put(blockIndex, plaintext);
+      }
+
+      return plaintext;
+    } catch (GeneralSecurityException e) {
+      throw new AssertionError(e);
+    }
+  }
+
+  private void ensureOpen() throws IOException {
+    if (file != null) {
+      return;
+    }
+
+    RandomAccessFile randomAccessFile = new RandomAccessFile(mediaFile, "r");
+    byte[]           keyRandom        = random;
+
+    try {
+      if (keyRandom == null) {
+        keyRandom = new byte[32];
+        randomAccessFile.readFully(keyRandom);
+        dataOffset = keyRandom.length;
+      } else {
+        dataOffset = 0;
+      }
+
+      Mac mac = Mac.getInstance("HmacSHA256");
+      mac.init(new SecretKeySpec(attachmentSecret.getModernKey(), "HmacSHA256"));
+
+      key    = new SecretKeySpec(mac.doFinal(keyRandom), "AES");
+      cipher = Cipher.getInstance("AES/CTR/NoPadding");
+      file   = randomAccessFile;
+    } catch (GeneralSecurityException e) {
+      randomAccessFile.close();
+      throw new AssertionError(e);
+    } catch (IOException e) {
+      randomAccessFile.close();
+      throw e;
+    }
+  }
+
+  private int readFully(long filePosition, @NonNull byte[] buffer) throws IOException {
+    file.seek(filePosition);
+
+    int offset = 0;
+
+    while (offset < buffer.length) {
+      int read = file.read(buffer, offset, buffer.length - offset);
+
+      if (read == -1) {
+        break;
+      }
+
+      offset += read;
+    }
+
+    return offset;
   }
 }
@@ -206,7 +206,7 @@ abstract public class VideoThumbnailsView extends View {
     @Override
     protected Void doInBackground(Void... params) {
       Log.i(TAG, "generate " + thumbnailCount + " thumbnails " + thumbnailWidth + "x" + thumbnailHeight);
-      VideoThumbnailsExtractor.extractThumbnails(input, thumbnailCount, (int) thumbnailHeight, new VideoThumbnailsExtractor.Callback() {
+      VideoThumbnailsExtractor.extractThumbnails(input, thumbnailCount, (int) Math.ceil(thumbnailWidth), (int) thumbnailHeight, new VideoThumbnailsExtractor.Callback() {
 
         @Override
         public void durationKnown(long duration) {
@@ -0,0 +1,47 @@
+package org.thoughtcrime.securesms.attachments
+
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertNull
+import org.junit.Test
+import java.io.File
+
+class ThumbnailPyramidTest {
+
+  @Test
+  fun levelFor_picksSmallestLevelThatCoversTheLongestEdge() {
+    assertEquals(128, ThumbnailPyramid.levelFor(1, 1))
+    assertEquals(128, ThumbnailPyramid.levelFor(128, 64))
+    assertEquals(256, ThumbnailPyramid.levelFor(64, 129))
+    assertEquals(512, ThumbnailPyramid.levelFor(300, 512))
+  }
+
+  @Test
+  fun levelFor_returnsNullForLargeOrUnknownSizes() {
+    assertNull(ThumbnailPyramid.levelFor(513, 100))
+    assertNull(ThumbnailPyramid.levelFor(0, 100))
+    assertNull(ThumbnailPyramid.levelFor(Int.MIN_VALUE, Int.MIN_VALUE))
+  }
+
+  @Test
+  fun fileFor_isNextToTheDataFile() {
+    val dataFile = File("/data/app_parts/part123.mms")
+
+    assertEquals(File("/data/app_parts/part123.mms.thumb256"), ThumbnailPyramid.fileFor(dataFile, 256))
+  }
+
+  @Test
+  fun dataFilePathFor_roundTripsWithFileFor() {
+    val dataFile = File("/data/app_parts/part123.mms")
+
+    for (level in ThumbnailPyramid.LEVELS) {
+      assertEquals(dataFile.path, ThumbnailPyramid.dataFilePathFor(ThumbnailPyramid.fileFor(dataFile, level).path))
+    }
+  }
+
+  @Test
+  fun dataFilePathFor_ignoresOtherFiles() {
+    assertNull(ThumbnailPyramid.dataFilePathFor("/data/app_parts/part123.mms"))
+    assertNull(ThumbnailPyramid.dataFilePathFor("/data/app_parts/part123.mms.thumb256.tmp"))
+    assertNull(ThumbnailPyramid.dataFilePathFor("/data/app_parts/part123.mms.chunks"))
+  }
+}
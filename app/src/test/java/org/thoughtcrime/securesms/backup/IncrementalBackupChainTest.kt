@@ -0,0 +1,239 @@
+package org.thoughtcrime.securesms.backup
+
+import android.content.Context
+import androidx.documentfile.provider.DocumentFile
+import io.mockk.every
+import io.mockk.mockk
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertFalse
+import org.junit.Assert.assertNotEquals
+import org.junit.Assert.assertTrue
+import org.junit.Before
+import org.junit.Rule
+import org.junit.Test
+import org.junit.rules.TemporaryFolder
+import java.io.File
+
+class IncrementalBackupChainTest {
+
+  @get:Rule
+  val folder = TemporaryFolder()
+
+  private lateinit var context: Context
+  private lateinit var backupDirectory: File
+
+  @Before
+  fun setUp() {
+    val filesDir = folder.newFolder("files")
+    context = mockk<Context> { every { getFilesDir() } returns filesDir }
+    backupDirectory = folder.newFolder("backups")
+  }
+
+  @Test
+  fun `getDeltas - returns deltas in order`() {
+    val base = folder.newFile("signal-2024-01-01-02-00-00.backup")
+    folder.newFile("signal-2024-01-01-02-00-00.2.delta")
+    folder.newFile("signal-2024-01-01-02-00-00.1.delta")
+    folder.newFile("signal-2024-01-02-02-00-00.1.delta")
+
+    val deltas = IncrementalBackupChain.getDeltas(base)
+
+    assertEquals(listOf("signal-2024-01-01-02-00-00.1.delta", "signal-2024-01-01-02-00-00.2.delta"), deltas.map { it.name })
+  }
+
+  @Test
+  fun `getDeltas - stops at a gap`() {
+    val base = folder.newFile("signal-2024-01-01-02-00-00.backup")
+    folder.newFile("signal-2024-01-01-02-00-00.1.delta")
+    folder.newFile("signal-2024-01-01-02-00-00.3.delta")
+
+    val deltas = IncrementalBackupChain.getDeltas(base)
+
+    assertEquals(listOf("signal-2024-01-01-02-00-00.1.delta"), deltas.map { it.name })
+  }
+
+  @Test
+  fun `getDeltas - ignores files that are not a base`() {
+    val delta = folder.newFile("signal-2024-01-01-02-00-00.1.delta")
+
+    assertTrue(IncrementalBackupChain.getDeltas(delta).isEmpty())
+  }
+
+  @Test
+  fun `getIdentity - depends on the random and not the path`() {
+    val random = ByteArray(32) { it.toByte() }
+
+    assertEquals(IncrementalBackupChain.getIdentity(random, "/a"), IncrementalBackupChain.getIdentity(random.copyOf(), "/b"))
+    assertNotEquals(IncrementalBackupChain.getIdentity(random, "/a"), IncrementalBackupChain.getIdentity(ByteArray(32), "/a"))
+  }
+
+  @Test
+  fun `getIdentity - falls back to the path without a random`() {
+    assertEquals(IncrementalBackupChain.getIdentity(null, "/a"), IncrementalBackupChain.getIdentity(ByteArray(0), "/a"))
+    assertNotEquals(IncrementalBackupChain.getIdentity(null, "/a"), IncrementalBackupChain.getIdentity(null, "/b"))
+  }
+
+  @Test
+  fun `getDeltas - finds deltas in a document directory`() {
+    val directory = documentDirectory(
+      "signal-2024-01-01-02-00-00.backup",
+      "signal-2024-01-01-02-00-00.2.delta",
+      "signal-2024-01-01-02-00-00.1.delta",
+      "signal-2024-01-01-02-00-00.4.delta",
+      "ti-signal-2024-01-01-02-00-00.1.delta"
+    )
+
+    val deltas = IncrementalBackupChain.getDeltas(directory, "signal-2024-01-01-02-00-00.backup")
+
+    assertEquals(listOf("signal-2024-01-01-02-00-00.1.delta", "signal-2024-01-01-02-00-00.2.delta"), deltas.map { it.name })
+  }
+
+  @Test
+  fun `getDeltas - finds no deltas in a document directory for a file that is not a base`() {
+    val directory = documentDirectory("signal-2024-01-01-02-00-00.1.delta", "signal-2024-01-01-02-00-00.1.1.delta")
+
+    assertTrue(IncrementalBackupChain.getDeltas(directory, "signal-2024-01-01-02-00-00.1.delta").isEmpty())
+  }
+
+  @Test
+  fun `shouldWrite - a base writes every row`() {
+    val contents = IncrementalBackupChain.open(context, backupDirectory, "2024-01-01-02-00-00").contents
+
+    assertTrue(contents.shouldWrite("a"))
+    assertTrue(contents.shouldWrite("a"))
+    assertTrue(contents.shouldWrite("b"))
+  }
+
+  @Test
+  fun `shouldWrite - a delta writes new data once`() {
+    writeBackup(listOf("a", "b"))
+
+    val contents = IncrementalBackupChain.open(context, backupDirectory, "2024-01-02-02-00-00").contents
+
+    assertFalse(contents.shouldWrite("a"))
+    assertTrue(contents.shouldWrite("c"))
+    assertFalse(contents.shouldWrite("c"))
+    assertFalse(contents.shouldWrite("b"))
+  }
+
+  @Test
+  fun `open - starts a new base without a manifest`() {
+    val chain = IncrementalBackupChain.open(context, backupDirectory, "2024-01-01-02-00-00")
+
+    assertFalse(chain.isDelta)
+    assertEquals("signal-2024-01-01-02-00-00.backup", chain.fileName)
+    assertEquals("ti-signal-2024-01-01-02-00-00.backup", chain.tiFileName)
+  }
+
+  @Test
+  fun `open - continues a committed chain`() {
+    writeBackup(listOf("a"))
+    writeBackup(listOf("b"))
+
+    val chain = IncrementalBackupChain.open(context, backupDirectory, "2024-01-03-02-00-00")
+
+    assertTrue(chain.isDelta)
+    assertEquals("signal-2024-01-01-02-00-00.2.delta", chain.fileName)
+    assertEquals("ti-signal-2024-01-01-02-00-00.2.delta", chain.tiFileName)
+  }
+
+  @Test
+  fun `open - starts a new base when a chain file is missing`() {
+    writeBackup(listOf("a"))
+    writeBackup(listOf("b"))
+    File(backupDirectory, "signal-2024-01-01-02-00-00.1.delta").delete()
+
+    val chain = IncrementalBackupChain.open(context, backupDirectory, "2024-01-03-02-00-00")
+
+    assertFalse(chain.isDelta)
+    assertEquals("signal-2024-01-03-02-00-00.backup", chain.fileName)
+    assertTrue(chain.contents.shouldWrite("a"))
+  }
+
+  @Test
+  fun `open - starts a new base after the last delta`() {
+    repeat(7) { writeBackup(listOf("$it")) }
+
+    val chain = IncrementalBackupChain.open(context, backupDirectory, "2024-02-01-02-00-00")
+
+    assertFalse(chain.isDelta)
+    assertEquals("signal-2024-02-01-02-00-00.backup", chain.fileName)
+  }
+
+  @Test
+  fun `open - starts a new base without a commit`() {
+    IncrementalBackupChain.open(context, backupDirectory, "2024-01-01-02-00-00")
+    File(backupDirectory, "signal-2024-01-01-02-00-00.backup").createNewFile()
+
+    val chain = IncrementalBackupChain.open(context, backupDirectory, "2024-01-02-02-00-00")
+
+    assertFalse(chain.isDelta)
+  }
+
+  @Test
+  fun `reset - starts a new base`() {
+    writeBackup(listOf("a"))
+    IncrementalBackupChain.reset(context)
+
+    val chain = IncrementalBackupChain.open(context, backupDirectory, "2024-01-02-02-00-00")
+
+    assertFalse(chain.isDelta)
+    assertTrue(chain.contents.shouldWrite("a"))
+  }
+
+  @Test
+  fun `chain restore - data of the newest backup is found in the restore order`() {
+    writeBackup(listOf("a", "b", "c"))
+    writeBackup(listOf("a", "d"))
+    writeBackup(listOf("a", "c", "d", "e", "e"))
+
+    val base   = File(backupDirectory, "signal-2024-01-01-02-00-00.backup")
+    val order  = IncrementalBackupChain.getRestoreOrder(base, IncrementalBackupChain.getDeltas(base))
+    val newest = listOf("a", "c", "d", "e")
+
+    assertEquals(
+      listOf("signal-2024-01-01-02-00-00.2.delta", "signal-2024-01-01-02-00-00.1.delta", "signal-2024-01-01-02-00-00.backup"),
+      order.map { it.name }
+    )
+
+    val found = newest.associateWith { identity -> order.firstOrNull { identity in it.readLines() }?.name }
+
+    assertEquals(
+      mapOf(
+        "a" to "signal-2024-01-01-02-00-00.backup",
+        "c" to "signal-2024-01-01-02-00-00.backup",
+        "d" to "signal-2024-01-01-02-00-00.1.delta",
+        "e" to "signal-2024-01-01-02-00-00.2.delta"
+      ),
+      found
+    )
+  }
+
+  @Test
+  fun `getRestoreOrder - a base on its own`() {
+    assertEquals(listOf("base"), IncrementalBackupChain.getRestoreOrder("base", emptyList()))
+  }
+
+  /**
+   * Writes the next backup of the chain the way [org.thoughtcrime.securesms.jobs.LocalBackupJob] does, with the identities of the
+   * data that ends up in it as the file contents. Backups are a day apart.
+   */
+  private fun writeBackup(identities: List<String>) {
+    val day   = (backupDirectory.list()?.size ?: 0) + 1
+    val chain = IncrementalBackupChain.open(context, backupDirectory, String.format("2024-%02d-%02d-02-00-00", (day - 1) / 28 + 1, (day - 1) % 28 + 1))
+
+    File(backupDirectory, chain.fileName).writeText(identities.filter { chain.contents.shouldWrite(it) }.joinToString("\n"))
+    chain.commit(context)
+  }
+
+  private fun documentDirectory(vararg names: String): DocumentFile {
+    val files = names.map { name ->
+      mockk<DocumentFile> {
+        every { isFile } returns true
+        every { getName() } returns name
+      }
+    }
+
+    return mockk<DocumentFile> { every { listFiles() } returns files.toTypedArray() }
+  }
+}
@@ -0,0 +1,101 @@
+package org.thoughtcrime.securesms.backup
+
+import org.junit.Assert.assertFalse
+import org.junit.Assert.assertTrue
+import org.junit.Test
+
+class NonExpiringMessagesTest {
+
+  companion object {
+    private const val NOW = 1_000_000L
+    private const val THRESHOLD = 1_000L
+  }
+
+  @Test
+  fun `keeps messages without a started timer`() {
+    val messages = build {
+      add(id = 1, expireStarted = 0, expiresIn = 0, latestRevisionId = 0)
+      add(id = 2, expireStarted = 0, expiresIn = 10, latestRevisionId = 0)
+    }
+
+    assertTrue(1L in messages)
+    assertTrue(2L in messages)
+  }
+
+  @Test
+  fun `drops messages that expire within the threshold`() {
+    val messages = build {
+      add(id = 1, expireStarted = NOW, expiresIn = THRESHOLD, latestRevisionId = 0)
+      add(id = 2, expireStarted = NOW, expiresIn = THRESHOLD + 1, latestRevisionId = 0)
+    }
+
+    assertFalse(1L in messages)
+    assertTrue(2L in messages)
+  }
+
+  @Test
+  fun `does not contain messages that do not exist`() {
+    val messages = build {
+      add(id = 1, expireStarted = 0, expiresIn = 0, latestRevisionId = 0)
+    }
+
+    assertFalse(0L in messages)
+    assertFalse(2L in messages)
+    assertFalse(-1L in messages)
+  }
+
+  @Test
+  fun `old revisions follow their latest revision`() {
+    val messages = build {
+      add(id = 1, expireStarted = 0, expiresIn = 0, latestRevisionId = 3)
+      add(id = 2, expireStarted = 0, expiresIn = 0, latestRevisionId = 3)
+      add(id = 3, expireStarted = 0, expiresIn = 0, latestRevisionId = 0)
+      add(id = 4, expireStarted = 0, expiresIn = 0, latestRevisionId = 5)
+      add(id = 5, expireStarted = NOW, expiresIn = 0, latestRevisionId = 0)
+    }
+
+    assertTrue(1L in messages)
+    assertTrue(2L in messages)
+    assertTrue(3L in messages)
+    assertFalse(4L in messages)
+    assertFalse(5L in messages)
+  }
+
+  @Test
+  fun `old revisions of a missing latest revision are dropped`() {
+    val messages = build {
+      add(id = 1, expireStarted = 0, expiresIn = 0, latestRevisionId = 7)
+    }
+
+    assertFalse(1L in messages)
+  }
+
+  @Test
+  fun `revision cycles are dropped`() {
+    val messages = build {
+      add(id = 1, expireStarted = 0, expiresIn = 0, latestRevisionId = 2)
+      add(id = 2, expireStarted = 0, expiresIn = 0, latestRevisionId = 1)
+    }
+
+    assertFalse(1L in messages)
+    assertFalse(2L in messages)
+  }
+
+  @Test
+  fun `keeps ids outside of the bitset range`() {
+    val large = Int.MAX_VALUE.toLong() + 10
+
+    val messages = build {
+      add(id = large, expireStarted = 0, expiresIn = 0, latestRevisionId = 0)
+      add(id = 1, expireStarted = 0, expiresIn = 0, latestRevisionId = large)
+    }
+
+    assertTrue(large in messages)
+    assertTrue(1L in messages)
+    assertFalse(large + 1 in messages)
+  }
+
+  private fun build(block: NonExpiringMessages.Builder.() -> Unit): NonExpiringMessages {
+    return NonExpiringMessages.Builder(NOW, THRESHOLD).apply(block).build()
+  }
+}
@@ -0,0 +1,60 @@
+package org.thoughtcrime.securesms.backup
+
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertFalse
+import org.junit.Assert.assertTrue
+import org.junit.Rule
+import org.junit.Test
+import org.junit.rules.TemporaryFolder
+import kotlin.random.Random
+
+class SpillingLongSetTest {
+
+  @get:Rule
+  val folder = TemporaryFolder()
+
+  @Test
+  fun `add - returns false for duplicates`() {
+    SpillingLongSet(folder.root, maxInMemory = 4).use { set ->
+      assertTrue(set.add(1))
+      assertTrue(set.add(2))
+      assertFalse(set.add(1))
+    }
+  }
+
+  @Test
+  fun `contains - finds values in memory and on disk`() {
+    val random = Random(1)
+    val values = List(10_000) { random.nextLong() }.distinct()
+
+    SpillingLongSet(folder.root, maxInMemory = 100).use { set ->
+      values.forEach { assertTrue(set.add(it)) }
+
+      values.forEach { assertTrue(it in set) }
+      values.forEach { assertFalse(set.add(it)) }
+    }
+  }
+
+  @Test
+  fun `contains - misses values that were never added`() {
+    SpillingLongSet(folder.root, maxInMemory = 10).use { set ->
+      (0L until 1_000L step 2).forEach { set.add(it) }
+
+      (1L until 1_000L step 2).forEach { assertFalse(it in set) }
+      assertFalse(-1L in set)
+      assertFalse(1_000L in set)
+    }
+  }
+
+  @Test
+  fun `close - deletes run files`() {
+    val set = SpillingLongSet(folder.root, maxInMemory = 10)
+    (0L until 100L).forEach { set.add(it) }
+
+    assertEquals(10, folder.root.listFiles()!!.size)
+
+    set.close()
+
+    assertEquals(0, folder.root.listFiles()!!.size)
+  }
+}
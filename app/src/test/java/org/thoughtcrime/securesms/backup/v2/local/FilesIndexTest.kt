@@ -0,0 +1,109 @@
+/*
+ * Copyright 2024 Signal Messenger, LLC
+ * SPDX-License-Identifier: AGPL-3.0-only
+ */
+
+package org.thoughtcrime.securesms.backup.v2.local
+
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertFalse
+import org.junit.Assert.assertNull
+import org.junit.Assert.assertTrue
+import org.junit.Test
+import java.io.ByteArrayOutputStream
+
+class FilesIndexTest {
+
+  companion object {
+    private const val GENERATION = 1234L
+  }
+
+  @Test
+  fun `read - returns what was written`() {
+    val entries = mapOf("aa01" to 100L, "bb02" to 0L, "cc03" to 123_456_789_000L)
+
+    val contents = FilesIndex.read(write(entries, complete = true).inputStream())!!
+
+    assertEquals(entries, contents.entries)
+    assertTrue(contents.complete)
+  }
+
+  @Test
+  fun `read - keeps the checkpoint flag`() {
+    val contents = FilesIndex.read(write(mapOf("aa01" to 1L), complete = false).inputStream())!!
+
+    assertFalse(contents.complete)
+  }
+
+  @Test
+  fun `read - empty index`() {
+    val contents = FilesIndex.read(write(emptyMap(), complete = true).inputStream())!!
+
+    assertTrue(contents.entries.isEmpty())
+  }
+
+  @Test
+  fun `read - returns null when the footer is missing`() {
+    val bytes = write(mapOf("aa01" to 1L, "bb02" to 2L), complete = true)
+
+    for (length in 0 until bytes.size) {
+      assertNull("Truncated to $length bytes", FilesIndex.read(bytes.copyOf(length).inputStream()))
+    }
+  }
+
+  @Test
+  fun `read - keeps the generation`() {
+    val output = ByteArrayOutputStream()
+    FilesIndex.write(output, mapOf("aa01" to 1L), complete = true, generation = 42)
+
+    assertEquals(42L, FilesIndex.read(output.toByteArray().inputStream())!!.generation)
+  }
+
+  @Test
+  fun `readJournal - applies checkpoints in order`() {
+    val output = ByteArrayOutputStream()
+    FilesIndex.writeJournal(output, GENERATION, mapOf("bb02" to 2L, "cc03" to 3L))
+    FilesIndex.writeJournal(output, GENERATION, mapOf("aa01" to null, "cc03" to 4L))
+    FilesIndex.writeJournal(output, GENERATION, emptyMap())
+
+    val entries = mutableMapOf("aa01" to 1L)
+    val batches = FilesIndex.readJournal(output.toByteArray().inputStream(), GENERATION, entries)
+
+    assertEquals(3, batches)
+    assertEquals(mapOf("bb02" to 2L, "cc03" to 4L), entries)
+  }
+
+  @Test
+  fun `readJournal - skips checkpoints of another generation`() {
+    val output = ByteArrayOutputStream()
+    FilesIndex.writeJournal(output, GENERATION - 1, mapOf("aa01" to null, "bb02" to 2L))
+    FilesIndex.writeJournal(output, GENERATION, mapOf("cc03" to 3L))
+
+    val entries = mutableMapOf("aa01" to 1L)
+    val batches = FilesIndex.readJournal(output.toByteArray().inputStream(), GENERATION, entries)
+
+    assertEquals(1, batches)
+    assertEquals(mapOf("aa01" to 1L, "cc03" to 3L), entries)
+  }
+
+  @Test
+  fun `readJournal - ignores a checkpoint that was cut short`() {
+    val first = ByteArrayOutputStream().also { FilesIndex.writeJournal(it, GENERATION, mapOf("bb02" to 2L)) }.toByteArray()
+    val second = ByteArrayOutputStream().also { FilesIndex.writeJournal(it, GENERATION, mapOf("aa01" to null, "cc03" to 3L)) }.toByteArray()
+    val bytes = first + second
+
+    for (length in first.size until bytes.size) {
+      val entries = mutableMapOf("aa01" to 1L)
+      val batches = FilesIndex.readJournal(bytes.copyOf(length).inputStream(), GENERATION, entries)
+
+      assertEquals("Truncated to $length bytes", 1, batches)
+      assertEquals("Truncated to $length bytes", mapOf("aa01" to 1L, "bb02" to 2L), entries)
+    }
+  }
+
+  private fun write(entries: Map<String, Long>, complete: Boolean): ByteArray {
+    val output = ByteArrayOutputStream()
+    FilesIndex.write(output, entries, complete)
+    return output.toByteArray()
+  }
+}
@@ -6,6 +6,7 @@
 package org.thoughtcrime.securesms.backup.v2.stream
 
 import org.junit.Assert.assertEquals
+import org.junit.Assert.assertTrue
 import org.junit.Test
 import org.signal.core.util.Base64
 import org.signal.core.util.Hex
@@ -17,6 +18,7 @@ import org.whispersystems.signalservice.api.backup.BackupKey
 import org.whispersystems.signalservice.api.push.ServiceId.ACI
 import java.io.ByteArrayOutputStream
 import java.util.UUID
+import java.util.concurrent.Executors
 
 class EncryptedBackupReaderWriterTest {
 
@@ -52,6 +54,76 @@ class EncryptedBackupReaderWriterTest {
     }
   }
 
+  @Test
+  fun `can read back all of the frames we write with parallel compression`() {
+    val key = BackupKey(Util.getSecretBytes(32))
+    val aci = ACI.from(UUID.randomUUID())
+    val executor = Executors.newFixedThreadPool(4)
+
+    val outputStream = ByteArrayOutputStream()
+
+    val frameCount = 100_000
+    EncryptedBackupWriter(key, aci, outputStream, append = { outputStream.write(it) }, compressionExecutor = executor).use { writer ->
+      writer.write(BackupInfo(version = 1, backupTimeMs = 1000L))
+
+      for (i in 0 until frameCount) {
+        writer.write(Frame(account = AccountData(username = "username-$i")))
+      }
+    }
+    executor.shutdown()
+
+    val ciphertext: ByteArray = outputStream.toByteArray()
+
+    val frames: List<Frame> = EncryptedBackupReader(key, aci, ciphertext.size.toLong()) { ciphertext.inputStream() }.use { reader ->
+      assertEquals(reader.backupInfo?.version, 1L)
+      reader.asSequence().toList()
+    }
+
+    assertEquals(frameCount, frames.size)
+
+    for (i in 0 until frameCount) {
+      assertEquals("username-$i", frames[i].account?.username)
+    }
+  }
+
+  @Test
+  fun `can read back all of the frames we write across dozens of parallel blocks`() {
+    val key = BackupKey(Util.getSecretBytes(32))
+    val aci = ACI.from(UUID.randomUUID())
+    val executor = Executors.newFixedThreadPool(4)
+
+    val outputStream = ByteArrayOutputStream()
+
+    val frameCount = 20_000
+    val blockSize = 16 * 1024
+    var uncompressedSize = 0L
+    EncryptedBackupWriter(key, aci, outputStream, append = { outputStream.write(it) }, compressionExecutor = executor, compressionBlockSize = blockSize).use { writer ->
+      writer.write(BackupInfo(version = 1, backupTimeMs = 1000L))
+
+      for (i in 0 until frameCount) {
+        val frame = Frame(account = AccountData(username = "username-$i-${Hex.toStringCondensed(Util.getSecretBytes(8))}"))
+        uncompressedSize += frame.encode().size
+        writer.write(frame)
+      }
+    }
+    executor.shutdown()
+
+    assertTrue(uncompressedSize / blockSize > 36)
+
+    val ciphertext: ByteArray = outputStream.toByteArray()
+
+    val frames: List<Frame> = EncryptedBackupReader(key, aci, ciphertext.size.toLong()) { ciphertext.inputStream() }.use { reader ->
+      assertEquals(reader.backupInfo?.version, 1L)
+      reader.asSequence().toList()
+    }
+
+    assertEquals(frameCount, frames.size)
+
+    for (i in 0 until frameCount) {
+      assertTrue(frames[i].account!!.username!!.startsWith("username-$i-"))
+    }
+  }
+
   @Test
   fun `padding limits number of sizes`() {
     val key = BackupKey(Util.getSecretBytes(32))
@@ -0,0 +1,106 @@
+/*
+ * Copyright 2024 Signal Messenger, LLC
+ * SPDX-License-Identifier: AGPL-3.0-only
+ */
+
+package org.thoughtcrime.securesms.backup.v2.stream
+
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertFalse
+import org.junit.Assert.assertTrue
+import org.junit.Rule
+import org.junit.Test
+import org.junit.rules.TemporaryFolder
+import org.thoughtcrime.securesms.backup.v2.proto.AccountData
+import org.thoughtcrime.securesms.backup.v2.proto.BackupInfo
+import org.thoughtcrime.securesms.backup.v2.proto.Chat
+import org.thoughtcrime.securesms.backup.v2.proto.ChatItem
+import org.thoughtcrime.securesms.backup.v2.proto.Frame
+import org.thoughtcrime.securesms.backup.v2.proto.Recipient
+import org.thoughtcrime.securesms.backup.v2.proto.Self
+import org.thoughtcrime.securesms.util.Util
+import org.whispersystems.signalservice.api.backup.BackupKey
+import org.whispersystems.signalservice.api.push.ServiceId.ACI
+import java.io.ByteArrayOutputStream
+import java.util.UUID
+
+class EncryptedBackupVerifierTest {
+
+  @get:Rule
+  val folder = TemporaryFolder()
+
+  private val key = BackupKey(Util.getSecretBytes(32))
+  private val aci = ACI.from(UUID.randomUUID())
+
+  @Test
+  fun `valid backup passes`() {
+    val ciphertext = write(validFrames(messageCount = 1_000))
+
+    val result = verify(ciphertext)
+
+    assertTrue(result.error, result.isValid)
+    assertEquals(1_003L, result.stats.frames)
+    assertEquals(ciphertext.size.toLong(), result.stats.bytes)
+  }
+
+  @Test
+  fun `modified ciphertext fails`() {
+    val ciphertext = write(validFrames(messageCount = 1_000))
+    ciphertext[ciphertext.size - 100] = (ciphertext[ciphertext.size - 100] + 1).toByte()
+
+    assertFalse(verify(ciphertext).isValid)
+  }
+
+  @Test
+  fun `modified mac fails`() {
+    val ciphertext = write(validFrames(messageCount = 10))
+    ciphertext[ciphertext.size - 1] = (ciphertext[ciphertext.size - 1] + 1).toByte()
+
+    assertEquals("Invalid MAC", verify(ciphertext).error)
+  }
+
+  @Test
+  fun `chat item for an unknown chat fails`() {
+    val frames = validFrames(messageCount = 10) + Frame(chatItem = ChatItem(chatId = 99, authorId = 1))
+
+    assertFalse(verify(write(frames)).isValid)
+  }
+
+  @Test
+  fun `chat for an unknown recipient fails`() {
+    val frames = listOf(Frame(account = AccountData(username = "self")), Frame(chat = Chat(id = 1, recipientId = 5)))
+
+    assertFalse(verify(write(frames)).isValid)
+  }
+
+  @Test
+  fun `references survive spilling to disk`() {
+    val recipients = (1L..200_000L).map { Frame(recipient = Recipient(id = it, self = Self())) }
+    val frames = listOf(Frame(account = AccountData(username = "self"))) + recipients + Frame(chat = Chat(id = 1, recipientId = 123_456))
+
+    assertTrue(verify(write(frames)).isValid)
+  }
+
+  private fun validFrames(messageCount: Int): List<Frame> {
+    return listOf(
+      Frame(account = AccountData(username = "self")),
+      Frame(recipient = Recipient(id = 1, self = Self())),
+      Frame(chat = Chat(id = 1, recipientId = 1))
+    ) + (0 until messageCount).map { Frame(chatItem = ChatItem(chatId = 1, authorId = 1, dateSent = it.toLong())) }
+  }
+
+  private fun write(frames: List<Frame>): ByteArray {
+    val outputStream = ByteArrayOutputStream()
+
+    EncryptedBackupWriter(key, aci, outputStream, append = { outputStream.write(it) }).use { writer ->
+      writer.write(BackupInfo(version = 1, backupTimeMs = 1000L))
+      frames.forEach { writer.write(it) }
+    }
+
+    return outputStream.toByteArray()
+  }
+
+  private fun verify(ciphertext: ByteArray): EncryptedBackupVerifier.Result {
+    return EncryptedBackupVerifier(key, aci, folder.root).verify(ciphertext.size.toLong(), { ciphertext.inputStream() })
+  }
+}
@@ -0,0 +1,75 @@
+/*
+ * Copyright 2024 Signal Messenger, LLC
+ * SPDX-License-Identifier: AGPL-3.0-only
+ */
+
+package org.thoughtcrime.securesms.backup.v2.stream
+
+import org.junit.After
+import org.junit.Assert.assertArrayEquals
+import org.junit.Assert.assertEquals
+import org.junit.Test
+import org.whispersystems.signalservice.internal.crypto.PaddingInputStream
+import java.io.ByteArrayOutputStream
+import java.io.FilterInputStream
+import java.util.concurrent.Executors
+import java.util.zip.GZIPInputStream
+import kotlin.random.Random
+
+class ParallelGzipOutputStreamTest {
+
+  private val executor = Executors.newFixedThreadPool(4)
+
+  @After
+  fun tearDown() {
+    executor.shutdownNow()
+  }
+
+  @Test
+  fun `reads back as a single gzip stream across many blocks`() {
+    val data = Random(1).nextBytes(100_000)
+    val output = ByteArrayOutputStream()
+
+    ParallelGzipOutputStream(output, executor, blockSize = 4096, maxPendingBlocks = 3).use { stream ->
+      data.asList().chunked(777).forEach { stream.write(it.toByteArray()) }
+      stream.write(1)
+    }
+
+    val result = GZIPInputStream(output.toByteArray().inputStream()).readBytes()
+
+    assertArrayEquals(data + 1.toByte(), result)
+  }
+
+  @Test
+  fun `writes a single gzip member`() {
+    val data = Random(3).nextBytes(50_000)
+    val output = ByteArrayOutputStream()
+
+    ParallelGzipOutputStream(output, executor, blockSize = 1024, maxPendingBlocks = 4).use { it.write(data) }
+
+    val input = object : FilterInputStream(output.toByteArray().inputStream()) {
+      override fun available(): Int = 0
+    }
+
+    assertArrayEquals(data, GZIPInputStream(input).readBytes())
+  }
+
+  @Test
+  fun `empty stream is still valid gzip`() {
+    val output = ByteArrayOutputStream()
+
+    ParallelGzipOutputStream(output, executor).close()
+
+    assertEquals(0, GZIPInputStream(output.toByteArray().inputStream()).readBytes().size)
+  }
+
+  @Test
+  fun `output is padded like the serial stream`() {
+    val output = ByteArrayOutputStream()
+
+    ParallelGzipOutputStream(output, executor, blockSize = 1024).use { it.write(Random(2).nextBytes(10_000)) }
+
+    val size = output.size().toLong()
+    assertEquals(PaddingInputStream.getPaddedSize(size), size)
+  }
+}
@@ -0,0 +1,56 @@
+package org.thoughtcrime.securesms.blurhash
+
+import org.junit.Ignore
+import org.junit.Test
+import kotlin.random.Random
+
+/**
+ * Compares the optimized blur hash decoder and encoder with [BlurHashReference].
+ * Ignored by default since it only prints timings. Run it manually when changing either implementation.
+ */
+@Ignore("Benchmark, run manually")
+class BlurHashBenchmark {
+
+  @Test
+  fun decode() {
+    val hashes = BlurHashDecoderTest.HASHES
+
+    measure("reference decode") { i ->
+      BlurHashReference.decode(hashes[i % hashes.size], 20, 15)
+    }
+
+    // Nudge the punch every iteration so that we measure decoding rather than the pixel cache.
+    measure("optimized decode") { i ->
+      BlurHashDecoder.decodePixels(hashes[i % hashes.size], 20, 15, 1.0 + i * 1e-9)
+    }
+  }
+
+  @Test
+  fun encode() {
+    val width = 64
+    val height = 48
+    val pixels = IntArray(width * height) { Random(it).nextInt() }
+
+    measure("reference encode") {
+      BlurHashReference.encode(pixels, width, height, 4, 3)
+    }
+
+    measure("optimized encode") {
+      BlurHashEncoder.encode(pixels, width, height, 4, 3)
+    }
+  }
+
+  private fun measure(name: String, iterations: Int = 2_000, block: (Int) -> Any?) {
+    repeat(WARMUP_ITERATIONS) { block(it) }
+
+    val start = System.nanoTime()
+    repeat(iterations) { block(it) }
+    val elapsed = System.nanoTime() - start
+
+    println("$name: ${elapsed / iterations / 1000} us/op")
+  }
+
+  companion object {
+    private const val WARMUP_ITERATIONS = 500
+  }
+}
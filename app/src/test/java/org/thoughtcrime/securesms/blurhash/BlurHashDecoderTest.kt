@@ -0,0 +1,82 @@
+package org.thoughtcrime.securesms.blurhash
+
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertNull
+import org.junit.Assert.assertSame
+import org.junit.Assert.assertTrue
+import org.junit.Test
+import kotlin.math.abs
+
+class BlurHashDecoderTest {
+
+  @Test
+  fun decodePixels_matchesReferenceImplementation() {
+    for (hash in HASHES) {
+      for ((width, height) in listOf(20 to 15, 15 to 20, 20 to 20, 1 to 1, 7 to 3)) {
+        val expected = BlurHashReference.decode(hash, width, height)
+        val actual = BlurHashDecoder.decodePixels(hash, width, height, 1.0)!!
+
+        assertEquals(expected.size, actual.size)
+        for (i in expected.indices) {
+          assertTrue("Pixel $i of $hash at ${width}x$height differs", channelsWithin(expected[i], actual[i], 1))
+        }
+      }
+    }
+  }
+
+  @Test
+  fun decodePixels_punchIsApplied() {
+    val hash = HASHES[0]
+    val expected = BlurHashReference.decode(hash, 20, 15, punch = 1.5)
+    val actual = BlurHashDecoder.decodePixels(hash, 20, 15, 1.5)!!
+
+    for (i in expected.indices) {
+      assertTrue(channelsWithin(expected[i], actual[i], 1))
+    }
+  }
+
+  @Test
+  fun decodePixels_returnsCachedPixelsForSameHashAndSize() {
+    val first = BlurHashDecoder.decodePixels(HASHES[1], 20, 15, 1.0)
+    val second = BlurHashDecoder.decodePixels(HASHES[1], 20, 15, 1.0)
+
+    assertSame(first, second)
+  }
+
+  @Test
+  fun decodePixels_invalidHashes() {
+    assertNull(BlurHashDecoder.decodePixels(null, 20, 15, 1.0))
+    assertNull(BlurHashDecoder.decodePixels("LEHV", 20, 15, 1.0))
+    assertNull(BlurHashDecoder.decodePixels(HASHES[0] + "00", 20, 15, 1.0))
+  }
+
+  @Test
+  fun encode_matchesReferenceImplementation() {
+    val random = kotlin.random.Random(42)
+
+    for ((width, height) in listOf(32 to 24, 24 to 32, 17 to 5)) {
+      val pixels = IntArray(width * height) { random.nextInt() or (0xff000000).toInt() }
+
+      for ((componentX, componentY) in listOf(4 to 3, 1 to 1, 9 to 9)) {
+        assertEquals(
+          BlurHashReference.encode(pixels, width, height, componentX, componentY),
+          BlurHashEncoder.encode(pixels, width, height, componentX, componentY)
+        )
+      }
+    }
+  }
+
+  private fun channelsWithin(expected: Int, actual: Int, tolerance: Int): Boolean {
+    return (0..16 step 8).all { shift -> abs(((expected shr shift) and 0xff) - ((actual shr shift) and 0xff)) <= tolerance } &&
+      (expected ushr 24) == (actual ushr 24)
+  }
+
+  companion object {
+    val HASHES = listOf(
+      "LEHV6nWB2yk8pyo0adR*.7kCMdnj",
+      "LGF5]+Yk^6#M@-5c,1J5@[or[Q6.",
+      "L6PZfSi_.AyE_3t7t7R**0o#DgR4",
+      "LKN]Rv%2Tw=w]~RBVZRi};RPxuwH"
+    )
+  }
+}
@@ -0,0 +1,105 @@
+package org.thoughtcrime.securesms.blurhash
+
+import kotlin.math.PI
+import kotlin.math.cos
+import kotlin.math.floor
+import kotlin.math.max
+import kotlin.math.min
+import kotlin.math.roundToLong
+
+/**
+ * Straightforward implementations of the blur hash algorithms, evaluating every cosine in the inner loop.
+ * Used to check the optimized [BlurHashDecoder] and [BlurHashEncoder] against, and as a baseline in [BlurHashBenchmark].
+ */
+object BlurHashReference {
+
+  fun decode(blurHash: String, width: Int, height: Int, punch: Double = 1.0): IntArray {
+    val numCompEnc = Base83.decode(blurHash, 0, 1)
+    val numCompX = (numCompEnc % 9) + 1
+    val numCompY = (numCompEnc / 9) + 1
+    val maxAc = (Base83.decode(blurHash, 1, 2) + 1) / 166.0
+
+    val colors = Array(numCompX * numCompY) { i ->
+      if (i == 0) {
+        val value = Base83.decode(blurHash, 2, 6)
+        doubleArrayOf(BlurHashUtil.sRGBToLinear((value shr 16).toLong()), BlurHashUtil.sRGBToLinear(((value shr 8) and 255).toLong()), BlurHashUtil.sRGBToLinear((value and 255).toLong()))
+      } else {
+        val value = Base83.decode(blurHash, 4 + i * 2, 6 + i * 2)
+        doubleArrayOf(
+          BlurHashUtil.signPow((value / (19 * 19) - 9) / 9.0, 2.0) * maxAc * punch,
+          BlurHashUtil.signPow(((value / 19) % 19 - 9) / 9.0, 2.0) * maxAc * punch,
+          BlurHashUtil.signPow((value % 19 - 9) / 9.0, 2.0) * maxAc * punch
+        )
+      }
+    }
+
+    val pixels = IntArray(width * height)
+    for (y in 0 until height) {
+      for (x in 0 until width) {
+        var r = 0.0
+        var g = 0.0
+        var b = 0.0
+
+        for (j in 0 until numCompY) {
+          for (i in 0 until numCompX) {
+            val basis = cos(PI * x * i / width) * cos(PI * y * j / height)
+            val color = colors[j * numCompX + i]
+            r += color[0] * basis
+            g += color[1] * basis
+            b += color[2] * basis
+          }
+        }
+
+        pixels[y * width + x] = (0xff000000).toInt() or (BlurHashUtil.linearTosRGB(r).toInt() shl 16) or (BlurHashUtil.linearTosRGB(g).toInt() shl 8) or BlurHashUtil.linearTosRGB(b).toInt()
+      }
+    }
+
+    return pixels
+  }
+
+  fun encode(pixels: IntArray, width: Int, height: Int, componentX: Int, componentY: Int): String {
+    val factors = Array(componentX * componentY) { DoubleArray(3) }
+    for (j in 0 until componentY) {
+      for (i in 0 until componentX) {
+        val normalisation = if (i == 0 && j == 0) 1.0 else 2.0
+        var r = 0.0
+        var g = 0.0
+        var b = 0.0
+        for (x in 0 until width) {
+          for (y in 0 until height) {
+            val basis = normalisation * cos((PI * i * x) / width) * cos((PI * j * y) / height)
+            val pixel = pixels[y * width + x]
+            r += basis * BlurHashUtil.sRGBToLinear(((pixel shr 16) and 0xff).toLong())
+            g += basis * BlurHashUtil.sRGBToLinear(((pixel shr 8) and 0xff).toLong())
+            b += basis * BlurHashUtil.sRGBToLinear((pixel and 0xff).toLong())
+          }
+        }
+        val scale = 1.0 / (width * height)
+        factors[j * componentX + i] = doubleArrayOf(r * scale, g * scale, b * scale)
+      }
+    }
+
+    val hash = CharArray(1 + 1 + 4 + 2 * (factors.size - 1))
+    Base83.encode((componentX - 1 + (componentY - 1) * 9).toLong(), 1, hash, 0)
+
+    val maximumValue: Double
+    if (factors.size > 1) {
+      val quantisedMaximumValue = floor(max(0.0, min(82.0, floor(BlurHashUtil.max(factors, 1, factors.size) * 166 - 0.5))))
+      maximumValue = (quantisedMaximumValue + 1) / 166
+      Base83.encode(quantisedMaximumValue.roundToLong(), 1, hash, 1)
+    } else {
+      maximumValue = 1.0
+      Base83.encode(0, 1, hash, 1)
+    }
+
+    val dc = factors[0]
+    Base83.encode((BlurHashUtil.linearTosRGB(dc[0]) shl 16) + (BlurHashUtil.linearTosRGB(dc[1]) shl 8) + BlurHashUtil.linearTosRGB(dc[2]), 4, hash, 2)
+
+    for (i in 1 until factors.size) {
+      val quantised = factors[i].map { floor(max(0.0, min(18.0, floor(BlurHashUtil.signPow(it / maximumValue, 0.5) * 9 + 9.5)))) }
+      Base83.encode((quantised[0] * 19 * 19 + quantised[1] * 19 + quantised[2]).roundToLong(), 2, hash, 6 + 2 * (i - 1))
+    }
+
+    return String(hash)
+  }
+}
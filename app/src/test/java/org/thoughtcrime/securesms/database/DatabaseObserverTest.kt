@@ -0,0 +1,97 @@
+package org.thoughtcrime.securesms.database
+
+import android.app.Application
+import io.mockk.every
+import io.mockk.mockk
+import io.mockk.mockkObject
+import io.mockk.unmockkObject
+import org.junit.After
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertFalse
+import org.junit.Before
+import org.junit.Test
+import org.thoughtcrime.securesms.database.model.MessageId
+import java.util.concurrent.CopyOnWriteArrayList
+import java.util.concurrent.Executors
+import java.util.concurrent.TimeUnit
+
+class DatabaseObserverTest {
+
+  companion object {
+    private const val THREAD_ID = 1L
+  }
+
+  private val scheduler = Executors.newSingleThreadScheduledExecutor()
+  private val messageTable: MessageTable = mockk()
+
+  private lateinit var observer: DatabaseObserver
+  private lateinit var changes: MutableList<DatabaseObserver.ConversationChange>
+
+  @Before
+  fun setUp() {
+    mockkObject(SignalDatabase.Companion)
+    every { SignalDatabase.runPostSuccessfulTransaction(any<String>(), any()) } answers { secondArg<Runnable>().run() }
+    every { SignalDatabase.messages } returns messageTable
+
+    observer = DatabaseObserver(mockk<Application>(), { it.run() }, scheduler)
+    changes = CopyOnWriteArrayList()
+    observer.registerConversationChangeObserver(THREAD_ID) { changes += it }
+  }
+
+  @After
+  fun tearDown() {
+    scheduler.shutdownNow()
+    unmockkObject(SignalDatabase.Companion)
+  }
+
+  @Test
+  fun `given inserts, updates and deletes within the window, then deliver them as one change`() {
+    observer.notifyMessageInserted(THREAD_ID, MessageId(1))
+    observer.notifyMessageUpdateObservers(THREAD_ID, MessageId(2))
+    observer.notifyMessageDeleted(THREAD_ID, MessageId(3))
+    drain()
+
+    assertEquals(1, changes.size)
+    assertFalse(changes[0].isInvalidated)
+    assertEquals(setOf(MessageId(1)), changes[0].inserted)
+    assertEquals(setOf(MessageId(2)), changes[0].updated)
+    assertEquals(setOf(MessageId(3)), changes[0].deleted)
+  }
+
+  @Test
+  fun `given an update to an inserted message, then only report the insert`() {
+    observer.notifyMessageInserted(THREAD_ID, MessageId(1))
+    observer.notifyMessageUpdateObservers(THREAD_ID, MessageId(1))
+    drain()
+
+    assertEquals(setOf(MessageId(1)), changes.single().inserted)
+    assertEquals(emptySet<MessageId>(), changes.single().updated)
+  }
+
+  @Test
+  fun `given an update without a thread, then look up the thread and report the update`() {
+    every { messageTable.getThreadIdForMessage(2) } returns THREAD_ID
+
+    observer.notifyMessageUpdateObservers(MessageId(2))
+    drain()
+
+    assertEquals(setOf(MessageId(2)), changes.single().updated)
+  }
+
+  @Test
+  fun `given an update for another thread, then do not report it`() {
+    every { messageTable.getThreadIdForMessage(2) } returns THREAD_ID + 1
+
+    observer.notifyMessageUpdateObservers(MessageId(2))
+    drain()
+
+    assertEquals(emptyList<DatabaseObserver.ConversationChange>(), changes)
+  }
+
+  /**
+   * Waits for the coalescing window to close and for anything it scheduled to run.
+   */
+  private fun drain() {
+    scheduler.schedule({}, 100, TimeUnit.MILLISECONDS).get(1, TimeUnit.SECONDS)
+  }
+}
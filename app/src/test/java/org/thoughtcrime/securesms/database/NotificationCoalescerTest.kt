@@ -0,0 +1,84 @@
+package org.thoughtcrime.securesms.database
+
+import org.junit.After
+import org.junit.Assert.assertEquals
+import org.junit.Test
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.Executors
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicInteger
+
+class NotificationCoalescerTest {
+
+  private val scheduler = Executors.newSingleThreadScheduledExecutor()
+
+  @After
+  fun tearDown() {
+    scheduler.shutdownNow()
+  }
+
+  @Test
+  fun `given many notifications for one key within the window, then dispatch once`() {
+    val coalescer = NotificationCoalescer(scheduler, { it.run() }, 50)
+    val count = AtomicInteger()
+    val latch = CountDownLatch(1)
+
+    repeat(10) {
+      coalescer.publish("key") {
+        count.incrementAndGet()
+        latch.countDown()
+      }
+    }
+
+    latch.await(1, TimeUnit.SECONDS)
+    drain()
+
+    assertEquals(1, count.get())
+  }
+
+  @Test
+  fun `given notifications for different keys, then dispatch each`() {
+    val coalescer = NotificationCoalescer(scheduler, { it.run() }, 10)
+    val count = AtomicInteger()
+    val latch = CountDownLatch(2)
+
+    coalescer.publish("a") {
+      count.incrementAndGet()
+      latch.countDown()
+    }
+    coalescer.publish("b") {
+      count.incrementAndGet()
+      latch.countDown()
+    }
+
+    latch.await(1, TimeUnit.SECONDS)
+
+    assertEquals(2, count.get())
+  }
+
+  @Test
+  fun `given a notification after the window closes, then dispatch again`() {
+    val coalescer = NotificationCoalescer(scheduler, { it.run() }, 10)
+    val count = AtomicInteger()
+
+    val first = CountDownLatch(1)
+    coalescer.publish("key") {
+      count.incrementAndGet()
+      first.countDown()
+    }
+    first.await(1, TimeUnit.SECONDS)
+
+    val second = CountDownLatch(1)
+    coalescer.publish("key") {
+      count.incrementAndGet()
+      second.countDown()
+    }
+    second.await(1, TimeUnit.SECONDS)
+
+    assertEquals(2, count.get())
+  }
+
+  private fun drain() {
+    scheduler.schedule({}, 0, TimeUnit.MILLISECONDS).get(1, TimeUnit.SECONDS)
+  }
+}
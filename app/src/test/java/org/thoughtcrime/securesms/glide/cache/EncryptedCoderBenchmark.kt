@@ -0,0 +1,57 @@
+package org.thoughtcrime.securesms.glide.cache
+
+import android.app.Application
+import org.junit.Ignore
+import org.junit.Test
+import org.junit.runner.RunWith
+import org.robolectric.RobolectricTestRunner
+import org.robolectric.annotation.Config
+import java.io.File
+import kotlin.random.Random
+
+/**
+ * Measures the latency of a disk cache hit for thumbnail-sized entries, comparing the streaming cipher path with the
+ * single-read path used for small entries. Ignored by default since it only prints timings.
+ */
+@Ignore("Benchmark, run manually")
+@RunWith(RobolectricTestRunner::class)
+@Config(manifest = Config.NONE, application = Application::class)
+class EncryptedCoderBenchmark {
+
+  private val coder = EncryptedCoder()
+  private val secret = Random.nextBytes(32)
+
+  @Test
+  fun thumbnailHits() {
+    for (size in listOf(4 * 1024, 32 * 1024, 128 * 1024)) {
+      val files = List(FILE_COUNT) { File.createTempFile("glide", ".cache") }
+      files.forEach { file -> coder.createEncryptedOutputStream(secret, file).use { it.write(Random.nextBytes(size)) } }
+
+      measure("stream, ${size / 1024} KiB") { i ->
+        coder.createCipherInputStream(secret, files[i % files.size]).use { it.readBytes() }
+      }
+
+      // Cycle through the files so that we don't just measure the per-thread entry reuse.
+      measure("single read, ${size / 1024} KiB") { i ->
+        coder.createEncryptedInputStream(secret, files[i % files.size]).use { it.readBytes() }
+      }
+
+      files.forEach { it.delete() }
+    }
+  }
+
+  private fun measure(name: String, iterations: Int = 2_000, block: (Int) -> Any?) {
+    repeat(WARMUP_ITERATIONS) { block(it) }
+
+    val start = System.nanoTime()
+    repeat(iterations) { block(it) }
+    val elapsed = System.nanoTime() - start
+
+    println("$name: ${elapsed / iterations / 1000} us/op")
+  }
+
+  companion object {
+    private const val FILE_COUNT = 50
+    private const val WARMUP_ITERATIONS = 500
+  }
+}
@@ -0,0 +1,117 @@
+package org.thoughtcrime.securesms.glide.cache
+
+import android.app.Application
+import org.junit.After
+import org.junit.Assert.assertArrayEquals
+import org.junit.Before
+import org.junit.Test
+import org.junit.runner.RunWith
+import org.robolectric.RobolectricTestRunner
+import org.robolectric.annotation.Config
+import java.io.File
+import java.io.IOException
+import kotlin.random.Random
+
+@RunWith(RobolectricTestRunner::class)
+@Config(manifest = Config.NONE, application = Application::class)
+class EncryptedCoderTest {
+
+  private val coder = EncryptedCoder()
+  private val secret = Random.nextBytes(32)
+
+  private lateinit var file: File
+
+  @Before
+  fun setUp() {
+    file = File.createTempFile("glide", ".cache")
+  }
+
+  @After
+  fun tearDown() {
+    file.delete()
+  }
+
+  @Test
+  fun smallEntry_roundTrip() {
+    val data = Random.nextBytes(20 * 1024)
+    write(data)
+
+    assertArrayEquals(data, read())
+  }
+
+  @Test
+  fun smallEntry_readTwice_returnsSameData() {
+    val data = Random.nextBytes(20 * 1024)
+    write(data)
+
+    assertArrayEquals(data, read())
+    assertArrayEquals(data, read())
+  }
+
+  @Test
+  fun smallEntry_rewritten_returnsNewData() {
+    write(Random.nextBytes(1024))
+    read()
+
+    val data = Random.nextBytes(2048)
+    write(data)
+
+    assertArrayEquals(data, read())
+  }
+
+  @Test
+  fun smallEntry_rewrittenWithSameLengthAndTimestamp_returnsNewData() {
+    write(Random.nextBytes(1024))
+    read()
+    val lastModified = file.lastModified()
+
+    val data = Random.nextBytes(1024)
+    write(data)
+    file.setLastModified(lastModified)
+
+    assertArrayEquals(data, read())
+  }
+
+  @Test(expected = IOException::class)
+  fun smallEntry_readWithWrongKeyAfterRead_throws() {
+    write(Random.nextBytes(1024))
+    read()
+
+    coder.createEncryptedInputStream(Random.nextBytes(32), file).use { it.readBytes() }
+  }
+
+  @Test
+  fun emptyEntry_roundTrip() {
+    write(ByteArray(0))
+
+    assertArrayEquals(ByteArray(0), read())
+  }
+
+  @Test
+  fun largeEntry_roundTrip() {
+    val data = Random.nextBytes(1024 * 1024 + 3)
+    write(data)
+
+    assertArrayEquals(data, read())
+  }
+
+  @Test(expected = IOException::class)
+  fun smallEntry_wrongKey_throws() {
+    write(Random.nextBytes(1024))
+    coder.createEncryptedInputStream(Random.nextBytes(32), file).use { it.readBytes() }
+  }
+
+  @Test(expected = IOException::class)
+  fun notAnEncryptedFile_throws() {
+    file.writeBytes(Random.nextBytes(1024))
+    read()
+  }
+
+  private fun write(data: ByteArray) {
+    coder.createEncryptedOutputStream(secret, file).use { it.write(data) }
+  }
+
+  private fun read(): ByteArray {
+    return coder.createEncryptedInputStream(secret, file).use { it.readBytes() }
+  }
+}
@@ -10,6 +10,9 @@ import org.thoughtcrime.securesms.testutil.LogRecorder;
 import org.whispersystems.signalservice.api.push.ServiceId.ACI;
 import org.whispersystems.signalservice.api.push.ServiceId;
 
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
 import java.util.Optional;
 import java.util.UUID;
 
@@ -259,6 +262,28 @@ public final class RecipientIdCacheTest {
     assertEquals(recipientId1, recipientIdCache.get(sid1, null));
   }
 
+  @Test
+  public void getAll_returns_only_cached_entries() {
+    RecipientId recipientId1 = recipientId();
+    RecipientId recipientId2 = recipientId();
+    ServiceId   sid1         = ACI.from(UUID.randomUUID());
+    ServiceId   sid2         = ACI.from(UUID.randomUUID());
+    ServiceId   sid3         = ACI.from(UUID.randomUUID());
+
+    Map<ServiceId, RecipientId> toCache = new HashMap<>();
+    toCache.put(sid1, recipientId1);
+    toCache.put(sid2, recipientId2);
+
+    recipientIdCache.putAll(toCache);
+
+    Map<ServiceId, RecipientId> results = recipientIdCache.getAll(Arrays.asList(sid1, sid2, sid3));
+
+    assertEquals(2, results.size());
+    assertEquals(recipientId1, results.get(sid1));
+    assertEquals(recipientId2, results.get(sid2));
+    assertEquals(recipientId1, recipientIdCache.get(sid1, null));
+  }
+
   private static @NonNull RecipientId recipientId() {
     return mock(RecipientId.class);
   }
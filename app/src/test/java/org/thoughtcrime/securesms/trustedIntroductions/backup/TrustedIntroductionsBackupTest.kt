@@ -0,0 +1,276 @@
+package org.thoughtcrime.securesms.trustedIntroductions.backup
+
+import android.app.Application
+import android.content.ContentValues
+import android.database.sqlite.SQLiteDatabase
+import androidx.sqlite.db.SupportSQLiteDatabase
+import androidx.sqlite.db.SupportSQLiteQuery
+import androidx.sqlite.db.SupportSQLiteStatement
+import io.mockk.every
+import io.mockk.mockk
+import org.junit.After
+import org.junit.Assert.assertEquals
+import org.junit.Before
+import org.junit.Test
+import org.junit.runner.RunWith
+import org.robolectric.RobolectricTestRunner
+import org.robolectric.annotation.Config
+import org.signal.core.util.Base64
+import org.signal.core.util.readToList
+import org.signal.core.util.requireInt
+import org.signal.core.util.requireNonNullString
+import org.signal.core.util.toAndroidQuery
+import org.thoughtcrime.securesms.backup.proto.TrustedIntroductions
+import org.thoughtcrime.securesms.database.RecipientTable
+import org.thoughtcrime.securesms.trustedIntroductions.database.TI_Database
+import org.thoughtcrime.securesms.trustedIntroductions.database.TI_IdentityTable
+import org.whispersystems.signalservice.api.push.ServiceId.ACI
+import org.whispersystems.signalservice.api.push.ServiceId.PNI
+import java.util.UUID
+
+@RunWith(RobolectricTestRunner::class)
+@Config(manifest = Config.NONE, application = Application::class)
+class TrustedIntroductionsBackupTest {
+
+  companion object {
+    private val ALICE = ACI.from(UUID.randomUUID())
+    private val BOB = ACI.from(UUID.randomUUID())
+    private val CAROL_ACI = ACI.from(UUID.randomUUID())
+    private val CAROL_PNI = PNI.from(UUID.randomUUID())
+    private val DAVE_PNI = PNI.from(UUID.randomUUID())
+
+    private val IDENTITY_KEY = Base64.encodeWithoutPadding(ByteArray(33) { it.toByte() })
+  }
+
+  private lateinit var source: SQLiteDatabase
+  private lateinit var target: SQLiteDatabase
+
+  @Before
+  fun setUp() {
+    source = createDatabase()
+    target = createDatabase()
+  }
+
+  @After
+  fun tearDown() {
+    source.close()
+    target.close()
+  }
+
+  @Test
+  fun `export and restore - keeps introductions and shadow identities`() {
+    insertIdentity(source, ALICE.toString(), verified = 2)
+    insertIdentity(source, "not a service id", verified = 1)
+    insertIntroduction(source, introducer = ALICE.toString(), introducee = BOB.toString(), name = "Bob", number = "+15555550101")
+    insertIntroduction(source, introducer = BOB.toString(), introducee = ALICE.toString(), name = "Alice", number = null)
+
+    val count = roundTrip()
+
+    assertEquals(4, count)
+    assertEquals(listOf(ALICE.toString() to 2, "not a service id" to 1), readIdentities(target))
+    assertEquals(
+      listOf(
+        Introduction(ALICE.toString(), BOB.toString(), IDENTITY_KEY, "Bob", "+15555550101"),
+        Introduction(BOB.toString(), ALICE.toString(), IDENTITY_KEY, "Alice", null)
+      ),
+      readIntroductions(target)
+    )
+  }
+
+  @Test
+  fun `restore - relinks PNIs to the ACI of their recipient`() {
+    target.insert(
+      RecipientTable.TABLE_NAME,
+      null,
+      ContentValues().apply {
+        put(RecipientTable.ACI_COLUMN, CAROL_ACI.toString())
+        put(RecipientTable.PNI_COLUMN, CAROL_PNI.toString())
+      }
+    )
+
+    insertIdentity(source, CAROL_PNI.toString(), verified = 2)
+    insertIdentity(source, DAVE_PNI.toString(), verified = 1)
+    insertIntroduction(source, introducer = CAROL_PNI.toString(), introducee = DAVE_PNI.toString())
+    insertIntroduction(source, introducer = ALICE.toString(), introducee = CAROL_PNI.toString())
+
+    roundTrip()
+
+    assertEquals(listOf(CAROL_ACI.toString() to 2, DAVE_PNI.toString() to 1), readIdentities(target))
+    assertEquals(
+      listOf(CAROL_ACI.toString() to DAVE_PNI.toString(), ALICE.toString() to CAROL_ACI.toString()),
+      readIntroductions(target).map { it.introducer to it.introducee }
+    )
+  }
+
+  @Test
+  fun `restore - keeps the higher verified status when a PNI and its ACI are both restored`() {
+    target.insert(
+      RecipientTable.TABLE_NAME,
+      null,
+      ContentValues().apply {
+        put(RecipientTable.ACI_COLUMN, CAROL_ACI.toString())
+        put(RecipientTable.PNI_COLUMN, CAROL_PNI.toString())
+      }
+    )
+
+    insertIdentity(source, CAROL_ACI.toString(), verified = 5)
+    insertIdentity(source, CAROL_PNI.toString(), verified = 2)
+    insertIdentity(source, ALICE.toString(), verified = 2)
+    insertIdentity(target, ALICE.toString(), verified = 4)
+
+    roundTrip()
+
+    assertEquals(listOf(ALICE.toString() to 4, CAROL_ACI.toString() to 5), readIdentities(target))
+  }
+
+  @Test
+  fun `export - reports the running row count with every frame`() {
+    repeat(3) { insertIdentity(source, ACI.from(UUID.randomUUID()).toString(), verified = 1) }
+    insertIntroduction(source, introducer = ALICE.toString(), introducee = BOB.toString())
+
+    val progress = ArrayList<Int>()
+    TrustedIntroductionsBackup.export(supportDatabase(source), { _, rowsWritten -> progress += rowsWritten }, { false })
+
+    assertEquals(listOf(3, 4), progress)
+  }
+
+  @Test
+  fun `export and restore - keeps introductions from an unknown introducer`() {
+    insertIntroduction(source, introducer = TI_Database.UNKNOWN_INTRODUCER_SERVICE_ID, introducee = BOB.toString())
+    insertIntroduction(source, introducer = null, introducee = ALICE.toString())
+
+    roundTrip()
+
+    assertEquals(
+      listOf(TI_Database.UNKNOWN_INTRODUCER_SERVICE_ID to BOB.toString(), TI_Database.UNKNOWN_INTRODUCER_SERVICE_ID to ALICE.toString()),
+      readIntroductions(target).map { it.introducer to it.introducee }
+    )
+  }
+
+  @Test
+  fun `export and restore - keeps identity keys that are not valid base64 as they were stored`() {
+    insertIntroduction(source, introducer = ALICE.toString(), introducee = BOB.toString(), identityKey = "not base64!")
+    insertIntroduction(source, introducer = ALICE.toString(), introducee = BOB.toString(), identityKey = IDENTITY_KEY)
+
+    roundTrip()
+
+    assertEquals(listOf("not base64!", IDENTITY_KEY), readIntroductions(target).map { it.identityKey })
+  }
+
+  @Test
+  fun `restore - skips frames from a newer version`() {
+    val frame = TrustedIntroductions(
+      version = TrustedIntroductionsBackup.VERSION + 1,
+      identities = listOf(
+        TrustedIntroductions.Identity(rawServiceId = "introducer"),
+        TrustedIntroductions.Identity(rawServiceId = "introducee", verified = 1)
+      ),
+      introductions = listOf(
+        TrustedIntroductions.Introduction(introducer = 0, introducee = 1, rawIdentityKey = IDENTITY_KEY, timestamp = 1, state = 0)
+      )
+    )
+
+    TrustedIntroductionsBackup.restore(supportDatabase(target), frame)
+
+    assertEquals(emptyList<Pair<String, Int>>(), readIdentities(target))
+    assertEquals(emptyList<Introduction>(), readIntroductions(target))
+  }
+
+  private fun roundTrip(): Int {
+    val frames = ArrayList<TrustedIntroductions>()
+    val count = TrustedIntroductionsBackup.export(supportDatabase(source), { frame, _ -> frames += TrustedIntroductions.ADAPTER.decode(frame.encode()) }, { false })
+
+    frames.forEach { TrustedIntroductionsBackup.restore(supportDatabase(target), it) }
+
+    return count
+  }
+
+  private fun createDatabase(): SQLiteDatabase {
+    return SQLiteDatabase.create(null).apply {
+      execSQL("CREATE TABLE ${RecipientTable.TABLE_NAME} (${RecipientTable.ID} INTEGER PRIMARY KEY, ${RecipientTable.ACI_COLUMN} TEXT, ${RecipientTable.PNI_COLUMN} TEXT)")
+      execSQL(TI_Database.CREATE_TABLE)
+      execSQL(TI_IdentityTable.CREATE_TABLE)
+    }
+  }
+
+  private fun insertIdentity(db: SQLiteDatabase, address: String, verified: Int) {
+    db.insert(
+      TI_IdentityTable.TABLE_NAME,
+      null,
+      ContentValues().apply {
+        put(TI_IdentityTable.ADDRESS, address)
+        put(TI_IdentityTable.VERIFIED, verified)
+      }
+    )
+  }
+
+  private fun insertIntroduction(db: SQLiteDatabase, introducer: String?, introducee: String, identityKey: String = IDENTITY_KEY, name: String = "", number: String? = null) {
+    db.insert(
+      TI_Database.TABLE_NAME,
+      null,
+      ContentValues().apply {
+        put(TI_Database.INTRODUCER_SERVICE_ID, introducer)
+        put(TI_Database.INTRODUCEE_SERVICE_ID, introducee)
+        put(TI_Database.INTRODUCEE_PUBLIC_IDENTITY_KEY, identityKey)
+        put(TI_Database.INTRODUCEE_NAME, name)
+        put(TI_Database.INTRODUCEE_NUMBER, number)
+        put(TI_Database.PREDICTED_FINGERPRINT, "fingerprint")
+        put(TI_Database.TIMESTAMP, 1000L)
+        put(TI_Database.STATE, 1)
+      }
+    )
+  }
+
+  private fun readIdentities(db: SQLiteDatabase): List<Pair<String, Int>> {
+    return db.rawQuery("SELECT * FROM ${TI_IdentityTable.TABLE_NAME} ORDER BY _id", null).readToList {
+      it.requireNonNullString(TI_IdentityTable.ADDRESS) to it.requireInt(TI_IdentityTable.VERIFIED)
+    }
+  }
+
+  private fun readIntroductions(db: SQLiteDatabase): List<Introduction> {
+    return db.rawQuery("SELECT * FROM ${TI_Database.TABLE_NAME} ORDER BY ${TI_Database.ID}", null).readToList {
+      Introduction(
+        introducer = it.requireNonNullString(TI_Database.INTRODUCER_SERVICE_ID),
+        introducee = it.requireNonNullString(TI_Database.INTRODUCEE_SERVICE_ID),
+        identityKey = it.requireNonNullString(TI_Database.INTRODUCEE_PUBLIC_IDENTITY_KEY),
+        name = it.requireNonNullString(TI_Database.INTRODUCEE_NAME),
+        number = it.getString(it.getColumnIndexOrThrow(TI_Database.INTRODUCEE_NUMBER))
+      )
+    }
+  }
+
+  /**
+   * Runs the backup against a plain [SQLiteDatabase], since SQLCipher isn't available in unit tests.
+   */
+  private fun supportDatabase(db: SQLiteDatabase): SupportSQLiteDatabase {
+    return mockk {
+      every { query(any<String>(), any<Array<Any?>>()) } answers {
+        db.rawQuery(firstArg(), secondArg<Array<Any?>>().map { it.toString() }.toTypedArray())
+      }
+      every { query(any<SupportSQLiteQuery>()) } answers {
+        val query = firstArg<SupportSQLiteQuery>().toAndroidQuery()
+        db.rawQuery(query.where, query.whereArgs)
+      }
+      every { compileStatement(any()) } answers {
+        val statement = db.compileStatement(firstArg())
+        mockk<SupportSQLiteStatement> {
+          every { bindString(any(), any()) } answers { statement.bindString(firstArg(), secondArg()) }
+          every { bindLong(any(), any()) } answers { statement.bindLong(firstArg(), secondArg()) }
+          every { bindNull(any()) } answers { statement.bindNull(firstArg()) }
+          every { executeInsert() } answers { statement.executeInsert() }
+          every { executeUpdateDelete() } answers { statement.executeUpdateDelete() }
+          every { clearBindings() } answers { statement.clearBindings() }
+          every { close() } answers { statement.close() }
+        }
+      }
+    }
+  }
+
+  private data class Introduction(
+    val introducer: String,
+    val introducee: String,
+    val identityKey: String,
+    val name: String,
+    val number: String?
+  )
+}
@@ -0,0 +1,51 @@
+package org.thoughtcrime.securesms.util;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class SegmentedLRUCacheTest {
+
+  @Test
+  public void putIfAbsent_returnsExistingValue() {
+    SegmentedLRUCache<Integer, String> cache = new SegmentedLRUCache<>(16, 4);
+
+    assertNull(cache.putIfAbsent(1, "a"));
+    assertEquals("a", cache.putIfAbsent(1, "b"));
+    assertEquals("a", cache.get(1));
+  }
+
+  @Test
+  public void size_neverExceedsMax() {
+    SegmentedLRUCache<Integer, Integer> cache = new SegmentedLRUCache<>(64, 8);
+
+    for (int i = 0; i < 1000; i++) {
+      cache.put(i, i);
+    }
+
+    assertTrue(cache.size() <= 64);
+  }
+
+  @Test
+  public void remove_and_clear() {
+    SegmentedLRUCache<Integer, Integer> cache = new SegmentedLRUCache<>(16, 4);
+
+    cache.put(1, 1);
+    cache.put(2, 2);
+    cache.remove(1);
+
+    assertNull(cache.get(1));
+    assertEquals(Integer.valueOf(2), cache.get(2));
+
+    cache.clear();
+
+    assertEquals(0, cache.size());
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void constructor_rejectsMoreSegmentsThanEntries() {
+    new SegmentedLRUCache<Integer, Integer>(2, 4);
+  }
+}
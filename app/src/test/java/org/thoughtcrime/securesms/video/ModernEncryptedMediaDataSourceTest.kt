@@ -0,0 +1,75 @@
+package org.thoughtcrime.securesms.video
+
+import android.app.Application
+import org.junit.After
+import org.junit.Assert.assertArrayEquals
+import org.junit.Assert.assertEquals
+import org.junit.Before
+import org.junit.Test
+import org.junit.runner.RunWith
+import org.robolectric.RobolectricTestRunner
+import org.robolectric.annotation.Config
+import org.thoughtcrime.securesms.crypto.AttachmentSecret
+import org.thoughtcrime.securesms.crypto.ModernEncryptingPartOutputStream
+import java.io.File
+import kotlin.random.Random
+
+@RunWith(RobolectricTestRunner::class)
+@Config(manifest = Config.NONE, application = Application::class)
+class ModernEncryptedMediaDataSourceTest {
+
+  private val attachmentSecret = AttachmentSecret(ByteArray(32), ByteArray(32), Random.nextBytes(32))
+  private val plaintext = Random(1234).nextBytes(300 * 1024 + 7)
+
+  private lateinit var file: File
+
+  @Before
+  fun setUp() {
+    file = File.createTempFile("media", ".mms")
+    ModernEncryptingPartOutputStream.createFor(attachmentSecret, file, true).second.use { it.write(plaintext) }
+  }
+
+  @After
+  fun tearDown() {
+    file.delete()
+  }
+
+  @Test
+  fun `given arbitrary offsets, when I readAt, then I get the matching plaintext`() {
+    val dataSource = EncryptedMediaDataSource.createForDiskBlob(attachmentSecret, file)
+
+    dataSource.use {
+      for (position in listOf(0L, 15L, 16L, 65535L, 65536L, 131070L, 200_001L, plaintext.size - 10L)) {
+        val buffer = ByteArray(1000)
+        val read = it.readAt(position, buffer, 0, buffer.size)
+        val expected = plaintext.copyOfRange(position.toInt(), minOf(plaintext.size, position.toInt() + buffer.size))
+
+        assertEquals(expected.size, read)
+        assertArrayEquals(expected, buffer.copyOf(read))
+      }
+    }
+  }
+
+  @Test
+  fun `given a read spanning several blocks, when I readAt, then I get the matching plaintext`() {
+    val dataSource = EncryptedMediaDataSource.createForDiskBlob(attachmentSecret, file)
+
+    dataSource.use {
+      val buffer = ByteArray(150 * 1024)
+      val read = it.readAt(1000, buffer, 0, buffer.size)
+
+      assertEquals(buffer.size, read)
+      assertArrayEquals(plaintext.copyOfRange(1000, 1000 + buffer.size), buffer)
+    }
+  }
+
+  @Test
+  fun `given a position past the end, when I readAt, then I get -1`() {
+    val dataSource = EncryptedMediaDataSource.createForDiskBlob(attachmentSecret, file)
+
+    dataSource.use {
+      assertEquals(plaintext.size.toLong(), it.size)
+      assertEquals(-1, it.readAt(plaintext.size.toLong(), ByteArray(10), 0, 10))
+    }
+  }
+}
@@ -18,9 +18,22 @@ class ConversationBenchmarks {
   @get:Rule
   val benchmarkRule = MacrobenchmarkRule()
 
-  @OptIn(ExperimentalMetricApi::class)
   @Test
   fun simpleConversationOpen() {
+    measureConversationOpen(waitForPreload = false)
+  }
+
+  /**
+   * Gives the conversation preloader time to warm the likeliest conversations after the conversation list settles, so the
+   * data-loaded split can be compared against [simpleConversationOpen].
+   */
+  @Test
+  fun preloadedConversationOpen() {
+    measureConversationOpen(waitForPreload = true)
+  }
+
+  @OptIn(ExperimentalMetricApi::class)
+  private fun measureConversationOpen(waitForPreload: Boolean) {
     var setup = false
     benchmarkRule.measureRepeated(
       packageName = "org.thoughtcrime.securesms",
@@ -45,10 +58,17 @@ class ConversationBenchmarks {
         }
         startActivityAndWait()
         device.waitForIdle()
+        if (waitForPreload) {
+          Thread.sleep(PRELOAD_WAIT_MS)
+        }
       }) {
       device.findObject(By.textContains("Buddy")).click()
       device.wait(Until.hasObject(By.textContains("Signal message")), 10_000L)
       device.wait(Until.hasObject(By.textContains("Test")), 5_000L)
     }
   }
-}
\ No newline at end of file
+
+  companion object {
+    private const val PRELOAD_WAIT_MS = 2_000L
+  }
+}
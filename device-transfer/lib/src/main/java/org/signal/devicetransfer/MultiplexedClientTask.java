@@ -0,0 +1,24 @@
+package org.signal.devicetransfer;
+
+import android.content.Context;
+
+import androidx.annotation.NonNull;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * A {@link ClientTask} that can send data over several connections at once. It's only run this
+ * way if the server supports it, otherwise {@link ClientTask#run(Context, OutputStream)} is used.
+ */
+public interface MultiplexedClientTask extends ClientTask {
+
+  int PRIMARY_CHANNEL = 0;
+
+  /**
+   * @param context      Android context, mostly like the foreground transfer service
+   * @param outputStream Output stream for channel {@link #PRIMARY_CHANNEL}, which takes the place of the socket output stream.
+   * @param channels     Additional channels to send data over in parallel with the primary channel.
+   */
+  void run(@NonNull Context context, @NonNull OutputStream outputStream, @NonNull MultiplexedOutput channels) throws IOException;
+}
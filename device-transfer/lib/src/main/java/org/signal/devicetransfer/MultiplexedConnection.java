@@ -0,0 +1,49 @@
+package org.signal.devicetransfer;
+
+import androidx.annotation.NonNull;
+
+import org.signal.core.util.StreamUtil;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * One of the connections a multiplexed transfer runs over, see {@link MultiplexedProtocol}.
+ */
+final class MultiplexedConnection implements Closeable {
+
+  /** Both sides send a frame at least this often, so a connection that went quiet for longer is considered lost. */
+  static final int READ_TIMEOUT = (int) TimeUnit.SECONDS.toMillis(30);
+
+  private static final int BUFFER_SIZE = 64 * 1024;
+
+  final DataInputStream  input;
+  final DataOutputStream output;
+
+  private final Closeable closeable;
+
+  MultiplexedConnection(@NonNull Socket socket) throws IOException {
+    this(socket.getInputStream(), socket.getOutputStream(), socket);
+    socket.setSoTimeout(READ_TIMEOUT);
+    socket.setTcpNoDelay(true);
+  }
+
+  MultiplexedConnection(@NonNull InputStream inputStream, @NonNull OutputStream outputStream, @NonNull Closeable closeable) {
+    this.input     = new DataInputStream(new BufferedInputStream(inputStream, BUFFER_SIZE));
+    this.output    = new DataOutputStream(new BufferedOutputStream(outputStream, BUFFER_SIZE));
+    this.closeable = closeable;
+  }
+
+  @Override
+  public void close() {
+    StreamUtil.close(closeable);
+  }
+}
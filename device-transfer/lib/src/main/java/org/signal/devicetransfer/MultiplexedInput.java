@@ -0,0 +1,18 @@
+package org.signal.devicetransfer;
+
+import androidx.annotation.NonNull;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Receiving side of a multiplexed transfer, see {@link MultiplexedOutput}.
+ */
+public interface MultiplexedInput {
+
+  /**
+   * Open a channel to read from. Reads block until the sender has written to the channel, and
+   * return end of stream once the sender has closed it.
+   */
+  @NonNull InputStream openChannel(int channel) throws IOException;
+}
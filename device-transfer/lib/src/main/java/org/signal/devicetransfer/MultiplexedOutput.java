@@ -0,0 +1,22 @@
+package org.signal.devicetransfer;
+
+import androidx.annotation.NonNull;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Sending side of a multiplexed transfer. Each channel is an independent stream, and data written
+ * to different channels is sent in parallel over several connections.
+ * <p>
+ * A channel only buffers a limited amount of data that the other side hasn't read yet, so writing
+ * to a channel blocks until the other side catches up.
+ */
+public interface MultiplexedOutput {
+
+  /**
+   * Open a channel to write to. Each channel can only be opened once, and should be closed once
+   * everything has been written to it.
+   */
+  @NonNull OutputStream openChannel(int channel) throws IOException;
+}
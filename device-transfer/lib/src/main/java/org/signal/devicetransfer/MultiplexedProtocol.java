@@ -0,0 +1,69 @@
+package org.signal.devicetransfer;
+
+import androidx.annotation.NonNull;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Wire format of a multiplexed transfer.
+ * <p>
+ * Both sides advertise support while confirming the SAS on the primary connection, by sending
+ * {@link #VERIFIED_MULTIPLEXED} instead of the usual {@link #VERIFIED}. If both did, the server opens a
+ * second server socket and sends its port and a random token over the primary connection. The client
+ * then opens several data connections to that port, checks that they present the same certificate as
+ * the primary connection, and sends the token, which is what lets the server trust them without going
+ * through the SAS again. That's also what makes it possible to reconnect after a connection drops.
+ * <p>
+ * Data is sent in chunks that are tagged with their channel and offset, so they can go over any of the
+ * data connections. The receiver acknowledges data once it's been read, and the sender keeps every chunk
+ * that hasn't been acknowledged yet. If a connection drops, its chunks are sent again over another one,
+ * and the receiver ignores any it has already seen.
+ */
+final class MultiplexedProtocol {
+
+  static final int VERIFIED             = 0x43;
+  static final int VERIFIED_MULTIPLEXED = 0x4D;
+
+  static final int TOKEN_LENGTH   = 32;
+  static final int TOKEN_ACCEPTED = 0x01;
+
+  /** Sender to receiver: channel, offset, length, data */
+  static final int DATA  = 1;
+  /** Sender to receiver: channel, total length */
+  static final int CLOSE = 2;
+  /** Receiver to sender: channel, offset read up to, whether the close was received */
+  static final int ACK   = 3;
+  /** Receiver to sender: done reading, no more data will be read */
+  static final int DONE  = 4;
+  /** Either way, to keep an idle connection from timing out. The receiver echoes it back. */
+  static final int PING  = 5;
+
+  static final int  MAX_CHUNK_SIZE     = 1024 * 1024;
+  static final long KEEPALIVE_INTERVAL = TimeUnit.SECONDS.toMillis(10);
+  static final long RESUME_TIMEOUT     = TimeUnit.MINUTES.toMillis(1);
+
+  private MultiplexedProtocol() {}
+
+  static void writeData(@NonNull DataOutputStream output, int channel, long offset, @NonNull byte[] data) throws IOException {
+    output.writeByte(DATA);
+    output.writeInt(channel);
+    output.writeLong(offset);
+    output.writeInt(data.length);
+    output.write(data);
+  }
+
+  static void writeClose(@NonNull DataOutputStream output, int channel, long length) throws IOException {
+    output.writeByte(CLOSE);
+    output.writeInt(channel);
+    output.writeLong(length);
+  }
+
+  static void writeAck(@NonNull DataOutputStream output, int channel, long offset, boolean closed) throws IOException {
+    output.writeByte(ACK);
+    output.writeInt(channel);
+    output.writeLong(offset);
+    output.writeBoolean(closed);
+  }
+}
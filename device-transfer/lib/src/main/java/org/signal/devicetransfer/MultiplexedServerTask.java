@@ -0,0 +1,22 @@
+package org.signal.devicetransfer;
+
+import android.content.Context;
+
+import androidx.annotation.NonNull;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * A {@link ServerTask} that can receive data sent by a {@link MultiplexedClientTask}. It's only run
+ * this way if the client supports it, otherwise {@link ServerTask#run(Context, InputStream)} is used.
+ */
+public interface MultiplexedServerTask extends ServerTask {
+
+  /**
+   * @param context     Android context, mostly like the foreground transfer service
+   * @param inputStream Input stream for channel {@link MultiplexedClientTask#PRIMARY_CHANNEL}.
+   * @param channels    Additional channels the client sends data over in parallel with the primary channel.
+   */
+  void run(@NonNull Context context, @NonNull InputStream inputStream, @NonNull MultiplexedInput channels) throws IOException;
+}
@@ -0,0 +1,406 @@
+package org.signal.devicetransfer;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import org.signal.core.util.logging.Log;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+/**
+ * Receives the channels of a {@link MultiplexedInput} over the connections it's given, which may come and
+ * go while the transfer is running. See {@link MultiplexedProtocol} for how it works.
+ */
+final class MultiplexedStreamReceiver implements MultiplexedInput {
+
+  private static final String TAG = Log.tag(MultiplexedStreamReceiver.class);
+
+  private static final long ACK_INTERVAL  = 256 * 1024;
+  private static final long CLOSE_TIMEOUT = 5000;
+
+  private final long resumeTimeout;
+
+  private final Map<Integer, Channel>      channels    = new HashMap<>();
+  private final Set<MultiplexedConnection> connections = new HashSet<>();
+
+  private boolean stopped;
+  private long    disconnectedSince;
+
+  /**
+   * @param resumeTimeout How long to wait for a new connection after losing every connection, in ms.
+   */
+  MultiplexedStreamReceiver(long resumeTimeout) {
+    this.resumeTimeout     = resumeTimeout;
+    this.disconnectedSince = System.currentTimeMillis();
+  }
+
+  /**
+   * Start receiving over an authenticated connection. Tells the sender what's been read so far, which is
+   * where it picks up from if this is a reconnection.
+   */
+  void addConnection(@NonNull MultiplexedConnection connection) {
+    List<Ack> acks;
+
+    synchronized (this) {
+      if (stopped) {
+        connection.close();
+        return;
+      }
+
+      connections.add(connection);
+      acks = currentAcks();
+      notifyAll();
+    }
+
+    try {
+      synchronized (connection) {
+        for (Ack ack : acks) {
+          MultiplexedProtocol.writeAck(connection.output, ack.channel, ack.offset, ack.closed);
+        }
+        connection.output.flush();
+      }
+    } catch (IOException e) {
+      Log.w(TAG, "Unable to send acks over new connection", e);
+      connection.close();
+    }
+
+    new Thread(() -> readFrames(connection), "multiplexed-receiver").start();
+  }
+
+  @Override
+  public synchronized @NonNull InputStream openChannel(int channel) {
+    return new ChannelInputStream(getChannel(channel));
+  }
+
+  /**
+   * Tell the sender that everything it needed to send has been read, and close every connection once the
+   * sender has closed its end of them.
+   */
+  void finish() {
+    List<MultiplexedConnection> toNotify;
+    List<Ack>                   acks;
+
+    synchronized (this) {
+      stopped  = true;
+      toNotify = new ArrayList<>(connections);
+      acks     = currentAcks();
+      notifyAll();
+    }
+
+    for (MultiplexedConnection connection : toNotify) {
+      try {
+        synchronized (connection) {
+          for (Ack ack : acks) {
+            MultiplexedProtocol.writeAck(connection.output, ack.channel, ack.offset, ack.closed);
+          }
+          connection.output.writeByte(MultiplexedProtocol.DONE);
+          connection.output.flush();
+        }
+      } catch (IOException e) {
+        Log.w(TAG, "Unable to send done", e);
+      }
+    }
+
+    // Closing a socket with unread data in it resets the connection, which could lose the done frame, so let the sender close first
+    long deadline = System.currentTimeMillis() + CLOSE_TIMEOUT;
+
+    synchronized (this) {
+      try {
+        while (!connections.isEmpty() && System.currentTimeMillis() < deadline) {
+          wait(Math.max(1, deadline - System.currentTimeMillis()));
+        }
+      } catch (InterruptedException e) {
+        Log.w(TAG, "Interrupted waiting for sender to close");
+      }
+      toNotify = new ArrayList<>(connections);
+    }
+
+    shutdown(toNotify);
+  }
+
+  void shutdown() {
+    List<MultiplexedConnection> toClose;
+
+    synchronized (this) {
+      stopped = true;
+      toClose = new ArrayList<>(connections);
+      notifyAll();
+    }
+
+    shutdown(toClose);
+  }
+
+  private static void shutdown(@NonNull List<MultiplexedConnection> connections) {
+    for (MultiplexedConnection connection : connections) {
+      connection.close();
+    }
+  }
+
+  private void readFrames(@NonNull MultiplexedConnection connection) {
+    try {
+      while (true) {
+        int type = connection.input.readUnsignedByte();
+
+        switch (type) {
+          case MultiplexedProtocol.DATA: {
+            int  channel = connection.input.readInt();
+            long offset  = connection.input.readLong();
+            int  length  = connection.input.readInt();
+
+            if (length < 0 || length > MultiplexedProtocol.MAX_CHUNK_SIZE) {
+              throw new IOException("Invalid chunk length " + length);
+            }
+
+            byte[] data = new byte[length];
+            connection.input.readFully(data);
+            onData(channel, offset, data);
+            break;
+          }
+          case MultiplexedProtocol.CLOSE: {
+            int  channel = connection.input.readInt();
+            long length  = connection.input.readLong();
+            onClose(channel, length);
+            break;
+          }
+          case MultiplexedProtocol.PING:
+            synchronized (connection) {
+              connection.output.writeByte(MultiplexedProtocol.PING);
+              connection.output.flush();
+            }
+            break;
+          default:
+            throw new IOException("Unexpected frame type " + type);
+        }
+      }
+    } catch (IOException e) {
+      synchronized (this) {
+        if (!stopped) {
+          Log.w(TAG, "Lost connection", e);
+        }
+      }
+    } finally {
+      connection.close();
+
+      synchronized (this) {
+        connections.remove(connection);
+        if (connections.isEmpty()) {
+          disconnectedSince = System.currentTimeMillis();
+        }
+        notifyAll();
+      }
+    }
+  }
+
+  private synchronized void onData(int channelId, long offset, @NonNull byte[] data) {
+    if (stopped) {
+      return;
+    }
+
+    Channel channel = getChannel(channelId);
+
+    if (offset == channel.received) {
+      channel.append(data);
+
+      byte[] next;
+      while ((next = channel.outOfOrder.remove(channel.received)) != null) {
+        channel.append(next);
+      }
+    } else if (offset > channel.received) {
+      channel.outOfOrder.put(offset, data);
+    }
+
+    notifyAll();
+  }
+
+  private synchronized void onClose(int channelId, long length) {
+    getChannel(channelId).length = length;
+    notifyAll();
+  }
+
+  private @NonNull Channel getChannel(int channelId) {
+    Channel channel = channels.get(channelId);
+
+    if (channel == null) {
+      channel = new Channel(channelId);
+      channels.put(channelId, channel);
+    }
+
+    return channel;
+  }
+
+  private @NonNull List<Ack> currentAcks() {
+    List<Ack> acks = new ArrayList<>(channels.size());
+
+    for (Channel channel : channels.values()) {
+      acks.add(new Ack(channel.id, channel.consumed, channel.length != null));
+    }
+
+    return acks;
+  }
+
+  private void sendAck(@NonNull Ack ack) {
+    List<MultiplexedConnection> candidates;
+
+    synchronized (this) {
+      candidates = new ArrayList<>(connections);
+    }
+
+    for (MultiplexedConnection connection : candidates) {
+      try {
+        synchronized (connection) {
+          MultiplexedProtocol.writeAck(connection.output, ack.channel, ack.offset, ack.closed);
+          connection.output.flush();
+        }
+        return;
+      } catch (IOException e) {
+        Log.w(TAG, "Unable to send ack", e);
+        connection.close();
+      }
+    }
+
+    // Without a connection the ack is dropped, the current position of every channel is sent again when a connection is added
+  }
+
+  private final class ChannelInputStream extends InputStream {
+
+    private final Channel channel;
+
+    ChannelInputStream(@NonNull Channel channel) {
+      this.channel = channel;
+    }
+
+    @Override
+    public int read() throws IOException {
+      byte[] data = new byte[1];
+      int    read = read(data, 0, 1);
+
+      return read == -1 ? -1 : data[0] & 0xFF;
+    }
+
+    @Override
+    public int read(@NonNull byte[] buffer, int offset, int length) throws IOException {
+      if (length == 0) {
+        return 0;
+      }
+
+      Ack ack = null;
+      int read;
+
+      synchronized (MultiplexedStreamReceiver.this) {
+        waitForData();
+
+        if (channel.ready.isEmpty()) {
+          read = -1;
+
+          if (!channel.endAcked) {
+            channel.endAcked = true;
+            ack              = new Ack(channel.id, channel.consumed, true);
+          }
+        } else {
+          byte[] head = channel.ready.peekFirst();
+
+          read = Math.min(length, head.length - channel.readPosition);
+          System.arraycopy(head, channel.readPosition, buffer, offset, read);
+
+          channel.readPosition += read;
+          channel.consumed     += read;
+
+          if (channel.readPosition == head.length) {
+            channel.ready.removeFirst();
+            channel.readPosition = 0;
+          }
+
+          if (channel.consumed - channel.lastAcked >= ACK_INTERVAL || channel.ready.isEmpty()) {
+            channel.lastAcked = channel.consumed;
+            ack               = new Ack(channel.id, channel.consumed, channel.length != null);
+          }
+        }
+      }
+
+      if (ack != null) {
+        sendAck(ack);
+      }
+
+      return read;
+    }
+
+    @Override
+    public int available() {
+      synchronized (MultiplexedStreamReceiver.this) {
+        byte[] head = channel.ready.peekFirst();
+        return head != null ? head.length - channel.readPosition : 0;
+      }
+    }
+
+    private void waitForData() throws IOException {
+      try {
+        while (channel.ready.isEmpty() && !channel.isAtEnd()) {
+          if (stopped) {
+            throw new IOException("Transfer stopped");
+          }
+
+          if (connections.isEmpty() && System.currentTimeMillis() - disconnectedSince > resumeTimeout) {
+            throw new IOException("Lost connection and sender didn't reconnect");
+          }
+
+          MultiplexedStreamReceiver.this.wait(1000);
+        }
+      } catch (InterruptedException e) {
+        throw new InterruptedIOException();
+      }
+    }
+  }
+
+  private static final class Channel {
+    private final int                   id;
+    private final ArrayDeque<byte[]>    ready      = new ArrayDeque<>();
+    private final TreeMap<Long, byte[]> outOfOrder = new TreeMap<>();
+
+    /** Offset of the first byte that hasn't been received yet. */
+    private long received;
+    /** Offset of the first byte that hasn't been read yet. */
+    private long consumed;
+    private long lastAcked;
+    private int  readPosition;
+
+    private @Nullable Long    length;
+    private           boolean endAcked;
+
+    Channel(int id) {
+      this.id = id;
+    }
+
+    void append(@NonNull byte[] data) {
+      if (data.length > 0) {
+        ready.addLast(data);
+        received += data.length;
+      }
+    }
+
+    boolean isAtEnd() {
+      return length != null && consumed >= length;
+    }
+  }
+
+  private static final class Ack {
+    private final int     channel;
+    private final long    offset;
+    private final boolean closed;
+
+    Ack(int channel, long offset, boolean closed) {
+      this.channel = channel;
+      this.offset  = offset;
+      this.closed  = closed;
+    }
+  }
+}
@@ -0,0 +1,509 @@
+package org.signal.devicetransfer;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import org.signal.core.util.logging.Log;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Sends the channels of a {@link MultiplexedOutput} over several connections made by a {@link Connector},
+ * reconnecting any that drop. See {@link MultiplexedProtocol} for how it works.
+ */
+final class MultiplexedStreamSender implements MultiplexedOutput {
+
+  private static final String TAG = Log.tag(MultiplexedStreamSender.class);
+
+  private static final long RECONNECT_DELAY = 1000;
+
+  interface Connector {
+    @NonNull MultiplexedConnection connect() throws IOException;
+  }
+
+  private final Connector connector;
+  private final int       connectionCount;
+  private final int       chunkSize;
+  private final long      windowSize;
+  private final long      resumeTimeout;
+
+  private final Map<Integer, Channel> channels = new HashMap<>();
+  private final ArrayDeque<Chunk>     queue    = new ArrayDeque<>();
+  private final Set<Link>             links    = new HashSet<>();
+  private final List<Thread>          threads  = new ArrayList<>();
+
+  private           boolean     stopped;
+  private           boolean     receiverDone;
+  private @Nullable IOException failure;
+  private           long        disconnectedSince;
+
+  /**
+   * @param connectionCount How many connections to send over at once.
+   * @param chunkSize       How much data of a channel to send at a time.
+   * @param windowSize      How much data of a channel can be sent before the receiver has read it.
+   * @param resumeTimeout   How long to keep trying to reconnect after losing every connection, in ms.
+   */
+  MultiplexedStreamSender(@NonNull Connector connector, int connectionCount, int chunkSize, long windowSize, long resumeTimeout) {
+    if (chunkSize > MultiplexedProtocol.MAX_CHUNK_SIZE) {
+      throw new IllegalArgumentException("Chunk size too large: " + chunkSize);
+    }
+
+    this.connector       = connector;
+    this.connectionCount = connectionCount;
+    this.chunkSize       = chunkSize;
+    this.windowSize      = windowSize;
+    this.resumeTimeout   = resumeTimeout;
+  }
+
+  synchronized void start() {
+    disconnectedSince = System.currentTimeMillis();
+
+    for (int i = 0; i < connectionCount; i++) {
+      int    connection = i;
+      Thread thread     = new Thread(() -> runConnection(connection), "multiplexed-sender-" + i);
+      threads.add(thread);
+      thread.start();
+    }
+  }
+
+  @Override
+  public synchronized @NonNull OutputStream openChannel(int channel) throws IOException {
+    throwIfUnusable();
+
+    if (channels.containsKey(channel)) {
+      throw new IllegalStateException("Channel " + channel + " is already open");
+    }
+
+    Channel state = new Channel(channel);
+    channels.put(channel, state);
+
+    return new ChannelOutputStream(state);
+  }
+
+  /**
+   * Wait for the receiver to say it's done reading, and then close every connection. Like the single
+   * connection transfer, it's up to the receiver whether what it read was usable.
+   *
+   * @throws IOException if every connection was lost and couldn't be reestablished.
+   */
+  void finish() throws IOException {
+    IOException error = null;
+
+    synchronized (this) {
+      try {
+        while (!receiverDone && failure == null && !stopped) {
+          wait();
+        }
+      } catch (InterruptedException e) {
+        error = new InterruptedIOException();
+      }
+
+      if (error == null && !receiverDone) {
+        error = failure != null ? failure : new IOException("Transfer stopped");
+      }
+
+      for (Channel channel : channels.values()) {
+        if (receiverDone && (!channel.closed || channel.acked < channel.written)) {
+          Log.w(TAG, "Receiver finished without reading all of channel " + channel.id + ", read " + channel.acked + " of " + channel.written);
+        }
+      }
+    }
+
+    shutdown();
+
+    if (error != null) {
+      throw error;
+    }
+  }
+
+  void shutdown() {
+    List<Link> toClose;
+
+    synchronized (this) {
+      stopped = true;
+      toClose = new ArrayList<>(links);
+      notifyAll();
+    }
+
+    for (Link link : toClose) {
+      link.connection.close();
+    }
+
+    for (Thread thread : threads) {
+      thread.interrupt();
+    }
+  }
+
+  private void runConnection(int connectionNumber) {
+    while (true) {
+      synchronized (this) {
+        if (stopped || receiverDone || failure != null) {
+          return;
+        }
+      }
+
+      Link link = null;
+      try {
+        link = new Link(connector.connect());
+
+        if (!onConnected(link)) {
+          link.connection.close();
+          return;
+        }
+
+        Log.i(TAG, "Connection " + connectionNumber + " established");
+
+        Link   reader       = link;
+        Thread readerThread = new Thread(() -> readAcks(reader), "multiplexed-sender-acks-" + connectionNumber);
+        readerThread.start();
+
+        sendChunks(link);
+      } catch (InterruptedIOException e) {
+        Log.i(TAG, "Connection " + connectionNumber + " interrupted");
+      } catch (IOException e) {
+        Log.w(TAG, "Connection " + connectionNumber + " lost", e);
+      } finally {
+        if (link != null) {
+          link.connection.close();
+          onDisconnected(link);
+        }
+      }
+
+      synchronized (this) {
+        if (stopped || receiverDone) {
+          return;
+        }
+
+        if (links.isEmpty() && System.currentTimeMillis() - disconnectedSince > resumeTimeout) {
+          Log.w(TAG, "Unable to reconnect in time, giving up");
+          failure = new IOException("Unable to resume transfer");
+          notifyAll();
+          return;
+        }
+      }
+
+      try {
+        Thread.sleep(RECONNECT_DELAY);
+      } catch (InterruptedException e) {
+        return;
+      }
+    }
+  }
+
+  private void sendChunks(@NonNull Link link) throws IOException {
+    boolean unflushed = false;
+
+    while (true) {
+      Chunk chunk;
+
+      synchronized (this) {
+        if (stopped || receiverDone) {
+          return;
+        }
+
+        if (link.closed) {
+          throw new IOException("Connection closed");
+        }
+
+        chunk = queue.pollFirst();
+
+        if (chunk != null) {
+          chunk.queued = false;
+          chunk.link   = link;
+        } else if (!unflushed) {
+          long idleSince = System.currentTimeMillis();
+
+          try {
+            while (queue.isEmpty() && !link.closed && !stopped && !receiverDone && System.currentTimeMillis() - idleSince < MultiplexedProtocol.KEEPALIVE_INTERVAL) {
+              wait(MultiplexedProtocol.KEEPALIVE_INTERVAL);
+            }
+          } catch (InterruptedException e) {
+            throw new InterruptedIOException();
+          }
+
+          if (queue.isEmpty() && !link.closed && !stopped && !receiverDone) {
+            link.connection.output.writeByte(MultiplexedProtocol.PING);
+            unflushed = true;
+          }
+          continue;
+        }
+      }
+
+      if (chunk == null) {
+        link.connection.output.flush();
+        unflushed = false;
+      } else if (chunk.data != null) {
+        MultiplexedProtocol.writeData(link.connection.output, chunk.channel, chunk.offset, chunk.data);
+        unflushed = true;
+      } else {
+        MultiplexedProtocol.writeClose(link.connection.output, chunk.channel, chunk.offset);
+        unflushed = true;
+      }
+    }
+  }
+
+  private void readAcks(@NonNull Link link) {
+    try {
+      while (true) {
+        int type = link.connection.input.readUnsignedByte();
+
+        switch (type) {
+          case MultiplexedProtocol.ACK:
+            int     channel = link.connection.input.readInt();
+            long    offset  = link.connection.input.readLong();
+            boolean closed  = link.connection.input.readBoolean();
+            onAck(channel, offset, closed);
+            break;
+          case MultiplexedProtocol.DONE:
+            onReceiverDone();
+            break;
+          case MultiplexedProtocol.PING:
+            break;
+          default:
+            throw new IOException("Unexpected frame type " + type);
+        }
+      }
+    } catch (IOException e) {
+      synchronized (this) {
+        if (!stopped && !receiverDone) {
+          Log.w(TAG, "Lost connection while reading acks", e);
+        }
+      }
+    } finally {
+      link.connection.close();
+
+      synchronized (this) {
+        link.closed = true;
+        notifyAll();
+      }
+    }
+  }
+
+  private synchronized boolean onConnected(@NonNull Link link) {
+    if (stopped || receiverDone || failure != null) {
+      return false;
+    }
+
+    links.add(link);
+    return true;
+  }
+
+  /**
+   * Anything that was sent over the lost connection and hasn't been acknowledged may not have made it, so
+   * queue it up again, ahead of anything new.
+   */
+  private synchronized void onDisconnected(@NonNull Link link) {
+    link.closed = true;
+    links.remove(link);
+
+    if (links.isEmpty()) {
+      disconnectedSince = System.currentTimeMillis();
+    }
+
+    List<Chunk> resend = new ArrayList<>();
+
+    for (Channel channel : channels.values()) {
+      for (Chunk chunk : channel.unacked) {
+        if (chunk.link == link && !chunk.queued) {
+          chunk.link   = null;
+          chunk.queued = true;
+          resend.add(chunk);
+        }
+      }
+    }
+
+    for (int i = resend.size() - 1; i >= 0; i--) {
+      queue.addFirst(resend.get(i));
+    }
+
+    if (!resend.isEmpty()) {
+      Log.i(TAG, "Resending " + resend.size() + " chunks");
+    }
+
+    notifyAll();
+  }
+
+  private synchronized void onAck(int channelId, long offset, boolean closed) {
+    Channel channel = channels.get(channelId);
+
+    if (channel == null) {
+      return;
+    }
+
+    channel.acked = Math.max(channel.acked, offset);
+
+    Iterator<Chunk> iterator = channel.unacked.iterator();
+    while (iterator.hasNext()) {
+      Chunk   chunk   = iterator.next();
+      boolean isAcked = chunk.data != null ? chunk.offset + chunk.data.length <= channel.acked : closed;
+
+      if (!isAcked) {
+        break;
+      }
+
+      iterator.remove();
+
+      if (chunk.queued) {
+        queue.remove(chunk);
+      }
+    }
+
+    notifyAll();
+  }
+
+  private synchronized void onReceiverDone() {
+    receiverDone = true;
+    notifyAll();
+  }
+
+  private synchronized void enqueue(@NonNull Channel channel, @Nullable byte[] data) throws IOException {
+    try {
+      while (data != null && channel.written - channel.acked >= windowSize && failure == null && !stopped && !receiverDone) {
+        wait();
+      }
+    } catch (InterruptedException e) {
+      throw new InterruptedIOException();
+    }
+
+    throwIfUnusable();
+
+    Chunk chunk = new Chunk(channel.id, channel.written, data);
+    chunk.queued = true;
+
+    if (data != null) {
+      channel.written += data.length;
+    } else {
+      channel.closed = true;
+    }
+
+    channel.unacked.addLast(chunk);
+    queue.addLast(chunk);
+    notifyAll();
+  }
+
+  private void throwIfUnusable() throws IOException {
+    if (failure != null) {
+      throw new IOException(failure);
+    } else if (receiverDone) {
+      throw new IOException("Receiver finished early");
+    } else if (stopped) {
+      throw new IOException("Transfer stopped");
+    }
+  }
+
+  private final class ChannelOutputStream extends OutputStream {
+
+    private final Channel channel;
+
+    private byte[]  buffer;
+    private int     position;
+    private boolean closed;
+
+    ChannelOutputStream(@NonNull Channel channel) {
+      this.channel = channel;
+      this.buffer  = new byte[chunkSize];
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+      write(new byte[] { (byte) b }, 0, 1);
+    }
+
+    @Override
+    public void write(@NonNull byte[] data, int offset, int length) throws IOException {
+      if (closed) {
+        throw new IOException("Channel " + channel.id + " is closed");
+      }
+
+      while (length > 0) {
+        int count = Math.min(length, buffer.length - position);
+        System.arraycopy(data, offset, buffer, position, count);
+
+        position += count;
+        offset   += count;
+        length   -= count;
+
+        if (position == buffer.length) {
+          enqueue(channel, buffer);
+          buffer   = new byte[chunkSize];
+          position = 0;
+        }
+      }
+    }
+
+    /**
+     * Sends whatever has been written so far, even if it doesn't fill a chunk. The receiver may be waiting
+     * for it before it reads any other channel.
+     */
+    @Override
+    public void flush() throws IOException {
+      if (position > 0) {
+        enqueue(channel, Arrays.copyOf(buffer, position));
+        position = 0;
+      }
+    }
+
+    @Override
+    public void close() throws IOException {
+      if (closed) {
+        return;
+      }
+
+      flush();
+      enqueue(channel, null);
+      closed = true;
+    }
+  }
+
+  private static final class Channel {
+    private final int               id;
+    private final ArrayDeque<Chunk> unacked = new ArrayDeque<>();
+
+    private long    written;
+    private long    acked;
+    private boolean closed;
+
+    Channel(int id) {
+      this.id = id;
+    }
+  }
+
+  /**
+   * Part of a channel, or the end of it if there's no data.
+   */
+  private static final class Chunk {
+    private final           int    channel;
+    private final           long   offset;
+    private final @Nullable byte[] data;
+
+    private @Nullable Link    link;
+    private           boolean queued;
+
+    Chunk(int channel, long offset, @Nullable byte[] data) {
+      this.channel = channel;
+      this.offset  = offset;
+      this.data    = data;
+    }
+  }
+
+  private static final class Link {
+    private final MultiplexedConnection connection;
+
+    private volatile boolean closed;
+
+    Link(@NonNull MultiplexedConnection connection) {
+      this.connection = connection;
+    }
+  }
+}
@@ -10,10 +10,13 @@ import org.signal.core.util.StreamUtil;
 import org.signal.core.util.ThreadUtil;
 import org.signal.core.util.logging.Log;
 
+import java.io.DataInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.net.InetSocketAddress;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
 import java.security.cert.X509Certificate;
 import java.util.concurrent.TimeUnit;
 
@@ -24,6 +27,9 @@ import javax.net.ssl.SSLSocket;
  * Performs the networking setup/tear down for the client. This includes
  * connecting to the server, performing the TLS/SAS verification, running an
  * arbitrarily provided {@link ClientTask}, and then cleaning up.
+ * <p>
+ * If both the task and the server support it, the task is run over several
+ * connections at once, see {@link MultiplexedProtocol}.
  */
 final class NetworkClientThread extends Thread {
 
@@ -34,9 +40,14 @@ final class NetworkClientThread extends Thread {
   public static final int NETWORK_CLIENT_SSL_ESTABLISHED = 1003;
   public static final int NETWORK_CLIENT_STOPPED         = 1004;
 
-  private volatile SSLSocket client;
-  private volatile boolean   isRunning;
-  private volatile Boolean   isVerified;
+  private static final int  DATA_CONNECTION_COUNT = 4;
+  private static final int  CHUNK_SIZE            = 64 * 1024;
+  private static final long WINDOW_SIZE           = 1024 * 1024;
+
+  private volatile SSLSocket               client;
+  private volatile MultiplexedStreamSender sender;
+  private volatile boolean                 isRunning;
+  private volatile Boolean                 isVerified;
 
   private final Context    context;
   private final ClientTask clientTask;
@@ -92,10 +103,12 @@ final class NetworkClientThread extends Thread {
           Log.i(TAG, "Waiting for user to verify sas");
           awaitAuthenticationCodeVerification();
           Log.d(TAG, "Waiting for server to tell us they also verified");
-          outputStream.write(0x43);
+          boolean multiplexed = clientTask instanceof MultiplexedClientTask;
+          outputStream.write(multiplexed ? MultiplexedProtocol.VERIFIED_MULTIPLEXED : MultiplexedProtocol.VERIFIED);
           outputStream.flush();
           try {
             int result = inputStream.read();
+            multiplexed &= result == MultiplexedProtocol.VERIFIED_MULTIPLEXED;
             if (result == -1) {
               Log.w(TAG, "Something happened waiting for server to verify");
               throw new DeviceTransferAuthentication.DeviceTransferAuthenticationException("server disconnected while we waited");
@@ -106,8 +119,12 @@ final class NetworkClientThread extends Thread {
           }
 
           handler.sendEmptyMessage(NETWORK_CLIENT_CONNECTED);
-          clientTask.run(context, outputStream);
-          outputStream.flush();
+          if (multiplexed) {
+            runMultiplexed((MultiplexedClientTask) clientTask, x509.getEncoded(), inputStream);
+          } else {
+            clientTask.run(context, outputStream);
+            outputStream.flush();
+          }
 
           Log.d(TAG, "Waiting for server to tell us they got everything");
           try {
@@ -143,6 +160,71 @@ final class NetworkClientThread extends Thread {
     handler.sendEmptyMessage(NETWORK_CLIENT_STOPPED);
   }
 
+  private void runMultiplexed(@NonNull MultiplexedClientTask task, @NonNull byte[] certificate, @NonNull InputStream inputStream) throws IOException {
+    DataInputStream primaryInput = new DataInputStream(inputStream);
+    int             dataPort     = primaryInput.readInt();
+    byte[]          token        = new byte[MultiplexedProtocol.TOKEN_LENGTH];
+    primaryInput.readFully(token);
+
+    Log.i(TAG, "Sending over " + DATA_CONNECTION_COUNT + " connections to port " + dataPort);
+
+    MultiplexedStreamSender localSender = new MultiplexedStreamSender(() -> connectData(dataPort, certificate, token),
+                                                                      DATA_CONNECTION_COUNT,
+                                                                      CHUNK_SIZE,
+                                                                      WINDOW_SIZE,
+                                                                      MultiplexedProtocol.RESUME_TIMEOUT);
+    sender = localSender;
+
+    try {
+      localSender.start();
+
+      OutputStream primaryChannel = localSender.openChannel(MultiplexedClientTask.PRIMARY_CHANNEL);
+      task.run(context, primaryChannel, localSender);
+      primaryChannel.close();
+
+      localSender.finish();
+    } finally {
+      localSender.shutdown();
+      sender = null;
+    }
+  }
+
+  /**
+   * Data connections don't go through the SAS verification, so they have to present the same certificate
+   * as the verified connection, and send the token the server gave us over it.
+   */
+  private @NonNull MultiplexedConnection connectData(int dataPort, @NonNull byte[] certificate, @NonNull byte[] token) throws IOException {
+    SSLSocket socket = null;
+
+    try {
+      SelfSignedIdentity.ApprovingTrustManager trustManager = new SelfSignedIdentity.ApprovingTrustManager();
+      socket = (SSLSocket) SelfSignedIdentity.getApprovingSocketFactory(trustManager).createSocket();
+      socket.connect(new InetSocketAddress(serverHostAddress, dataPort), 10000);
+      socket.startHandshake();
+
+      X509Certificate x509 = trustManager.getX509Certificate();
+      if (x509 == null || !MessageDigest.isEqual(certificate, x509.getEncoded())) {
+        throw new SSLHandshakeException("Data connection certificate doesn't match");
+      }
+
+      MultiplexedConnection connection = new MultiplexedConnection(socket);
+      connection.output.write(token);
+      connection.output.flush();
+
+      if (connection.input.readUnsignedByte() != MultiplexedProtocol.TOKEN_ACCEPTED) {
+        throw new IOException("Token not accepted");
+      }
+
+      return connection;
+    } catch (GeneralSecurityException e) {
+      StreamUtil.close(socket);
+      throw new IOException(e);
+    } catch (IOException e) {
+      StreamUtil.close(socket);
+      throw e;
+    }
+  }
+
   private void awaitAuthenticationCodeVerification() throws DeviceTransferAuthentication.DeviceTransferAuthenticationException {
     synchronized (verificationLock) {
       try {
@@ -170,6 +252,12 @@ final class NetworkClientThread extends Thread {
   public void shutdown() {
     isRunning = false;
     StreamUtil.close(client);
+
+    MultiplexedStreamSender localSender = sender;
+    if (localSender != null) {
+      localSender.shutdown();
+    }
+
     interrupt();
   }
 
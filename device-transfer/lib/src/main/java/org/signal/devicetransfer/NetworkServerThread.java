@@ -9,16 +9,23 @@ import androidx.annotation.NonNull;
 import org.signal.core.util.StreamUtil;
 import org.signal.core.util.logging.Log;
 
+import java.io.DataOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
 
 /**
  * Performs the networking setup/tear down for the server. This includes
  * connecting to the client, generating TLS keys, performing the TLS/SAS verification,
  * running an arbitrarily provided {@link ServerTask}, and then cleaning up.
+ * <p>
+ * If both the task and the client support it, the task is run over several
+ * connections at once, see {@link MultiplexedProtocol}.
  */
 final class NetworkServerThread extends Thread {
 
@@ -30,10 +37,12 @@ final class NetworkServerThread extends Thread {
   public static final int NETWORK_CLIENT_DISCONNECTED    = 1004;
   public static final int NETWORK_CLIENT_SSL_ESTABLISHED = 1005;
 
-  private volatile ServerSocket serverSocket;
-  private volatile Socket       clientSocket;
-  private volatile boolean      isRunning;
-  private volatile Boolean      isVerified;
+  private volatile ServerSocket              serverSocket;
+  private volatile Socket                    clientSocket;
+  private volatile ServerSocket              dataServerSocket;
+  private volatile MultiplexedStreamReceiver receiver;
+  private volatile boolean                   isRunning;
+  private volatile Boolean                   isVerified;
 
   private final Context                           context;
   private final ServerTask                        serverTask;
@@ -80,10 +89,12 @@ final class NetworkServerThread extends Thread {
           Log.i(TAG, "Waiting for user to verify sas");
           awaitAuthenticationCodeVerification();
           Log.d(TAG, "Waiting for client to tell us they also verified");
-          outputStream.write(0x43);
+          boolean multiplexed = serverTask instanceof MultiplexedServerTask;
+          outputStream.write(multiplexed ? MultiplexedProtocol.VERIFIED_MULTIPLEXED : MultiplexedProtocol.VERIFIED);
           outputStream.flush();
           try {
             int result = inputStream.read();
+            multiplexed &= result == MultiplexedProtocol.VERIFIED_MULTIPLEXED;
             if (result == -1) {
               Log.w(TAG, "Something happened waiting for client to verify");
               throw new DeviceTransferAuthentication.DeviceTransferAuthenticationException("client disconnected while we waited");
@@ -94,7 +105,11 @@ final class NetworkServerThread extends Thread {
           }
 
           handler.sendEmptyMessage(NETWORK_CLIENT_CONNECTED);
-          serverTask.run(context, inputStream);
+          if (multiplexed) {
+            runMultiplexed((MultiplexedServerTask) serverTask, outputStream);
+          } else {
+            serverTask.run(context, inputStream);
+          }
 
           outputStream.write(0x53);
           outputStream.flush();
@@ -122,6 +137,84 @@ final class NetworkServerThread extends Thread {
     handler.sendEmptyMessage(NETWORK_SERVER_STOPPED);
   }
 
+  private void runMultiplexed(@NonNull MultiplexedServerTask task, @NonNull OutputStream outputStream) throws IOException {
+    byte[] token = new byte[MultiplexedProtocol.TOKEN_LENGTH];
+    new SecureRandom().nextBytes(token);
+
+    MultiplexedStreamReceiver localReceiver = new MultiplexedStreamReceiver(MultiplexedProtocol.RESUME_TIMEOUT);
+    ServerSocket              localServer;
+
+    try {
+      localServer = SelfSignedIdentity.getServerSocketFactory(keys).createServerSocket(0);
+    } catch (GeneralSecurityException e) {
+      throw new IOException(e);
+    }
+
+    receiver         = localReceiver;
+    dataServerSocket = localServer;
+
+    try {
+      Thread acceptThread = new Thread(() -> acceptDataConnections(localServer, token, localReceiver), "multiplexed-accept");
+      acceptThread.start();
+
+      Log.i(TAG, "Receiving over data connections on port " + localServer.getLocalPort());
+
+      DataOutputStream primaryOutput = new DataOutputStream(outputStream);
+      primaryOutput.writeInt(localServer.getLocalPort());
+      primaryOutput.write(token);
+      primaryOutput.flush();
+
+      task.run(context, localReceiver.openChannel(MultiplexedClientTask.PRIMARY_CHANNEL), localReceiver);
+
+      localReceiver.finish();
+    } finally {
+      StreamUtil.close(localServer);
+      localReceiver.shutdown();
+      receiver         = null;
+      dataServerSocket = null;
+    }
+  }
+
+  /**
+   * Data connections are only accepted from whoever knows the token we sent over the verified connection.
+   * They can come and go for as long as the task is running, so a client can reconnect after a drop.
+   * Each token is read on its own thread, so a connection that never sends one can't hold up the others.
+   */
+  private static void acceptDataConnections(@NonNull ServerSocket server, @NonNull byte[] token, @NonNull MultiplexedStreamReceiver receiver) {
+    while (!server.isClosed()) {
+      try {
+        Socket socket = server.accept();
+        new Thread(() -> acceptDataConnection(socket, token, receiver), "multiplexed-handshake").start();
+      } catch (IOException e) {
+        if (!server.isClosed()) {
+          Log.w(TAG, "Unable to accept data connection", e);
+        }
+      }
+    }
+  }
+
+  private static void acceptDataConnection(@NonNull Socket socket, @NonNull byte[] token, @NonNull MultiplexedStreamReceiver receiver) {
+    try {
+      MultiplexedConnection connection = new MultiplexedConnection(socket);
+      byte[]                theirToken = new byte[MultiplexedProtocol.TOKEN_LENGTH];
+      connection.input.readFully(theirToken);
+
+      if (!MessageDigest.isEqual(token, theirToken)) {
+        Log.w(TAG, "Data connection sent the wrong token");
+        connection.close();
+        return;
+      }
+
+      connection.output.writeByte(MultiplexedProtocol.TOKEN_ACCEPTED);
+      connection.output.flush();
+
+      receiver.addConnection(connection);
+    } catch (IOException e) {
+      Log.w(TAG, "Unable to accept data connection", e);
+      StreamUtil.close(socket);
+    }
+  }
+
   private void awaitAuthenticationCodeVerification() throws DeviceTransferAuthentication.DeviceTransferAuthenticationException {
     synchronized (verificationLock) {
       try {
@@ -163,6 +256,13 @@ final class NetworkServerThread extends Thread {
     isRunning = false;
     StreamUtil.close(clientSocket);
     StreamUtil.close(serverSocket);
+    StreamUtil.close(dataServerSocket);
+
+    MultiplexedStreamReceiver localReceiver = receiver;
+    if (localReceiver != null) {
+      localReceiver.shutdown();
+    }
+
     interrupt();
   }
 }
@@ -0,0 +1,193 @@
+package org.signal.devicetransfer;
+
+import androidx.annotation.NonNull;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.junit.Assert.assertArrayEquals;
+
+/**
+ * Runs multiplexed transfers over loopback, which stands in for the Wi-Fi Direct network.
+ */
+public class MultiplexedStreamTest {
+
+  private static final int  CHUNK_SIZE     = 16 * 1024;
+  private static final long WINDOW_SIZE    = 64 * 1024;
+  private static final long RESUME_TIMEOUT = 10_000;
+
+  private ServerSocket              serverSocket;
+  private MultiplexedStreamReceiver receiver;
+  private ExecutorService           executor;
+
+  private final List<Socket> clientSockets = new CopyOnWriteArrayList<>();
+
+  @Before
+  public void setUp() throws IOException {
+    serverSocket = new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+    receiver     = new MultiplexedStreamReceiver(RESUME_TIMEOUT);
+    executor     = Executors.newCachedThreadPool();
+
+    executor.execute(() -> {
+      while (!serverSocket.isClosed()) {
+        try {
+          receiver.addConnection(new MultiplexedConnection(serverSocket.accept()));
+        } catch (IOException e) {
+          return;
+        }
+      }
+    });
+  }
+
+  @After
+  public void tearDown() throws IOException {
+    serverSocket.close();
+    receiver.shutdown();
+    executor.shutdownNow();
+  }
+
+  @Test
+  public void transfer_severalChannelsAtOnce() throws Exception {
+    byte[][] channels = { randomBytes(1_000_000), randomBytes(300_000), randomBytes(0), randomBytes(CHUNK_SIZE), randomBytes(5) };
+
+    MultiplexedStreamSender sender = newSender(RESUME_TIMEOUT);
+    sender.start();
+
+    List<Future<?>> writes = writeAll(sender, channels);
+    byte[][]        read   = readAll(channels.length);
+
+    receiver.finish();
+    sender.finish();
+
+    for (Future<?> write : writes) {
+      write.get();
+    }
+
+    for (int i = 0; i < channels.length; i++) {
+      assertArrayEquals("Channel " + i, channels[i], read[i]);
+    }
+  }
+
+  @Test
+  public void transfer_resumesAfterConnectionsDrop() throws Exception {
+    byte[] data = randomBytes(2_000_000);
+
+    MultiplexedStreamSender sender = newSender(RESUME_TIMEOUT);
+    sender.start();
+
+    Future<?> write = writeAll(sender, new byte[][] { data }).get(0);
+
+    InputStream           input  = receiver.openChannel(0);
+    ByteArrayOutputStream output = new ByteArrayOutputStream();
+    byte[]                buffer = new byte[8192];
+    boolean               dropped = false;
+
+    int read;
+    while ((read = input.read(buffer)) != -1) {
+      output.write(buffer, 0, read);
+
+      if (!dropped && output.size() > data.length / 3) {
+        for (Socket socket : clientSockets) {
+          socket.close();
+        }
+        dropped = true;
+      }
+    }
+
+    receiver.finish();
+    sender.finish();
+    write.get();
+
+    assertArrayEquals(data, output.toByteArray());
+  }
+
+  @Test(expected = IOException.class)
+  public void finish_failsWhenUnableToReconnect() throws Exception {
+    serverSocket.close();
+
+    MultiplexedStreamSender sender = newSender(500);
+    sender.start();
+
+    try (OutputStream output = sender.openChannel(0)) {
+      output.write(randomBytes(100));
+    }
+
+    sender.finish();
+  }
+
+  private @NonNull MultiplexedStreamSender newSender(long resumeTimeout) {
+    int port = serverSocket.getLocalPort();
+
+    return new MultiplexedStreamSender(() -> {
+      Socket socket = new Socket(InetAddress.getLoopbackAddress(), port);
+      clientSockets.add(socket);
+      return new MultiplexedConnection(socket);
+    }, 3, CHUNK_SIZE, WINDOW_SIZE, resumeTimeout);
+  }
+
+  private @NonNull List<Future<?>> writeAll(@NonNull MultiplexedStreamSender sender, @NonNull byte[][] channels) {
+    List<Future<?>> writes = new ArrayList<>();
+
+    for (int i = 0; i < channels.length; i++) {
+      int channel = i;
+      writes.add(executor.submit(() -> {
+        try (OutputStream output = sender.openChannel(channel)) {
+          output.write(channels[channel]);
+        }
+        return null;
+      }));
+    }
+
+    return writes;
+  }
+
+  private @NonNull byte[][] readAll(int count) throws Exception {
+    List<Future<byte[]>> reads = new ArrayList<>();
+
+    for (int i = 0; i < count; i++) {
+      InputStream input = receiver.openChannel(i);
+      reads.add(executor.submit(() -> readFully(input)));
+    }
+
+    byte[][] result = new byte[count][];
+    for (int i = 0; i < count; i++) {
+      result[i] = reads.get(i).get();
+    }
+
+    return result;
+  }
+
+  private static @NonNull byte[] readFully(@NonNull InputStream input) throws IOException {
+    ByteArrayOutputStream output = new ByteArrayOutputStream();
+    byte[]                buffer = new byte[8192];
+
+    int read;
+    while ((read = input.read(buffer)) != -1) {
+      output.write(buffer, 0, read);
+    }
+
+    return output.toByteArray();
+  }
+
+  private static @NonNull byte[] randomBytes(int length) {
+    byte[] bytes = new byte[length];
+    new Random(length).nextBytes(bytes);
+    return bytes;
+  }
+}
@@ -31,6 +31,7 @@ import org.whispersystems.signalservice.api.util.CredentialsProvider;
 import org.whispersystems.signalservice.internal.ServiceResponse;
 import org.whispersystems.signalservice.internal.configuration.SignalServiceConfiguration;
 import org.whispersystems.signalservice.internal.crypto.PaddingInputStream;
+import org.whispersystems.signalservice.internal.push.ChunkedAttachmentDownloader;
 import org.whispersystems.signalservice.internal.push.IdentityCheckRequest;
 import org.whispersystems.signalservice.internal.push.IdentityCheckResponse;
 import org.whispersystems.signalservice.internal.push.PushServiceSocket;
@@ -172,6 +173,34 @@ public class SignalServiceMessageReceiver {
     return AttachmentCipherInputStream.createForAttachment(destination, pointer.getSize().orElse(0), pointer.getKey(), pointer.getDigest().get(), null, 0);
   }
 
+  /**
+   * Like {@link #retrieveAttachment(SignalServiceAttachmentPointer, File, long, ProgressListener)}, but fetches the attachment as byte ranges over
+   * several concurrent connections. Progress is persisted alongside the destination, so an interrupted download resumes with only the missing ranges.
+   * Falls back to a sequential download if the size of the attachment is unknown or the CDN does not support range requests. A download that fails
+   * verification is deleted, so a retry fetches it again rather than reusing the bad file.
+   */
+  public InputStream retrieveAttachmentChunked(SignalServiceAttachmentPointer pointer, File destination, long maxSizeBytes, ProgressListener listener)
+      throws IOException, InvalidMessageException, MissingConfigurationException
+  {
+    if (!pointer.getDigest().isPresent()) throw new InvalidMessageException("No attachment digest!");
+
+    long cipherLength = pointer.getSize()
+                               .filter(s -> s > 0)
+                               .map(s -> AttachmentCipherStreamUtil.getCiphertextLength(PaddingInputStream.getPaddedSize(s)))
+                               .orElse(0L);
+
+    if (cipherLength <= 0 || !new ChunkedAttachmentDownloader(socket).download(pointer, destination, cipherLength, maxSizeBytes, listener)) {
+      return retrieveAttachment(pointer, destination, maxSizeBytes, listener);
+    }
+
+    try {
+      return AttachmentCipherInputStream.createForAttachment(destination, pointer.getSize().orElse(0), pointer.getKey(), pointer.getDigest().get(), null, 0);
+    } catch (InvalidMessageException e) {
+      ChunkedAttachmentDownloader.discard(destination);
+      throw e;
+    }
+  }
+
   /**
    * Retrieves an archived media attachment.
    *
@@ -220,6 +249,37 @@ public class SignalServiceMessageReceiver {
                                                            ignoreDigest);
   }
 
+  /**
+   * Like {@link #retrieveArchivedAttachment(BackupKey.MediaKeyMaterial, Map, File, SignalServiceAttachmentPointer, File, long, boolean, ProgressListener)},
+   * but the returned stream decrypts both layers as it's read, so the original attachment encrypted blob is never written to disk. The pointer must
+   * include the size and digest of the attachment.
+   *
+   * @return An InputStream that streams the plaintext attachment contents.
+   */
+  public InputStream streamArchivedAttachment(@Nonnull BackupKey.MediaKeyMaterial archivedMediaKeyMaterial,
+                                              @Nonnull Map<String, String> readCredentialHeaders,
+                                              @Nonnull File archiveDestination,
+                                              @Nonnull SignalServiceAttachmentPointer pointer,
+                                              long maxSizeBytes,
+                                              @Nullable ProgressListener listener)
+      throws IOException, InvalidMessageException, MissingConfigurationException
+  {
+    if (pointer.getDigest().isEmpty()) {
+      throw new InvalidMessageException("No attachment digest!");
+    }
+
+    long size = pointer.getSize().filter(s -> s > 0).orElseThrow(() -> new InvalidMessageException("No attachment size!"));
+
+    socket.retrieveAttachment(pointer.getCdnNumber(), readCredentialHeaders, pointer.getRemoteId(), archiveDestination, maxSizeBytes, listener);
+
+    return AttachmentCipherInputStream.createForArchivedAttachment(archivedMediaKeyMaterial,
+                                                                   archiveDestination,
+                                                                   AttachmentCipherStreamUtil.getCiphertextLength(PaddingInputStream.getPaddedSize(size)),
+                                                                   size,
+                                                                   pointer.getKey(),
+                                                                   pointer.getDigest().get());
+  }
+
   public void retrieveBackup(int cdnNumber, Map<String, String> headers, String cdnPath, File destination, ProgressListener listener) throws MissingConfigurationException, IOException {
     socket.retrieveBackup(cdnNumber, headers, cdnPath, destination, 1_000_000_000L, listener);
   }
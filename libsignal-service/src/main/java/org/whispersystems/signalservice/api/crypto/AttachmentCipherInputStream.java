@@ -149,6 +149,35 @@ public class AttachmentCipherInputStream extends FilterInputStream {
     return inputStream;
   }
 
+  /**
+   * Decrypt archived media all the way to its plaintext, without first writing the original attachment encrypted blob to another file. The outer
+   * layer is verified once, and the inner layer is verified like any other attachment before any plaintext is returned.
+   *
+   * Unlike {@link #createForArchivedMedia(BackupKey.MediaKeyMaterial, File, long)}, the length of the original ciphertext must be known.
+   */
+  public static InputStream createForArchivedAttachment(BackupKey.MediaKeyMaterial archivedMediaKeyMaterial, File file, long originalCipherTextLength, long plaintextLength, byte[] combinedKeyMaterial, byte[] digest)
+      throws InvalidMessageException, IOException
+  {
+    if (originalCipherTextLength <= 0) {
+      throw new InvalidMessageException("Missing original ciphertext length!");
+    }
+
+    Mac mac = initMac(archivedMediaKeyMaterial.getMacKey());
+
+    if (file.length() <= BLOCK_SIZE + mac.getMacLength()) {
+      throw new InvalidMessageException("Message shorter than crypto overhead!");
+    }
+
+    try (FileInputStream macVerificationStream = new FileInputStream(file)) {
+      verifyMac(macVerificationStream, file.length(), mac, null);
+    }
+
+    long           archiveDataSize = file.length() - BLOCK_SIZE - mac.getMacLength();
+    StreamSupplier archiveStream   = () -> new ContentLengthInputStream(new AttachmentCipherInputStream(new FileInputStream(file), archivedMediaKeyMaterial.getCipherKey(), archiveDataSize), originalCipherTextLength);
+
+    return createForAttachment(archiveStream, originalCipherTextLength, plaintextLength, combinedKeyMaterial, digest, null, 0, false);
+  }
+
   public static InputStream createStreamingForArchivedAttachment(BackupKey.MediaKeyMaterial archivedMediaKeyMaterial, File file, long originalCipherTextLength, long plaintextLength, byte[] combinedKeyMaterial, byte[] digest, byte[] incrementalDigest, int incrementalMacChunkSize)
       throws InvalidMessageException, IOException
   {
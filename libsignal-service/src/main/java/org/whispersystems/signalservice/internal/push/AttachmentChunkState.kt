@@ -0,0 +1,118 @@
+/*
+ * Copyright 2024 Signal Messenger, LLC
+ * SPDX-License-Identifier: AGPL-3.0-only
+ */
+
+package org.whispersystems.signalservice.internal.push
+
+import java.io.DataInputStream
+import java.io.File
+import java.io.IOException
+import java.io.RandomAccessFile
+
+/**
+ * Tracks which chunks of a ranged attachment download have been written to the destination file. The state is persisted
+ * to a small sidecar file next to the destination so that an interrupted download only needs to fetch what it is missing.
+ *
+ * The sidecar layout is a header of (chunk size, total length) followed by one byte per chunk, where 1 means complete.
+ */
+class AttachmentChunkState private constructor(
+  private val stateFile: File,
+  val chunkSize: Int,
+  val totalLength: Long,
+  private val completed: BooleanArray
+) {
+
+  companion object {
+    private const val HEADER_SIZE = 12
+
+    @JvmStatic
+    fun stateFileFor(destination: File): File {
+      return File(destination.parentFile, destination.name + ".chunks")
+    }
+
+    /**
+     * Loads the persisted state for [destination], or creates fresh state if there is none or it describes a different download.
+     *
+     * A destination without a sidecar is treated as the output of a sequential download, so any chunks fully covered by its
+     * current length are considered complete.
+     */
+    @JvmStatic
+    @Throws(IOException::class)
+    fun load(destination: File, chunkSize: Int, totalLength: Long): AttachmentChunkState {
+      require(chunkSize > 0 && totalLength > 0)
+
+      val stateFile = stateFileFor(destination)
+      val chunkCount = ((totalLength + chunkSize - 1) / chunkSize).toInt()
+
+      if (stateFile.exists() && destination.length() == totalLength && stateFile.length() == (HEADER_SIZE + chunkCount).toLong()) {
+        DataInputStream(stateFile.inputStream().buffered()).use { input ->
+          if (input.readInt() == chunkSize && input.readLong() == totalLength) {
+            val completed = BooleanArray(chunkCount) { input.readByte() == 1.toByte() }
+            return AttachmentChunkState(stateFile, chunkSize, totalLength, completed)
+          }
+        }
+      }
+
+      val existingLength = if (stateFile.exists()) 0 else destination.length()
+      val completed = BooleanArray(chunkCount) { index -> minOf((index + 1).toLong() * chunkSize, totalLength) <= existingLength }
+
+      RandomAccessFile(stateFile, "rwd").use { file ->
+        file.setLength(0)
+        file.writeInt(chunkSize)
+        file.writeLong(totalLength)
+        file.write(ByteArray(chunkCount) { if (completed[it]) 1 else 0 })
+      }
+
+      return AttachmentChunkState(stateFile, chunkSize, totalLength, completed)
+    }
+  }
+
+  val chunkCount: Int
+    get() = completed.size
+
+  val isComplete: Boolean
+    @Synchronized get() = completed.all { it }
+
+  @Synchronized
+  fun missingChunks(): List<Int> {
+    return completed.indices.filterNot { completed[it] }
+  }
+
+  fun chunkStart(index: Int): Long {
+    return index.toLong() * chunkSize
+  }
+
+  /** The inclusive end of the chunk. */
+  fun chunkEnd(index: Int): Long {
+    return minOf(chunkStart(index + 1), totalLength) - 1
+  }
+
+  fun chunkIndexOf(position: Long): Int {
+    return (position / chunkSize).toInt().coerceIn(0, chunkCount - 1)
+  }
+
+  @Synchronized
+  @Throws(IOException::class)
+  fun markComplete(index: Int) {
+    write(index, true)
+  }
+
+  @Synchronized
+  @Throws(IOException::class)
+  fun markIncomplete(index: Int) {
+    write(index, false)
+  }
+
+  fun delete() {
+    stateFile.delete()
+  }
+
+  private fun write(index: Int, complete: Boolean) {
+    RandomAccessFile(stateFile, "rwd").use { file ->
+      file.seek((HEADER_SIZE + index).toLong())
+      file.write(if (complete) 1 else 0)
+    }
+    completed[index] = complete
+  }
+}
@@ -0,0 +1,260 @@
+/*
+ * Copyright 2024 Signal Messenger, LLC
+ * SPDX-License-Identifier: AGPL-3.0-only
+ */
+
+package org.whispersystems.signalservice.internal.push
+
+import org.signal.core.util.logging.Log
+import org.signal.libsignal.protocol.InvalidMessageException
+import org.signal.libsignal.protocol.incrementalmac.ChunkSizeChoice
+import org.signal.libsignal.protocol.incrementalmac.IncrementalMacInputStream
+import org.whispersystems.signalservice.api.messages.SignalServiceAttachment.ProgressListener
+import org.whispersystems.signalservice.api.messages.SignalServiceAttachmentPointer
+import org.whispersystems.signalservice.api.push.exceptions.PushNetworkException
+import org.whispersystems.signalservice.internal.util.Util
+import java.io.File
+import java.io.FilterInputStream
+import java.io.IOException
+import java.io.InputStream
+import java.io.RandomAccessFile
+import java.nio.channels.Channels
+import java.util.concurrent.ExecutionException
+import java.util.concurrent.Executors
+import java.util.concurrent.Future
+import java.util.concurrent.atomic.AtomicBoolean
+import java.util.concurrent.atomic.AtomicLong
+
+/**
+ * Downloads an attachment as a set of byte ranges over several concurrent connections, writing each range directly into
+ * its position in the destination file. Completed chunks are recorded in an [AttachmentChunkState], so a download that is
+ * interrupted resumes by fetching only the missing chunks.
+ *
+ * When the attachment has an incremental MAC, the assembled file is checked against it before returning. The incremental MAC
+ * is a running MAC, so it can only be checked in order, but a failure still tells us which region is bad. Those chunks are
+ * fetched again rather than restarting the whole download, and the file is checked again. A region that still fails after
+ * being fetched again fails the download.
+ *
+ * The finished file still has to be checked against the attachment digest by the caller. If that fails, the caller must
+ * [discard] it, since a complete file is otherwise taken as already downloaded by the next attempt.
+ */
+class ChunkedAttachmentDownloader(
+  private val socket: PushServiceSocket,
+  private val parallelism: Int = DEFAULT_PARALLELISM
+) {
+
+  companion object {
+    private val TAG = Log.tag(ChunkedAttachmentDownloader::class.java)
+
+    const val DEFAULT_PARALLELISM = 4
+    private const val MIN_CHUNK_SIZE = 1024 * 1024
+
+    /**
+     * Picks a chunk size of at least [MIN_CHUNK_SIZE] that is a multiple of the incremental MAC chunk size, so that each
+     * MAC chunk lives entirely within one download chunk.
+     */
+    @JvmStatic
+    fun chunkSizeFor(incrementalMacChunkSize: Int): Int {
+      if (incrementalMacChunkSize <= 0) {
+        return MIN_CHUNK_SIZE
+      }
+
+      val multiple = (MIN_CHUNK_SIZE + incrementalMacChunkSize - 1) / incrementalMacChunkSize
+      return multiple * incrementalMacChunkSize
+    }
+
+    /**
+     * Deletes a download that failed verification, along with its chunk state, so that the next attempt starts over.
+     */
+    @JvmStatic
+    fun discard(destination: File) {
+      AttachmentChunkState.stateFileFor(destination).delete()
+      destination.delete()
+    }
+  }
+
+  /**
+   * @return False if the CDN does not support range requests. The destination and chunk state are discarded in that case,
+   *         and the caller should fall back to a sequential download.
+   */
+  @Throws(IOException::class, InvalidMessageException::class)
+  fun download(pointer: SignalServiceAttachmentPointer, destination: File, cipherLength: Long, maxSizeBytes: Long, listener: ProgressListener?): Boolean {
+    if (cipherLength > maxSizeBytes) {
+      throw PushNetworkException("Response exceeds max size!")
+    }
+
+    val state = AttachmentChunkState.load(destination, chunkSizeFor(pointer.incrementalMacChunkSize), cipherLength)
+
+    RandomAccessFile(destination, "rw").use { it.setLength(cipherLength) }
+
+    if (!downloadChunks(pointer, destination, state, state.missingChunks(), listener)) {
+      discard(destination)
+      return false
+    }
+
+    val refetched: MutableSet<Int> = HashSet()
+
+    while (true) {
+      val badChunks = findChunksFailingIncrementalMac(pointer, destination, state)
+      if (badChunks.isEmpty()) {
+        break
+      }
+
+      if (badChunks.any { it in refetched }) {
+        discard(destination)
+        throw InvalidMessageException("Incremental MAC failed again after refetching chunks $badChunks")
+      }
+
+      Log.w(TAG, "Incremental MAC failed, refetching chunks $badChunks")
+      refetched += badChunks
+      badChunks.forEach { state.markIncomplete(it) }
+
+      if (!downloadChunks(pointer, destination, state, badChunks, listener)) {
+        discard(destination)
+        return false
+      }
+    }
+
+    state.delete()
+    return true
+  }
+
+  private fun downloadChunks(pointer: SignalServiceAttachmentPointer, destination: File, state: AttachmentChunkState, chunks: List<Int>, listener: ProgressListener?): Boolean {
+    if (chunks.isEmpty()) {
+      return true
+    }
+
+    Log.i(TAG, "Downloading ${chunks.size} of ${state.chunkCount} chunks with parallelism $parallelism")
+
+    val downloaded = AtomicLong(state.totalLength - chunks.sumOf { state.chunkEnd(it) - state.chunkStart(it) + 1 })
+    val rangeSupported = AtomicBoolean(true)
+    val executor = Executors.newFixedThreadPool(minOf(parallelism, chunks.size))
+
+    try {
+      val futures: List<Future<*>> = chunks.map { index ->
+        executor.submit {
+          if (rangeSupported.get()) {
+            val supported = downloadChunk(pointer, destination, state, index, downloaded, listener)
+            if (!supported) {
+              rangeSupported.set(false)
+            }
+          }
+        }
+      }
+
+      for (future in futures) {
+        try {
+          future.get()
+        } catch (e: ExecutionException) {
+          futures.forEach { it.cancel(true) }
+          throw e.cause as? IOException ?: IOException(e.cause)
+        }
+      }
+    } catch (e: InterruptedException) {
+      throw PushNetworkException(e)
+    } finally {
+      executor.shutdownNow()
+    }
+
+    return rangeSupported.get()
+  }
+
+  private fun downloadChunk(
+    pointer: SignalServiceAttachmentPointer,
+    destination: File,
+    state: AttachmentChunkState,
+    index: Int,
+    downloaded: AtomicLong,
+    listener: ProgressListener?
+  ): Boolean {
+    val start = state.chunkStart(index)
+    val end = state.chunkEnd(index)
+
+    val chunkListener = object : ProgressListener {
+      private var reported = start
+
+      override fun onAttachmentProgress(total: Long, progress: Long) {
+        val delta = progress - reported
+        reported = progress
+        listener?.onAttachmentProgress(state.totalLength, downloaded.addAndGet(delta))
+      }
+
+      override fun shouldCancel(): Boolean {
+        return listener?.shouldCancel() ?: false
+      }
+    }
+
+    RandomAccessFile(destination, "rw").use { file ->
+      val outputStream = Channels.newOutputStream(file.channel.position(start))
+      val supported = socket.retrieveAttachmentRange(pointer.cdnNumber, emptyMap(), pointer.remoteId, outputStream, start, end, Long.MAX_VALUE, chunkListener)
+
+      if (!supported) {
+        return false
+      }
+
+      if (file.channel.position() != end + 1) {
+        throw PushNetworkException("Incomplete chunk $index. Expected ${end + 1 - start} bytes, got ${file.channel.position() - start}")
+      }
+
+      file.channel.force(false)
+    }
+
+    state.markComplete(index)
+    return true
+  }
+
+  /**
+   * Reads the assembled file through the incremental MAC and returns the chunks around the first failure, if any.
+   */
+  private fun findChunksFailingIncrementalMac(pointer: SignalServiceAttachmentPointer, destination: File, state: AttachmentChunkState): List<Int> {
+    val incrementalDigest = pointer.incrementalDigest.orElse(null)
+    val macChunkSize = pointer.incrementalMacChunkSize
+    val key = pointer.key
+
+    if (incrementalDigest == null || incrementalDigest.isEmpty() || macChunkSize <= 0 || key == null) {
+      return emptyList()
+    }
+
+    val macKey = Util.split(key, 32, 32)[1]
+    val counting = CountingInputStream(destination.inputStream())
+
+    try {
+      IncrementalMacInputStream(counting, macKey, ChunkSizeChoice.everyNthByte(macChunkSize), incrementalDigest).use { input ->
+        val buffer = ByteArray(64 * 1024)
+        while (input.read(buffer) != -1) {
+          // Reading is the validation.
+        }
+      }
+    } catch (e: Exception) {
+      val failedAt = counting.position
+      Log.w(TAG, "Incremental MAC validation failed near position $failedAt", e)
+
+      val first = state.chunkIndexOf(failedAt - 2L * macChunkSize)
+      val last = state.chunkIndexOf(failedAt - 1)
+      return (first..last).toList()
+    }
+
+    return emptyList()
+  }
+
+  private class CountingInputStream(wrapped: InputStream) : FilterInputStream(wrapped) {
+    var position: Long = 0
+      private set
+
+    override fun read(): Int {
+      val read = super.read()
+      if (read != -1) {
+        position++
+      }
+      return read
+    }
+
+    override fun read(b: ByteArray, off: Int, len: Int): Int {
+      val read = super.read(b, off, len)
+      if (read > 0) {
+        position += read
+      }
+      return read
+    }
+  }
+}
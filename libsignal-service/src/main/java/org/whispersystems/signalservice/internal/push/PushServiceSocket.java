@@ -992,18 +992,32 @@ public class PushServiceSocket {
   public void retrieveAttachment(int cdnNumber, Map<String, String> headers, SignalServiceAttachmentRemoteId cdnPath, File destination, long maxSizeBytes, ProgressListener listener)
       throws IOException, MissingConfigurationException
   {
-    final String path;
+    downloadFromCdn(destination, cdnNumber, headers, getAttachmentDownloadPath(cdnPath), maxSizeBytes, listener);
+  }
+
+  /**
+   * Downloads the inclusive byte range [start, end] of an attachment into the provided stream.
+   *
+   * @return True if the CDN honored the range request. If false, nothing was written and the caller should fall back to
+   *         {@link #retrieveAttachment(int, Map, SignalServiceAttachmentRemoteId, File, long, ProgressListener)}.
+   */
+  public boolean retrieveAttachmentRange(int cdnNumber, Map<String, String> headers, SignalServiceAttachmentRemoteId cdnPath, OutputStream outputStream, long start, long end, long maxSizeBytes, ProgressListener listener)
+      throws IOException, MissingConfigurationException
+  {
+    return downloadFromCdn(outputStream, start, end, cdnNumber, headers, getAttachmentDownloadPath(cdnPath), maxSizeBytes, listener);
+  }
+
+  private static String getAttachmentDownloadPath(SignalServiceAttachmentRemoteId cdnPath) {
     if (cdnPath instanceof SignalServiceAttachmentRemoteId.V2) {
-      path = String.format(Locale.US, ATTACHMENT_ID_DOWNLOAD_PATH, ((SignalServiceAttachmentRemoteId.V2) cdnPath).getCdnId());
+      return String.format(Locale.US, ATTACHMENT_ID_DOWNLOAD_PATH, ((SignalServiceAttachmentRemoteId.V2) cdnPath).getCdnId());
     } else if (cdnPath instanceof SignalServiceAttachmentRemoteId.V4) {
-      path = String.format(Locale.US, ATTACHMENT_KEY_DOWNLOAD_PATH, ((SignalServiceAttachmentRemoteId.V4) cdnPath).getCdnKey());
+      return String.format(Locale.US, ATTACHMENT_KEY_DOWNLOAD_PATH, ((SignalServiceAttachmentRemoteId.V4) cdnPath).getCdnKey());
     } else if (cdnPath instanceof SignalServiceAttachmentRemoteId.Backup) {
       SignalServiceAttachmentRemoteId.Backup backupCdnId = (SignalServiceAttachmentRemoteId.Backup) cdnPath;
-      path = String.format(Locale.US, ARCHIVE_MEDIA_DOWNLOAD_PATH, backupCdnId.getBackupDir(), backupCdnId.getMediaDir(), backupCdnId.getMediaId());
+      return String.format(Locale.US, ARCHIVE_MEDIA_DOWNLOAD_PATH, backupCdnId.getBackupDir(), backupCdnId.getMediaDir(), backupCdnId.getMediaId());
     } else {
       throw new IllegalArgumentException("Invalid cdnPath type: " + cdnPath.getClass().getSimpleName());
     }
-    downloadFromCdn(destination, cdnNumber, headers, path, maxSizeBytes, listener);
   }
 
   public byte[] retrieveSticker(byte[] packId, int stickerId)
@@ -1662,6 +1676,15 @@ public class PushServiceSocket {
 
   private void downloadFromCdn(OutputStream outputStream, long offset, int cdnNumber, Map<String, String> headers, String path, long maxSizeBytes, ProgressListener listener)
       throws PushNetworkException, NonSuccessfulResponseCodeException, MissingConfigurationException {
+    downloadFromCdn(outputStream, offset, -1, cdnNumber, headers, path, maxSizeBytes, listener);
+  }
+
+  /**
+   * @param end The inclusive end of the range to download, or -1 to download everything after offset.
+   * @return False if a bounded range was requested but the CDN responded with the full content, in which case nothing is written.
+   */
+  private boolean downloadFromCdn(OutputStream outputStream, long offset, long end, int cdnNumber, Map<String, String> headers, String path, long maxSizeBytes, ProgressListener listener)
+      throws PushNetworkException, NonSuccessfulResponseCodeException, MissingConfigurationException {
     ConnectionHolder[] cdnNumberClients = cdnClientsMap.get(cdnNumber);
     if (cdnNumberClients == null) {
       throw new MissingConfigurationException("Attempted to download from unsupported CDN number: " + cdnNumber + ", Our configuration supports: " + cdnClientsMap.keySet());
@@ -1683,7 +1706,9 @@ public class PushServiceSocket {
       request.addHeader(header.getKey(), header.getValue());
     }
 
-    if (offset > 0) {
+    if (end >= 0) {
+      request.addHeader("Range", "bytes=" + offset + "-" + end);
+    } else if (offset > 0) {
       Log.i(TAG, "Starting download from CDN with offset " + offset);
       request.addHeader("Range", "bytes=" + offset + "-");
     }
@@ -1695,7 +1720,10 @@ public class PushServiceSocket {
     }
 
     try (Response response = call.execute()) {
-      if (response.isSuccessful()) {
+      if (end >= 0 && response.code() != 206 && response.isSuccessful()) {
+        Log.w(TAG, "CDN did not honor range request. Code: " + response.code());
+        return false;
+      } else if (response.isSuccessful()) {
         ResponseBody body = response.body();
 
         if (body == null)                        throw new PushNetworkException("No response body!");
@@ -1719,6 +1747,8 @@ public class PushServiceSocket {
             }
           }
         }
+
+        return true;
       } else if (response.code() == 416) {
         throw new RangeException(offset);
       } else {
@@ -411,6 +411,52 @@ public final class AttachmentCipherTest {
     assertTrue(hitCorrectException);
   }
 
+  @Test
+  public void archive_decryptBothLayers() throws IOException, InvalidMessageException {
+    byte[]                     key             = Util.getSecretBytes(64);
+    byte[]                     archiveKey      = Util.getSecretBytes(64);
+    BackupKey.MediaKeyMaterial keyMaterial     = BackupKey.MediaKeyMaterial.forMedia(Util.getSecretBytes(15), archiveKey, Util.getSecretBytes(16));
+    byte[]                     plaintextInput  = Util.getSecretBytes(MEBIBYTE);
+    EncryptResult              innerResult     = encryptData(plaintextInput, key, false);
+    EncryptResult              outerResult     = encryptData(innerResult.ciphertext, archiveKey, false);
+    File                       cipherFile      = writeToFile(outerResult.ciphertext);
+    InputStream                inputStream     = AttachmentCipherInputStream.createForArchivedAttachment(keyMaterial, cipherFile, innerResult.ciphertext.length, plaintextInput.length, key, innerResult.digest);
+    byte[]                     plaintextOutput = readInputStreamFully(inputStream);
+
+    assertArrayEquals(plaintextInput, plaintextOutput);
+
+    cipherFile.delete();
+  }
+
+  @Test
+  public void archive_decryptBothLayersFailOnBadInnerDigest() throws IOException {
+    File    cipherFile          = null;
+    boolean hitCorrectException = false;
+
+    try {
+      byte[]                     key            = Util.getSecretBytes(64);
+      byte[]                     archiveKey     = Util.getSecretBytes(64);
+      BackupKey.MediaKeyMaterial keyMaterial    = BackupKey.MediaKeyMaterial.forMedia(Util.getSecretBytes(15), archiveKey, Util.getSecretBytes(16));
+      byte[]                     plaintextInput = "Miles Morales".getBytes();
+      EncryptResult              innerResult    = encryptData(plaintextInput, key, false);
+      EncryptResult              outerResult    = encryptData(innerResult.ciphertext, archiveKey, false);
+      byte[]                     badDigest      = Util.getSecretBytes(innerResult.digest.length);
+
+      cipherFile = writeToFile(outerResult.ciphertext);
+
+      AttachmentCipherInputStream.createForArchivedAttachment(keyMaterial, cipherFile, innerResult.ciphertext.length, plaintextInput.length, key, badDigest);
+      fail();
+    } catch (InvalidMessageException e) {
+      hitCorrectException = true;
+    } finally {
+      if (cipherFile != null) {
+        cipherFile.delete();
+      }
+    }
+
+    assertTrue(hitCorrectException);
+  }
+
   @Test
   public void sticker_encryptDecrypt() throws IOException, InvalidMessageException {
     assumeLibSignalSupportedOnOS();
@@ -0,0 +1,84 @@
+package org.whispersystems.signalservice.internal.push
+
+import org.junit.After
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertFalse
+import org.junit.Assert.assertTrue
+import org.junit.Before
+import org.junit.Test
+import java.io.File
+import java.io.RandomAccessFile
+
+class AttachmentChunkStateTest {
+
+  private lateinit var destination: File
+
+  @Before
+  fun setUp() {
+    destination = File.createTempFile("transfer", ".mms")
+  }
+
+  @After
+  fun tearDown() {
+    AttachmentChunkState.stateFileFor(destination).delete()
+    destination.delete()
+  }
+
+  @Test
+  fun givenNewDownload_whenILoad_thenAllChunksAreMissing() {
+    val state = AttachmentChunkState.load(destination, 10, 35)
+
+    assertEquals(4, state.chunkCount)
+    assertEquals(listOf(0, 1, 2, 3), state.missingChunks())
+    assertEquals(30L, state.chunkStart(3))
+    assertEquals(34L, state.chunkEnd(3))
+  }
+
+  @Test
+  fun givenCompletedChunks_whenIReload_thenTheyAreStillComplete() {
+    AttachmentChunkState.load(destination, 10, 35).apply {
+      markComplete(0)
+      markComplete(2)
+    }
+    RandomAccessFile(destination, "rw").use { it.setLength(35) }
+
+    val reloaded = AttachmentChunkState.load(destination, 10, 35)
+
+    assertEquals(listOf(1, 3), reloaded.missingChunks())
+    assertFalse(reloaded.isComplete)
+  }
+
+  @Test
+  fun givenStateForDifferentChunkSize_whenILoad_thenStateIsReset() {
+    AttachmentChunkState.load(destination, 10, 35).markComplete(0)
+    RandomAccessFile(destination, "rw").use { it.setLength(35) }
+
+    val reloaded = AttachmentChunkState.load(destination, 5, 35)
+
+    assertEquals(7, reloaded.missingChunks().size)
+  }
+
+  @Test
+  fun givenSequentialPartialDownload_whenILoad_thenCoveredChunksAreComplete() {
+    destination.writeBytes(ByteArray(25))
+
+    val state = AttachmentChunkState.load(destination, 10, 35)
+
+    assertEquals(listOf(2, 3), state.missingChunks())
+  }
+
+  @Test
+  fun givenSequentialCompleteDownload_whenILoad_thenAllChunksAreComplete() {
+    destination.writeBytes(ByteArray(35))
+
+    assertTrue(AttachmentChunkState.load(destination, 10, 35).isComplete)
+  }
+
+  @Test
+  fun givenIncrementalMacChunkSize_whenIGetChunkSize_thenItIsAMultiple() {
+    val chunkSize = ChunkedAttachmentDownloader.chunkSizeFor(64 * 1024 + 1)
+
+    assertEquals(0, chunkSize % (64 * 1024 + 1))
+    assertTrue(chunkSize >= 1024 * 1024)
+  }
+}
@@ -26,7 +26,7 @@ class TranscodeTestRepository(context: Context) {
   private val workManager = WorkManager.getInstance(context)
   private val usedNotificationIds = emptySet<Int>()
 
-  private fun transcode(selectedVideos: List<Uri>, outputDirectory: Uri, forceSequentialProcessing: Boolean, transcodingPreset: TranscodingPreset? = null, customTranscodingOptions: CustomTranscodingOptions? = null): Map<UUID, Uri> {
+  private fun transcode(selectedVideos: List<Uri>, outputDirectory: Uri, forceSequentialProcessing: Boolean, throughputMode: Boolean, transcodingPreset: TranscodingPreset? = null, customTranscodingOptions: CustomTranscodingOptions? = null): Map<UUID, Uri> {
     if (customTranscodingOptions == null && transcodingPreset == null) {
       throw IllegalArgumentException("Must define either custom options or transcoding preset!")
     } else if (customTranscodingOptions != null && transcodingPreset != null) {
@@ -46,6 +46,7 @@ class TranscodeTestRepository(context: Context) {
         .putString(TranscodeWorker.KEY_INPUT_URI, it.toString())
         .putString(TranscodeWorker.KEY_OUTPUT_URI, outputDirectory.toString())
         .putInt(TranscodeWorker.KEY_NOTIFICATION_ID, notificationId)
+        .putBoolean(TranscodeWorker.KEY_ENABLE_THROUGHPUT_MODE, throughputMode)
 
       if (transcodingPreset != null) {
         inputData.putString(TranscodeWorker.KEY_TRANSCODING_PRESET_NAME, transcodingPreset.name)
@@ -79,12 +80,12 @@ class TranscodeTestRepository(context: Context) {
     return idsToUris
   }
 
-  fun transcodeWithCustomOptions(selectedVideos: List<Uri>, outputDirectory: Uri, forceSequentialProcessing: Boolean, customTranscodingOptions: CustomTranscodingOptions?): Map<UUID, Uri> {
-    return transcode(selectedVideos, outputDirectory, forceSequentialProcessing, customTranscodingOptions = customTranscodingOptions)
+  fun transcodeWithCustomOptions(selectedVideos: List<Uri>, outputDirectory: Uri, forceSequentialProcessing: Boolean, throughputMode: Boolean, customTranscodingOptions: CustomTranscodingOptions?): Map<UUID, Uri> {
+    return transcode(selectedVideos, outputDirectory, forceSequentialProcessing, throughputMode, customTranscodingOptions = customTranscodingOptions)
   }
 
-  fun transcodeWithPresetOptions(selectedVideos: List<Uri>, outputDirectory: Uri, forceSequentialProcessing: Boolean, transcodingPreset: TranscodingPreset): Map<UUID, Uri> {
-    return transcode(selectedVideos, outputDirectory, forceSequentialProcessing, transcodingPreset)
+  fun transcodeWithPresetOptions(selectedVideos: List<Uri>, outputDirectory: Uri, forceSequentialProcessing: Boolean, throughputMode: Boolean, transcodingPreset: TranscodingPreset): Map<UUID, Uri> {
+    return transcode(selectedVideos, outputDirectory, forceSequentialProcessing, throughputMode, transcodingPreset)
   }
 
   fun getTranscodingJobsAsFlow(jobIds: List<UUID>): Flow<MutableList<WorkInfo>> {
@@ -45,6 +45,7 @@ class TranscodeTestViewModel : ViewModel() {
   var enableFastStart by mutableStateOf(true)
   var enableAudioRemux by mutableStateOf(true)
   var forceSequentialQueueProcessing by mutableStateOf(false)
+  var useThroughputMode by mutableStateOf(false)
 
   fun initialize(context: Context) {
     repository = TranscodeTestRepository(context)
@@ -58,6 +59,7 @@ class TranscodeTestViewModel : ViewModel() {
         selectedVideos,
         output,
         forceSequentialQueueProcessing,
+        useThroughputMode,
         transcodingPreset
       )
     } else {
@@ -65,6 +67,7 @@ class TranscodeTestViewModel : ViewModel() {
         selectedVideos,
         output,
         forceSequentialQueueProcessing,
+        useThroughputMode,
         TranscodeTestRepository.CustomTranscodingOptions(
           if (useHevc) MediaConverter.VIDEO_CODEC_H265 else MediaConverter.VIDEO_CODEC_H264,
           videoResolution,
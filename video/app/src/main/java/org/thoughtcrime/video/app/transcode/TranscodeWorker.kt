@@ -33,6 +33,7 @@ import java.io.File
 import java.io.FileInputStream
 import java.io.IOException
 import java.io.InputStream
+import java.io.RandomAccessFile
 import java.time.Instant
 
 /**
@@ -92,25 +93,37 @@ class TranscodeWorker(ctx: Context, params: WorkerParameters) : CoroutineWorker(
       throw IllegalArgumentException("Improper input data! No TranscodingPreset defined, or invalid manual parameters!")
     }
 
-    applicationContext.openFileOutput(tempFilename, Context.MODE_PRIVATE).use { outputStream ->
-      transcoder.transcode({ percent: Int ->
-        if (lastProgress != percent) {
-          lastProgress = percent
-          Log.v(TAG, "$logPrefix Updating progress percent to $percent%")
-          setProgressAsync(Data.Builder().putInt(KEY_PROGRESS, percent).build())
-          setForegroundAsync(createForegroundInfo(percent, inputParams.notificationId))
-        }
-      }, outputStream, { isStopped })
+    transcoder.setThroughputMode(inputParams.throughputMode)
+
+    val progress = StreamingTranscoder.Progress { percent: Int ->
+      if (lastProgress != percent) {
+        lastProgress = percent
+        Log.v(TAG, "$logPrefix Updating progress percent to $percent%")
+        setProgressAsync(Data.Builder().putInt(KEY_PROGRESS, percent).build())
+        setForegroundAsync(createForegroundInfo(percent, inputParams.notificationId))
+      }
+    }
+
+    val faststart = if (inputParams.postProcessForFastStart) {
+      // Writing to a seekable file lets the transcoder put the metadata up front as it goes, which usually makes the post-processing pass unnecessary.
+      RandomAccessFile(File(applicationContext.filesDir, tempFilename), "rw").use { tempFile ->
+        transcoder.transcode(progress, tempFile.channel) { isStopped }
+      }
+    } else {
+      applicationContext.openFileOutput(tempFilename, Context.MODE_PRIVATE).use { outputStream ->
+        transcoder.transcode(progress, outputStream) { isStopped }
+      }
+      false
     }
 
-    Log.v(TAG, "$logPrefix Initial transcode completed successfully!")
+    Log.v(TAG, "$logPrefix Initial transcode completed successfully! Faststart: $faststart")
 
     val finalFile = createFile(inputParams.outputDirUri, finalFilename) ?: run {
       Log.w(TAG, "$logPrefix Could not create final file for faststart processing!")
       return Result.failure()
     }
 
-    if (!inputParams.postProcessForFastStart) {
+    if (!inputParams.postProcessForFastStart || faststart) {
       applicationContext.openFileInput(tempFilename).use { tempFileStream ->
         if (tempFileStream == null) {
           Log.w(TAG, "$logPrefix Could not open temp file for I/O!")
@@ -243,6 +256,7 @@ class TranscodeWorker(ctx: Context, params: WorkerParameters) : CoroutineWorker(
     val videoBitrate: Int = inputData.getInt(KEY_VIDEO_BIT_RATE, -1)
     val audioBitrate: Int = inputData.getInt(KEY_AUDIO_BIT_RATE, -1)
     val audioRemux: Boolean = inputData.getBoolean(KEY_ENABLE_AUDIO_REMUX, true)
+    val throughputMode: Boolean = inputData.getBoolean(KEY_ENABLE_THROUGHPUT_MODE, false)
   }
 
   companion object {
@@ -261,6 +275,7 @@ class TranscodeWorker(ctx: Context, params: WorkerParameters) : CoroutineWorker(
     const val KEY_AUDIO_BIT_RATE = "audio_bit_rate"
     const val KEY_ENABLE_AUDIO_REMUX = "audio_remux"
     const val KEY_ENABLE_FASTSTART = "video_enable_faststart"
+    const val KEY_ENABLE_THROUGHPUT_MODE = "throughput_mode"
     const val KEY_NOTIFICATION_ID = "notification_id"
   }
 }
@@ -82,6 +82,17 @@ fun ConfigureEncodingParameters(
       )
       Text(text = "Force Sequential Queue Processing", style = MaterialTheme.typography.bodySmall)
     }
+    Row(
+      verticalAlignment = Alignment.CenterVertically,
+      modifier = Modifier
+        .fillMaxWidth()
+    ) {
+      Checkbox(
+        checked = viewModel.useThroughputMode,
+        onCheckedChange = { viewModel.useThroughputMode = it }
+      )
+      Text(text = "Throughput Mode (Async Codecs)", style = MaterialTheme.typography.bodySmall)
+    }
     Row(
       verticalAlignment = Alignment.CenterVertically,
       modifier = Modifier
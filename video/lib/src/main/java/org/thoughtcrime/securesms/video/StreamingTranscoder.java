@@ -21,6 +21,7 @@ import org.thoughtcrime.securesms.video.videoconverter.mediadatasource.MediaData
 import java.io.FilterOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
+import java.nio.channels.FileChannel;
 import java.text.NumberFormat;
 import java.util.Locale;
 import java.util.concurrent.TimeUnit;
@@ -40,6 +41,7 @@ public final class StreamingTranscoder {
   private final           long               fileSizeEstimate;
   private final @Nullable TranscoderOptions  options;
   private final           boolean            allowAudioRemux;
+  private                 boolean            throughputMode;
 
   /**
    * @param upperSizeLimit A upper size to transcode to. The actual output size can be up to 10% smaller.
@@ -127,10 +129,54 @@ public final class StreamingTranscoder {
     return new StreamingTranscoder(dataSource, options, codec, videoBitrate, audioBitrate, shortEdge, allowAudioRemux);
   }
 
+  /**
+   * See {@link MediaConverter#setThroughputMode(boolean)}.
+   */
+  public void setThroughputMode(boolean throughputMode) {
+    this.throughputMode = throughputMode;
+  }
+
   public void transcode(@NonNull Progress progress,
                         @NonNull OutputStream stream,
                         @Nullable TranscoderCancelationSignal cancelationSignal)
       throws IOException, EncodingException
+  {
+    final CountingOutputStream outStream;
+    if (upperSizeLimit > 0) {
+      outStream = new CountingOutputStream(new LimitedSizeOutputStream(stream, upperSizeLimit));
+    } else {
+      outStream = new CountingOutputStream(stream);
+    }
+
+    transcode(progress, cancelationSignal, converter -> converter.setOutput(outStream), outStream::getCount);
+
+    stream.flush();
+  }
+
+  /**
+   * Same as {@link #transcode(Progress, OutputStream, TranscoderCancelationSignal)}, but writes to the start of an empty file, which lets
+   * the output be laid out for faststart as it is written. Unlike with a stream, the size limit is only enforced once the transcode is done.
+   *
+   * @return True if the output is already faststart, and doesn't need to go through
+   *         {@link org.thoughtcrime.securesms.video.postprocessing.Mp4FaststartPostProcessor}.
+   */
+  public boolean transcode(@NonNull Progress progress,
+                           @NonNull FileChannel channel,
+                           @Nullable TranscoderCancelationSignal cancelationSignal)
+      throws IOException, EncodingException
+  {
+    if (channel.position() != 0 || channel.size() != 0) {
+      throw new IllegalArgumentException("Output must be written to an empty file!");
+    }
+
+    return transcode(progress, cancelationSignal, converter -> converter.setOutput(channel), channel::size).isFaststart();
+  }
+
+  private @NonNull MediaConverter transcode(@NonNull Progress progress,
+                                            @Nullable TranscoderCancelationSignal cancelationSignal,
+                                            @NonNull OutputConfiguration outputConfiguration,
+                                            @NonNull OutputSize outputSize)
+      throws IOException, EncodingException
   {
     float durationSec = duration / 1000f;
 
@@ -166,18 +212,13 @@ public final class StreamingTranscoder {
     final MediaConverter converter = new MediaConverter();
 
     converter.setInput(new MediaDataSourceMediaInput(dataSource));
-    final CountingOutputStream outStream;
-    if (sizeLimitEnabled) {
-      outStream = new CountingOutputStream(new LimitedSizeOutputStream(stream, upperSizeLimit));
-    } else {
-      outStream = new CountingOutputStream(stream);
-    }
-    converter.setOutput(outStream);
+    outputConfiguration.configure(converter);
     converter.setVideoCodec(targetQuality.getCodec());
     converter.setVideoResolution(targetQuality.getOutputResolution());
     converter.setVideoBitrate(targetQuality.getTargetVideoBitRate());
     converter.setAudioBitrate(targetQuality.getTargetAudioBitRate());
     converter.setAllowAudioRemux(allowAudioRemux);
+    converter.setThroughputMode(throughputMode);
 
     if (options != null) {
       if (options.endTimeUs > 0) {
@@ -195,7 +236,7 @@ public final class StreamingTranscoder {
 
     converter.convert();
 
-    long  outSize           = outStream.getCount();
+    long  outSize           = outputSize.get();
     float encodeDurationSec = (System.currentTimeMillis() - startTime) / 1000f;
 
     Log.i(TAG, String.format(Locale.US,
@@ -216,7 +257,7 @@ public final class StreamingTranscoder {
       throw new VideoSizeException("Size constraints could not be met!");
     }
 
-    stream.flush();
+    return converter;
   }
 
   public boolean isTranscodeRequired() {
@@ -248,6 +289,14 @@ public final class StreamingTranscoder {
     void onProgress(int percent);
   }
 
+  private interface OutputConfiguration {
+    void configure(@NonNull MediaConverter converter);
+  }
+
+  private interface OutputSize {
+    long get() throws IOException;
+  }
+
   private static class LimitedSizeOutputStream extends FilterOutputStream {
 
     private final long sizeLimit;
@@ -26,4 +26,19 @@ public interface Muxer {
     void release();
 
     boolean supportsAudioRemux();
+
+    /**
+     * A hint for the total number of samples that will be written across all tracks, for muxers that lay out the file up front.
+     * Must be called before {@link #start()}.
+     */
+    default void setExpectedSampleCount(long sampleCount) {
+    }
+
+    /**
+     * True if the metadata was written ahead of the media data, so the output doesn't need to be post-processed for faststart.
+     * Only valid after {@link #stop()}.
+     */
+    default boolean isFaststart() {
+        return false;
+    }
 }
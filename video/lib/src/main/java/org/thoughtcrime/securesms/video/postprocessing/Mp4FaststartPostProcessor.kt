@@ -27,15 +27,22 @@ class Mp4FaststartPostProcessor(private val inputStreamFactory: InputStreamFacto
    * It is the responsibility of the caller to close the resulting [InputStream].
    */
   fun process(inputLength: Long = calculateStreamLength(inputStreamFactory.create())): SequenceInputStream {
+    return processWithLength(inputLength).first
+  }
+
+  /**
+   * Same as [process], but also returns the length of the resulting stream, which is known as soon as the metadata has been sanitized.
+   *
+   * It is the responsibility of the caller to close the resulting [InputStream].
+   */
+  fun processWithLength(inputLength: Long = calculateStreamLength(inputStreamFactory.create())): Pair<SequenceInputStream, Long> {
     val metadata = inputStreamFactory.create().use { inputStream ->
       sanitizeMetadata(inputStream, inputLength)
     }
-    if (metadata.sanitizedMetadata == null) {
-      throw VideoPostProcessingException("Sanitized metadata was null!")
-    }
+    val sanitizedMetadata = metadata.sanitizedMetadata ?: throw VideoPostProcessingException("Sanitized metadata was null!")
     val inputStream = inputStreamFactory.create()
     inputStream.skip(metadata.dataOffset)
-    return SequenceInputStream(ByteArrayInputStream(metadata.sanitizedMetadata), LimitedInputStream(inputStream, metadata.dataLength))
+    return SequenceInputStream(ByteArrayInputStream(sanitizedMetadata), LimitedInputStream(inputStream, metadata.dataLength)) to sanitizedMetadata.size + metadata.dataLength
   }
 
   fun processAndWriteTo(outputStream: OutputStream, inputLength: Long = calculateStreamLength(inputStreamFactory.create())): Long {
@@ -5,6 +5,8 @@ import android.media.MediaCodec;
 import android.media.MediaCodecInfo;
 import android.media.MediaExtractor;
 import android.media.MediaFormat;
+import android.os.Handler;
+import android.os.HandlerThread;
 
 import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
@@ -18,6 +20,7 @@ import org.thoughtcrime.securesms.video.videoconverter.utils.VideoConstants;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
 import java.util.Locale;
 
 final class AudioTrackConverter {
@@ -29,6 +32,7 @@ final class AudioTrackConverter {
     private static final int OUTPUT_AUDIO_AAC_PROFILE = MediaCodecInfo.CodecProfileLevel.AACObjectLC; //MediaCodecInfo.CodecProfileLevel.AACObjectHE;
 
     private static final int SAMPLE_BUFFER_SIZE = 16 * 1024;
+    private static final int AAC_FRAME_SIZE     = 1024; // samples per channel in each AAC frame
     private static final int TIMEOUT_USEC       = 10000;
 
     private final long mTimeFrom;
@@ -36,6 +40,7 @@ final class AudioTrackConverter {
     private final int mAudioBitrate;
 
     final long mInputDuration;
+    final long mExpectedFrameCount;
 
     private final MediaExtractor mAudioExtractor;
     private final MediaCodec mAudioDecoder;
@@ -51,23 +56,34 @@ final class AudioTrackConverter {
     private final MediaCodec.BufferInfo mAudioDecoderOutputBufferInfo;
     private final MediaCodec.BufferInfo mAudioEncoderOutputBufferInfo;
 
-    MediaFormat mEncoderOutputAudioFormat;
+    volatile MediaFormat mEncoderOutputAudioFormat;
 
-    boolean mAudioExtractorDone;
-    private boolean mAudioDecoderDone;
-    boolean mAudioEncoderDone;
+    volatile boolean mAudioExtractorDone;
+    private volatile boolean mAudioDecoderDone;
+    volatile boolean mAudioEncoderDone;
     private boolean skipTrancode;
 
-    private int     mOutputAudioTrack = -1;
+    private volatile int mOutputAudioTrack = -1;
 
     private int mPendingAudioDecoderOutputBufferIndex = -1;
-    long mMuxingAudioPresentationTime;
+    volatile long mMuxingAudioPresentationTime;
 
-    private int mAudioExtractedFrameCount;
-    private int mAudioDecodedFrameCount;
-    private int mAudioEncodedFrameCount;
+    private volatile int mAudioExtractedFrameCount;
+    private volatile int mAudioDecodedFrameCount;
+    private volatile int mAudioEncodedFrameCount;
 
-    private Muxer mMuxer;
+    private volatile Muxer mMuxer;
+
+    // Only used in async mode, where the whole track is converted by codec callbacks on mCallbackThread. The queues below are only
+    // touched from that thread.
+    private final @Nullable HandlerThread mCallbackThread;
+    private final @Nullable Handler       mCallbackHandler;
+    private final ArrayDeque<CodecBuffer> mPendingDecoderOutput = new ArrayDeque<>();
+    private final ArrayDeque<Integer>     mFreeEncoderInputs    = new ArrayDeque<>();
+    private final ArrayDeque<CodecBuffer> mHeldEncoderOutput    = new ArrayDeque<>();
+    private final Object                  mEncoderOutputLock    = new Object();
+    private boolean                       mMuxerStarted;
+    private volatile Exception            mAsyncError;
 
     static @Nullable
     AudioTrackConverter create(
@@ -75,7 +91,8 @@ final class AudioTrackConverter {
             final long timeFrom,
             final long timeTo,
             final int audioBitrate,
-            final boolean allowSkipTranscode) throws IOException {
+            final boolean allowSkipTranscode,
+            final boolean async) throws IOException {
 
         final MediaExtractor audioExtractor = input.createExtractor();
         final int audioInputTrack = getAndSelectAudioTrackIndex(audioExtractor);
@@ -83,7 +100,7 @@ final class AudioTrackConverter {
             audioExtractor.release();
             return null;
         }
-        return new AudioTrackConverter(audioExtractor, audioInputTrack, timeFrom, timeTo, audioBitrate, allowSkipTranscode);
+        return new AudioTrackConverter(audioExtractor, audioInputTrack, timeFrom, timeTo, audioBitrate, allowSkipTranscode, async);
     }
 
     private AudioTrackConverter(
@@ -92,7 +109,8 @@ final class AudioTrackConverter {
             long timeFrom,
             long timeTo,
             int audioBitrate,
-            final boolean allowSkipTranscode) throws IOException {
+            final boolean allowSkipTranscode,
+            final boolean async) throws IOException {
 
         mTimeFrom = timeFrom;
         mTimeTo = timeTo;
@@ -109,6 +127,7 @@ final class AudioTrackConverter {
 
         final MediaFormat inputAudioFormat = mAudioExtractor.getTrackFormat(audioInputTrack);
         mInputDuration = inputAudioFormat.containsKey(MediaFormat.KEY_DURATION) ? inputAudioFormat.getLong(MediaFormat.KEY_DURATION) : 0;
+        mExpectedFrameCount = (long) Math.ceil(MediaConverter.getOutputDurationUs(mInputDuration, timeFrom, timeTo) * inputAudioFormat.getInteger(MediaFormat.KEY_SAMPLE_RATE) / (AAC_FRAME_SIZE * 1_000_000d));
 
         skipTrancode = allowSkipTranscode && formatCanSkipTranscode(inputAudioFormat, audioBitrate);
         if (skipTrancode) {
@@ -117,6 +136,22 @@ final class AudioTrackConverter {
 
         if (VERBOSE) Log.d(TAG, "audio skipping transcoding: " + skipTrancode);
 
+        // Remuxing is cheap and doesn't involve the codecs, so it's always done synchronously.
+        if (async && !skipTrancode) {
+            mCallbackThread = new HandlerThread("audio-converter");
+            mCallbackThread.start();
+            mCallbackHandler = new Handler(mCallbackThread.getLooper());
+        } else {
+            mCallbackThread = null;
+            mCallbackHandler = null;
+        }
+
+        // Seek before the decoder is started, since in async mode it starts pulling from the extractor right away.
+        if (mTimeFrom > 0) {
+            mAudioExtractor.seekTo(mTimeFrom * 1000, MediaExtractor.SEEK_TO_PREVIOUS_SYNC);
+            Log.i(TAG, "Seek audio:" + mTimeFrom + " " + mAudioExtractor.getSampleTime());
+        }
+
         final MediaFormat outputAudioFormat =
                 MediaFormat.createAudioFormat(
                         OUTPUT_AUDIO_MIME_TYPE,
@@ -128,21 +163,25 @@ final class AudioTrackConverter {
 
         // Create a MediaCodec for the desired codec, then configure it as an encoder with
         // our desired properties. Request a Surface to use for input.
-        mAudioEncoder = createAudioEncoder(audioCodecInfo, outputAudioFormat);
+        mAudioEncoder = createAudioEncoder(audioCodecInfo, outputAudioFormat, mCallbackHandler != null ? mEncoderCallback : null, mCallbackHandler);
         // Create a MediaCodec for the decoder, based on the extractor's format.
-        mAudioDecoder = createAudioDecoder(inputAudioFormat);
-
-        mAudioDecoderInputBuffers = mAudioDecoder.getInputBuffers();
-        mAudioDecoderOutputBuffers = mAudioDecoder.getOutputBuffers();
-        mAudioEncoderInputBuffers = mAudioEncoder.getInputBuffers();
-        mAudioEncoderOutputBuffers = mAudioEncoder.getOutputBuffers();
+        mAudioDecoder = createAudioDecoder(inputAudioFormat, mCallbackHandler != null ? mDecoderCallback : null, mCallbackHandler);
+
+        // The buffer arrays are only valid in synchronous mode. Async callbacks get their buffers from the codec directly.
+        final boolean sync = mCallbackHandler == null;
+        mAudioDecoderInputBuffers = sync ? mAudioDecoder.getInputBuffers() : null;
+        mAudioDecoderOutputBuffers = sync ? mAudioDecoder.getOutputBuffers() : null;
+        mAudioEncoderInputBuffers = sync ? mAudioEncoder.getInputBuffers() : null;
+        mAudioEncoderOutputBuffers = sync ? mAudioEncoder.getOutputBuffers() : null;
         mAudioDecoderOutputBufferInfo = new MediaCodec.BufferInfo();
         mAudioEncoderOutputBufferInfo = new MediaCodec.BufferInfo();
+    }
 
-        if (mTimeFrom > 0) {
-            mAudioExtractor.seekTo(mTimeFrom * 1000, MediaExtractor.SEEK_TO_PREVIOUS_SYNC);
-            Log.i(TAG, "Seek audio:" + mTimeFrom + " " + mAudioExtractor.getSampleTime());
-        }
+    /**
+     * True if this track is converted entirely by codec callbacks, rather than by calling {@link #step()}.
+     */
+    boolean isAsync() {
+        return mCallbackHandler != null;
     }
 
     void setMuxer(final @NonNull Muxer muxer) throws IOException {
@@ -361,8 +400,206 @@ final class AudioTrackConverter {
         }
     }
 
+    /**
+     * Async mode only. Waits up to {@code timeoutMs} for the encoder to produce more output.
+     */
+    void awaitAsync(long timeoutMs) throws TranscodingException, InterruptedException {
+        throwIfAsyncFailed();
+
+        if (!mAudioEncoderDone) {
+            synchronized (mEncoderOutputLock) {
+                mEncoderOutputLock.wait(timeoutMs);
+            }
+        }
+    }
+
+    /**
+     * Async mode only. Called once the muxer has been started, so encoded output can be written to it.
+     */
+    void onMuxerStarted() {
+        Preconditions.checkState("not in async mode", mCallbackHandler != null);
+        mCallbackHandler.post(() -> {
+            mMuxerStarted = true;
+            CodecBuffer held;
+            while ((held = mHeldEncoderOutput.poll()) != null) {
+                writeEncodedOutput(held);
+            }
+        });
+    }
+
+    void throwIfAsyncFailed() throws TranscodingException {
+        final Exception error = mAsyncError;
+        if (error != null) {
+            throw new TranscodingException("Audio codec callback failed", error);
+        }
+    }
+
+    private void onAsyncError(@NonNull Exception e) {
+        Log.e(TAG, "audio: error in codec callback", e);
+        if (mAsyncError == null) {
+            mAsyncError = e;
+        }
+        synchronized (mEncoderOutputLock) {
+            mEncoderOutputLock.notifyAll();
+        }
+    }
+
+    /**
+     * Copies pending decoded audio into free encoder input buffers, for as long as we have both.
+     */
+    private void feedEncoder() {
+        while (!mPendingDecoderOutput.isEmpty() && !mFreeEncoderInputs.isEmpty()) {
+            final CodecBuffer decoded           = mPendingDecoderOutput.poll();
+            final int         encoderInputIndex = mFreeEncoderInputs.poll();
+
+            final ByteBuffer decoderOutputBuffer = mAudioDecoder.getOutputBuffer(decoded.index).duplicate();
+            decoderOutputBuffer.position(decoded.offset);
+            decoderOutputBuffer.limit(decoded.offset + decoded.size);
+            final ByteBuffer encoderInputBuffer = mAudioEncoder.getInputBuffer(encoderInputIndex);
+            encoderInputBuffer.position(0);
+            encoderInputBuffer.put(decoderOutputBuffer);
+
+            mAudioEncoder.queueInputBuffer(encoderInputIndex, 0, decoded.size, decoded.presentationTimeUs, decoded.flags);
+            mAudioDecoder.releaseOutputBuffer(decoded.index, false);
+
+            if ((decoded.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0) {
+                if (VERBOSE) Log.d(TAG, "audio decoder: EOS");
+                mAudioDecoderDone = true;
+            }
+        }
+    }
+
+    private void writeEncodedOutput(final @NonNull CodecBuffer output) {
+        try {
+            if (output.size != 0) {
+                mMuxer.writeSampleData(mOutputAudioTrack, mAudioEncoder.getOutputBuffer(output.index), output.toBufferInfo());
+                mMuxingAudioPresentationTime = Math.max(mMuxingAudioPresentationTime, output.presentationTimeUs);
+            }
+            mAudioEncoder.releaseOutputBuffer(output.index, false);
+            mAudioEncodedFrameCount++;
+            if ((output.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0) {
+                if (VERBOSE) Log.d(TAG, "audio encoder: EOS");
+                mAudioEncoderDone = true;
+            }
+        } catch (IOException | IllegalStateException e) {
+            onAsyncError(e);
+        }
+        synchronized (mEncoderOutputLock) {
+            mEncoderOutputLock.notifyAll();
+        }
+    }
+
+    private final MediaCodec.Callback mDecoderCallback = new MediaCodec.Callback() {
+        @Override
+        public void onInputBufferAvailable(@NonNull MediaCodec codec, int index) {
+            if (mAudioExtractorDone) {
+                return;
+            }
+            try {
+                final ByteBuffer decoderInputBuffer = codec.getInputBuffer(index);
+                final int size = mAudioExtractor.readSampleData(decoderInputBuffer, 0);
+                final long presentationTime = mAudioExtractor.getSampleTime();
+                mAudioExtractorDone = isAudioExtractorDone(size, presentationTime);
+
+                if (mAudioExtractorDone) {
+                    if (VERBOSE) Log.d(TAG, "audio extractor: EOS");
+                    codec.queueInputBuffer(index, 0, 0, 0, MediaCodec.BUFFER_FLAG_END_OF_STREAM);
+                } else {
+                    codec.queueInputBuffer(index, 0, size, presentationTime, mAudioExtractor.getSampleFlags());
+                }
+                mAudioExtractor.advance();
+                mAudioExtractedFrameCount++;
+            } catch (IllegalStateException | IllegalArgumentException e) {
+                onAsyncError(e);
+            }
+        }
+
+        @Override
+        public void onOutputBufferAvailable(@NonNull MediaCodec codec, int index, @NonNull MediaCodec.BufferInfo info) {
+            try {
+                if ((info.flags & MediaCodec.BUFFER_FLAG_CODEC_CONFIG) != 0) {
+                    if (VERBOSE) Log.d(TAG, "audio decoder: codec config buffer");
+                    codec.releaseOutputBuffer(index, false);
+                    return;
+                }
+                if (info.presentationTimeUs < mTimeFrom * 1000 && (info.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) == 0) {
+                    if (VERBOSE) Log.d(TAG, "audio decoder: frame prior to " + info.presentationTimeUs);
+                    codec.releaseOutputBuffer(index, false);
+                    return;
+                }
+                mPendingDecoderOutput.add(new CodecBuffer(index, info));
+                mAudioDecodedFrameCount++;
+                feedEncoder();
+            } catch (IllegalStateException e) {
+                onAsyncError(e);
+            }
+        }
+
+        @Override
+        public void onError(@NonNull MediaCodec codec, @NonNull MediaCodec.CodecException e) {
+            onAsyncError(e);
+        }
+
+        @Override
+        public void onOutputFormatChanged(@NonNull MediaCodec codec, @NonNull MediaFormat format) {
+            if (VERBOSE) Log.d(TAG, "audio decoder: output format changed: " + format);
+        }
+    };
+
+    private final MediaCodec.Callback mEncoderCallback = new MediaCodec.Callback() {
+        @Override
+        public void onInputBufferAvailable(@NonNull MediaCodec codec, int index) {
+            try {
+                mFreeEncoderInputs.add(index);
+                feedEncoder();
+            } catch (IllegalStateException e) {
+                onAsyncError(e);
+            }
+        }
+
+        @Override
+        public void onOutputBufferAvailable(@NonNull MediaCodec codec, int index, @NonNull MediaCodec.BufferInfo info) {
+            if ((info.flags & MediaCodec.BUFFER_FLAG_CODEC_CONFIG) != 0) {
+                if (VERBOSE) Log.d(TAG, "audio encoder: codec config buffer");
+                try {
+                    codec.releaseOutputBuffer(index, false);
+                } catch (IllegalStateException e) {
+                    onAsyncError(e);
+                }
+                return;
+            }
+
+            final CodecBuffer output = new CodecBuffer(index, info);
+            if (mMuxerStarted) {
+                writeEncodedOutput(output);
+            } else {
+                mHeldEncoderOutput.add(output);
+            }
+        }
+
+        @Override
+        public void onError(@NonNull MediaCodec codec, @NonNull MediaCodec.CodecException e) {
+            onAsyncError(e);
+        }
+
+        @Override
+        public void onOutputFormatChanged(@NonNull MediaCodec codec, @NonNull MediaFormat format) {
+            if (VERBOSE) Log.d(TAG, "audio encoder: output format changed");
+            if (mOutputAudioTrack >= 0) {
+                onAsyncError(new IllegalStateException("audio encoder changed its output format again?"));
+                return;
+            }
+            mEncoderOutputAudioFormat = format;
+        }
+    };
+
     void release() throws Exception {
         Exception exception = null;
+        if (mCallbackThread != null) {
+            // Stop handling callbacks first, so nothing touches the codecs or extractor while they are being released.
+            mCallbackThread.quit();
+            mCallbackThread.join();
+        }
         try {
             if (mAudioExtractor != null) {
                 mAudioExtractor.release();
@@ -453,16 +690,24 @@ final class AudioTrackConverter {
     }
 
     private static @NonNull
-    MediaCodec createAudioDecoder(final @NonNull MediaFormat inputFormat) throws IOException {
+    MediaCodec createAudioDecoder(final @NonNull MediaFormat inputFormat, final @Nullable MediaCodec.Callback callback, final @Nullable Handler handler) throws IOException {
         final MediaCodec decoder = MediaCodec.createDecoderByType(MediaConverter.getMimeTypeFor(inputFormat));
+        if (callback != null) {
+            // Must be called before configure()
+            decoder.setCallback(callback, handler);
+        }
         decoder.configure(inputFormat, null, null, 0);
         decoder.start();
         return decoder;
     }
 
     private static @NonNull
-    MediaCodec createAudioEncoder(final @NonNull MediaCodecInfo codecInfo, final @NonNull MediaFormat format) throws IOException {
+    MediaCodec createAudioEncoder(final @NonNull MediaCodecInfo codecInfo, final @NonNull MediaFormat format, final @Nullable MediaCodec.Callback callback, final @Nullable Handler handler) throws IOException {
         final MediaCodec encoder = MediaCodec.createByCodecName(codecInfo.getName());
+        if (callback != null) {
+            // Must be called before configure()
+            encoder.setCallback(callback, handler);
+        }
         encoder.configure(format, null, null, MediaCodec.CONFIGURE_FLAG_ENCODE);
         encoder.start();
         return encoder;
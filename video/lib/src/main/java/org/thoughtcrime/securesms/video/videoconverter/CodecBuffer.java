@@ -0,0 +1,36 @@
+/*
+ * Copyright 2024 Signal Messenger, LLC
+ * SPDX-License-Identifier: AGPL-3.0-only
+ */
+
+package org.thoughtcrime.securesms.video.videoconverter;
+
+import android.media.MediaCodec;
+
+import androidx.annotation.NonNull;
+
+/**
+ * A codec output buffer handed over by an async {@link MediaCodec.Callback}. The {@link MediaCodec.BufferInfo} passed to the callback
+ * may be reused by the codec, so its fields are copied.
+ */
+final class CodecBuffer {
+  final int  index;
+  final int  offset;
+  final int  size;
+  final long presentationTimeUs;
+  final int  flags;
+
+  CodecBuffer(int index, @NonNull MediaCodec.BufferInfo info) {
+    this.index              = index;
+    this.offset             = info.offset;
+    this.size               = info.size;
+    this.presentationTimeUs = info.presentationTimeUs;
+    this.flags              = info.flags;
+  }
+
+  @NonNull MediaCodec.BufferInfo toBufferInfo() {
+    final MediaCodec.BufferInfo info = new MediaCodec.BufferInfo();
+    info.set(offset, size, presentationTimeUs, flags);
+    return info;
+  }
+}
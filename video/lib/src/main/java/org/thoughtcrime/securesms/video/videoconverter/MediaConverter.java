@@ -21,6 +21,7 @@ package org.thoughtcrime.securesms.video.videoconverter;
 import android.media.MediaCodecInfo;
 import android.media.MediaCodecList;
 import android.media.MediaFormat;
+import android.os.SystemClock;
 
 import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
@@ -41,6 +42,7 @@ import java.io.IOException;
 import java.io.OutputStream;
 import java.lang.annotation.Retention;
 import java.lang.annotation.RetentionPolicy;
+import java.nio.channels.FileChannel;
 
 @SuppressWarnings("WeakerAccess")
 public final class MediaConverter {
@@ -49,6 +51,10 @@ public final class MediaConverter {
 
     private static final int STUCK_FRAME_THRESHOLD = 100;
 
+    private static final long ASYNC_POLL_TIMEOUT_MS  = 100;    // how long the throughput mode loop waits for codec events before checking in
+    private static final long ASYNC_STUCK_TIMEOUT_MS = 10_000; // how long the throughput mode loop tolerates no progress at all
+    private static final int  MAX_REMUX_STEPS        = 64;     // audio samples remuxed per iteration of the throughput mode loop
+
     // Describes when the annotation will be discarded
     @Retention(RetentionPolicy.SOURCE)
     @StringDef({VIDEO_CODEC_H264, VIDEO_CODEC_H265})
@@ -66,10 +72,14 @@ public final class MediaConverter {
     private @VideoCodec String mVideoCodec = VIDEO_CODEC_H264;
     private int mAudioBitrate = 128000; // 128Kbps
     private boolean mAllowAudioRemux = false;
+    private boolean mThroughputMode = false;
 
     private Listener mListener;
     private boolean mCancelled;
 
+    private @Nullable MediaConverterThroughput mThroughput;
+    private boolean mFaststart;
+
     public interface Listener {
         boolean onProgress(int percent);
     }
@@ -96,6 +106,13 @@ public final class MediaConverter {
         mOutput = new StreamOutput(stream);
     }
 
+    /**
+     * Writes to a seekable channel, which allows the output to be laid out for faststart as it is written. See {@link #isFaststart()}.
+     */
+    public void setOutput(final @NonNull FileChannel channel) {
+        mOutput = new FileChannelOutput(channel);
+    }
+
     @SuppressWarnings("unused")
     public void setTimeRange(long timeFrom, long timeTo) {
         mTimeFrom = timeFrom;
@@ -138,6 +155,30 @@ public final class MediaConverter {
         mAllowAudioRemux = allow;
     }
 
+    /**
+     * Converts using asynchronous codec callbacks rather than polling each codec in turn, with the audio and video tracks converting
+     * concurrently. Only the decoded video frames still go through the calling thread, since that is where the GL context lives.
+     */
+    public void setThroughputMode(boolean throughputMode) {
+        mThroughputMode = throughputMode;
+    }
+
+    /**
+     * The per-stage frame throughput of the last call to {@link #convert()}, or null if it hasn't been called.
+     */
+    public @Nullable MediaConverterThroughput getThroughput() {
+        return mThroughput;
+    }
+
+    /**
+     * True if the output of the last call to {@link #convert()} already has its metadata at the front, and so doesn't need to go through
+     * {@link org.thoughtcrime.securesms.video.postprocessing.Mp4FaststartPostProcessor}. This is only ever the case for
+     * {@link #setOutput(FileChannel)}, and only if the metadata fit in the space that was reserved for it.
+     */
+    public boolean isFaststart() {
+        return mFaststart;
+    }
+
     @WorkerThread
     @RequiresApi(23)
     public void convert() throws EncodingException, IOException {
@@ -147,20 +188,42 @@ public final class MediaConverter {
         VideoTrackConverter videoTrackConverter = null;
         AudioTrackConverter audioTrackConverter = null;
 
+        mFaststart = false;
+
         try {
             muxer = mOutput.createMuxer();
+            if (mThroughputMode) {
+                muxer = new SynchronizedMuxer(muxer);
+            }
 
-            videoTrackConverter = VideoTrackConverter.create(mInput, mTimeFrom, mTimeTo, mVideoResolution, mVideoBitrate, mVideoCodec);
-            audioTrackConverter = AudioTrackConverter.create(mInput, mTimeFrom, mTimeTo, mAudioBitrate, mAllowAudioRemux && muxer.supportsAudioRemux());
+            videoTrackConverter = VideoTrackConverter.create(mInput, mTimeFrom, mTimeTo, mVideoResolution, mVideoBitrate, mVideoCodec, mThroughputMode);
+            audioTrackConverter = AudioTrackConverter.create(mInput, mTimeFrom, mTimeTo, mAudioBitrate, mAllowAudioRemux && muxer.supportsAudioRemux(), mThroughputMode);
 
             if (videoTrackConverter == null && audioTrackConverter == null) {
                 throw new EncodingException("No video and audio tracks");
             }
 
-            doExtractDecodeEditEncodeMux(
-                    videoTrackConverter,
-                    audioTrackConverter,
-                    muxer);
+            muxer.setExpectedSampleCount((videoTrackConverter == null ? 0 : videoTrackConverter.mExpectedFrameCount) +
+                                         (audioTrackConverter == null ? 0 : audioTrackConverter.mExpectedFrameCount));
+
+            final long startTime = SystemClock.elapsedRealtime();
+
+            try {
+                if (mThroughputMode) {
+                    doPipelinedExtractDecodeEditEncodeMux(
+                            videoTrackConverter,
+                            audioTrackConverter,
+                            muxer);
+                } else {
+                    doExtractDecodeEditEncodeMux(
+                            videoTrackConverter,
+                            audioTrackConverter,
+                            muxer);
+                }
+            } finally {
+                mThroughput = dumpState(videoTrackConverter, audioTrackConverter, false).throughput(SystemClock.elapsedRealtime() - startTime);
+                Log.i(TAG, "throughput" + (mThroughputMode ? " (throughput mode): " : ": ") + mThroughput);
+            }
 
         } catch (EncodingException | IOException e) {
             Log.e(TAG, "error converting", e);
@@ -197,6 +260,7 @@ public final class MediaConverter {
             try {
                 if (muxer != null) {
                     muxer.stop();
+                    mFaststart = muxer.isFaststart();
                     muxer.release();
                 }
             } catch (Exception e) {
@@ -295,6 +359,117 @@ public final class MediaConverter {
         // TODO: Check the generated output file.
     }
 
+    /**
+     * Does the same work as {@link #doExtractDecodeEditEncodeMux}, but with each codec driven by its own callbacks. The video track feeds
+     * its decoder and drains its encoder on its own thread, and the audio track is converted entirely on another, so this thread only
+     * has to render decoded video frames into the encoder, start the muxer once both tracks know their format, and report progress.
+     */
+    private void doPipelinedExtractDecodeEditEncodeMux(
+            final @Nullable VideoTrackConverter videoTrackConverter,
+            final @Nullable AudioTrackConverter audioTrackConverter,
+            final @NonNull Muxer muxer) throws IOException, TranscodingException {
+
+        MediaConverterState oldState = null;
+        long lastProgressTime = SystemClock.elapsedRealtime();
+        boolean muxing = false;
+        int percentProcessed = 0;
+        long inputDuration = Math.max(
+                videoTrackConverter == null ? 0 : videoTrackConverter.mInputDuration,
+                audioTrackConverter == null ? 0 : audioTrackConverter.mInputDuration);
+
+        try {
+            while (!mCancelled &&
+                    ((videoTrackConverter != null && !videoTrackConverter.mVideoEncoderDone) ||
+                     (audioTrackConverter != null && !audioTrackConverter.mAudioEncoderDone))) {
+
+                if (videoTrackConverter != null && !videoTrackConverter.mVideoEncoderDone) {
+                    videoTrackConverter.stepAsync(ASYNC_POLL_TIMEOUT_MS);
+                } else if (audioTrackConverter != null && audioTrackConverter.isAsync()) {
+                    audioTrackConverter.awaitAsync(ASYNC_POLL_TIMEOUT_MS);
+                }
+
+                if (audioTrackConverter != null && !audioTrackConverter.isAsync()) {
+                    // Remuxed audio doesn't go through the codecs. Keep it roughly interleaved with the video, as the synchronous loop does.
+                    for (int i = 0; i < MAX_REMUX_STEPS && !audioTrackConverter.mAudioEncoderDone; i++) {
+                        if (videoTrackConverter != null && !videoTrackConverter.mVideoExtractorDone && audioTrackConverter.mMuxingAudioPresentationTime > videoTrackConverter.mMuxingVideoPresentationTime) {
+                            break;
+                        }
+                        audioTrackConverter.step();
+                    }
+                } else if (audioTrackConverter != null) {
+                    audioTrackConverter.throwIfAsyncFailed();
+                }
+
+                if (!muxing
+                        && (videoTrackConverter == null || videoTrackConverter.mEncoderOutputVideoFormat != null)
+                        && (audioTrackConverter == null || audioTrackConverter.mEncoderOutputAudioFormat != null)) {
+                    if (videoTrackConverter != null) {
+                        videoTrackConverter.setMuxer(muxer);
+                    }
+                    if (audioTrackConverter != null) {
+                        audioTrackConverter.setMuxer(muxer);
+                    }
+                    Log.d(TAG, "muxer: starting");
+                    muxer.start();
+                    muxing = true;
+                    if (videoTrackConverter != null) {
+                        videoTrackConverter.onMuxerStarted();
+                    }
+                    if (audioTrackConverter != null && audioTrackConverter.isAsync()) {
+                        audioTrackConverter.onMuxerStarted();
+                    }
+                }
+
+                if (inputDuration != 0 && mListener != null) {
+                    final long timeFromUs = mTimeFrom <= 0 ? 0 : mTimeFrom * 1000;
+                    final long timeToUs = mTimeTo <= 0 ? inputDuration : mTimeTo * 1000;
+                    final int curPercentProcessed = (int) (100 *
+                            (Math.max(
+                                    videoTrackConverter == null ? 0 : videoTrackConverter.mMuxingVideoPresentationTime,
+                                    audioTrackConverter == null ? 0 : audioTrackConverter.mMuxingAudioPresentationTime)
+                             - timeFromUs) / (timeToUs - timeFromUs));
+
+                    if (curPercentProcessed != percentProcessed) {
+                        percentProcessed = curPercentProcessed;
+                        mCancelled = mCancelled || mListener.onProgress(percentProcessed);
+                    }
+                }
+
+                final MediaConverterState currentState = dumpState(videoTrackConverter, audioTrackConverter, muxing);
+
+                if (VERBOSE) {
+                    Log.d(TAG, "loop: " + currentState);
+                }
+
+                final long now = SystemClock.elapsedRealtime();
+                if (!currentState.equals(oldState)) {
+                    oldState = currentState;
+                    lastProgressTime = now;
+                } else if (now - lastProgressTime > ASYNC_STUCK_TIMEOUT_MS) {
+                    Log.w(TAG, "no progress for " + ASYNC_STUCK_TIMEOUT_MS + "ms: " + currentState);
+                    mCancelled = true;
+                }
+            }
+        } catch (InterruptedException e) {
+            throw new TranscodingException(e);
+        }
+
+        // Basic sanity checks.
+        if (videoTrackConverter != null) {
+            videoTrackConverter.verifyEndState();
+        }
+        if (audioTrackConverter != null) {
+            audioTrackConverter.verifyEndState();
+        }
+    }
+
+    private static @NonNull MediaConverterState dumpState(
+            final @Nullable VideoTrackConverter videoTrackConverter,
+            final @Nullable AudioTrackConverter audioTrackConverter,
+            final boolean muxing) {
+        return new MediaConverterState(videoTrackConverter != null ? videoTrackConverter.dumpState() : null, audioTrackConverter != null ? audioTrackConverter.dumpState() : null, muxing);
+    }
+
     static String getMimeTypeFor(MediaFormat format) {
         return format.getString(MediaFormat.KEY_MIME);
     }
@@ -358,6 +533,28 @@ public final class MediaConverter {
         }
     }
 
+    /**
+     * The duration of the part of the input between timeFrom and timeTo (in ms, 0 for the end), for estimating the size of the output.
+     */
+    static long getOutputDurationUs(long inputDurationUs, long timeFrom, long timeTo) {
+        final long endUs = timeTo > 0 ? Math.min(timeTo * 1000, inputDurationUs) : inputDurationUs;
+        return Math.max(0, endUs - timeFrom * 1000);
+    }
+
+    private static class FileChannelOutput implements Output {
+
+        final FileChannel channel;
+
+        FileChannelOutput(final @NonNull FileChannel channel) {
+            this.channel = channel;
+        }
+
+        @Override
+        public @NonNull Muxer createMuxer() {
+            return new StreamingMuxer(channel);
+        }
+    }
+
      private static class StreamOutput implements Output {
 
         final OutputStream outputStream;
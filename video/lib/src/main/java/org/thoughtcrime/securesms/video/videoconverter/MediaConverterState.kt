@@ -5,8 +5,43 @@
 
 package org.thoughtcrime.securesms.video.videoconverter
 
-data class MediaConverterState(val videoTrack: VideoTrackConverterState?, val audioTrack: AudioTrackConverterState?, val muxing: Boolean)
+import java.util.Locale
+
+data class MediaConverterState(val videoTrack: VideoTrackConverterState?, val audioTrack: AudioTrackConverterState?, val muxing: Boolean) {
+  /**
+   * The average rate of each stage of each track, given that the conversion has been running for [elapsedMs].
+   */
+  fun throughput(elapsedMs: Long): MediaConverterThroughput {
+    return MediaConverterThroughput(
+      elapsedMs = elapsedMs,
+      video = videoTrack?.let { StageThroughput.of(it.extractedCount, it.decodedCount, it.encodedCount, elapsedMs) },
+      audio = audioTrack?.let { StageThroughput.of(it.extractedCount, it.decodedCount, it.encodedCount, elapsedMs) }
+    )
+  }
+}
 
 data class VideoTrackConverterState(val extractedCount: Long, val extractedDone: Boolean, val decodedCount: Long, val decodedDone: Boolean, val encodedCount: Long, val encodedDone: Boolean, val muxing: Boolean, val trackIndex: Int)
 
 data class AudioTrackConverterState(val extractedCount: Long, val extractedDone: Boolean, val decodedCount: Long, val decodedDone: Boolean, val encodedCount: Long, val encodedDone: Boolean, val pendingBufferIndex: Int, val muxing: Boolean, val trackIndex: Int)
+
+data class MediaConverterThroughput(val elapsedMs: Long, val video: StageThroughput?, val audio: StageThroughput?) {
+  override fun toString(): String {
+    return "elapsed: ${elapsedMs}ms, video: [${video ?: "none"}], audio: [${audio ?: "none"}]"
+  }
+}
+
+/**
+ * Frames per second through the extractor, decoder and encoder of a single track.
+ */
+data class StageThroughput(val extractedPerSecond: Float, val decodedPerSecond: Float, val encodedPerSecond: Float) {
+  companion object {
+    fun of(extracted: Long, decoded: Long, encoded: Long, elapsedMs: Long): StageThroughput {
+      val seconds = elapsedMs.coerceAtLeast(1) / 1000f
+      return StageThroughput(extracted / seconds, decoded / seconds, encoded / seconds)
+    }
+  }
+
+  override fun toString(): String {
+    return String.format(Locale.US, "extract: %.1f/s, decode: %.1f/s, encode: %.1f/s", extractedPerSecond, decodedPerSecond, encodedPerSecond)
+  }
+}
@@ -0,0 +1,68 @@
+/*
+ * Copyright 2024 Signal Messenger, LLC
+ * SPDX-License-Identifier: AGPL-3.0-only
+ */
+
+package org.thoughtcrime.securesms.video.videoconverter;
+
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+
+import androidx.annotation.NonNull;
+
+import org.thoughtcrime.securesms.video.interfaces.Muxer;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Serializes access to a {@link Muxer}, so that tracks that are converted concurrently can write their samples from their own threads.
+ */
+final class SynchronizedMuxer implements Muxer {
+
+  private final Muxer delegate;
+
+  SynchronizedMuxer(@NonNull Muxer delegate) {
+    this.delegate = delegate;
+  }
+
+  @Override
+  public synchronized void start() throws IOException {
+    delegate.start();
+  }
+
+  @Override
+  public synchronized void stop() throws IOException {
+    delegate.stop();
+  }
+
+  @Override
+  public synchronized int addTrack(@NonNull MediaFormat format) throws IOException {
+    return delegate.addTrack(format);
+  }
+
+  @Override
+  public synchronized void writeSampleData(int trackIndex, @NonNull ByteBuffer byteBuf, @NonNull MediaCodec.BufferInfo bufferInfo) throws IOException {
+    delegate.writeSampleData(trackIndex, byteBuf, bufferInfo);
+  }
+
+  @Override
+  public synchronized void release() {
+    delegate.release();
+  }
+
+  @Override
+  public boolean supportsAudioRemux() {
+    return delegate.supportsAudioRemux();
+  }
+
+  @Override
+  public synchronized void setExpectedSampleCount(long sampleCount) {
+    delegate.setExpectedSampleCount(sampleCount);
+  }
+
+  @Override
+  public synchronized boolean isFaststart() {
+    return delegate.isFaststart();
+  }
+}
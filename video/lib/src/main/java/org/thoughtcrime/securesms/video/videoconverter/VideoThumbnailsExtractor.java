@@ -1,6 +1,7 @@
 package org.thoughtcrime.securesms.video.videoconverter;
 
 import android.graphics.Bitmap;
+import android.graphics.Rect;
 import android.media.MediaCodec;
 import android.media.MediaExtractor;
 import android.media.MediaFormat;
@@ -14,6 +15,7 @@ import org.thoughtcrime.securesms.video.interfaces.MediaInput;
 
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
+import java.util.ArrayDeque;
 
 @RequiresApi(api = 23)
 final class VideoThumbnailsExtractor {
@@ -28,9 +30,15 @@ final class VideoThumbnailsExtractor {
     void failed();
   }
 
+  /**
+   * Extracts thumbnails evenly spaced over the video, in order, in a single forward pass over its key frames. Each thumbnail is scaled
+   * to cover and then center-cropped to exactly thumbnailWidth x thumbnailHeight, so no more pixels are kept than will be drawn.
+   * Thumbnails that land on the same key frame share a single decode and the same {@link Bitmap}.
+   */
   static void extractThumbnails(final @NonNull MediaInput input,
                                 final int thumbnailCount,
-                                final int thumbnailResolution,
+                                final int thumbnailWidth,
+                                final int thumbnailHeight,
                                 final @NonNull Callback callback)
   {
     MediaExtractor extractor     = null;
@@ -53,35 +61,45 @@ final class VideoThumbnailsExtractor {
           throw new IllegalArgumentException("Mime type for MediaFormat was null: \t" + mediaFormat);
         }
 
-        final int    rotation = mediaFormat.containsKey(MediaFormat.KEY_ROTATION) ? mediaFormat.getInteger(MediaFormat.KEY_ROTATION) : 0;
-        final int    width    = mediaFormat.getInteger(MediaFormat.KEY_WIDTH);
-        final int    height   = mediaFormat.getInteger(MediaFormat.KEY_HEIGHT);
-        final int    outputWidth;
-        final int    outputHeight;
+        long duration = 0;
 
-        if (width < height) {
-          outputWidth  = thumbnailResolution;
-          outputHeight = height * outputWidth / width;
+        if (mediaFormat.containsKey(MediaFormat.KEY_DURATION)) {
+          duration = mediaFormat.getLong(MediaFormat.KEY_DURATION);
         } else {
-          outputHeight = thumbnailResolution;
-          outputWidth  = width * outputHeight / height;
+          Log.w(TAG, "Video is missing duration!");
         }
 
-        final int outputWidthRotated;
-        final int outputHeightRotated;
+        callback.durationKnown(duration);
+
+        if (thumbnailCount <= 0 || thumbnailWidth <= 0 || thumbnailHeight <= 0) {
+          Log.i(TAG, "No room for thumbnails");
+          return;
+        }
+
+        final int    rotation = mediaFormat.containsKey(MediaFormat.KEY_ROTATION) ? mediaFormat.getInteger(MediaFormat.KEY_ROTATION) : 0;
+        final int    width    = mediaFormat.getInteger(MediaFormat.KEY_WIDTH);
+        final int    height   = mediaFormat.getInteger(MediaFormat.KEY_HEIGHT);
+
+        final int widthRotated;
+        final int heightRotated;
 
         if ((rotation % 180 == 90)) {
           //noinspection SuspiciousNameCombination
-          outputWidthRotated = outputHeight;
+          widthRotated = height;
           //noinspection SuspiciousNameCombination
-          outputHeightRotated = outputWidth;
+          heightRotated = width;
         } else {
-          outputWidthRotated  = outputWidth;
-          outputHeightRotated = outputHeight;
+          widthRotated  = width;
+          heightRotated = height;
         }
 
+        // Scale the frame so that it covers the thumbnail, which is then cropped out of the middle of it.
+        final float scale               = Math.max((float) thumbnailWidth / widthRotated, (float) thumbnailHeight / heightRotated);
+        final int   outputWidthRotated  = Math.max(thumbnailWidth, Math.round(widthRotated * scale));
+        final int   outputHeightRotated = Math.max(thumbnailHeight, Math.round(heightRotated * scale));
+
         Log.i(TAG, "video :" + width + "x" + height + " " + rotation);
-        Log.i(TAG, "output: " + outputWidthRotated + "x" + outputHeightRotated);
+        Log.i(TAG, "output: " + outputWidthRotated + "x" + outputHeightRotated + ", cropped to " + thumbnailWidth + "x" + thumbnailHeight);
 
         outputSurface = new OutputSurface(outputWidthRotated, outputHeightRotated, true);
 
@@ -89,17 +107,11 @@ final class VideoThumbnailsExtractor {
         decoder.configure(mediaFormat, outputSurface.getSurface(), null, 0);
         decoder.start();
 
-        long duration = 0;
-
-        if (mediaFormat.containsKey(MediaFormat.KEY_DURATION)) {
-          duration = mediaFormat.getLong(MediaFormat.KEY_DURATION);
-        } else {
-          Log.w(TAG, "Video is missing duration!");
-        }
-
-        callback.durationKnown(duration);
+        final Rect crop = new Rect((outputWidthRotated - thumbnailWidth) / 2, (outputHeightRotated - thumbnailHeight) / 2, 0, 0);
+        crop.right  = crop.left + thumbnailWidth;
+        crop.bottom = crop.top + thumbnailHeight;
 
-        doExtract(extractor, decoder, outputSurface, outputWidthRotated, outputHeightRotated, duration, thumbnailCount, callback);
+        doExtract(extractor, decoder, outputSurface, crop, duration, thumbnailCount, callback);
       }
     } catch (Throwable t) {
       Log.w(TAG, t);
@@ -127,7 +139,8 @@ final class VideoThumbnailsExtractor {
   private static void doExtract(final @NonNull MediaExtractor extractor,
                                 final @NonNull MediaCodec decoder,
                                 final @NonNull OutputSurface outputSurface,
-                                final int outputWidth, int outputHeight, long duration, int thumbnailCount,
+                                final @NonNull Rect crop,
+                                long duration, int thumbnailCount,
                                 final @NonNull Callback callback)
     throws TranscodingException
   {
@@ -136,11 +149,14 @@ final class VideoThumbnailsExtractor {
     final ByteBuffer[]          decoderInputBuffers = decoder.getInputBuffers();
     final MediaCodec.BufferInfo info                = new MediaCodec.BufferInfo();
 
-    int samplesExtracted  = 0;
+    // How many consecutive thumbnails each queued key frame is used for, in decode order.
+    final ArrayDeque<Integer> thumbnailsPerFrame = new ArrayDeque<>();
+
+    int thumbnailsQueued  = 0;
     int thumbnailsCreated = 0;
 
     Log.i(TAG, "doExtract started");
-    final ByteBuffer pixelBuf = ByteBuffer.allocateDirect(outputWidth * outputHeight * 4);
+    final ByteBuffer pixelBuf = ByteBuffer.allocateDirect(crop.width() * crop.height() * 4);
     pixelBuf.order(ByteOrder.LITTLE_ENDIAN);
 
     boolean outputDone = false;
@@ -150,17 +166,25 @@ final class VideoThumbnailsExtractor {
         int inputBufIndex = decoder.dequeueInputBuffer(TIMEOUT_USEC);
         if (inputBufIndex >= 0) {
           final ByteBuffer inputBuf = decoderInputBuffers[inputBufIndex];
-          final int sampleSize = extractor.readSampleData(inputBuf, 0);
-          if (sampleSize < 0 || samplesExtracted >= thumbnailCount) {
+          final int sampleSize = thumbnailsQueued < thumbnailCount ? extractor.readSampleData(inputBuf, 0) : -1;
+          if (sampleSize < 0) {
             decoder.queueInputBuffer(inputBufIndex, 0, 0, 0L, MediaCodec.BUFFER_FLAG_END_OF_STREAM);
             inputDone = true;
             Log.i(TAG, "input done");
           } else {
             final long presentationTimeUs = extractor.getSampleTime();
             decoder.queueInputBuffer(inputBufIndex, 0, sampleSize, presentationTimeUs, 0 /*flags*/);
-            samplesExtracted++;
-            extractor.seekTo(duration * samplesExtracted / thumbnailCount, MediaExtractor.SEEK_TO_CLOSEST_SYNC);
-            Log.i(TAG, "seek to " + duration * samplesExtracted / thumbnailCount + ", actual " + extractor.getSampleTime());
+
+            // Targets only ever move forward, so once a target lands on a later key frame, so will all the ones after it.
+            int thumbnailsForFrame = 0;
+            do {
+              thumbnailsForFrame++;
+              thumbnailsQueued++;
+              extractor.seekTo(duration * thumbnailsQueued / thumbnailCount, MediaExtractor.SEEK_TO_CLOSEST_SYNC);
+            } while (thumbnailsQueued < thumbnailCount && extractor.getSampleTime() == presentationTimeUs);
+
+            thumbnailsPerFrame.add(thumbnailsForFrame);
+            Log.i(TAG, "queued frame at " + presentationTimeUs + " for " + thumbnailsForFrame + " thumbnail(s), next at " + extractor.getSampleTime());
           }
         }
       }
@@ -178,27 +202,33 @@ final class VideoThumbnailsExtractor {
           outputDone = true;
         }
 
-        final boolean shouldRender = (info.size != 0) /*&& (info.presentationTimeUs >= duration * decodeCount / thumbnailCount)*/;
+        final boolean shouldRender = (info.size != 0);
 
         decoder.releaseOutputBuffer(outputBufIndex, shouldRender);
         if (shouldRender) {
           outputSurface.awaitNewImage();
           outputSurface.drawImage();
 
-          if (thumbnailsCreated < thumbnailCount) {
+          final Integer thumbnailsForFrame = thumbnailsPerFrame.poll();
+          final int     repeat             = Math.min(thumbnailsForFrame != null ? thumbnailsForFrame : 1, thumbnailCount - thumbnailsCreated);
+
+          if (repeat > 0) {
             pixelBuf.rewind();
-            GLES20.glReadPixels(0, 0, outputWidth, outputHeight, GLES20.GL_RGBA, GLES20.GL_UNSIGNED_BYTE, pixelBuf);
+            GLES20.glReadPixels(crop.left, crop.top, crop.width(), crop.height(), GLES20.GL_RGBA, GLES20.GL_UNSIGNED_BYTE, pixelBuf);
 
-            final Bitmap bitmap = Bitmap.createBitmap(outputWidth, outputHeight, Bitmap.Config.ARGB_8888);
+            final Bitmap bitmap = Bitmap.createBitmap(crop.width(), crop.height(), Bitmap.Config.ARGB_8888);
             pixelBuf.rewind();
             bitmap.copyPixelsFromBuffer(pixelBuf);
 
-            if (!callback.publishProgress(thumbnailsCreated, bitmap)) {
-              break;
+            for (int i = 0; i < repeat; i++) {
+              if (!callback.publishProgress(thumbnailsCreated, bitmap)) {
+                Log.i(TAG, "doExtract canceled");
+                return;
+              }
+              Log.i(TAG, "publishProgress for frame " + thumbnailsCreated + " at " + info.presentationTimeUs + " (target " + duration * thumbnailsCreated / thumbnailCount + ")");
+              thumbnailsCreated++;
             }
-            Log.i(TAG, "publishProgress for frame " + thumbnailsCreated + " at " + info.presentationTimeUs + " (target " + duration * thumbnailsCreated / thumbnailCount + ")");
           }
-          thumbnailsCreated++;
         }
       }
     }
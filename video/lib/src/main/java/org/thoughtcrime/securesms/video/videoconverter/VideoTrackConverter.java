@@ -10,6 +10,9 @@ import android.media.MediaCodecInfo;
 import android.media.MediaExtractor;
 import android.media.MediaFormat;
 import android.os.Build;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.SystemClock;
 import android.view.Surface;
 
 import androidx.annotation.NonNull;
@@ -26,6 +29,10 @@ import org.thoughtcrime.securesms.video.videoconverter.utils.Preconditions;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicReference;
 
 import kotlin.Pair;
@@ -45,10 +52,14 @@ final class VideoTrackConverter {
 
     private static final float FRAME_RATE_TOLERANCE = 0.05f; // tolerance for transcoding VFR -> CFR
 
+    private static final long ENCODER_EOS_TIMEOUT_MS = 1000; // async mode: how long to wait for encoder EOS once the decoder is done
+    private static final long MUXER_WAIT_MS          = 5;    // async mode: how long to back off while the muxer is waiting on the other track
+
     private final long mTimeFrom;
     private final long mTimeTo;
 
     final long mInputDuration;
+    final long mExpectedFrameCount;
 
     private final MediaExtractor mVideoExtractor;
     private final MediaCodec mVideoDecoder;
@@ -62,21 +73,32 @@ final class VideoTrackConverter {
     private final MediaCodec.BufferInfo mVideoDecoderOutputBufferInfo;
     private final MediaCodec.BufferInfo mVideoEncoderOutputBufferInfo;
 
-    MediaFormat mEncoderOutputVideoFormat;
+    volatile MediaFormat mEncoderOutputVideoFormat;
+
+    volatile boolean mVideoExtractorDone;
+    private volatile boolean mVideoDecoderDone;
+    volatile boolean mVideoEncoderDone;
 
-    boolean mVideoExtractorDone;
-    private boolean mVideoDecoderDone;
-    boolean mVideoEncoderDone;
+    private volatile int mOutputVideoTrack = -1;
 
-    private int mOutputVideoTrack = -1;
+    volatile long mMuxingVideoPresentationTime;
 
-    long mMuxingVideoPresentationTime;
+    private volatile int mVideoExtractedFrameCount;
+    private volatile int mVideoDecodedFrameCount;
+    private volatile int mVideoEncodedFrameCount;
 
-    private int mVideoExtractedFrameCount;
-    private int mVideoDecodedFrameCount;
-    private int mVideoEncodedFrameCount;
+    private volatile Muxer mMuxer;
 
-    private Muxer mMuxer;
+    // Only used in async mode. The codecs deliver their callbacks on mCallbackThread, which feeds the decoder from the extractor and
+    // drains the encoder into the muxer. Decoded frames are handed to the converting thread, which owns the EGL context, to be rendered.
+    private final @Nullable HandlerThread    mCallbackThread;
+    private final @Nullable Handler          mCallbackHandler;
+    private final BlockingQueue<CodecBuffer> mDecodedFrames     = new LinkedBlockingQueue<>();
+    private final ArrayDeque<CodecBuffer>    mHeldEncoderOutput = new ArrayDeque<>();
+    private final Object                     mEncoderOutputLock = new Object();
+    private boolean                          mMuxerStarted;
+    private volatile long                    mLastEncoderActivityTime;
+    private volatile Exception               mAsyncError;
 
     @RequiresApi(23)
     static @Nullable VideoTrackConverter create(
@@ -85,7 +107,8 @@ final class VideoTrackConverter {
             final long timeTo,
             final int videoResolution,
             final int videoBitrate,
-            final @NonNull String videoCodec) throws IOException, TranscodingException {
+            final @NonNull String videoCodec,
+            final boolean async) throws IOException, TranscodingException {
 
         final MediaExtractor videoExtractor = input.createExtractor();
         final int videoInputTrack = getAndSelectVideoTrackIndex(videoExtractor);
@@ -93,7 +116,7 @@ final class VideoTrackConverter {
             videoExtractor.release();
             return null;
         }
-        return new VideoTrackConverter(videoExtractor, videoInputTrack, timeFrom, timeTo, videoResolution, videoBitrate, videoCodec);
+        return new VideoTrackConverter(videoExtractor, videoInputTrack, timeFrom, timeTo, videoResolution, videoBitrate, videoCodec, async);
     }
 
 
@@ -105,7 +128,8 @@ final class VideoTrackConverter {
             final long timeTo,
             final int videoResolution,
             final int videoBitrate,
-            final @NonNull String videoCodec) throws IOException, TranscodingException {
+            final @NonNull String videoCodec,
+            final boolean async) throws IOException, TranscodingException {
 
         mTimeFrom = timeFrom;
         mTimeTo = timeTo;
@@ -122,6 +146,7 @@ final class VideoTrackConverter {
         final MediaFormat inputVideoFormat = mVideoExtractor.getTrackFormat(videoInputTrack);
 
         mInputDuration = inputVideoFormat.containsKey(MediaFormat.KEY_DURATION) ? inputVideoFormat.getLong(MediaFormat.KEY_DURATION) : 0;
+        mExpectedFrameCount = (long) Math.ceil(MediaConverter.getOutputDurationUs(mInputDuration, timeFrom, timeTo) * getFrameRate(inputVideoFormat) / 1_000_000d);
 
         final int rotation = inputVideoFormat.containsKey(MediaFormat.KEY_ROTATION) ? inputVideoFormat.getInteger(MediaFormat.KEY_ROTATION) : 0;
         final int width = inputVideoFormat.containsKey(MEDIA_FORMAT_KEY_DISPLAY_WIDTH)
@@ -169,6 +194,15 @@ final class VideoTrackConverter {
         }
         if (VERBOSE) Log.d(TAG, "video format: " + outputVideoFormat);
 
+        if (async) {
+            mCallbackThread = new HandlerThread("video-converter");
+            mCallbackThread.start();
+            mCallbackHandler = new Handler(mCallbackThread.getLooper());
+        } else {
+            mCallbackThread = null;
+            mCallbackHandler = null;
+        }
+
         // Create a MediaCodec for the desired codec, then configure it as an encoder with
         // our desired properties. Request a Surface to use for input.
         final AtomicReference<Surface> inputSurfaceReference = new AtomicReference<>();
@@ -182,17 +216,23 @@ final class VideoTrackConverter {
                 inputVideoFormat.getInteger(MediaFormat.KEY_WIDTH), inputVideoFormat.getInteger(MediaFormat.KEY_HEIGHT),
                 outputWidth, outputHeight));
 
+        // Seek before the decoder is started, since in async mode it starts pulling from the extractor right away.
+        if (mTimeFrom > 0) {
+            mVideoExtractor.seekTo(mTimeFrom * 1000, MediaExtractor.SEEK_TO_PREVIOUS_SYNC);
+            Log.i(TAG, "Seek video:" + mTimeFrom + " " + mVideoExtractor.getSampleTime());
+        }
+
         mVideoDecoder = createVideoDecoder(inputVideoFormat, mOutputSurface.getSurface());
 
-        mVideoDecoderInputBuffers = mVideoDecoder.getInputBuffers();
-        mVideoEncoderOutputBuffers = mVideoEncoder.getOutputBuffers();
+        // The buffer arrays are only valid in synchronous mode. Async callbacks get their buffers from the codec directly.
+        mVideoDecoderInputBuffers = async ? null : mVideoDecoder.getInputBuffers();
+        mVideoEncoderOutputBuffers = async ? null : mVideoEncoder.getOutputBuffers();
         mVideoDecoderOutputBufferInfo = new MediaCodec.BufferInfo();
         mVideoEncoderOutputBufferInfo = new MediaCodec.BufferInfo();
+    }
 
-        if (mTimeFrom > 0) {
-            mVideoExtractor.seekTo(mTimeFrom * 1000, MediaExtractor.SEEK_TO_PREVIOUS_SYNC);
-            Log.i(TAG, "Seek video:" + mTimeFrom + " " + mVideoExtractor.getSampleTime());
-        }
+    boolean isAsync() {
+        return mCallbackHandler != null;
     }
 
     private boolean isHdr(MediaFormat inputVideoFormat) {
@@ -377,8 +417,211 @@ final class VideoTrackConverter {
         }
     }
 
+    /**
+     * Async mode only. Waits up to {@code timeoutMs} for the next decoded frame and renders it into the encoder, or if the decoder is
+     * done, for the encoder to produce more output. Must be called from the thread that created this converter.
+     */
+    void stepAsync(long timeoutMs) throws TranscodingException, InterruptedException {
+        throwIfAsyncFailed();
+
+        if (mEncoderOutputVideoFormat != null && mMuxer == null) {
+            // Like the synchronous path, don't feed the encoder any further until we can mux its output. Otherwise the encoder's input
+            // surface fills up and we'd block in swapBuffers() on the thread that needs to start the muxer.
+            Thread.sleep(Math.min(timeoutMs, MUXER_WAIT_MS));
+            return;
+        }
+
+        if (!mVideoDecoderDone) {
+            final CodecBuffer frame = mDecodedFrames.poll(timeoutMs, TimeUnit.MILLISECONDS);
+            if (frame != null) {
+                renderDecodedFrame(frame);
+            }
+        } else if (!mVideoEncoderDone) {
+            synchronized (mEncoderOutputLock) {
+                mEncoderOutputLock.wait(timeoutMs);
+            }
+
+            if (!mVideoEncoderDone && SystemClock.elapsedRealtime() - mLastEncoderActivityTime > ENCODER_EOS_TIMEOUT_MS) {
+                // on some devices and encoder stops after signalEndOfInputStream
+                Log.w(TAG, "mVideoDecoderDone, but didn't get BUFFER_FLAG_END_OF_STREAM");
+                mVideoEncodedFrameCount = mVideoDecodedFrameCount;
+                mVideoEncoderDone = true;
+            }
+        }
+    }
+
+    /**
+     * Async mode only. Called once the muxer has been started, so encoded output can be written to it.
+     */
+    void onMuxerStarted() {
+        Preconditions.checkState("not in async mode", mCallbackHandler != null);
+        mCallbackHandler.post(() -> {
+            mMuxerStarted = true;
+            CodecBuffer held;
+            while ((held = mHeldEncoderOutput.poll()) != null) {
+                writeEncodedOutput(held);
+            }
+        });
+    }
+
+    private void renderDecodedFrame(final @NonNull CodecBuffer frame) throws TranscodingException {
+        if ((frame.flags & MediaCodec.BUFFER_FLAG_CODEC_CONFIG) != 0) {
+            if (VERBOSE) Log.d(TAG, "video decoder: codec config buffer");
+            mVideoDecoder.releaseOutputBuffer(frame.index, false);
+            return;
+        }
+        if (frame.presentationTimeUs < mTimeFrom * 1000 && (frame.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) == 0) {
+            if (VERBOSE) Log.d(TAG, "video decoder: frame prior to " + frame.presentationTimeUs);
+            mVideoDecoder.releaseOutputBuffer(frame.index, false);
+            return;
+        }
+        final boolean render = frame.size != 0;
+        mVideoDecoder.releaseOutputBuffer(frame.index, render);
+        if (render) {
+            mOutputSurface.awaitNewImage();
+            mOutputSurface.drawImage();
+            mInputSurface.setPresentationTime(frame.presentationTimeUs * 1000);
+            mInputSurface.swapBuffers();
+        }
+        if ((frame.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0) {
+            if (VERBOSE) Log.d(TAG, "video decoder: EOS");
+            mLastEncoderActivityTime = SystemClock.elapsedRealtime();
+            mVideoDecoderDone = true;
+            mVideoEncoder.signalEndOfInputStream();
+        }
+        mVideoDecodedFrameCount++;
+    }
+
+    private void throwIfAsyncFailed() throws TranscodingException {
+        final Exception error = mAsyncError;
+        if (error != null) {
+            throw new TranscodingException("Video codec callback failed", error);
+        }
+    }
+
+    private void onAsyncError(@NonNull Exception e) {
+        Log.e(TAG, "video: error in codec callback", e);
+        if (mAsyncError == null) {
+            mAsyncError = e;
+        }
+        synchronized (mEncoderOutputLock) {
+            mEncoderOutputLock.notifyAll();
+        }
+    }
+
+    private void writeEncodedOutput(final @NonNull CodecBuffer output) {
+        try {
+            if (output.size != 0) {
+                final ByteBuffer encoderOutputBuffer = mVideoEncoder.getOutputBuffer(output.index);
+                mMuxer.writeSampleData(mOutputVideoTrack, encoderOutputBuffer, output.toBufferInfo());
+                mMuxingVideoPresentationTime = Math.max(mMuxingVideoPresentationTime, output.presentationTimeUs);
+            }
+            mVideoEncoder.releaseOutputBuffer(output.index, false);
+            mVideoEncodedFrameCount++;
+            mLastEncoderActivityTime = SystemClock.elapsedRealtime();
+            if ((output.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0) {
+                if (VERBOSE) Log.d(TAG, "video encoder: EOS");
+                mVideoEncoderDone = true;
+            }
+        } catch (IOException | IllegalStateException e) {
+            onAsyncError(e);
+        }
+        synchronized (mEncoderOutputLock) {
+            mEncoderOutputLock.notifyAll();
+        }
+    }
+
+    private final MediaCodec.Callback mDecoderCallback = new MediaCodec.Callback() {
+        @Override
+        public void onInputBufferAvailable(@NonNull MediaCodec codec, int index) {
+            if (mVideoExtractorDone) {
+                return;
+            }
+            try {
+                final ByteBuffer decoderInputBuffer = codec.getInputBuffer(index);
+                final int size = mVideoExtractor.readSampleData(decoderInputBuffer, 0);
+                final long presentationTime = mVideoExtractor.getSampleTime();
+                mVideoExtractorDone = size < 0 || (mTimeTo > 0 && presentationTime > mTimeTo * 1000);
+
+                if (mVideoExtractorDone) {
+                    if (VERBOSE) Log.d(TAG, "video extractor: EOS");
+                    codec.queueInputBuffer(index, 0, 0, 0, MediaCodec.BUFFER_FLAG_END_OF_STREAM);
+                } else {
+                    codec.queueInputBuffer(index, 0, size, presentationTime, mVideoExtractor.getSampleFlags());
+                }
+                mVideoExtractor.advance();
+                mVideoExtractedFrameCount++;
+            } catch (IllegalStateException | IllegalArgumentException e) {
+                onAsyncError(e);
+            }
+        }
+
+        @Override
+        public void onOutputBufferAvailable(@NonNull MediaCodec codec, int index, @NonNull MediaCodec.BufferInfo info) {
+            mDecodedFrames.add(new CodecBuffer(index, info));
+        }
+
+        @Override
+        public void onError(@NonNull MediaCodec codec, @NonNull MediaCodec.CodecException e) {
+            onAsyncError(e);
+        }
+
+        @Override
+        public void onOutputFormatChanged(@NonNull MediaCodec codec, @NonNull MediaFormat format) {
+            if (VERBOSE) Log.d(TAG, "video decoder: output format changed: " + format);
+        }
+    };
+
+    private final MediaCodec.Callback mEncoderCallback = new MediaCodec.Callback() {
+        @Override
+        public void onInputBufferAvailable(@NonNull MediaCodec codec, int index) {
+            // The encoder is fed through its input surface.
+        }
+
+        @Override
+        public void onOutputBufferAvailable(@NonNull MediaCodec codec, int index, @NonNull MediaCodec.BufferInfo info) {
+            if ((info.flags & MediaCodec.BUFFER_FLAG_CODEC_CONFIG) != 0) {
+                if (VERBOSE) Log.d(TAG, "video encoder: codec config buffer");
+                try {
+                    codec.releaseOutputBuffer(index, false);
+                } catch (IllegalStateException e) {
+                    onAsyncError(e);
+                }
+                return;
+            }
+
+            final CodecBuffer output = new CodecBuffer(index, info);
+            if (mMuxerStarted) {
+                writeEncodedOutput(output);
+            } else {
+                // Holding on to the buffer stalls the encoder until the muxer is ready, which is exactly what we want.
+                mHeldEncoderOutput.add(output);
+            }
+        }
+
+        @Override
+        public void onError(@NonNull MediaCodec codec, @NonNull MediaCodec.CodecException e) {
+            onAsyncError(e);
+        }
+
+        @Override
+        public void onOutputFormatChanged(@NonNull MediaCodec codec, @NonNull MediaFormat format) {
+            if (VERBOSE) Log.d(TAG, "video encoder: output format changed");
+            if (mOutputVideoTrack >= 0) {
+                onAsyncError(new IllegalStateException("video encoder changed its output format again?"));
+                return;
+            }
+            mEncoderOutputVideoFormat = format;
+        }
+    };
+
     void release() throws Exception {
         Exception exception = null;
+        if (mCallbackThread != null) {
+            // Stop handling callbacks first, so nothing touches the codecs or extractor while they are being released.
+            mCallbackThread.quit();
+            mCallbackThread.join();
+        }
         try {
             if (mVideoExtractor != null) {
                 mVideoExtractor.release();
@@ -501,6 +744,10 @@ final class VideoTrackConverter {
             final @NonNull Surface surface) {
         final Pair<MediaCodec, MediaFormat> decoderPair = MediaCodecCompat.findDecoder(inputFormat);
         final MediaCodec                    decoder     = decoderPair.getFirst();
+        if (mCallbackHandler != null) {
+            // Must be called before configure()
+            decoder.setCallback(mDecoderCallback, mCallbackHandler);
+        }
         decoder.configure(decoderPair.getSecond(), surface, null, 0);
         decoder.start();
         return decoder;
@@ -513,6 +760,10 @@ final class VideoTrackConverter {
             final @NonNull AtomicReference<Surface> surfaceReference) throws IOException {
         boolean tonemapRequested = isTonemapEnabled(format);
         final MediaCodec encoder = MediaCodec.createByCodecName(codecInfo.getName());
+        if (mCallbackHandler != null) {
+            // Must be called before configure()
+            encoder.setCallback(mEncoderCallback, mCallbackHandler);
+        }
         encoder.configure(format, null, null, MediaCodec.CONFIGURE_FLAG_ENCODE);
         if (tonemapRequested && !isTonemapEnabled(format)) {
             Log.d(TAG, "HDR tone-mapping requested but not supported by the decoder.");
@@ -549,6 +800,18 @@ final class VideoTrackConverter {
         return -1;
     }
 
+    private static float getFrameRate(final @NonNull MediaFormat format) {
+        if (!format.containsKey(MediaFormat.KEY_FRAME_RATE)) {
+            return OUTPUT_VIDEO_FRAME_RATE;
+        }
+        // Extractors disagree on whether this is an int or a float.
+        try {
+            return format.getInteger(MediaFormat.KEY_FRAME_RATE);
+        } catch (ClassCastException e) {
+            return format.getFloat(MediaFormat.KEY_FRAME_RATE);
+        }
+    }
+
     private static boolean isVideoFormat(final @NonNull MediaFormat format) {
         return MediaConverter.getMimeTypeFor(format).startsWith("video/");
     }
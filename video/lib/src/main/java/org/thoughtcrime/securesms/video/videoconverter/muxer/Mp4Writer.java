@@ -20,6 +20,7 @@
 package org.thoughtcrime.securesms.video.videoconverter.muxer;
 
 import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
 
 import org.mp4parser.Box;
 import org.mp4parser.boxes.iso14496.part12.ChunkOffsetBox;
@@ -50,6 +51,7 @@ import org.signal.core.util.logging.Log;
 
 import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.channels.WritableByteChannel;
 import java.util.ArrayList;
 import java.util.Collections;
@@ -70,15 +72,20 @@ import static org.mp4parser.tools.CastUtils.l2i;
  * A very special property of this variant is that it written sequentially. You can start transferring the
  * data while the <code>sink</code> receives it. (in contrast to typical implementations which need random
  * access to write length fields at the beginning of the file)
+ * <p>
+ * When given a {@link FileChannel} and some reserved space, the moov is instead written into that space at the front of the file
+ * once all samples are known, giving a faststart file without a second pass over the data.
  */
 final class Mp4Writer extends DefaultBoxes implements SampleSink {
 
   private static final String TAG = "Mp4Writer";
   private static final Long UInt32_MAX = (1L << 32) - 1;
 
-  private final WritableByteChannel  sink;
-  private final List<StreamingTrack> source;
-  private final Date                 creationTime = new Date();
+  private final           WritableByteChannel  sink;
+  private final @Nullable FileChannel          seekableSink;
+  private final           long                 reservedMoovSize;
+  private final           List<StreamingTrack> source;
+  private final           Date                 creationTime = new Date();
 
 
   /**
@@ -105,10 +112,26 @@ final class Mp4Writer extends DefaultBoxes implements SampleSink {
   private final Map<StreamingTrack, Long>                  chunkNumbers             = new HashMap<>();
   private final Map<StreamingTrack, Long>                  sampleNumbers            = new HashMap<>();
   private       long                                       bytesWritten             = 0;
+  private       long                                       moovReservationOffset    = -1;
+  private       boolean                                    faststart;
 
   Mp4Writer(final @NonNull List<StreamingTrack> source, final @NonNull WritableByteChannel sink) throws IOException {
-    this.source = new ArrayList<>(source);
-    this.sink   = sink;
+    this(source, sink, null, 0);
+  }
+
+  /**
+   * @param reservedMoovSize The number of bytes to leave after the ftyp for the moov. If the moov turns out to be larger than this, it
+   *                         is appended to the end of the file as usual, and {@link #isFaststart()} will return false.
+   */
+  Mp4Writer(final @NonNull List<StreamingTrack> source, final @NonNull FileChannel sink, long reservedMoovSize) throws IOException {
+    this(source, sink, sink, reservedMoovSize);
+  }
+
+  private Mp4Writer(final @NonNull List<StreamingTrack> source, final @NonNull WritableByteChannel sink, final @Nullable FileChannel seekableSink, long reservedMoovSize) throws IOException {
+    this.source           = new ArrayList<>(source);
+    this.sink             = sink;
+    this.seekableSink     = seekableSink;
+    this.reservedMoovSize = reservedMoovSize;
 
     final HashSet<Long> trackIds = new HashSet<>();
     for (StreamingTrack streamingTrack : source) {
@@ -144,6 +167,14 @@ final class Mp4Writer extends DefaultBoxes implements SampleSink {
     minorBrands.add("isom");
     minorBrands.add("mp42");
     write(sink, new FileTypeBox("mp42", 0, minorBrands));
+
+    if (seekableSink != null && reservedMoovSize > 0) {
+      if (reservedMoovSize < FreeSpace.HEADER_SIZE) {
+        throw new IllegalArgumentException("reservedMoovSize must be at least " + FreeSpace.HEADER_SIZE);
+      }
+      moovReservationOffset = bytesWritten;
+      write(sink, new FreeSpace(reservedMoovSize));
+    }
   }
 
   public void close() throws IOException {
@@ -151,7 +182,37 @@ final class Mp4Writer extends DefaultBoxes implements SampleSink {
       writeChunkContainer(createChunkContainer(streamingTrack));
       streamingTrack.close();
     }
-    write(sink, createMoov());
+
+    final Box moov = createMoov();
+    if (seekableSink != null && moovReservationOffset >= 0 && fitsReservation(moov.getSize())) {
+      // The chunk offsets already account for the reserved space, so the moov can be dropped in as is.
+      final long end = seekableSink.position();
+      seekableSink.position(moovReservationOffset);
+      moov.getBox(seekableSink);
+      if (moov.getSize() < reservedMoovSize) {
+        new FreeSpace(reservedMoovSize - moov.getSize()).getBox(seekableSink);
+      }
+      seekableSink.position(end);
+      faststart = true;
+    } else {
+      if (moovReservationOffset >= 0) {
+        Log.w(TAG, "moov (" + moov.getSize() + " bytes) did not fit in the reserved space (" + reservedMoovSize + " bytes), appending instead");
+      }
+      write(sink, moov);
+    }
+  }
+
+  /**
+   * True if the moov was written before the media data, i.e. the file doesn't need to be post-processed for faststart. Only valid
+   * after {@link #close()}.
+   */
+  public boolean isFaststart() {
+    return faststart;
+  }
+
+  private boolean fitsReservation(long moovSize) {
+    // Any leftover space has to be big enough to hold the header of the free box that covers it.
+    return moovSize == reservedMoovSize || moovSize + FreeSpace.HEADER_SIZE <= reservedMoovSize;
   }
 
   private Box createMoov() {
@@ -435,6 +496,50 @@ final class Mp4Writer extends DefaultBoxes implements SampleSink {
     }
   }
 
+  /**
+   * A free box of the given total size, which readers skip over.
+   */
+  private static class FreeSpace implements Box {
+    static final int HEADER_SIZE = 8;
+
+    private static final int WRITE_CHUNK_SIZE = 8192;
+
+    final long size;
+
+    FreeSpace(long size) {
+      this.size = size;
+    }
+
+    @Override
+    public String getType() {
+      return "free";
+    }
+
+    @Override
+    public long getSize() {
+      return size;
+    }
+
+    @Override
+    public void getBox(WritableByteChannel writableByteChannel) throws IOException {
+      writableByteChannel.write(ByteBuffer.wrap(new byte[]{
+              (byte) ((size & 0xff000000) >> 24),
+              (byte) ((size & 0xff0000) >> 16),
+              (byte) ((size & 0xff00) >> 8),
+              (byte) ((size & 0xff)),
+              102, 114, 101, 101, // free
+      }));
+
+      final ByteBuffer zeros     = ByteBuffer.allocate((int) Math.min(WRITE_CHUNK_SIZE, size));
+      long             remaining = size - HEADER_SIZE;
+      while (remaining > 0) {
+        zeros.clear();
+        zeros.limit((int) Math.min(zeros.capacity(), remaining));
+        remaining -= writableByteChannel.write(zeros);
+      }
+    }
+  }
+
   private class ChunkContainer {
     Mdat           mdat;
     StreamingTrack streamingTrack;
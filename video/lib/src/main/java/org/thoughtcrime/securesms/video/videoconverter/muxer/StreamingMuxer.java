@@ -16,17 +16,38 @@ import java.io.IOException;
 import java.io.OutputStream;
 import java.nio.ByteBuffer;
 import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
 import java.util.ArrayList;
 import java.util.List;
 
 public final class StreamingMuxer implements Muxer {
   private static final String TAG = Log.tag(StreamingMuxer.class);
-  private final OutputStream          outputStream;
-  private final List<MediaCodecTrack> tracks = new ArrayList<>();
-  private       Mp4Writer             mp4Writer;
+
+  /** Upper bound on the moov overhead of each sample: its stsz, stts, ctts and stss entries, assuming stts rarely needs one per sample. */
+  private static final int MOOV_BYTES_PER_SAMPLE = 16;
+  /** Headers, sample descriptions and codec config for each track. */
+  private static final int MOOV_BYTES_PER_TRACK  = 2048;
+  private static final int MOOV_BASE_SIZE        = 1024;
+
+  private final @Nullable OutputStream          outputStream;
+  private final @Nullable FileChannel           channel;
+  private final           List<MediaCodecTrack> tracks = new ArrayList<>();
+  private                 Mp4Writer             mp4Writer;
+  private                 long                  expectedSampleCount;
+  private                 boolean               faststart;
 
   public StreamingMuxer(OutputStream outputStream) {
     this.outputStream = outputStream;
+    this.channel      = null;
+  }
+
+  /**
+   * Writes to a seekable channel, which lets space be reserved for the moov at the front of the file, so that the output is faststart
+   * without needing a second pass. Requires a call to {@link #setExpectedSampleCount(long)} before {@link #start()} to size the reservation.
+   */
+  public StreamingMuxer(@NonNull FileChannel channel) {
+    this.outputStream = null;
+    this.channel      = channel;
   }
 
   @Override
@@ -35,7 +56,11 @@ public final class StreamingMuxer implements Muxer {
     for (MediaCodecTrack track : tracks) {
       source.add((StreamingTrack) track);
     }
-    mp4Writer = new Mp4Writer(source, Channels.newChannel(outputStream));
+    if (channel != null) {
+      mp4Writer = new Mp4Writer(source, channel, estimateMoovSize(expectedSampleCount, tracks.size()));
+    } else {
+      mp4Writer = new Mp4Writer(source, Channels.newChannel(outputStream));
+    }
   }
 
   @Override
@@ -47,6 +72,7 @@ public final class StreamingMuxer implements Muxer {
       track.finish();
     }
     mp4Writer.close();
+    faststart = mp4Writer.isFaststart();
     mp4Writer = null;
   }
 
@@ -84,6 +110,26 @@ public final class StreamingMuxer implements Muxer {
     return true;
   }
 
+  @Override
+  public void setExpectedSampleCount(long sampleCount) {
+    expectedSampleCount = sampleCount;
+  }
+
+  @Override
+  public boolean isFaststart() {
+    return faststart;
+  }
+
+  /**
+   * A generous estimate of the moov size for the given number of samples, or 0 if nothing is known about the samples.
+   */
+  static long estimateMoovSize(long sampleCount, int trackCount) {
+    if (sampleCount <= 0) {
+      return 0;
+    }
+    return MOOV_BASE_SIZE + (long) trackCount * MOOV_BYTES_PER_TRACK + sampleCount * MOOV_BYTES_PER_SAMPLE;
+  }
+
   interface MediaCodecTrack {
     void writeSampleData(@NonNull ByteBuffer byteBuf, @NonNull MediaCodec.BufferInfo bufferInfo) throws IOException;
 
@@ -0,0 +1,207 @@
+/*
+ * Copyright 2024 Signal Messenger, LLC
+ * SPDX-License-Identifier: AGPL-3.0-only
+ */
+
+package org.thoughtcrime.securesms.video.videoconverter.muxer
+
+import org.junit.After
+import org.junit.Assert.assertArrayEquals
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertFalse
+import org.junit.Assert.assertTrue
+import org.junit.Before
+import org.junit.Test
+import org.mp4parser.IsoFile
+import org.mp4parser.boxes.iso14496.part12.ChunkOffsetBox
+import org.mp4parser.boxes.iso14496.part12.SampleDescriptionBox
+import org.mp4parser.boxes.iso14496.part12.SampleSizeBox
+import org.mp4parser.boxes.iso14496.part12.SampleToChunkBox
+import org.mp4parser.boxes.iso14496.part12.TrackBox
+import org.mp4parser.boxes.sampleentry.AudioSampleEntry
+import org.mp4parser.boxes.sampleentry.VisualSampleEntry
+import org.mp4parser.streaming.input.AbstractStreamingTrack
+import org.mp4parser.streaming.input.StreamingSampleImpl
+import org.mp4parser.tools.Path
+import java.io.File
+import java.io.FileInputStream
+import java.io.RandomAccessFile
+import java.nio.ByteBuffer
+import kotlin.random.Random
+
+class Mp4WriterTest {
+
+  private lateinit var appendedFile: File
+  private lateinit var faststartFile: File
+
+  @Before
+  fun setUp() {
+    appendedFile = File.createTempFile("appended", ".mp4")
+    faststartFile = File.createTempFile("faststart", ".mp4")
+  }
+
+  @After
+  fun tearDown() {
+    appendedFile.delete()
+    faststartFile.delete()
+  }
+
+  @Test
+  fun givenEnoughReservedSpace_whenIClose_thenIExpectMoovBeforeMdatAndIdenticalSamples() {
+    writeAppended(appendedFile)
+    val faststart = writeFaststart(faststartFile, StreamingMuxer.estimateMoovSize(VIDEO_SAMPLES + AUDIO_SAMPLES.toLong(), 2))
+
+    assertTrue(faststart)
+    assertEquals(listOf("ftyp", "moov", "free", "mdat"), topLevelBoxTypes(faststartFile).distinct())
+    assertEquals("moov", topLevelBoxTypes(appendedFile).last())
+    assertSamplesEqual(readSamples(appendedFile), readSamples(faststartFile))
+  }
+
+  @Test
+  fun givenEnoughReservedSpace_whenIClose_thenIExpectTheOnlyOverheadToBeThePadding() {
+    val reserved = StreamingMuxer.estimateMoovSize(VIDEO_SAMPLES + AUDIO_SAMPLES.toLong(), 2)
+
+    writeAppended(appendedFile)
+    writeFaststart(faststartFile, reserved)
+
+    // The faststart file is written in a single pass, where the post-processor would read and write the whole appended file again.
+    assertEquals(appendedFile.length() + reserved, faststartFile.length())
+    assertTrue(reserved < appendedFile.length() / 10)
+  }
+
+  @Test
+  fun givenAnExactFitReservation_whenIClose_thenIExpectNoPadding() {
+    writeAppended(appendedFile)
+    val moovSize = IsoFile(FileInputStream(appendedFile).channel).use { it.movieBox.size }
+
+    assertTrue(writeFaststart(faststartFile, moovSize))
+    assertEquals(listOf("ftyp", "moov", "mdat"), topLevelBoxTypes(faststartFile).distinct())
+    assertEquals(appendedFile.length() + moovSize, faststartFile.length())
+  }
+
+  @Test
+  fun givenTooLittleReservedSpace_whenIClose_thenIExpectMoovAppended() {
+    writeAppended(appendedFile)
+    val faststart = writeFaststart(faststartFile, 64)
+
+    assertFalse(faststart)
+    assertEquals("moov", topLevelBoxTypes(faststartFile).last())
+    assertSamplesEqual(readSamples(appendedFile), readSamples(faststartFile))
+  }
+
+  private fun writeAppended(file: File) {
+    RandomAccessFile(file, "rw").use { raf ->
+      val tracks = createTracks()
+      val writer = Mp4Writer(tracks, raf.channel)
+      writeSamples(tracks)
+      writer.close()
+    }
+  }
+
+  private fun writeFaststart(file: File, reservedMoovSize: Long): Boolean {
+    RandomAccessFile(file, "rw").use { raf ->
+      val tracks = createTracks()
+      val writer = Mp4Writer(tracks, raf.channel, reservedMoovSize)
+      writeSamples(tracks)
+      writer.close()
+      return writer.isFaststart
+    }
+  }
+
+  private fun createTracks(): List<FakeTrack> {
+    return listOf(FakeTrack("vide", 90_000), FakeTrack("soun", 44_100))
+  }
+
+  /**
+   * Interleaves roughly 10 seconds of 30fps video and 44.1kHz audio, with the same pseudo-random sample content on every call.
+   */
+  private fun writeSamples(tracks: List<FakeTrack>) {
+    val (video, audio) = tracks
+    val random = Random(1234)
+    var videoWritten = 0
+    var audioWritten = 0
+
+    while (videoWritten < VIDEO_SAMPLES || audioWritten < AUDIO_SAMPLES) {
+      val videoTime = videoWritten * VIDEO_SAMPLE_DURATION / 90_000.0
+      val audioTime = audioWritten * AUDIO_SAMPLE_DURATION / 44_100.0
+
+      if (audioWritten >= AUDIO_SAMPLES || (videoWritten < VIDEO_SAMPLES && videoTime <= audioTime)) {
+        video.write(random.nextBytes(random.nextInt(500, 5000)), VIDEO_SAMPLE_DURATION)
+        videoWritten++
+      } else {
+        audio.write(random.nextBytes(random.nextInt(100, 400)), AUDIO_SAMPLE_DURATION)
+        audioWritten++
+      }
+    }
+  }
+
+  private fun topLevelBoxTypes(file: File): List<String> {
+    return IsoFile(FileInputStream(file).channel).use { isoFile -> isoFile.boxes.map { it.type } }
+  }
+
+  /**
+   * Reads every sample of every track back out of the file by following its chunk offsets, the same way a player would.
+   */
+  private fun readSamples(file: File): List<List<ByteArray>> {
+    val bytes = file.readBytes()
+
+    return IsoFile(FileInputStream(file).channel).use { isoFile ->
+      isoFile.movieBox.getBoxes(TrackBox::class.java).map { trak ->
+        val stco = Path.getPath<ChunkOffsetBox>(trak, "mdia[0]/minf[0]/stbl[0]/stco[0]")!!
+        val stsz = Path.getPath<SampleSizeBox>(trak, "mdia[0]/minf[0]/stbl[0]/stsz[0]")!!
+        val stsc = Path.getPath<SampleToChunkBox>(trak, "mdia[0]/minf[0]/stbl[0]/stsc[0]")!!
+
+        val samples = mutableListOf<ByteArray>()
+        for ((chunkIndex, chunkOffset) in stco.chunkOffsets.withIndex()) {
+          val samplesPerChunk = stsc.entries.last { it.firstChunk <= chunkIndex + 1 }.samplesPerChunk
+          var offset = chunkOffset.toInt()
+          repeat(samplesPerChunk.toInt()) {
+            val size = stsz.getSampleSizeAtIndex(samples.size).toInt()
+            samples += bytes.copyOfRange(offset, offset + size)
+            offset += size
+          }
+        }
+        samples
+      }
+    }
+  }
+
+  private fun assertSamplesEqual(expected: List<List<ByteArray>>, actual: List<List<ByteArray>>) {
+    assertEquals(expected.size, actual.size)
+    assertEquals(VIDEO_SAMPLES, expected[0].size)
+    for (track in expected.indices) {
+      assertEquals(expected[track].size, actual[track].size)
+      for (sample in expected[track].indices) {
+        assertArrayEquals(expected[track][sample], actual[track][sample])
+      }
+    }
+  }
+
+  private class FakeTrack(private val handler: String, private val timescale: Long) : AbstractStreamingTrack() {
+
+    private val stsd = SampleDescriptionBox().apply {
+      addBox(if (handler == "vide") VisualSampleEntry("avc1") else AudioSampleEntry("mp4a"))
+    }
+
+    fun write(content: ByteArray, duration: Long) {
+      sampleSink.acceptSample(StreamingSampleImpl(ByteBuffer.wrap(content), duration), this)
+    }
+
+    override fun getTimescale(): Long = timescale
+
+    override fun getHandler(): String = handler
+
+    override fun getLanguage(): String = "```"
+
+    override fun getSampleDescriptionBox(): SampleDescriptionBox = stsd
+
+    override fun close() = Unit
+  }
+
+  companion object {
+    private const val VIDEO_SAMPLES = 300
+    private const val VIDEO_SAMPLE_DURATION = 3_000L
+    private const val AUDIO_SAMPLES = 431
+    private const val AUDIO_SAMPLE_DURATION = 1_024L
+  }
+}